@@ -0,0 +1,181 @@
+// BroadcastBenchmark.java
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server fan-out to many subscribers: NioChatServer.broadcast (encode once, share the
+ * bytes) against one sendMessage per session, and broadcastFile against one sendFile
+ * per session.
+ *
+ * Subscribers are plain non-blocking sockets on one selector thread that only count
+ * bytes, so the numbers are about the server side.
+ *
+ * javac -d out src/*.java bench/BroadcastBenchmark.java
+ * java -cp out BroadcastBenchmark shared 1000 200 200    (mode, subscribers, messages, message bytes)
+ * java -cp out BroadcastBenchmark file 1000 1 1048576    (mode, subscribers, files, file bytes)
+ *
+ * Modes: shared | copy | file | filecopy
+ */
+public class BroadcastBenchmark {
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "shared";
+        int subscribers = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int count = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int size = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+        boolean files = mode.startsWith("file");
+
+        NioChatServer server = new NioChatServer(0, Math.min(4, Runtime.getRuntime().availableProcessors()), null,
+                new NioChatServer.Listener() {
+                    public void onConnect(NioChatServer.Session s) {}
+                    public void onMessage(NioChatServer.Session s, String m) {}
+                    public void onFile(NioChatServer.Session s, String n, File f) {}
+                    public void onDisconnect(NioChatServer.Session s) {}
+                    public void onError(NioChatServer.Session s, Exception e) { System.out.println("error " + s + ": " + e); }
+                });
+        server.start();
+
+        // message modes announce version 4 and get binary frames; file modes stay legacy so
+        // the subscribers don't have to answer FILE_ACCEPT
+        Subscribers subs = new Subscribers(server.getPort(), subscribers, !files);
+        long hello = Frames.encodeHello().length;
+        subs.await((long) subscribers * hello);
+        while (server.sessionCount() < subscribers) Thread.sleep(10);
+        if (!files) while (!allBinary(server)) Thread.sleep(10);
+
+        long perSubscriber;
+        File payload = null;
+        String message = null;
+        if (files) {
+            payload = Files.createTempFile("chat-bench", ".bin").toFile();
+            byte[] data = new byte[size];
+            new Random(42).nextBytes(data);
+            Files.write(payload.toPath(), data);
+            perSubscriber = Frames.encodeFileHeader(payload.getName(), size, false).length + (long) size;
+        } else {
+            char[] text = new char[size];
+            java.util.Arrays.fill(text, 'x');
+            message = new String(text);
+            perSubscriber = Frames.encodeMessage(message, true).length;
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long self = Thread.currentThread().getId();
+        long alloc0 = threads.getThreadAllocatedBytes(self);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            switch (mode) {
+                case "shared":
+                    server.broadcast(message, null);
+                    break;
+                case "copy":
+                    for (NioChatServer.Session s : server.sessions()) s.sendMessage(message);
+                    break;
+                case "file":
+                    server.broadcastFile(payload, null, null);
+                    break;
+                case "filecopy":
+                    for (NioChatServer.Session s : server.sessions()) s.sendFile(payload, null, null);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown mode " + mode);
+            }
+        }
+        long enqueued = System.nanoTime();
+        long alloc = threads.getThreadAllocatedBytes(self) - alloc0;
+        subs.await((long) subscribers * (hello + count * perSubscriber));
+        double secs = (System.nanoTime() - t0) / 1e9;
+
+        long deliveries = (long) subscribers * count;
+        System.out.printf("%s: %d subscribers x %d %s of %d bytes, java %s%n", mode, subscribers, count,
+                files ? "files" : "messages", size, System.getProperty("java.version"));
+        System.out.printf("  enqueue %.1f ms, publisher allocated %.1f bytes/delivery%n",
+                (enqueued - t0) / 1e6, (double) alloc / deliveries);
+        System.out.printf("  all delivered in %.3f s: %.0f deliveries/s, %.1f MB/s to subscribers%n",
+                secs, deliveries / secs, deliveries * perSubscriber / secs / (1024 * 1024));
+
+        subs.close();
+        server.stop();
+        if (payload != null) payload.delete();
+        System.exit(0);
+    }
+
+    private static boolean allBinary(NioChatServer server) {
+        for (NioChatServer.Session s : server.sessions()) {
+            if (s.getPeerVersion() < 2) return false;
+        }
+        return true;
+    }
+
+    // every subscriber on one selector, reading and counting
+    private static final class Subscribers {
+        private final Selector selector = Selector.open();
+        private final List<SocketChannel> channels = new ArrayList<>();
+        private final AtomicLong received = new AtomicLong();
+        private volatile boolean running = true;
+
+        Subscribers(int port, int n, boolean hello) throws IOException {
+            byte[] greeting = Frames.encodeHello();
+            for (int i = 0; i < n; i++) {
+                SocketChannel ch = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+                if (hello) {
+                    ByteBuffer b = ByteBuffer.wrap(greeting);
+                    while (b.hasRemaining()) ch.write(b);
+                }
+                ch.configureBlocking(false);
+                ch.register(selector, SelectionKey.OP_READ);
+                channels.add(ch);
+            }
+            Thread t = new Thread(this::run, "Subscribers");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        private void run() {
+            ByteBuffer buf = ByteBuffer.allocateDirect(256 * 1024);
+            try {
+                while (running) {
+                    selector.select(100);
+                    for (SelectionKey k : selector.selectedKeys()) {
+                        int r;
+                        do {
+                            buf.clear();
+                            r = ((SocketChannel) k.channel()).read(buf);
+                            if (r > 0) received.addAndGet(r);
+                        } while (r > 0);
+                        if (r < 0) k.cancel();
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                if (running) e.printStackTrace();
+            }
+        }
+
+        void await(long bytes) throws InterruptedException, IOException {
+            long deadline = System.currentTimeMillis() + 10 * 60 * 1000;
+            while (received.get() < bytes) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("only " + received.get() + " of " + bytes + " bytes arrived");
+                }
+                Thread.sleep(1);
+            }
+        }
+
+        void close() throws IOException {
+            running = false;
+            for (SocketChannel ch : channels) ch.close();
+            selector.close();
+        }
+    }
+}
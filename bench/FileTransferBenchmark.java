@@ -0,0 +1,87 @@
+// FileTransferBenchmark.java
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loopback file throughput of the stream copy loop versus the zero-copy
+ * (transferTo/transferFrom) path in FramedConnection.
+ *
+ * javac -d out src/*.java bench/FileTransferBenchmark.java
+ * java -cp out FileTransferBenchmark 1024 3      (file size in MB, runs per mode)
+ */
+public class FileTransferBenchmark {
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        File dir = Files.createTempDirectory("chat-bench").toFile();
+        File src = new File(dir, "payload.bin");
+        writeRandom(src, sizeMb * 1024L * 1024L);
+
+        System.out.println("file " + sizeMb + " MB, " + runs + " runs per mode, java " + System.getProperty("java.version"));
+        for (boolean zeroCopy : new boolean[] { false, true }) {
+            FramedConnection.setZeroCopy(zeroCopy);
+            run(src, dir, 1); // warm-up
+            double best = 0, sum = 0;
+            for (int i = 0; i < runs; i++) {
+                double mbps = run(src, dir, 1);
+                best = Math.max(best, mbps);
+                sum += mbps;
+            }
+            System.out.printf("%-10s avg %7.1f MB/s   best %7.1f MB/s%n",
+                    zeroCopy ? "zero-copy" : "stream", sum / runs, best);
+        }
+        src.delete();
+        dir.delete();
+        System.exit(0);
+    }
+
+    private static double run(File src, File dir, int files) throws Exception {
+        BlockingQueue<File> received = new ArrayBlockingQueue<>(files);
+        try (ServerSocketChannel ss = ServerSocketChannel.open()) {
+            ss.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Socket c = SocketChannel.open(ss.getLocalAddress()).socket();
+            Socket s = ss.accept().socket();
+            Connection sender = new Connection(c);
+            Connection receiver = new Connection(s) {
+                @Override
+                protected File createReceivedFile(String filename) {
+                    return new File(dir, "recv_" + System.nanoTime());
+                }
+            };
+            receiver.readLoop(null, (name, saved) -> received.add(saved), null);
+            sender.readLoop(null, null, null);
+
+            long t0 = System.nanoTime();
+            for (int i = 0; i < files; i++) sender.sendFile(src);
+            for (int i = 0; i < files; i++) {
+                File f = received.poll(5, TimeUnit.MINUTES);
+                if (f == null || f.length() != src.length()) throw new IOException("transfer incomplete");
+                f.delete();
+            }
+            double secs = (System.nanoTime() - t0) / 1e9;
+            sender.close();
+            receiver.close();
+            return files * src.length() / (1024.0 * 1024.0) / secs;
+        }
+    }
+
+    private static void writeRandom(File f, long size) throws IOException {
+        byte[] block = new byte[1024 * 1024];
+        new Random(42).nextBytes(block);
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            for (long left = size; left > 0; left -= block.length) {
+                out.write(block, 0, (int) Math.min(block.length, left));
+            }
+        }
+    }
+}
@@ -0,0 +1,653 @@
+// LoadGenerator.java
+import java.io.*;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Soak and load test: thousands of simulated clients against one server, driving a mix
+ * of message sizes and file sizes at a fixed rate per client.
+ *
+ * Every message carries the nanoTime it was sent, and every client that gets one back
+ * (the sender itself in echo mode, everybody else in relay mode) records the delay, so
+ * latency covers queueing on both sides. Each interval prints one JSON line with the
+ * counts, rates, p50/p99/p999, errors and the server's memory; at the end the whole run
+ * (settings, totals, every interval) goes to one JSON file, to diff between versions.
+ *
+ * By default the server runs in a child JVM on the same classpath, so its heap, RSS,
+ * direct buffers and GC are its own and not mixed with the clients'. server=inprocess
+ * skips the child (memory then includes the clients); server=host:port targets a
+ * running ChatServer and reports no server memory.
+ *
+ * javac -d out src/*.java bench/LoadGenerator.java
+ * java -cp out LoadGenerator clients=2000 duration=30m msgRate=0.5 msgSizes=64:80,1k:20 out=soak.json
+ * java -cp out LoadGenerator clients=200 fileRate=6 fileSizes=64k:90,4m:10 mode=relay
+ * java -Dchat.threads=virtual -cp out LoadGenerator clients=10000 ...     (Java 21+, 2 platform threads per client otherwise)
+ *
+ * Settings (key=value): server=spawn|inprocess|host:port, mode=echo|relay, serverJvm="-Xmx1g",
+ * clients=200, ramp=200 (connects/s), duration=60s, interval=10s, msgRate=1 (per client/s),
+ * msgSizes=64:80,1k:20 (size:weight), fileRate=0 (per client/min), fileSizes=64k:80,1m:18,16m:2, out=file
+ */
+public class LoadGenerator {
+
+    enum Err { CONNECT, SEND, FILE, DISCONNECT, SERVER }
+
+    private static final long SWEEP_AGE_MS = 120_000;
+
+    private final Map<String, String> settings;
+    private final int clientCount;
+    private final int rampPerSec;
+    private final long durationMs;
+    private final long intervalMs;
+    private final double msgRate;
+    private final double fileRate;
+    private final long[] msgSizes, fileSizes;
+    private final int[] msgWeights, fileWeights;
+    private final String[] padding;
+
+    private final LatencyHistogram msgLatency = new LatencyHistogram();   // micros
+    private final LatencyHistogram fileLatency = new LatencyHistogram();  // micros
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder filesSent = new LongAdder();
+    private final LongAdder filesDone = new LongAdder();
+    private final LongAdder fileBytes = new LongAdder();
+    private final LongAdder[] errors = new LongAdder[Err.values().length];
+    private final AtomicInteger connected = new AtomicInteger();
+    private final AtomicLong fileStamp = new AtomicLong();
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService timer = new ScheduledThreadPoolExecutor(2, r -> {
+        Thread t = new Thread(r, "LoadGen-Timer");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile boolean stopping;
+
+    private File workDir, recvDir;
+    private final Map<Long, File> templates = new LinkedHashMap<>();
+    private ServerHandle server;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("serve")) {
+            serve(new File(args[1]));
+            return;
+        }
+        Map<String, String> settings = new LinkedHashMap<>();
+        settings.put("server", "spawn");
+        settings.put("mode", "echo");
+        settings.put("serverJvm", "-Xmx1g");
+        settings.put("clients", "200");
+        settings.put("ramp", "200");
+        settings.put("duration", "60s");
+        settings.put("interval", "10s");
+        settings.put("msgRate", "1");
+        settings.put("msgSizes", "64:80,1k:20");
+        settings.put("fileRate", "0");
+        settings.put("fileSizes", "64k:80,1m:18,16m:2");
+        settings.put("out", "loadgen-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json");
+        for (String a : args) {
+            int eq = a.indexOf('=');
+            if (eq < 0 || !settings.containsKey(a.substring(0, eq))) {
+                System.err.println("Unknown setting: " + a + " (known: " + settings.keySet() + ")");
+                System.exit(2);
+            }
+            settings.put(a.substring(0, eq), a.substring(eq + 1));
+        }
+        new LoadGenerator(settings).run();
+    }
+
+    LoadGenerator(Map<String, String> settings) {
+        this.settings = settings;
+        clientCount = Integer.parseInt(settings.get("clients"));
+        rampPerSec = Math.max(1, Integer.parseInt(settings.get("ramp")));
+        durationMs = parseDuration(settings.get("duration"));
+        intervalMs = parseDuration(settings.get("interval"));
+        msgRate = Double.parseDouble(settings.get("msgRate"));
+        fileRate = Double.parseDouble(settings.get("fileRate"));
+        String[] mix = settings.get("msgSizes").split(",");
+        msgSizes = new long[mix.length];
+        msgWeights = new int[mix.length];
+        parseMix(mix, msgSizes, msgWeights);
+        mix = settings.get("fileSizes").split(",");
+        fileSizes = new long[mix.length];
+        fileWeights = new int[mix.length];
+        parseMix(mix, fileSizes, fileWeights);
+        padding = new String[msgSizes.length];
+        for (int i = 0; i < msgSizes.length; i++) {
+            char[] c = new char[(int) Math.max(0, msgSizes[i] - 24)]; // "lg <nanos> " takes about 24
+            for (int j = 0; j < c.length; j++) c[j] = (char) ('a' + j % 26);
+            padding[i] = new String(c);
+        }
+        for (int i = 0; i < errors.length; i++) errors[i] = new LongAdder();
+    }
+
+    void run() throws Exception {
+        workDir = Files.createTempDirectory("loadgen").toFile();
+        recvDir = new File(workDir, "client");
+        recvDir.mkdirs();
+        if (fileRate > 0) makeTemplates();
+        server = ServerHandle.open(settings.get("server"), settings.get("mode"), settings.get("serverJvm"),
+                new File(workDir, "server"), this);
+        System.err.println("Server on port " + server.port + ", " + clientCount + " clients, "
+                + settings.get("duration") + ", writing " + settings.get("out"));
+
+        long start = System.nanoTime();
+        ChatExecutors.start("LoadGen-Ramp", () -> ramp(server.port));
+
+        List<String> intervals = new ArrayList<>();
+        Totals last = totals();
+        long next = intervalMs;
+        while (true) {
+            long elapsed = (System.nanoTime() - start) / 1_000_000;
+            long until = Math.min(next, durationMs);
+            if (elapsed < until) {
+                Thread.sleep(until - elapsed);
+                continue;
+            }
+            Totals now = totals();
+            String line = report(elapsed, now.minus(last), now.time - last.time);
+            System.out.println(line);
+            intervals.add(line);
+            last = now;
+            next += intervalMs;
+            sweep(recvDir);
+            if (server.receiveDir != null) sweep(server.receiveDir);
+            if (elapsed >= durationMs) break;
+        }
+
+        stopping = true;
+        timer.shutdownNow();
+        Thread.sleep(Math.min(5000, intervalMs)); // let what's in flight land before closing
+        for (Client c : clients) c.conn.close();
+        Totals end = totals();
+        String summary = summary(end, (System.nanoTime() - start) / 1_000_000, intervals);
+        server.close();
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(settings.get("out")), "UTF-8")) {
+            w.write(summary);
+            w.write('\n');
+        }
+        deleteTree(workDir);
+        System.err.println("Wrote " + settings.get("out"));
+        System.exit(0); // leftover reader threads of dead clients
+    }
+
+    private void ramp(int port) {
+        long start = System.nanoTime();
+        for (int i = 0; i < clientCount && !stopping; i++) {
+            long due = start + i * 1_000_000_000L / rampPerSec;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                try { Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000)); } catch (InterruptedException e) { return; }
+            }
+            try {
+                Client c = new Client(port);
+                clients.add(c);
+                c.schedule();
+            } catch (IOException | RuntimeException e) {
+                error(Err.CONNECT, e);
+            }
+        }
+    }
+
+    /** One simulated user on its own connection. */
+    private final class Client implements FramedConnection.Receiver {
+        final Connection conn;
+
+        Client(int port) throws IOException {
+            SocketChannel ch = SocketChannel.open(new InetSocketAddress(server.host, port));
+            conn = new Connection(ch.socket()) {
+                @Override
+                protected File createReceivedFile(String filename) {
+                    return new File(recvDir, "r" + fileStamp.incrementAndGet() + "_" + filename);
+                }
+            };
+            conn.startReader(this);
+            connected.incrementAndGet();
+        }
+
+        void schedule() {
+            ThreadLocalRandom r = ThreadLocalRandom.current();
+            if (msgRate > 0) {
+                long period = (long) (1_000_000 / msgRate);
+                timer.scheduleAtFixedRate(this::sendMessage, r.nextLong(period), period, TimeUnit.MICROSECONDS);
+            }
+            if (fileRate > 0) {
+                long period = (long) (60_000_000 / fileRate);
+                timer.scheduleAtFixedRate(this::sendFile, r.nextLong(period), period, TimeUnit.MICROSECONDS);
+            }
+        }
+
+        void sendMessage() {
+            String pad = padding[pick(msgWeights)];
+            conn.sendMessageAsync("lg " + System.nanoTime() + " " + pad).whenComplete((v, ex) -> {
+                if (ex != null) error(Err.SEND, ex);
+            });
+            sent.increment();
+        }
+
+        void sendFile() {
+            long size = fileSizes[pick(fileWeights)];
+            File f;
+            try {
+                f = stampedCopy(size);
+            } catch (IOException e) {
+                error(Err.FILE, e);
+                return;
+            }
+            long t0 = System.nanoTime();
+            filesSent.increment();
+            conn.sendFileAsync(f, null).whenComplete((v, ex) -> {
+                f.delete();
+                if (ex != null) {
+                    error(Err.FILE, ex);
+                    return;
+                }
+                fileLatency.record((System.nanoTime() - t0) / 1000);
+                filesDone.increment();
+                fileBytes.add(size);
+            });
+        }
+
+        @Override
+        public void onMessage(String m) {
+            if (!m.startsWith("lg ")) return;
+            int end = m.indexOf(' ', 3);
+            if (end < 0) return;
+            long t = Long.parseLong(m.substring(3, end));
+            msgLatency.record((System.nanoTime() - t) / 1000);
+            delivered.increment();
+        }
+
+        @Override
+        public void onFileReceived(String filename, File saved) {
+            saved.delete(); // the blob stays until the sweep
+        }
+
+        @Override
+        public void onDisconnect() {
+            connected.decrementAndGet();
+            if (!stopping) error(Err.DISCONNECT, new IOException("Server closed the connection"));
+        }
+
+        @Override
+        public void onError(Exception ex) {
+            if (!stopping) error(Err.DISCONNECT, ex);
+        }
+    }
+
+    // ---------------------------------------------------------------- files
+
+    private void makeTemplates() throws IOException {
+        byte[] buf = new byte[64 * 1024];
+        for (long size : fileSizes) {
+            if (templates.containsKey(size)) continue;
+            File t = new File(workDir, "template_" + size);
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(t))) {
+                for (long left = size; left > 0; left -= buf.length) {
+                    ThreadLocalRandom.current().nextBytes(buf);
+                    out.write(buf, 0, (int) Math.min(buf.length, left));
+                }
+            }
+            templates.put(size, t);
+        }
+    }
+
+    // every send has new content, or the server's dedup would answer all but the first with HAVE
+    private File stampedCopy(long size) throws IOException {
+        long stamp = fileStamp.incrementAndGet();
+        File f = new File(workDir, "send_" + stamp + ".bin");
+        Files.copy(templates.get(size).toPath(), f.toPath());
+        if (size >= 8) {
+            try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+                raf.writeLong(stamp);
+            }
+        }
+        return f;
+    }
+
+    // received copies are deleted as they land, but their .blobs/ entries stay; drop the old ones
+    static void sweep(File dir) {
+        long cutoff = System.currentTimeMillis() - SWEEP_AGE_MS;
+        for (File d : new File[] { dir, new File(dir, ".blobs") }) {
+            File[] files = d.listFiles();
+            if (files == null) continue;
+            for (File f : files) {
+                if (f.isFile() && f.lastModified() < cutoff) f.delete();
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------- reporting
+
+    private static final class Totals {
+        final long time = System.nanoTime();
+        long sent, delivered, filesSent, filesDone, fileBytes;
+        long[] errors;
+        LatencyHistogram.Snapshot msgs, files;
+
+        Totals minus(Totals o) {
+            Totals d = new Totals();
+            d.sent = sent - o.sent;
+            d.delivered = delivered - o.delivered;
+            d.filesSent = filesSent - o.filesSent;
+            d.filesDone = filesDone - o.filesDone;
+            d.fileBytes = fileBytes - o.fileBytes;
+            d.errors = new long[errors.length];
+            for (int i = 0; i < errors.length; i++) d.errors[i] = errors[i] - o.errors[i];
+            d.msgs = msgs.minus(o.msgs);
+            d.files = files.minus(o.files);
+            return d;
+        }
+    }
+
+    private Totals totals() {
+        Totals t = new Totals();
+        t.sent = sent.sum();
+        t.delivered = delivered.sum();
+        t.filesSent = filesSent.sum();
+        t.filesDone = filesDone.sum();
+        t.fileBytes = fileBytes.sum();
+        t.errors = new long[errors.length];
+        for (int i = 0; i < errors.length; i++) t.errors[i] = errors[i].sum();
+        t.msgs = msgLatency.snapshot();
+        t.files = fileLatency.snapshot();
+        return t;
+    }
+
+    private String report(long elapsedMs, Totals d, long nanos) {
+        double secs = Math.max(1e-9, nanos / 1e9);
+        return stats(new Json().put("t", elapsedMs / 1000.0).put("clients", connected.get()), d, secs)
+                .putRaw("server", server.memory()).toString();
+    }
+
+    private String summary(Totals t, long elapsedMs, List<String> intervals) {
+        Json config = new Json();
+        for (Map.Entry<String, String> e : settings.entrySet()) config.put(e.getKey(), e.getValue());
+        config.put("java", System.getProperty("java.version"))
+                .put("threads", ChatExecutors.effectiveMode().name().toLowerCase(Locale.ROOT))
+                .put("protocol", Frames.VERSION);
+        Json total = stats(new Json().put("seconds", elapsedMs / 1000.0), t, elapsedMs / 1000.0);
+        return new Json().putRaw("config", config.toString()).putRaw("total", total.toString())
+                .putRaw("intervals", "[\n" + String.join(",\n", intervals) + "\n]").toString();
+    }
+
+    private Json stats(Json j, Totals d, double secs) {
+        Json errs = new Json();
+        for (Err e : Err.values()) errs.put(e.name().toLowerCase(Locale.ROOT), d.errors[e.ordinal()]);
+        return j.put("msgSent", d.sent)
+                .put("msgDelivered", d.delivered)
+                .put("msgSentPerSec", d.sent / secs)
+                .put("msgDeliveredPerSec", d.delivered / secs)
+                .putRaw("msgLatencyMs", latency(d.msgs))
+                .put("filesSent", d.filesSent)
+                .put("filesDone", d.filesDone)
+                .put("fileMBPerSec", d.fileBytes / secs / (1024 * 1024))
+                .putRaw("fileLatencyMs", latency(d.files))
+                .putRaw("errors", errs.toString());
+    }
+
+    private static String latency(LatencyHistogram.Snapshot s) {
+        return new Json().put("count", s.count())
+                .put("p50", s.percentile(50) / 1000.0)
+                .put("p99", s.percentile(99) / 1000.0)
+                .put("p999", s.percentile(99.9) / 1000.0)
+                .put("max", s.max() / 1000.0)
+                .put("mean", s.mean() / 1000.0).toString();
+    }
+
+    private final AtomicInteger errorsLogged = new AtomicInteger();
+
+    void error(Err kind, Throwable ex) {
+        errors[kind.ordinal()].increment();
+        if (errorsLogged.incrementAndGet() <= 20) {
+            System.err.println(kind.name().toLowerCase(Locale.ROOT) + " error: " + ex);
+        }
+    }
+
+    private int pick(int[] weights) {
+        int total = weights[weights.length - 1];
+        int r = ThreadLocalRandom.current().nextInt(total);
+        for (int i = 0; i < weights.length; i++) {
+            if (r < weights[i]) return i;
+        }
+        return weights.length - 1;
+    }
+
+    // "64:80,1k:20" -> sizes and cumulative weights
+    private static void parseMix(String[] mix, long[] sizes, int[] weights) {
+        int sum = 0;
+        for (int i = 0; i < mix.length; i++) {
+            String[] p = mix[i].trim().split(":");
+            sizes[i] = ReceivedFilesPanel.parseSize(p[0].toLowerCase(Locale.ROOT));
+            sum += p.length > 1 ? Integer.parseInt(p[1]) : 1;
+            weights[i] = sum;
+        }
+    }
+
+    // 30s, 10m, 2h; a bare number is seconds
+    private static long parseDuration(String s) {
+        return Character.isDigit(s.charAt(s.length() - 1)) ? (long) (Double.parseDouble(s) * 1000)
+                : ReceivedFilesPanel.parseAge(s);
+    }
+
+    private static void deleteTree(File f) {
+        File[] children = f.listFiles();
+        if (children != null) for (File c : children) deleteTree(c);
+        f.delete();
+    }
+
+    /** Minimal JSON object writer; keys keep their insertion order so runs diff line by line. */
+    static final class Json {
+        private final StringBuilder sb = new StringBuilder("{");
+
+        Json put(String key, Object value) {
+            String v;
+            if (value == null) v = "null";
+            else if (value instanceof Double) v = String.format(Locale.ROOT, "%.3f", (Double) value);
+            else if (value instanceof Number || value instanceof Boolean) v = value.toString();
+            else v = quote(value.toString());
+            return putRaw(key, v);
+        }
+
+        Json putRaw(String key, String json) {
+            if (sb.length() > 1) sb.append(',');
+            sb.append(quote(key)).append(':').append(json == null ? "null" : json);
+            return this;
+        }
+
+        private static String quote(String s) {
+            StringBuilder q = new StringBuilder("\"");
+            for (char c : s.toCharArray()) {
+                if (c == '"' || c == '\\') q.append('\\').append(c);
+                else if (c < 0x20) q.append(String.format("\\u%04x", (int) c));
+                else q.append(c);
+            }
+            return q.append('"').toString();
+        }
+
+        @Override
+        public String toString() { return sb + "}"; }
+    }
+
+    // ---------------------------------------------------------------- server side
+
+    /** The server under test: a child JVM, one in this JVM, or somebody else's. */
+    private static final class ServerHandle {
+        String host = "localhost";
+        int port;
+        File receiveDir;
+        Process child;
+        NioChatServer local;
+        volatile String lastMemory;
+
+        static ServerHandle open(String where, String mode, String jvmArgs, File dir, LoadGenerator gen) throws Exception {
+            ServerHandle h = new ServerHandle();
+            if (where.equals("spawn")) {
+                h.receiveDir = dir;
+                List<String> cmd = new ArrayList<>();
+                cmd.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+                for (String a : jvmArgs.trim().split("\\s+")) if (!a.isEmpty()) cmd.add(a);
+                cmd.add("-Dchat.relay=" + mode.equals("relay"));
+                cmd.add("-cp");
+                cmd.add(System.getProperty("java.class.path"));
+                cmd.add("LoadGenerator");
+                cmd.add("serve");
+                cmd.add(dir.getPath());
+                h.child = new ProcessBuilder(cmd).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+                BufferedReader r = new BufferedReader(new InputStreamReader(h.child.getInputStream(), "UTF-8"));
+                String first = r.readLine();
+                if (first == null || !first.startsWith("port ")) throw new IOException("Server did not start: " + first);
+                h.port = Integer.parseInt(first.substring(5));
+                ChatExecutors.start("LoadGen-ServerOut", () -> {
+                    try {
+                        String line;
+                        while ((line = r.readLine()) != null) {
+                            if (line.startsWith("mem ")) h.lastMemory = line.substring(4);
+                            else if (line.startsWith("error ")) gen.error(Err.SERVER, new IOException(line.substring(6)));
+                            else System.err.println("server: " + line);
+                        }
+                    } catch (IOException ignored) {
+                    }
+                });
+            } else if (where.equals("inprocess")) {
+                h.receiveDir = dir;
+                System.setProperty("chat.relay", String.valueOf(mode.equals("relay")));
+                h.local = startServer(dir, (s, e) -> gen.error(Err.SERVER, e));
+                h.port = h.local.getPort();
+            } else {
+                int colon = where.lastIndexOf(':');
+                h.host = where.substring(0, colon);
+                h.port = Integer.parseInt(where.substring(colon + 1));
+            }
+            return h;
+        }
+
+        String memory() {
+            return local != null ? memoryJson(local) : lastMemory;
+        }
+
+        void close() throws InterruptedException {
+            if (child != null) {
+                try { child.getOutputStream().close(); } catch (IOException ignored) {}
+                if (!child.waitFor(10, TimeUnit.SECONDS)) child.destroyForcibly();
+            }
+            if (local != null) local.stop();
+        }
+    }
+
+    // child side: a bare relaying/echoing server that reports memory every second and stops when stdin closes
+    private static void serve(File dir) throws Exception {
+        NioChatServer server = startServer(dir, (s, e) -> System.out.println("error " + s + ": " + e.getMessage()));
+        System.out.println("port " + server.getPort());
+        System.out.flush();
+        ChatExecutors.start("LoadGen-Memory", () -> {
+            while (server.isRunning()) {
+                System.out.println("mem " + memoryJson(server));
+                System.out.flush();
+                try { Thread.sleep(1000); } catch (InterruptedException e) { return; }
+            }
+        });
+        while (System.in.read() >= 0) { }
+        server.stop();
+        System.exit(0);
+    }
+
+    private static NioChatServer startServer(File dir, java.util.function.BiConsumer<NioChatServer.Session, Exception> onError)
+            throws IOException {
+        boolean relay = ChatConfig.getBoolean("chat.relay", false);
+        NioChatServer[] ref = new NioChatServer[1];
+        NioChatServer server = new NioChatServer(0, Math.min(4, Runtime.getRuntime().availableProcessors()), dir,
+                new NioChatServer.Listener() {
+                    public void onConnect(NioChatServer.Session s) {}
+                    public void onMessage(NioChatServer.Session s, String m) {
+                        try {
+                            if (relay) ref[0].publish(m, s);
+                            else s.sendMessageAsync(m);
+                        } catch (IOException e) {
+                            onError.accept(s, e);
+                        }
+                    }
+                    public void onFile(NioChatServer.Session s, String name, File saved) {
+                        if (!relay) {
+                            saved.delete();
+                            return;
+                        }
+                        try {
+                            ref[0].broadcastFile(saved, name, s, null); // the sweep deletes it later
+                        } catch (IOException e) {
+                            onError.accept(s, e);
+                        }
+                    }
+                    public void onDisconnect(NioChatServer.Session s) {}
+                    public void onError(NioChatServer.Session s, Exception e) { onError.accept(s, e); }
+                });
+        ref[0] = server;
+        server.start();
+        if (dir != null) {
+            ChatExecutors.start("LoadGen-Sweep", () -> {
+                while (server.isRunning()) {
+                    try { Thread.sleep(SWEEP_AGE_MS / 4); } catch (InterruptedException e) { return; }
+                    sweep(dir);
+                }
+            });
+        }
+        return server;
+    }
+
+    static String memoryJson(NioChatServer server) {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        MemoryUsage nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+        long direct = 0, mapped = 0, gcCount = 0, gcMillis = 0;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) direct = pool.getMemoryUsed();
+            else if (pool.getName().equals("mapped")) mapped = pool.getMemoryUsed();
+        }
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcMillis += Math.max(0, gc.getCollectionTime());
+        }
+        return new Json().put("sessions", server.sessionCount())
+                .put("heapUsed", heap.getUsed())
+                .put("heapCommitted", heap.getCommitted())
+                .put("nonHeapUsed", nonHeap.getUsed())
+                .put("direct", direct)
+                .put("mapped", mapped)
+                .put("rss", rss())
+                .put("threads", ManagementFactory.getThreadMXBean().getThreadCount())
+                .put("gcCount", gcCount)
+                .put("gcMillis", gcMillis).toString();
+    }
+
+    // resident set size from /proc on Linux, -1 elsewhere
+    private static long rss() {
+        try (BufferedReader r = new BufferedReader(new FileReader("/proc/self/status"))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.substring(6).trim().split("\\s+")[0]) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException ignored) {
+        }
+        return -1;
+    }
+}
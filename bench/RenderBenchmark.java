@@ -0,0 +1,123 @@
+// RenderBenchmark.java
+import java.awt.Color;
+import java.awt.Font;
+import javax.swing.JTextPane;
+import javax.swing.SwingUtilities;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyledDocument;
+
+/**
+ * Chat pane rendering under a burst: MessageRenderer (queued, batched, capped) against
+ * the old one invokeLater per message with two insertString calls each.
+ *
+ * A producer thread offers messages at a fixed rate while a probe measures how long
+ * small tasks wait for the EDT, which is what a user typing during the burst feels.
+ *
+ * javac -d out src/*.java bench/RenderBenchmark.java
+ * java -Djava.awt.headless=true -cp out RenderBenchmark batched 50000 10000   (mode, messages, per second)
+ *
+ * Modes: batched | legacy
+ */
+public class RenderBenchmark {
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "batched";
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+        int rate = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        boolean batched = mode.equals("batched");
+        if (!batched && !mode.equals("legacy")) throw new IllegalArgumentException("unknown mode " + mode);
+
+        JTextPane pane = new JTextPane();
+        MessageRenderer renderer = batched ? new MessageRenderer(pane) : null;
+        Probe probe = new Probe();
+        probe.start();
+
+        Runtime rt = Runtime.getRuntime();
+        long t0 = System.nanoTime();
+        long interval = 1_000_000_000L / Math.max(1, rate);
+        for (int i = 0; i < count; i++) {
+            long due = t0 + i * interval;
+            while (System.nanoTime() < due) Thread.onSpinWait();
+            String text = "message number " + i + " with a bit of ordinary chat text";
+            if (batched) renderer.append("Server", text, false);
+            else legacyAppend(pane, "Server", text);
+        }
+        long offered = System.nanoTime();
+        if (batched) {
+            while (!renderer.isIdle()) Thread.sleep(1);
+        }
+        SwingUtilities.invokeAndWait(() -> {});
+        long done = System.nanoTime();
+        probe.stop();
+
+        System.gc();
+        int lines = pane.getDocument().getDefaultRootElement().getElementCount() - 1;
+        System.out.printf("%s: %d messages at %d/s, java %s%n", mode, count, rate, System.getProperty("java.version"));
+        System.out.printf("  offered in %.3f s, on screen %.1f ms after the last one%n",
+                (offered - t0) / 1e9, (done - offered) / 1e6);
+        System.out.printf("  EDT wait p50 %.2f ms, max %.2f ms over %d probes%n",
+                probe.percentile(50) / 1e6, probe.max / 1e6, probe.samples);
+        System.out.printf("  %d lines kept, %d chars, heap used %.1f MB%n", lines, pane.getDocument().getLength(),
+                (rt.totalMemory() - rt.freeMemory()) / (1024.0 * 1024));
+        System.exit(0);
+    }
+
+    // what ChatPanel.appendMessage used to do
+    private static void legacyAppend(JTextPane pane, String who, String text) {
+        SwingUtilities.invokeLater(() -> {
+            StyledDocument doc = pane.getStyledDocument();
+            SimpleAttributeSet attrs = new SimpleAttributeSet();
+            StyleConstants.setFontFamily(attrs, Font.SANS_SERIF);
+            StyleConstants.setFontSize(attrs, 14);
+            StyleConstants.setForeground(attrs, Color.BLUE.darker());
+            try { doc.insertString(doc.getLength(), who + ": ", attrs); } catch (BadLocationException ignored) {}
+            SimpleAttributeSet msgAttr = new SimpleAttributeSet();
+            StyleConstants.setFontFamily(msgAttr, Font.SANS_SERIF);
+            StyleConstants.setFontSize(msgAttr, 14);
+            StyleConstants.setForeground(msgAttr, Color.BLACK);
+            try { doc.insertString(doc.getLength(), text + "\n", msgAttr); } catch (BadLocationException ignored) {}
+            pane.setCaretPosition(doc.getLength());
+        });
+    }
+
+    // posts a no-op to the EDT every millisecond and records how long it waited
+    private static final class Probe {
+        private final long[] waits = new long[1 << 20];
+        private volatile boolean running = true;
+        private Thread thread;
+        int samples;
+        long max;
+
+        void start() {
+            thread = new Thread(() -> {
+                while (running && samples < waits.length) {
+                    long posted = System.nanoTime();
+                    try {
+                        SwingUtilities.invokeAndWait(() -> {});
+                    } catch (Exception e) {
+                        return;
+                    }
+                    long w = System.nanoTime() - posted;
+                    waits[samples++] = w;
+                    max = Math.max(max, w);
+                    try { Thread.sleep(1); } catch (InterruptedException e) { return; }
+                }
+            }, "EDT-Probe");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            thread.join();
+        }
+
+        long percentile(int p) {
+            if (samples == 0) return 0;
+            long[] s = java.util.Arrays.copyOf(waits, samples);
+            java.util.Arrays.sort(s);
+            return s[Math.min(samples - 1, samples * p / 100)];
+        }
+    }
+}
@@ -0,0 +1,85 @@
+// ThreadModeBenchmark.java
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the PLATFORM and VIRTUAL modes of ChatExecutors over loopback.
+ *
+ * Opens N Connection pairs (2N blocking read loops), sends M messages per pair and
+ * reports setup time, message throughput, live platform threads and memory.
+ * Run each mode in a fresh JVM so the numbers don't bleed into each other:
+ *
+ * javac -d out src/*.java bench/ThreadModeBenchmark.java
+ * java -cp out ThreadModeBenchmark platform 2000 50
+ * java -cp out ThreadModeBenchmark virtual 2000 50
+ */
+public class ThreadModeBenchmark {
+    public static void main(String[] args) throws Exception {
+        ChatExecutors.Mode mode = ChatExecutors.parse(args.length > 0 ? args[0] : "platform");
+        int pairs = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int perPair = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        ChatExecutors.setMode(mode);
+
+        long baseRss = rssKb();
+        int baseThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+        CountDownLatch received = new CountDownLatch(pairs * perPair);
+        List<Connection> clients = new ArrayList<>();
+        List<Connection> servers = new ArrayList<>();
+
+        long t0 = System.nanoTime();
+        try (ServerSocket ss = new ServerSocket(0, pairs, InetAddress.getLoopbackAddress())) {
+            for (int i = 0; i < pairs; i++) {
+                Socket c = new Socket(InetAddress.getLoopbackAddress(), ss.getLocalPort());
+                Socket s = ss.accept();
+                Connection client = new Connection(c);
+                Connection server = new Connection(s);
+                client.readLoop(null, null, null);
+                server.readLoop(m -> received.countDown(), null, null);
+                clients.add(client);
+                servers.add(server);
+            }
+        }
+        long setupMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+        int liveThreads = ManagementFactory.getThreadMXBean().getThreadCount() - baseThreads;
+        long rss = rssKb() - baseRss;
+
+        long t1 = System.nanoTime();
+        for (int m = 0; m < perPair; m++) {
+            for (Connection c : clients) c.sendMessage("hello " + m);
+        }
+        boolean done = received.await(2, TimeUnit.MINUTES);
+        double secs = (System.nanoTime() - t1) / 1e9;
+
+        System.out.println("mode=" + ChatExecutors.effectiveMode() + " (requested " + mode + ")"
+                + " java=" + System.getProperty("java.version"));
+        System.out.printf("read loops         %d%n", pairs * 2);
+        System.out.printf("setup              %d ms%n", setupMs);
+        System.out.printf("platform threads   +%d%n", liveThreads);
+        System.out.printf("rss growth         %d KB (%.1f KB per read loop)%n", rss, rss / (pairs * 2.0));
+        System.out.printf("messages           %d in %.2f s = %.0f msg/s%s%n", pairs * perPair, secs,
+                pairs * perPair / secs, done ? "" : " (TIMED OUT)");
+
+        for (Connection c : clients) c.close();
+        for (Connection s : servers) s.close();
+        System.exit(0);
+    }
+
+    // resident set size from /proc; 0 where that isn't available
+    private static long rssKb() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) return Long.parseLong(line.replaceAll("\\D", ""));
+            }
+        } catch (IOException | NumberFormatException ignored) {}
+        return 0;
+    }
+}
@@ -0,0 +1,45 @@
+// FrameCodec.java
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/** chatbench.Codec on top of Frames and Compression; decoding follows NioChatServer's readFrame. */
+public final class FrameCodec implements chatbench.Codec {
+
+    private final Compression.Stats stats = new Compression.Stats();
+
+    @Override
+    public byte[] encodeMessage(String message) throws IOException {
+        return Frames.encodeMessage(message, true);
+    }
+
+    @Override
+    public byte[] encodeCompressed(String message) throws IOException {
+        return Compression.compressFrame(Frames.encodeMessage(message, true), stats);
+    }
+
+    @Override
+    public String decodeMessage(byte[] frame) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(frame);
+        if ((b.get(0) & 0xFF) != Frames.OP_MSG) throw new IOException("Not a MSG frame");
+        int end = Frames.varintEnd(b, 2);
+        long len = Frames.getVarint(b, 2);
+        Frames.checkLength(len);
+        ByteBuffer payload = b.duplicate();
+        payload.position(end).limit(end + (int) len);
+        if ((b.get(1) & Frames.FLAG_COMPRESSED) != 0) {
+            payload = ByteBuffer.wrap(Compression.inflate(payload, Frames.MAX_PAYLOAD));
+        }
+        return StandardCharsets.UTF_8.decode(payload).toString();
+    }
+
+    @Override
+    public byte[] encodeChunkHeader(long id, long offset, int crc, int length) {
+        return Frames.encodeChunkHeader(id, offset, crc, length);
+    }
+
+    @Override
+    public int chunkCrc(ByteBuffer data) {
+        return FileChecksums.crc(data);
+    }
+}
@@ -0,0 +1,163 @@
+// Loopback.java
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * chatbench.Pair over real sockets: both ends are the same FramedConnection subclass,
+ * joined through a loopback ServerSocketChannel so the zero-copy path is available,
+ * and handed back only once both HELLOs are through.
+ */
+public final class Loopback implements chatbench.Pair {
+
+    private static final long TIMEOUT_MS = 30_000;
+
+    private final FramedConnection client;
+    private final FramedConnection server;
+    private final File receiveDir;
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong stored = new AtomicLong();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition arrived = lock.newCondition();
+    private final BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+    private volatile long waitingFor = Long.MAX_VALUE;
+    private volatile Exception failure;
+
+    public Loopback(String impl, boolean echo, File receiveDir) throws IOException, InterruptedException {
+        this.receiveDir = receiveDir;
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Socket c = SocketChannel.open(listener.getLocalAddress()).socket();
+            Socket s = listener.accept().socket();
+            client = open(impl, c);
+            server = open(impl, s);
+        }
+        listen(server, m -> {
+            if (echo) server.sendMessageAsync(m);
+            if (received.incrementAndGet() >= waitingFor) signal();
+        });
+        listen(client, replies::add);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (client.getPeerVersion() < Frames.VERSION || server.getPeerVersion() < Frames.VERSION) {
+            if (System.currentTimeMillis() > deadline) throw new IOException("No HELLO over loopback");
+            Thread.sleep(1);
+        }
+    }
+
+    private FramedConnection open(String impl, Socket socket) throws IOException {
+        switch (impl) {
+            case "connection":
+                return new Connection(socket) {
+                    @Override protected File createReceivedFile(String name) { return target(name); }
+                };
+            case "gui":
+                return new ChatGUIApp.Connection(socket) {
+                    @Override protected File createReceivedFile(String name) { return target(name); }
+                };
+            default:
+                throw new IllegalArgumentException("Unknown impl " + impl + ", expected connection or gui");
+        }
+    }
+
+    private File target(String name) {
+        return new File(receiveDir, "received_" + stored.incrementAndGet() + "_" + name);
+    }
+
+    // each class through its own public read loop, as the front-ends use it
+    private void listen(FramedConnection c, Consumer<String> onMessage) {
+        if (c instanceof Connection) {
+            ((Connection) c).readLoop(onMessage, null, null);
+            return;
+        }
+        ((ChatGUIApp.Connection) c).readLoop(new ChatGUIApp.MessageHandler() {
+            public void onMessage(String message) { onMessage.accept(message); }
+            public void onFileReceived(String filename, File saved) {}
+            public void onDisconnect() {}
+            public void onError(Exception ex) { failure = ex; signal(); }
+        });
+    }
+
+    private void signal() {
+        lock.lock();
+        try {
+            arrived.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> send(String message) {
+        return client.sendMessageAsync(message);
+    }
+
+    @Override
+    public void awaitReceived(long n) throws InterruptedException, IOException {
+        if (received.get() >= n) return;
+        lock.lock();
+        try {
+            waitingFor = n;
+            long left = TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+            while (received.get() < n) {
+                if (failure != null) throw new IOException("Server side failed", failure);
+                if (left <= 0) throw new IOException("Only " + received.get() + " of " + n + " messages arrived");
+                left = arrived.awaitNanos(left);
+            }
+        } finally {
+            waitingFor = Long.MAX_VALUE;
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String echo(String message) throws InterruptedException, IOException {
+        client.sendMessageAsync(message);
+        String reply = replies.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        if (reply == null) throw new IOException("No echo within " + TIMEOUT_MS + " ms");
+        return reply;
+    }
+
+    @Override
+    public void sendFile(File file) throws IOException {
+        if (client instanceof Connection) ((Connection) client).sendFile(file);
+        else ((ChatGUIApp.Connection) client).sendFile(file, null);
+    }
+
+    @Override
+    public void clearReceived() throws IOException {
+        File[] files = receiveDir.listFiles();
+        if (files == null) return;
+        for (File f : files) delete(f);
+    }
+
+    private static void delete(File f) throws IOException {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) delete(c);
+        }
+        if (!f.delete() && f.exists()) throw new IOException("Cannot delete " + f);
+    }
+
+    @Override
+    public int chunkSize() {
+        return OutboundScheduler.CHUNK_SIZE;
+    }
+
+    @Override
+    public void close() {
+        client.close();
+        server.close();
+    }
+}
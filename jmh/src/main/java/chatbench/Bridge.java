@@ -0,0 +1,43 @@
+// Bridge.java
+package chatbench;
+
+import java.io.File;
+
+/**
+ * JMH refuses benchmarks in the default package, and a named package can't import the
+ * chat sources, which live there. So the few classes that touch them (Loopback,
+ * FrameCodec) sit in the default package too, implement the interfaces here, and are
+ * looked up by name once per trial; the measured calls are plain interface calls.
+ */
+final class Bridge {
+
+    private Bridge() {}
+
+    /** impl is "connection" (the console Connection) or "gui" (ChatGUIApp.Connection). */
+    static Pair pair(String impl, boolean echo, File receiveDir) throws ReflectiveOperationException {
+        return (Pair) Class.forName("Loopback")
+                .getConstructor(String.class, boolean.class, File.class)
+                .newInstance(impl, echo, receiveDir);
+    }
+
+    static Codec codec() throws ReflectiveOperationException {
+        return (Codec) Class.forName("FrameCodec").getConstructor().newInstance();
+    }
+
+    /** Chat-like text of exactly length chars. */
+    static String text(int length) {
+        String s = "Hello there, could you send the build from yesterday? The tests failed with a timeout again. ";
+        StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length) sb.append(s);
+        sb.setLength(length);
+        return sb.toString();
+    }
+
+    static void deleteTree(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) deleteTree(c);
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,22 @@
+// Codec.java
+package chatbench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/** The frame encoders and decoders on their own, no sockets. Implemented by FrameCodec. */
+public interface Codec {
+
+    byte[] encodeMessage(String message) throws IOException;
+
+    /** Deflated when that pays, as a connection that negotiated compression would send it. */
+    byte[] encodeCompressed(String message) throws IOException;
+
+    /** Whole MSG frame back to its text, inflating if it is compressed. */
+    String decodeMessage(byte[] frame) throws IOException;
+
+    byte[] encodeChunkHeader(long id, long offset, int crc, int length);
+
+    /** The per-chunk checksum both sides compute. */
+    int chunkCrc(ByteBuffer data);
+}
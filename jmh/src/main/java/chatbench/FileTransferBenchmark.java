@@ -0,0 +1,123 @@
+// FileTransferBenchmark.java
+package chatbench;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole file transfers, client to server, until the server's FILE_ACK. The score is
+ * files per second; the "megabytes" line next to it is MB/s.
+ *
+ * chunk sets chat.chunkSize, the buffer each chunk is cut and checked in. It is read
+ * once when the transport loads, which is why every trial needs its own fork. content
+ * random doesn't compress (it goes out zero-copy after the first probe chunks); text
+ * does, when both sides negotiate it.
+ *
+ * The server's store is emptied after every transfer so it never answers "have it".
+ * The sender's checksums are cached after the first send, so hashing isn't measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 4, time = 3)
+@Fork(1)
+public class FileTransferBenchmark {
+
+    @Param({"connection", "gui"})
+    public String impl;
+
+    @Param({"1048576", "16777216", "134217728"})
+    public long size;
+
+    @Param({"16384", "65536", "262144"})
+    public int chunk;
+
+    @Param({"random", "text"})
+    public String content;
+
+    private File dir;
+    private File file;
+    private Pair pair;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Moved {
+        public double megabytes;
+    }
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        System.setProperty("chat.chunkSize", String.valueOf(chunk));
+        dir = Files.createTempDirectory("chatbench").toFile();
+        file = new File(dir, "payload.bin");
+        write(file, size, content.equals("text"));
+        File received = new File(dir, "received");
+        if (!received.mkdir()) throw new IOException("Cannot create " + received);
+        pair = Bridge.pair(impl, false, received);
+        if (pair.chunkSize() != chunk) {
+            throw new IllegalStateException("Transport already loaded with chunk size " + pair.chunkSize() + ", run forked");
+        }
+    }
+
+    private static void write(File f, long size, boolean text) throws IOException {
+        byte[] block = new byte[64 * 1024];
+        SplittableRandom random = new SplittableRandom(42);
+        byte[] line = "2025-01-01T12:00:00.000Z INFO [main] request served status=200 time=".getBytes(StandardCharsets.UTF_8);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(f))) {
+            for (long left = size; left > 0; left -= block.length) {
+                if (text) {
+                    int p = 0;
+                    while (p < block.length) {
+                        int n = Math.min(line.length, block.length - p);
+                        System.arraycopy(line, 0, block, p, n);
+                        p += n;
+                        if (p < block.length) block[p++] = (byte) ('0' + random.nextInt(10));
+                        if (p < block.length) block[p++] = '\n';
+                    }
+                } else {
+                    random.nextBytes(block);
+                }
+                out.write(block, 0, (int) Math.min(block.length, left));
+            }
+        }
+    }
+
+    @Benchmark
+    public void transfer(Moved moved) throws Exception {
+        pair.sendFile(file);
+        moved.megabytes += size / (1024.0 * 1024);
+    }
+
+    @TearDown(Level.Invocation)
+    public void forget() throws IOException {
+        pair.clearReceived();
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        pair.close();
+        Bridge.deleteTree(dir);
+    }
+}
@@ -0,0 +1,96 @@
+// FrameCodecBenchmark.java
+package chatbench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the wire format alone: MSG frames encoded and decoded, plain and deflated,
+ * and the per-chunk work (header, CRC32C of a 64 KB chunk). No sockets involved.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCodecBenchmark {
+
+    // only the message benchmarks use this, so only they run once per size
+    @State(Scope.Thread)
+    public static class Messages {
+        @Param({"16", "256", "4096"})
+        public int size;
+
+        Codec codec;
+        String text;
+        byte[] plain;
+        byte[] compressed;
+
+        @Setup
+        public void encode() throws Exception {
+            codec = Bridge.codec();
+            text = Bridge.text(size);
+            plain = codec.encodeMessage(text);
+            compressed = codec.encodeCompressed(text);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Chunks {
+        Codec codec;
+        ByteBuffer chunk;
+        long offset;
+
+        @Setup
+        public void fill() throws Exception {
+            codec = Bridge.codec();
+            byte[] data = new byte[64 * 1024];
+            new SplittableRandom(7).nextBytes(data);
+            chunk = ByteBuffer.wrap(data);
+        }
+    }
+
+    @Benchmark
+    public byte[] encodeMessage(Messages m) throws IOException {
+        return m.codec.encodeMessage(m.text);
+    }
+
+    @Benchmark
+    public String decodeMessage(Messages m) throws IOException {
+        return m.codec.decodeMessage(m.plain);
+    }
+
+    @Benchmark
+    public byte[] encodeCompressed(Messages m) throws IOException {
+        return m.codec.encodeCompressed(m.text);
+    }
+
+    @Benchmark
+    public String decodeCompressed(Messages m) throws IOException {
+        return m.codec.decodeMessage(m.compressed);
+    }
+
+    @Benchmark
+    public byte[] chunkHeader(Chunks c) {
+        c.offset += 64 * 1024;
+        return c.codec.encodeChunkHeader(3, c.offset, 0x12345678, 64 * 1024);
+    }
+
+    @Benchmark
+    public int chunkCrc(Chunks c) {
+        return c.codec.chunkCrc(c.chunk);
+    }
+}
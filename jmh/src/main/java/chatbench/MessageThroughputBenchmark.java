@@ -0,0 +1,67 @@
+// MessageThroughputBenchmark.java
+package chatbench;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Small messages per second, client to server, counted when the server's read loop
+ * has them: each invocation pipelines BATCH async sends and waits for the last.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageThroughputBenchmark {
+
+    static final int BATCH = 1000;
+
+    @Param({"connection", "gui"})
+    public String impl;
+
+    @Param({"16", "256", "4096"})
+    public int size;
+
+    private File dir;
+    private Pair pair;
+    private String message;
+    private long sent;
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        dir = Files.createTempDirectory("chatbench").toFile();
+        pair = Bridge.pair(impl, false, dir);
+        message = Bridge.text(size);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void pipelined() throws Exception {
+        for (int i = 0; i < BATCH; i++) pair.send(message);
+        sent += BATCH;
+        pair.awaitReceived(sent);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        pair.close();
+        Bridge.deleteTree(dir);
+    }
+}
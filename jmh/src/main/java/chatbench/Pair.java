@@ -0,0 +1,33 @@
+// Pair.java
+package chatbench;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A client and a server connection joined over loopback, as the benchmarks drive them.
+ * Implemented by Loopback next to the chat sources (see Bridge).
+ */
+public interface Pair extends AutoCloseable {
+
+    /** Client to server without waiting; completes once written. */
+    CompletableFuture<Void> send(String message);
+
+    /** Blocks until the server has received n messages since the pair was opened. */
+    void awaitReceived(long n) throws InterruptedException, IOException;
+
+    /** Client to server and back (the server echoes); blocks for the reply. */
+    String echo(String message) throws InterruptedException, IOException;
+
+    /** Blocks until the server has confirmed the file. */
+    void sendFile(java.io.File file) throws IOException;
+
+    /** Deletes what the server stored so far, so the next send isn't answered "have it". */
+    void clearReceived() throws IOException;
+
+    /** Chunk size the transport actually uses (fixed when it is first loaded). */
+    int chunkSize();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,60 @@
+// RoundTripBenchmark.java
+package chatbench;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One message to the server and its echo back, one at a time. Sample mode, so JMH
+ * prints the p50 / p90 / p99 / p99.9 / p99.99 of the round trip.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+
+    @Param({"connection", "gui"})
+    public String impl;
+
+    @Param({"16", "1024"})
+    public int size;
+
+    private File dir;
+    private Pair pair;
+    private String message;
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        dir = Files.createTempDirectory("chatbench").toFile();
+        pair = Bridge.pair(impl, true, dir);
+        message = Bridge.text(size);
+    }
+
+    @Benchmark
+    public String echo() throws Exception {
+        return pair.echo(message);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        pair.close();
+        Bridge.deleteTree(dir);
+    }
+}
@@ -2,7 +2,9 @@
 import java.awt.Desktop;
 import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.util.Scanner;
 
 public class ChatClient {
@@ -14,23 +16,27 @@ public class ChatClient {
     }
 
     public void start() {
-        try (Socket socket = new Socket(host, port)) {
+        // opened through a channel so file transfers can use the zero-copy path
+        try (Socket socket = SocketChannel.open(new InetSocketAddress(host, port)).socket()) {
             System.out.println("Connected to server " + host + ":" + port);
-            Connection conn = new Connection(socket);
+            // a name gives us a mailbox on the server, so direct messages wait for us while we're away
+            Connection conn = new Connection(socket, ChatConfig.get("chat.name", null));
 
             conn.readLoop(
                 msg -> System.out.println("[SERVER] " + msg),
                 (filename, saved) -> {
                     System.out.println("[SERVER SENT FILE] " + filename + " -> saved as " + saved.getAbsolutePath());
                     // open in background
-                    new Thread(() -> tryOpenFile(saved), "OpenFile-Thread").start();
+                    ChatExecutors.start("OpenFile-Thread", () -> tryOpenFile(saved));
                 },
                 () -> System.out.println("Server closed connection.")
             );
+            // catch up on the last few messages, if the server keeps a journal
+            conn.requestHistory(0, 20);
 
             Scanner sc = new Scanner(System.in);
             while (!socket.isClosed()) {
-                System.out.println("Enter (m)essage or (f)ile or (q)uit:");
+                System.out.println("Enter (m)essage, (d)irect message, (f)ile, (j)oin room, (l)eave room, (r)oom message or (q)uit:");
                 String cmd = sc.nextLine();
                 if (cmd.equalsIgnoreCase("q")) {
                     conn.close();
@@ -39,6 +45,32 @@ public class ChatClient {
                     System.out.print("Message: ");
                     String text = sc.nextLine();
                     conn.sendMessage(text);
+                } else if (cmd.equalsIgnoreCase("d")) {
+                    System.out.print("To: ");
+                    String to = sc.nextLine().trim();
+                    System.out.print("Message: ");
+                    String text = sc.nextLine();
+                    conn.sendDirectAsync(to, text).whenComplete((v, ex) -> {
+                        if (ex != null) System.out.println("Send failed: " + ex.getMessage());
+                    });
+                } else if (cmd.equalsIgnoreCase("j") || cmd.equalsIgnoreCase("l")) {
+                    System.out.print("Room: ");
+                    String room = sc.nextLine().trim();
+                    if (!RoomIndex.isValidName(room)) {
+                        System.out.println("Room names are 1 to " + RoomIndex.MAX_NAME + " characters.");
+                    } else if (cmd.equalsIgnoreCase("j")) {
+                        conn.joinRoom(room);
+                    } else {
+                        conn.leaveRoom(room);
+                    }
+                } else if (cmd.equalsIgnoreCase("r")) {
+                    System.out.print("Room: ");
+                    String room = sc.nextLine().trim();
+                    System.out.print("Message: ");
+                    String text = sc.nextLine();
+                    conn.sendToRoomAsync(room, text).whenComplete((v, ex) -> {
+                        if (ex != null) System.out.println("Send failed: " + ex.getMessage());
+                    });
                 } else if (cmd.equalsIgnoreCase("f")) {
                     System.out.print("Path to file to send: ");
                     String path = sc.nextLine();
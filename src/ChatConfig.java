@@ -0,0 +1,65 @@
+// ChatConfig.java
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+/**
+ * Tuning knobs shared by the console and GUI front-ends.
+ * Values come from system properties, e.g. java -Dchat.threads=virtual ChatGUIApp,
+ * or from a properties file passed to load().
+ */
+public final class ChatConfig {
+    private ChatConfig() {}
+
+    /**
+     * Copies the settings in a properties file into the system properties, where every
+     * get() finds them; a -D on the command line wins. Classes read their settings once,
+     * when first used, so call this first thing in main.
+     *
+     * @return the number of settings taken from the file
+     */
+    public static int load(File file) throws IOException {
+        Properties p = new Properties();
+        try (Reader r = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            p.load(r);
+        }
+        int n = 0;
+        for (String key : p.stringPropertyNames()) {
+            if (System.getProperty(key) != null) continue;
+            System.setProperty(key, p.getProperty(key).trim());
+            n++;
+        }
+        return n;
+    }
+
+    public static String get(String key, String def) {
+        String v = System.getProperty(key);
+        return v == null || v.trim().isEmpty() ? def : v.trim();
+    }
+
+    public static int getInt(String key, int def) {
+        try {
+            return Integer.parseInt(get(key, String.valueOf(def)));
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring bad value for " + key + ": " + get(key, ""));
+            return def;
+        }
+    }
+
+    public static long getLong(String key, long def) {
+        try {
+            return Long.parseLong(get(key, String.valueOf(def)));
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring bad value for " + key + ": " + get(key, ""));
+            return def;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean def) {
+        return Boolean.parseBoolean(get(key, String.valueOf(def)));
+    }
+}
@@ -0,0 +1,136 @@
+// ChatDaemon.java
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * ChatServer without a console, for running under a supervisor (systemd, runit, a
+ * container): it only relays messages and files between clients, until the process is
+ * told to stop.
+ *
+ *   java ChatDaemon [chat.properties]      (or: java ChatServer --daemon [chat.properties])
+ *
+ * Settings come from that properties file (else the one named by chat.config, else
+ * ./chat.properties if there is one), and a -D on the command line overrides the file.
+ * Besides every chat.* key the library reads (chat.outboundLimit, chat.chunkSize,
+ * chat.socketBuffer, chat.threads, chat.journalDir, chat.mailboxDir, chat.clusterPeers,
+ * ...) it takes chat.port, chat.loops, chat.receiveDir and chat.drainMs.
+ *
+ * SIGTERM or SIGINT stops it gracefully: no new connections, up to chat.drainMs for
+ * queued messages and transfers in flight to finish, then the cluster links, journal
+ * and mailboxes close, which syncs them. Startup opens the storage and binds the port
+ * and nothing else (no AWT, no stdin), so a restart is quick.
+ */
+public final class ChatDaemon {
+
+    private final NioChatServer server;
+    private final boolean relay = ChatConfig.getBoolean("chat.relay", true);
+    private final boolean logConnections = ChatConfig.getBoolean("chat.logConnections", false);
+    private MessageJournal journal;
+    private Mailboxes mailboxes;
+    private Cluster cluster;
+
+    ChatDaemon() {
+        int port = ChatConfig.getInt("chat.port", 5000);
+        int loops = ChatConfig.getInt("chat.loops", Math.min(4, Runtime.getRuntime().availableProcessors()));
+        String dir = ChatConfig.get("chat.receiveDir", null);
+        server = new NioChatServer(port, loops, dir == null ? null : new File(dir), new NioChatServer.Listener() {
+            public void onConnect(NioChatServer.Session s) {
+                if (logConnections) System.out.println("Client connected: " + s + " " + s.getRemoteAddress());
+            }
+            public void onMessage(NioChatServer.Session s, String msg) {
+                try {
+                    if (relay) server.publish(msg, s);
+                    else server.record(msg, s);
+                } catch (IOException ex) {
+                    System.out.println("Relay failed: " + ex.getMessage());
+                }
+            }
+            public void onFile(NioChatServer.Session s, String filename, File saved) {
+                if (relay) relayFile(saved, filename, s);
+            }
+            public void onDisconnect(NioChatServer.Session s) {
+                if (logConnections) System.out.println("Client disconnected: " + s);
+            }
+            public void onError(NioChatServer.Session s, Exception ex) {
+                if (logConnections) System.out.println("Connection error (" + s + "): " + ex.getMessage());
+            }
+        });
+    }
+
+    void start() throws IOException {
+        if (ChatConfig.getBoolean("chat.journal", true)) {
+            journal = new MessageJournal(new File(ChatConfig.get("chat.journalDir", "chat_journal")));
+            server.setJournal(journal);
+        }
+        if (ChatConfig.getBoolean("chat.mailbox", true)) {
+            mailboxes = new Mailboxes(new File(ChatConfig.get("chat.mailboxDir", "chat_mailboxes")));
+            server.setMailboxes(mailboxes);
+        }
+        cluster = Cluster.fromConfig(server);
+        if (cluster != null) server.setCluster(cluster);
+        server.start();
+        if (cluster != null) cluster.start();
+    }
+
+    private void relayFile(File f, String name, NioChatServer.Session except) {
+        try {
+            server.broadcastFile(f, name, except, new NioChatServer.FileFanout() {
+                public void onProgress(NioChatServer.Session s, long done, long total) {}
+                public void onFailed(NioChatServer.Session s, IOException ex) {
+                    if (logConnections) System.out.println("File send to " + s + " failed: " + ex.getMessage());
+                }
+            });
+        } catch (IOException ex) {
+            System.out.println("File relay failed: " + ex.getMessage());
+        }
+    }
+
+    // runs in the shutdown hook
+    void shutdown() {
+        long drainMillis = ChatConfig.getLong("chat.drainMs", 5000);
+        System.out.println("Stopping: draining " + server.sessionCount() + " connection(s) for up to " + drainMillis + " ms");
+        long start = System.nanoTime();
+        try {
+            int busy = server.shutdown(drainMillis);
+            if (busy > 0) System.out.println(busy + " connection(s) still busy, closed anyway");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            server.stop();
+        }
+        if (cluster != null) cluster.stop();
+        if (journal != null) {
+            try { journal.close(); } catch (IOException ex) {
+                System.out.println("Closing journal failed: " + ex.getMessage());
+            }
+        }
+        if (mailboxes != null) {
+            try { mailboxes.close(); } catch (IOException ex) {
+                System.out.println("Closing mailboxes failed: " + ex.getMessage());
+            }
+        }
+        System.out.println("Stopped in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    public static void main(String[] args) throws IOException {
+        long start = System.nanoTime();
+        // before anything else reads its settings
+        File config = new File(args.length > 0 ? args[0] : ChatConfig.get("chat.config", "chat.properties"));
+        if (config.isFile()) {
+            System.out.println("Loaded " + ChatConfig.load(config) + " setting(s) from " + config);
+        } else if (args.length > 0 || System.getProperty("chat.config") != null) {
+            System.out.println("Config file not found: " + config);
+            System.exit(2);
+        }
+        ChatDaemon daemon = new ChatDaemon();
+        try {
+            daemon.start();
+        } catch (IOException ex) {
+            System.out.println("Startup failed: " + ex.getMessage());
+            System.exit(1);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(daemon::shutdown, "ChatDaemon-Shutdown"));
+        System.out.println("Listening on port " + daemon.server.getPort() + " (ready in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms)");
+        // the event loop threads keep the process alive from here
+    }
+}
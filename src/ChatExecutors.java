@@ -0,0 +1,83 @@
+// ChatExecutors.java
+import java.lang.reflect.Method;
+import java.util.Locale;
+
+/**
+ * Decides how blocking connection work (read loops, file sends, opening files) is run.
+ *
+ * PLATFORM starts one ordinary thread per task, which is what the code always did.
+ * VIRTUAL starts a virtual thread instead, so thousands of blocked read loops cost a
+ * few KB each rather than a full native stack. Virtual threads need Java 21+; on older
+ * runtimes the VIRTUAL mode logs once and falls back to platform threads.
+ *
+ * Select with -Dchat.threads=virtual|platform or setMode().
+ */
+public final class ChatExecutors {
+    public enum Mode { PLATFORM, VIRTUAL }
+
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_START;
+
+    static {
+        Method ofVirtual = null, name = null, start = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class);
+            start = builder.getMethod("start", Runnable.class);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = name;
+        BUILDER_START = start;
+    }
+
+    private static volatile Mode mode = parse(ChatConfig.get("chat.threads", "platform"));
+    private static volatile boolean warned;
+
+    private ChatExecutors() {}
+
+    public static boolean virtualThreadsAvailable() { return OF_VIRTUAL != null; }
+
+    public static Mode getMode() { return mode; }
+
+    public static void setMode(Mode m) { mode = m; }
+
+    /** Mode actually in effect, after falling back when virtual threads are missing. */
+    public static Mode effectiveMode() {
+        return mode == Mode.VIRTUAL && virtualThreadsAvailable() ? Mode.VIRTUAL : Mode.PLATFORM;
+    }
+
+    /** Run a task on its own thread using the configured mode. */
+    public static Thread start(String name, Runnable task) {
+        if (mode == Mode.VIRTUAL) {
+            if (virtualThreadsAvailable()) {
+                try {
+                    Object builder = OF_VIRTUAL.invoke(null);
+                    BUILDER_NAME.invoke(builder, name);
+                    return (Thread) BUILDER_START.invoke(builder, task);
+                } catch (ReflectiveOperationException e) {
+                    System.out.println("Virtual thread start failed, using platform thread: " + e);
+                }
+            } else if (!warned) {
+                warned = true;
+                System.out.println("Virtual threads need Java 21+ (running " + System.getProperty("java.version")
+                        + "), using platform threads.");
+            }
+        }
+        Thread t = new Thread(task, name);
+        t.start();
+        return t;
+    }
+
+    static Mode parse(String s) {
+        try {
+            return Mode.valueOf(s.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown chat.threads mode '" + s + "', using platform.");
+            return Mode.PLATFORM;
+        }
+    }
+}
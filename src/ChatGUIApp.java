@@ -3,9 +3,20 @@ import java.awt.event.ActionEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.*;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import javax.swing.text.*;
@@ -42,6 +53,13 @@ public class ChatGUIApp {
         });
     }
 
+    // "/msg user text" is a direct message: {user, text}, or null for anything else
+    static String[] parseDirect(String input) {
+        if (!input.startsWith("/msg ")) return null;
+        String[] parts = input.substring(5).trim().split("\\s+", 2);
+        return parts.length == 2 && !parts[1].isEmpty() ? parts : null;
+    }
+
     // Mode chooser
     static class ModeChooser extends JFrame {
         ModeChooser() {
@@ -79,119 +97,60 @@ public class ChatGUIApp {
         }
     }
 
-    // Connection helper (same protocol MSG/FILE)
-    static class Connection {
-        private Socket socket;
-        private DataInputStream in;
-        private DataOutputStream out;
-        private AtomicBoolean closed = new AtomicBoolean(false);
+    // Connection helper (same protocol as the console Connection, see FramedConnection)
+    static class Connection extends FramedConnection {
 
         public Connection(Socket socket) throws IOException {
-            this.socket = socket;
-            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            super(socket);
         }
 
-        public synchronized void sendMessage(String message) throws IOException {
-            if (closed.get()) throw new IOException("Connection closed");
-            out.writeUTF("MSG");
-            out.writeUTF(message);
-            out.flush();
+        public Connection(Socket socket, String name) throws IOException {
+            super(socket, name);
         }
 
-        public synchronized void sendFile(File file, ProgressCallback cb) throws IOException {
-            if (closed.get()) throw new IOException("Connection closed");
-            out.writeUTF("FILE");
-            out.writeUTF(file.getName());
-            out.writeLong(file.length());
-            try (FileInputStream fis = new FileInputStream(file)) {
-                byte[] buffer = new byte[8 * 1024];
-                long total = file.length();
-                long sent = 0;
-                int r;
-                while ((r = fis.read(buffer)) != -1) {
-                    out.write(buffer, 0, r);
-                    sent += r;
-                    if (cb != null) cb.onProgress(sent, total);
-                }
-            }
-            out.flush();
+        public void sendFile(File file, ProgressCallback cb) throws IOException {
+            writeFile(file, cb);
         }
 
         public void readLoop(MessageHandler handler) {
-            new Thread(() -> {
-                try {
-                    while (!socket.isClosed()) {
-                        String type;
-                        try { type = in.readUTF(); } catch (EOFException eof) { break; }
-                        if ("MSG".equals(type)) {
-                            String msg = in.readUTF();
-                            if (handler != null) handler.onMessage(msg);
-                        } else if ("FILE".equals(type)) {
-                            String filename = in.readUTF();
-                            long length = in.readLong();
-                            File outFile = createUniqueFile(filename);
-                            try (FileOutputStream fos = new FileOutputStream(outFile)) {
-                                byte[] buffer = new byte[8 * 1024];
-                                long remaining = length;
-                                while (remaining > 0) {
-                                    int toRead = (int) Math.min(buffer.length, remaining);
-                                    int r = in.read(buffer, 0, toRead);
-                                    if (r == -1) throw new EOFException("Unexpected EOF while reading file");
-                                    fos.write(buffer, 0, r);
-                                    remaining -= r;
-                                }
-                            }
-                            if (handler != null) handler.onFileReceived(filename, outFile);
-                        } else {
-                            // ignore unknown
-                        }
-                    }
-                } catch (Exception e) {
-                    if (handler != null) handler.onError(e);
-                } finally {
-                    if (handler != null) handler.onDisconnect();
-                    close();
-                }
-            }, "Connection-Reader").start();
+            startReader(handler);
         }
 
-        private File createUniqueFile(String filename) {
+        @Override
+        protected File createReceivedFile(String filename) {
             File dir = new File("received_files");
             if (!dir.exists()) dir.mkdirs();
             return new File(dir, "received_" + System.currentTimeMillis() + "_" + filename);
         }
-
-        public void close() {
-            if (!closed.getAndSet(true)) {
-                try { socket.close(); } catch (IOException ignored) {}
-            }
-        }
-
-        public boolean isClosed() { return closed.get(); }
     }
 
-    interface MessageHandler {
-        void onMessage(String message);
-        void onFileReceived(String filename, File saved);
-        void onDisconnect();
-        void onError(Exception ex);
-    }
+    interface MessageHandler extends FramedConnection.Receiver {}
 
-    interface ProgressCallback { void onProgress(long sent, long total); }
+    interface ProgressCallback extends FramedConnection.Progress {}
 
     // Re-usable chat panel with received-files area
     static class ChatPanel extends JPanel {
+        // the lobby is the conversation outside any room
+        static final String LOBBY = "";
+
         protected JTextPane chatArea = new JTextPane();
         protected JTextField inputField = new JTextField();
         protected JButton sendBtn = new JButton("Send");
         protected JButton fileBtn = new JButton("Send File");
         protected JLabel statusLabel = new JLabel("Not connected");
-        protected JProgressBar progressBar = new JProgressBar();
+        protected TransfersPanel transfers = new TransfersPanel();
+        protected final MessageRenderer renderer = new MessageRenderer(chatArea);
+        protected JComboBox<String> roomBox = new JComboBox<>(new String[] { LOBBY });
+        protected JButton joinBtn = new JButton("Join Room");
+        protected JButton leaveBtn = new JButton("Leave");
+        // one transcript per room, all sharing chatArea
+        private final Map<String, MessageRenderer> roomRenderers = new ConcurrentHashMap<>();
 
         // file list UI
-        protected JPanel fileListPanel = new JPanel();
-        protected JScrollPane fileListScroll;
+        protected ReceivedFilesPanel filesPanel = new ReceivedFilesPanel();
+        // every line shown in any transcript, for the search box; kept past what the panes trim
+        protected final SearchIndex search = new SearchIndex();
+        protected final SearchPanel searchPanel = new SearchPanel(search, this::goToRoom);
 
         ChatPanel() {
             setLayout(new BorderLayout(8,8));
@@ -202,7 +161,27 @@ public class ChatGUIApp {
             JLabel title = new JLabel("Chat");
             title.setFont(title.getFont().deriveFont(Font.BOLD, 16f));
             top.add(title, BorderLayout.WEST);
+            JPanel roomBar = new JPanel(new FlowLayout(FlowLayout.LEFT, 6, 0));
+            roomBar.add(new JLabel("Room:"));
+            roomBar.add(roomBox);
+            roomBar.add(joinBtn);
+            roomBar.add(leaveBtn);
+            top.add(roomBar, BorderLayout.CENTER);
             top.add(statusLabel, BorderLayout.EAST);
+            roomBox.setRenderer(new DefaultListCellRenderer() {
+                @Override
+                public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean selected, boolean focus) {
+                    String room = (String) value;
+                    return super.getListCellRendererComponent(list, LOBBY.equals(room) ? "Lobby" : "#" + room, index, selected, focus);
+                }
+            });
+            roomBox.addActionListener(e -> {
+                String room = currentRoom();
+                if (LOBBY.equals(room)) renderer.show();
+                else rendererFor(room).show();
+                leaveBtn.setEnabled(!LOBBY.equals(room));
+            });
+            leaveBtn.setEnabled(false);
             add(top, BorderLayout.NORTH);
 
             // Chat area
@@ -212,15 +191,15 @@ public class ChatGUIApp {
             JScrollPane chatScroll = new JScrollPane(chatArea);
             chatScroll.setPreferredSize(new Dimension(520, 360));
 
-            // File list (right)
-            fileListPanel.setLayout(new BoxLayout(fileListPanel, BoxLayout.Y_AXIS));
-            fileListPanel.setBorder(BorderFactory.createTitledBorder("Received Files"));
-            fileListScroll = new JScrollPane(fileListPanel);
-            fileListScroll.setPreferredSize(new Dimension(180, 360));
+            // Search and file list (right)
+            filesPanel.setPreferredSize(new Dimension(280, 360));
+            JPanel side = new JPanel(new BorderLayout(4, 4));
+            side.add(searchPanel, BorderLayout.NORTH);
+            side.add(filesPanel, BorderLayout.CENTER);
 
             JPanel centerWrap = new JPanel(new BorderLayout());
             centerWrap.add(chatScroll, BorderLayout.CENTER);
-            centerWrap.add(fileListScroll, BorderLayout.EAST);
+            centerWrap.add(side, BorderLayout.EAST);
             add(centerWrap, BorderLayout.CENTER);
 
             // Bottom
@@ -233,93 +212,87 @@ public class ChatGUIApp {
 
             JPanel bottomWrap = new JPanel(new BorderLayout(6,6));
             bottomWrap.add(bottom, BorderLayout.NORTH);
-            progressBar.setStringPainted(true);
-            progressBar.setVisible(false);
-            bottomWrap.add(progressBar, BorderLayout.SOUTH);
+            bottomWrap.add(transfers, BorderLayout.SOUTH);
 
             add(bottomWrap, BorderLayout.SOUTH);
         }
 
+        // batches lines onto the EDT and caps how many the pane keeps (chat.maxLines)
         protected void appendMessage(String who, String text, boolean isOwn) {
-            SwingUtilities.invokeLater(() -> {
-                StyledDocument doc = chatArea.getStyledDocument();
-                SimpleAttributeSet attrs = new SimpleAttributeSet();
-                StyleConstants.setFontFamily(attrs, Font.SANS_SERIF);
-                StyleConstants.setFontSize(attrs, 14);
-                StyleConstants.setSpaceAbove(attrs, 4);
-                StyleConstants.setSpaceBelow(attrs, 4);
-                if (isOwn) {
-                    StyleConstants.setForeground(attrs, Color.DARK_GRAY);
-                    try { doc.insertString(doc.getLength(), "You: ", attrs); } catch (BadLocationException ignored) {}
-                } else {
-                    StyleConstants.setForeground(attrs, Color.BLUE.darker());
-                    try { doc.insertString(doc.getLength(), who + ": ", attrs); } catch (BadLocationException ignored) {}
-                }
-                SimpleAttributeSet msgAttr = new SimpleAttributeSet();
-                StyleConstants.setFontFamily(msgAttr, Font.SANS_SERIF);
-                StyleConstants.setFontSize(msgAttr, 14);
-                StyleConstants.setForeground(msgAttr, Color.BLACK);
-                try { doc.insertString(doc.getLength(), text + "\n", msgAttr); } catch (BadLocationException ignored) {}
-                chatArea.setCaretPosition(doc.getLength());
-            });
+            renderer.append(who, text, isOwn);
+            search.add(LOBBY, who, text);
         }
 
-        protected void setStatus(String s) { SwingUtilities.invokeLater(() -> statusLabel.setText(s)); }
-        protected void showProgress(boolean show) { SwingUtilities.invokeLater(() -> progressBar.setVisible(show)); }
-        protected void setProgress(int val, int max) {
-            SwingUtilities.invokeLater(() -> { progressBar.setMaximum(max); progressBar.setValue(val); });
+        // same, into a room's transcript; a room heard of for the first time is added to the list
+        protected void appendMessage(String room, String who, String text, boolean isOwn) {
+            if (LOBBY.equals(room)) renderer.append(who, text, isOwn);
+            else rendererFor(room).append(who, text, isOwn);
+            search.add(room, who, text);
         }
 
-        // add an entry in the Received Files list with an Open button
-        protected void addReceivedFileEntry(File savedFile) {
-            SwingUtilities.invokeLater(() -> {
-                JPanel row = new JPanel(new BorderLayout(6,6));
-                row.setMaximumSize(new Dimension(Integer.MAX_VALUE, 34));
-                JLabel nameLabel = new JLabel(savedFile.getName());
-                nameLabel.setBorder(new EmptyBorder(3,3,3,3));
-                JButton openBtn = new JButton("Open");
-                openBtn.setFocusable(false);
-                openBtn.addActionListener(e -> {
-                    try {
-                        if (!savedFile.exists()) {
-                            JOptionPane.showMessageDialog(this, "File not found: " + savedFile.getAbsolutePath(),
-                                    "Open error", JOptionPane.ERROR_MESSAGE);
-                            return;
-                        }
-                        if (!Desktop.isDesktopSupported()) {
-                            JOptionPane.showMessageDialog(this, "Open not supported on this platform",
-                                    "Open error", JOptionPane.ERROR_MESSAGE);
-                            return;
-                        }
-                        Desktop.getDesktop().open(savedFile);
-                    } catch (IOException ex) {
-                        JOptionPane.showMessageDialog(this, "Unable to open file: " + ex.getMessage(),
-                                "Open error", JOptionPane.ERROR_MESSAGE);
-                    }
+        private MessageRenderer rendererFor(String room) {
+            return roomRenderers.computeIfAbsent(room, r -> {
+                SwingUtilities.invokeLater(() -> {
+                    if (((DefaultComboBoxModel<String>) roomBox.getModel()).getIndexOf(r) < 0) roomBox.addItem(r);
                 });
+                return new MessageRenderer(chatArea, MessageRenderer.MAX_LINES, false);
+            });
+        }
 
-                row.add(nameLabel, BorderLayout.CENTER);
-                row.add(openBtn, BorderLayout.EAST);
-                fileListPanel.add(row);
-                fileListPanel.add(Box.createVerticalStrut(6));
-                fileListPanel.revalidate();
-                fileListPanel.repaint();
+        // EDT only; a room that has been left since is ignored
+        private void goToRoom(String room) {
+            if (((DefaultComboBoxModel<String>) roomBox.getModel()).getIndexOf(room) >= 0) roomBox.setSelectedItem(room);
+        }
 
-                // auto-scroll file list to bottom
-                SwingUtilities.invokeLater(() -> {
-                    JViewport vp = fileListScroll.getViewport();
-                    vp.setViewPosition(new Point(0, Math.max(0, fileListPanel.getHeight() - fileListScroll.getHeight())));
-                });
+        // EDT only
+        protected String currentRoom() {
+            Object room = roomBox.getSelectedItem();
+            return room == null ? LOBBY : (String) room;
+        }
+
+        // adds the room if needed and switches to it
+        protected void showRoom(String room) {
+            SwingUtilities.invokeLater(() -> {
+                rendererFor(room);
+                if (((DefaultComboBoxModel<String>) roomBox.getModel()).getIndexOf(room) < 0) roomBox.addItem(room);
+                roomBox.setSelectedItem(room);
             });
         }
+
+        protected void removeRoom(String room) {
+            SwingUtilities.invokeLater(() -> {
+                roomBox.setSelectedItem(LOBBY);
+                roomBox.removeItem(room);
+                roomRenderers.remove(room);
+            });
+        }
+
+        // rooms with a transcript, lobby not included; safe from any thread
+        protected Collection<String> rooms() {
+            return new ArrayList<>(roomRenderers.keySet());
+        }
+
+        protected void setStatus(String s) { SwingUtilities.invokeLater(() -> statusLabel.setText(s)); }
+
+        // a progress row for one transfer; feed it the transfer's byte counts
+        protected TransferProgress trackTransfer(String name, long total, boolean outgoing) {
+            return transfers.track(name, total, outgoing);
+        }
+
+        // add an entry in the Received Files table (double-click or Open to open it)
+        protected void addReceivedFileEntry(File savedFile) {
+            filesPanel.addFile(savedFile);
+        }
     }
 
     // Server GUI
     static class ChatServerGUI extends JFrame {
         private ChatPanel chatPanel = new ChatPanel();
-        private ServerSocket serverSocket;
-        private Connection connection;
-        private volatile boolean running = true;
+        private NioChatServer server;
+        private MessageJournal journal;
+        private Cluster cluster;
+        private Mailboxes mailboxes;
+        private final boolean relay = ChatConfig.getBoolean("chat.relay", true);
 
         ChatServerGUI(int port) {
             super("Chat Server - port " + port);
@@ -334,9 +307,14 @@ public class ChatGUIApp {
             // ensure server stops on close
             addWindowListener(new WindowAdapter() {
                 public void windowClosing(WindowEvent e) {
-                    running = false;
-                    try { if (serverSocket != null) serverSocket.close(); } catch (IOException ignored) {}
-                    if (connection != null) connection.close();
+                    if (cluster != null) cluster.stop();
+                    if (server != null) server.stop();
+                    if (journal != null) {
+                        try { journal.close(); } catch (IOException ignored) {}
+                    }
+                    if (mailboxes != null) {
+                        try { mailboxes.close(); } catch (IOException ignored) {}
+                    }
                 }
             });
 
@@ -344,79 +322,202 @@ public class ChatGUIApp {
             chatPanel.sendBtn.addActionListener(this::onSendMessage);
             chatPanel.fileBtn.addActionListener(this::onSendFile);
             chatPanel.inputField.addActionListener(this::onSendMessage);
+            // rooms show up here as clients talk in them; the operator doesn't join any
+            chatPanel.joinBtn.setVisible(false);
+            chatPanel.leaveBtn.setVisible(false);
 
-            new Thread(() -> startServer(port), "Server-Accept-Thread").start();
+            startServer(port);
         }
 
         private void startServer(int port) {
-            try {
-                serverSocket = new ServerSocket(port);
-                chatPanel.setStatus("Server listening on port " + port + " — waiting for client...");
-                while (running) {
-                    Socket client = serverSocket.accept();
-                    chatPanel.setStatus("Client connected: " + client.getRemoteSocketAddress());
-                    connection = new Connection(client);
-                    connection.readLoop(new MessageHandler() {
-                        public void onMessage(String message) { chatPanel.appendMessage("Client", message, false); }
-                        public void onFileReceived(String filename, File saved) {
-                            chatPanel.appendMessage("Client", "sent file: " + filename + " (saved: " + saved.getName() + ")", false);
-                            chatPanel.addReceivedFileEntry(saved);
+            int loops = Math.min(4, Runtime.getRuntime().availableProcessors());
+            server = new NioChatServer(port, loops, new File("received_files"), new NioChatServer.Listener() {
+                public void onConnect(NioChatServer.Session s) {
+                    chatPanel.appendMessage("System", s + " connected from " + s.getRemoteAddress(), false);
+                    updateStatus();
+                }
+                public void onMessage(NioChatServer.Session s, String message) {
+                    chatPanel.appendMessage(s.toString(), message, false);
+                    try {
+                        if (relay) server.publish(message, s);
+                        else server.record(message, s);
+                    } catch (IOException ex) {
+                        chatPanel.appendMessage("System", "Relay failed: " + ex.getMessage(), false);
+                    }
+                }
+                public void onFile(NioChatServer.Session s, String filename, File saved) {
+                    chatPanel.appendMessage(s.toString(), "sent file: " + filename + " (saved: " + saved.getName() + ")", false);
+                    chatPanel.addReceivedFileEntry(saved);
+                    if (relay) {
+                        try {
+                            server.broadcastFile(saved, filename, s, new NioChatServer.FileFanout() {
+                                public void onProgress(NioChatServer.Session r, long sent, long total) {}
+                                public void onFailed(NioChatServer.Session r, IOException ex) {
+                                    chatPanel.appendMessage("System", "Relay to " + r + " failed: " + ex.getMessage(), false);
+                                }
+                            });
+                        } catch (IOException ex) {
+                            chatPanel.appendMessage("System", "Relay failed: " + ex.getMessage(), false);
                         }
-                        public void onDisconnect() { chatPanel.setStatus("Client disconnected. Waiting for next client..."); }
-                        public void onError(Exception ex) { chatPanel.appendMessage("System", "Connection error: " + ex.getMessage(), false); }
-                    });
-                    // block here until connection is closed, then continue to accept next
-                    while (connection != null && !connection.isClosed()) {
-                        try { Thread.sleep(200); } catch (InterruptedException ignored) {}
                     }
                 }
+                public void onDisconnect(NioChatServer.Session s) {
+                    chatPanel.appendMessage("System", s + " disconnected.", false);
+                    updateStatus();
+                }
+                public void onError(NioChatServer.Session s, Exception ex) { chatPanel.appendMessage("System", "Connection error (" + s + "): " + ex.getMessage(), false); }
+                public FramedConnection.Progress onFileIncoming(NioChatServer.Session s, String filename, long size) {
+                    return chatPanel.trackTransfer(filename + " from " + s, size, false);
+                }
+                public void onRoomMessage(NioChatServer.Session s, String room, String message) {
+                    chatPanel.appendMessage(room, s.getName(), message, false);
+                }
+            });
+            try {
+                if (ChatConfig.getBoolean("chat.journal", true)) {
+                    journal = new MessageJournal(new File(ChatConfig.get("chat.journalDir", "chat_journal")));
+                    server.setJournal(journal);
+                    for (MessageJournal.Entry h : journal.tail(50)) chatPanel.appendMessage("History", h.text, false);
+                }
+                if (ChatConfig.getBoolean("chat.mailbox", true)) {
+                    mailboxes = new Mailboxes(new File(ChatConfig.get("chat.mailboxDir", "chat_mailboxes")));
+                    server.setMailboxes(mailboxes);
+                }
+                cluster = Cluster.fromConfig(server);
+                if (cluster != null) server.setCluster(cluster);
+                server.start();
+                if (cluster != null) {
+                    cluster.start();
+                    chatPanel.appendMessage("System", "Cluster node " + cluster.nodeId() + " with " + cluster.peerCount() + " peer(s)", false);
+                }
+                updateStatus();
             } catch (IOException ex) {
                 chatPanel.appendMessage("System", "Server error: " + ex.getMessage(), false);
                 chatPanel.setStatus("Stopped");
             }
         }
 
+        private void updateStatus() {
+            int n = server.clients().size();
+            if (n == 0) chatPanel.setStatus("Server listening on port " + server.getPort() + " — waiting for clients...");
+            else chatPanel.setStatus("Server on port " + server.getPort() + " — " + n + " client(s) connected");
+        }
+
         private void onSendMessage(ActionEvent e) {
-            if (connection == null || connection.isClosed()) { chatPanel.appendMessage("System", "No client connected.", false); return; }
             String t = chatPanel.inputField.getText().trim();
             if (t.isEmpty()) return;
-            try {
-                connection.sendMessage(t);
-                chatPanel.appendMessage("You", t, true);
+            String[] direct = parseDirect(t);
+            if (direct != null) {
+                // the recipient needn't be connected, the mailbox keeps it
+                if (server.sendDirect(direct[0], direct[1], null) < 0) chatPanel.appendMessage("System", "No user named " + direct[0] + ".", false);
+                else chatPanel.appendMessage("You", "to " + direct[0] + ": " + direct[1], true);
+                chatPanel.inputField.setText("");
+                return;
+            }
+            if (server.clients().isEmpty()) { chatPanel.appendMessage("System", "No client connected.", false); return; }
+            String room = chatPanel.currentRoom();
+            if (!ChatPanel.LOBBY.equals(room)) {
+                if (server.sendToRoom(room, t, null) == 0) chatPanel.appendMessage(room, "System", "Nobody is in this room.", false);
+                chatPanel.appendMessage(room, "You", t, true);
                 chatPanel.inputField.setText("");
+                return;
+            }
+            try {
+                server.publish(t, null);
             } catch (IOException ex) {
                 chatPanel.appendMessage("System", "Send failed: " + ex.getMessage(), false);
             }
+            chatPanel.appendMessage("You", t, true);
+            chatPanel.inputField.setText("");
         }
 
         private void onSendFile(ActionEvent e) {
-            if (connection == null || connection.isClosed()) { chatPanel.appendMessage("System", "No client connected.", false); return; }
+            if (server.clients().isEmpty()) { chatPanel.appendMessage("System", "No client connected.", false); return; }
             JFileChooser chooser = new JFileChooser();
             int ret = chooser.showOpenDialog(this);
             if (ret != JFileChooser.APPROVE_OPTION) return;
             File f = chooser.getSelectedFile();
-            chatPanel.showProgress(true);
-            chatPanel.setProgress(0, 100);
-            new Thread(() -> {
-                try {
-                    connection.sendFile(f, (sent, total) -> {
-                        int p = (int) ((sent * 100) / Math.max(1, total));
-                        chatPanel.setProgress(p, 100);
-                    });
-                    chatPanel.appendMessage("You", "sent file: " + f.getName(), true);
-                } catch (IOException ex) {
-                    chatPanel.appendMessage("System", "File send failed: " + ex.getMessage(), false);
-                } finally {
-                    chatPanel.showProgress(false);
+
+            BroadcastProgress progress = new BroadcastProgress(f);
+            int recipients;
+            try {
+                recipients = server.broadcastFile(f, null, progress);
+            } catch (IOException ex) {
+                chatPanel.appendMessage("System", "File send failed: " + ex.getMessage(), false);
+                return;
+            }
+            if (recipients == 0) chatPanel.appendMessage("System", "No client connected.", false);
+            else progress.start(recipients);
+        }
+
+        // one row for the whole broadcast, summed over recipients; each one reports its own byte count
+        // and is settled once, when it confirms the file or fails, however many bytes went out.
+        // The row is sized by what broadcastFile says it went to; anything reported before that is held.
+        private final class BroadcastProgress implements NioChatServer.FileFanout {
+            private final File file;
+            private final long size;
+            private final Map<NioChatServer.Session, Long> last = new HashMap<>();
+            private final Set<NioChatServer.Session> settled = new HashSet<>();
+            private TransferProgress row; // null until start
+            private int recipients;
+            private long sentAll;
+            private int failed;
+
+            BroadcastProgress(File file) {
+                this.file = file;
+                this.size = Math.max(1, file.length());
+            }
+
+            synchronized void start(int recipients) {
+                this.recipients = recipients;
+                row = chatPanel.trackTransfer(file.getName() + " to " + recipients + " client(s)", size * recipients, true);
+                if (sentAll > 0) row.onProgress(sentAll, size * recipients);
+                finishIfSettled();
+            }
+
+            public synchronized void onProgress(NioChatServer.Session s, long sent, long total) {
+                if (settled.contains(s)) return;
+                long now = Math.max(sent, 1);
+                Long before = last.put(s, now);
+                sentAll += now - (before == null ? 0 : before);
+                if (row != null) row.onProgress(sentAll, size * recipients);
+            }
+
+            public void onDone(NioChatServer.Session s) {
+                settle(s, null);
+            }
+
+            public void onFailed(NioChatServer.Session s, IOException ex) {
+                settle(s, ex);
+            }
+
+            private synchronized void settle(NioChatServer.Session s, IOException ex) {
+                if (!settled.add(s)) return;
+                if (ex != null) {
+                    chatPanel.appendMessage("System", "File send to " + s + " failed: " + ex.getMessage(), false);
+                    failed++;
                 }
-            }).start();
+                finishIfSettled();
+            }
+
+            private void finishIfSettled() {
+                if (row == null || settled.size() < recipients) return;
+                chatPanel.appendMessage("You", "sent file: " + file.getName(), true);
+                row.onDone(failed < recipients);
+            }
         }
     }
 
     // Client GUI
     static class ChatClientGUI extends JFrame {
+        private static final int HISTORY_ON_CONNECT = 200;
         private ChatPanel chatPanel = new ChatPanel();
         private Connection connection;
+        // sends cut off by a dropped connection, offered again after the next connect
+        private final List<File> interruptedSends = new CopyOnWriteArrayList<>();
+        // newest journal sequence number seen from this server, so a reconnect only fetches what was missed
+        private final AtomicLong lastSeq = new AtomicLong();
+        private volatile String lastServer;
 
         ChatClientGUI(String host, int port) {
             super("Chat Client - " + host + ":" + port);
@@ -442,14 +543,16 @@ public class ChatGUIApp {
             connectBtn.addActionListener(e -> {
                 String h = hostField.getText().trim();
                 int p = Integer.parseInt(portField.getText().trim());
-                connect(h, p);
+                connect(h, p, nameField.getText().trim());
             });
 
             chatPanel.sendBtn.addActionListener(e -> sendMessage(nameField.getText()));
             chatPanel.inputField.addActionListener(e -> sendMessage(nameField.getText()));
             chatPanel.fileBtn.addActionListener(e -> sendFile(nameField.getText()));
+            chatPanel.joinBtn.addActionListener(e -> joinRoom());
+            chatPanel.leaveBtn.addActionListener(e -> leaveRoom());
 
-            connect(host, port);
+            connect(host, port, nameField.getText().trim());
             setVisible(true);
 
             // cleanup on close
@@ -460,40 +563,109 @@ public class ChatGUIApp {
             });
         }
 
-        private void connect(String host, int port) {
+        private void connect(String host, int port, String name) {
             if (connection != null && !connection.isClosed()) { chatPanel.appendMessage("System", "Already connected", false); return; }
-            new Thread(() -> {
+            ChatExecutors.start("Client-Connect", () -> {
                 try {
-                    Socket socket = new Socket(host, port);
-                    connection = new Connection(socket);
+                    // opened through a channel so file transfers can use the zero-copy path
+                    Socket socket = SocketChannel.open(new InetSocketAddress(host, port)).socket();
+                    connection = new Connection(socket, name);
                     chatPanel.setStatus("Connected to " + host + ":" + port);
+                    if (!(host + ":" + port).equals(lastServer)) lastSeq.set(0);
+                    lastServer = host + ":" + port;
                     connection.readLoop(new MessageHandler() {
                         public void onMessage(String message) { chatPanel.appendMessage("Server", message, false); }
+                        public void onJournaled(long seq, long time, String message, boolean replayed) {
+                            lastSeq.accumulateAndGet(seq, Math::max);
+                            chatPanel.appendMessage(replayed ? "History" : "Server", message, false);
+                        }
+                        public void onJournalAck(long seq) { lastSeq.accumulateAndGet(seq, Math::max); }
+                        public void onRoomMessage(String room, String sender, String message) {
+                            chatPanel.appendMessage(room, sender, message, false);
+                        }
+                        public void onDirectMessage(String from, long time, String message) {
+                            chatPanel.appendMessage(from + " (direct)", message, false);
+                        }
+                        public void onFileOffer(String from, String filename, long size) {
+                            chatPanel.appendMessage("System", from + " left you a file: " + filename, false);
+                        }
                         public void onFileReceived(String filename, File saved) {
                             chatPanel.appendMessage("Server", "sent file: " + filename + " (saved: " + saved.getName() + ")", false);
                             chatPanel.addReceivedFileEntry(saved);
                         }
                         public void onDisconnect() { chatPanel.setStatus("Disconnected"); }
                         public void onError(Exception ex) { chatPanel.appendMessage("System", "Connection error: " + ex.getMessage(), false); }
+                        public FramedConnection.Progress onFileIncoming(String filename, long size) {
+                            return chatPanel.trackTransfer(filename, size, false);
+                        }
                     });
+                    long seen = lastSeq.get();
+                    connection.requestHistory(seen > 0 ? seen + 1 : 0, HISTORY_ON_CONNECT);
+                    // back into the rooms we were in before a reconnect
+                    for (String room : chatPanel.rooms()) connection.joinRoom(room);
+                    // the receiver keeps partial files, so these pick up where they stopped
+                    for (File f : interruptedSends) {
+                        interruptedSends.remove(f);
+                        chatPanel.appendMessage("System", "Resuming file: " + f.getName(), false);
+                        startFileSend(connection, f);
+                    }
                 } catch (IOException ex) {
                     chatPanel.appendMessage("System", "Unable to connect: " + ex.getMessage(), false);
                     chatPanel.setStatus("Not connected");
                 }
-            }).start();
+            });
         }
 
         private void sendMessage(String name) {
             if (connection == null || connection.isClosed()) { chatPanel.appendMessage("System", "Not connected", false); return; }
             String t = chatPanel.inputField.getText().trim();
             if (t.isEmpty()) return;
-            try {
-                connection.sendMessage(name + ": " + t);
-                chatPanel.appendMessage("You", t, true);
+            String[] direct = parseDirect(t);
+            if (direct != null) {
+                // kept in the recipient's mailbox on the server until they take it
+                connection.sendDirectAsync(direct[0], direct[1]).whenComplete((v, ex) -> {
+                    if (ex != null) chatPanel.appendMessage("System", "Send failed: " + rootMessage(ex), false);
+                });
+                chatPanel.appendMessage("You", "to " + direct[0] + ": " + direct[1], true);
                 chatPanel.inputField.setText("");
-            } catch (IOException ex) {
-                chatPanel.appendMessage("System", "Send failed: " + ex.getMessage(), false);
+                return;
+            }
+            String room = chatPanel.currentRoom();
+            if (!ChatPanel.LOBBY.equals(room)) {
+                // signed by the server with the name from our HELLO
+                connection.sendToRoomAsync(room, t).whenComplete((v, ex) -> {
+                    if (ex != null) chatPanel.appendMessage(room, "System", "Send failed: " + rootMessage(ex), false);
+                });
+                chatPanel.appendMessage(room, "You", t, true);
+                chatPanel.inputField.setText("");
+                return;
             }
+            // queued without waiting; the EDT never touches the socket
+            connection.sendMessageAsync(name + ": " + t).whenComplete((v, ex) -> {
+                if (ex != null) chatPanel.appendMessage("System", "Send failed: " + rootMessage(ex), false);
+            });
+            chatPanel.appendMessage("You", t, true);
+            chatPanel.inputField.setText("");
+        }
+
+        private void joinRoom() {
+            String room = JOptionPane.showInputDialog(this, "Room to join:");
+            if (room == null) return;
+            room = room.trim();
+            if (!RoomIndex.isValidName(room)) {
+                chatPanel.appendMessage("System", "Room names are 1 to " + RoomIndex.MAX_NAME + " characters.", false);
+                return;
+            }
+            // while disconnected it is joined on the next connect
+            if (connection != null && !connection.isClosed()) connection.joinRoom(room);
+            chatPanel.showRoom(room);
+        }
+
+        private void leaveRoom() {
+            String room = chatPanel.currentRoom();
+            if (ChatPanel.LOBBY.equals(room)) return;
+            if (connection != null) connection.leaveRoom(room);
+            chatPanel.removeRoom(room);
         }
 
         private void sendFile(String name) {
@@ -501,22 +673,30 @@ public class ChatGUIApp {
             JFileChooser chooser = new JFileChooser();
             int ret = chooser.showOpenDialog(this);
             if (ret != JFileChooser.APPROVE_OPTION) return;
-            File f = chooser.getSelectedFile();
-            chatPanel.showProgress(true);
-            chatPanel.setProgress(0, 100);
-            new Thread(() -> {
-                try {
-                    connection.sendFile(f, (sent, total) -> {
-                        int p = (int) ((sent * 100) / Math.max(1, total));
-                        chatPanel.setProgress(p, 100);
-                    });
+            startFileSend(connection, chooser.getSelectedFile());
+        }
+
+        private void startFileSend(Connection conn, File f) {
+            TransferProgress progress = chatPanel.trackTransfer(f.getName(), f.length(), true);
+            conn.sendFileAsync(f, progress).whenComplete((v, ex) -> {
+                if (ex == null) {
+                    progress.onDone(true);
                     chatPanel.appendMessage("You", "sent file: " + f.getName(), true);
-                } catch (IOException ex) {
-                    chatPanel.appendMessage("System", "File send failed: " + ex.getMessage(), false);
-                } finally {
-                    chatPanel.showProgress(false);
+                    return;
+                }
+                if (conn.isClosed() && Frames.supportsChunks(conn.getPeerVersion())) {
+                    interruptedSends.add(f);
+                    chatPanel.appendMessage("System", "File send interrupted: " + f.getName() + " (will resume after reconnect)", false);
+                } else {
+                    chatPanel.appendMessage("System", "File send failed: " + rootMessage(ex), false);
                 }
-            }).start();
+                progress.onDone(false);
+            });
+        }
+
+        private static String rootMessage(Throwable ex) {
+            while (ex instanceof CompletionException && ex.getCause() != null) ex = ex.getCause();
+            return ex.getMessage();
         }
     }
 }
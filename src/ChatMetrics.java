@@ -0,0 +1,279 @@
+// ChatMetrics.java
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Process-wide transport counters, shared by FramedConnection, NioChatServer and the
+ * classes under them.
+ *
+ * Frames and bytes in and out per opcode (legacy writeUTF frames count under LEGACY,
+ * outbound with their bytes, inbound without), histograms of message send latency
+ * (queued until handed to the socket, parked time included) and of file throughput
+ * per finished transfer, gauges for connections, queued and parked outbound bytes and
+ * transfers in flight, messages relayed between cluster nodes, and error counts by cause. CONNECTION_LOST counts every
+ * connection that ended on an error, whatever the cause; the others count where it
+ * went wrong, fatal or not.
+ *
+ * Recording only bumps LongAdders and histogram slots, nothing is allocated, so it is
+ * always on. Everything is readable as the MBean chat:type=Transport (chat.jmx=false
+ * to skip registering it) and as a text dump, printed every chat.statsInterval seconds
+ * when that is set.
+ */
+final class ChatMetrics {
+
+    enum Cause { CONNECTION_LOST, TIMEOUT, PROTOCOL, COMPRESSION, BAD_CHUNK, BAD_FILE, OVERFLOW, DROPPED }
+
+    static final String OBJECT_NAME = "chat:type=Transport";
+
+    // slot 0 is legacy, binary opcodes use their low bits
+    private static final String[] OPS = { "LEGACY", "MSG", "FILE", "FILE_BEGIN", "FILE_CHUNK", "FILE_END",
+            "FILE_ABORT", "FILE_ACCEPT", "FILE_ACK", "MSG_SEQ", "REPLAY", "MSG_ACK", "PING", "JOIN", "LEAVE", "ROOM_MSG",
+            "RELAY", "RELAY_ACK", "DIRECT", "MAIL", "MAIL_ACK", "FILE_STREAMS", "FILE_RANGE", "OTHER" };
+
+    private static final LongAdder[] framesIn = adders(OPS.length);
+    private static final LongAdder[] bytesIn = adders(OPS.length);
+    private static final LongAdder[] framesOut = adders(OPS.length);
+    private static final LongAdder[] bytesOut = adders(OPS.length);
+    private static final LongAdder[] errors = adders(Cause.values().length);
+    private static final LongAdder connections = new LongAdder();
+    private static final LongAdder queuedFrames = new LongAdder();
+    private static final LongAdder queuedBytes = new LongAdder();
+    private static final LongAdder parkedBytes = new LongAdder();
+    private static final LongAdder transfersOut = new LongAdder();
+    private static final LongAdder transfersIn = new LongAdder();
+    private static final LongAdder relayedOut = new LongAdder();
+    private static final LongAdder relayedIn = new LongAdder();
+    private static final LongAdder relayDuplicates = new LongAdder();
+    private static final LatencyHistogram sendLatency = new LatencyHistogram();   // micros
+    private static final LatencyHistogram fileSendRate = new LatencyHistogram();  // KB/s
+    private static final LatencyHistogram fileReceiveRate = new LatencyHistogram();
+
+    static {
+        if (ChatConfig.getBoolean("chat.jmx", true)) register();
+        long every = ChatConfig.getLong("chat.statsInterval", 0);
+        if (every > 0) {
+            // daemon, so the dump never keeps a finished client alive
+            Thread t = new Thread(() -> {
+                try {
+                    while (true) {
+                        Thread.sleep(every * 1000);
+                        System.out.print(dump());
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            }, "Chat-Stats");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    private ChatMetrics() {}
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] a = new LongAdder[n];
+        for (int i = 0; i < n; i++) a[i] = new LongAdder();
+        return a;
+    }
+
+    /** Counter slot for a frame starting with this byte. */
+    static int slot(int firstByte) {
+        return Frames.isBinary(firstByte) ? Math.min(firstByte & 0x7F, OPS.length - 1) : 0;
+    }
+
+    // ---------------------------------------------------------------- recording
+
+    static void frameIn(int firstByte, long bytes) {
+        int i = slot(firstByte);
+        framesIn[i].increment();
+        bytesIn[i].add(bytes);
+    }
+
+    static void frameOut(int slot, long bytes) {
+        framesOut[slot].increment();
+        bytesOut[slot].add(bytes);
+    }
+
+    static void sendLatency(long nanos) { sendLatency.record(nanos / 1000); }
+
+    static void fileSent(long bytes, long nanos) { fileSendRate.record(kbPerSecond(bytes, nanos)); }
+
+    static void fileReceived(long bytes, long nanos) { fileReceiveRate.record(kbPerSecond(bytes, nanos)); }
+
+    private static long kbPerSecond(long bytes, long nanos) {
+        return nanos <= 0 ? 0 : (long) (bytes / 1024.0 / (nanos / 1e9));
+    }
+
+    static void error(Cause cause) { errors[cause.ordinal()].increment(); }
+
+    static void error(Cause cause, long n) { errors[cause.ordinal()].add(n); }
+
+    static void connectionOpened() { connections.increment(); }
+    static void connectionClosed() { connections.decrement(); }
+
+    static void queued(long frames, long bytes) {
+        queuedFrames.add(frames);
+        queuedBytes.add(bytes);
+    }
+
+    static void parked(long bytes) { parkedBytes.add(bytes); }
+
+    static void transferOut(int delta) { transfersOut.add(delta); }
+    static void transferIn(int delta) { transfersIn.add(delta); }
+
+    static void relayedOut(int n) { relayedOut.add(n); }
+    static void relayedIn() { relayedIn.increment(); }
+    static void relayDuplicate() { relayDuplicates.increment(); }
+
+    // ---------------------------------------------------------------- reading
+
+    /** Plain-text summary; frame types and errors that never happened are left out. */
+    static String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Chat stats: ").append(connections.sum()).append(" connections, queued ")
+                .append(queuedFrames.sum()).append(" frames / ").append(TransferProgress.formatBytes(queuedBytes.sum()))
+                .append(", parked ").append(TransferProgress.formatBytes(parkedBytes.sum()))
+                .append(", transfers ").append(transfersOut.sum()).append(" out / ").append(transfersIn.sum()).append(" in\n");
+        frames(sb, "  in  ", framesIn, bytesIn);
+        frames(sb, "  out ", framesOut, bytesOut);
+        LatencyHistogram.Snapshot s = sendLatency.snapshot();
+        sb.append(String.format(Locale.ROOT, "  send latency   n=%d p50=%.2f ms p99=%.2f ms p999=%.2f ms max=%.2f ms%n",
+                s.count(), s.percentile(50) / 1000.0, s.percentile(99) / 1000.0, s.percentile(99.9) / 1000.0, s.max() / 1000.0));
+        rates(sb, "  file send      ", fileSendRate.snapshot());
+        rates(sb, "  file receive   ", fileReceiveRate.snapshot());
+        if (relayedOut.sum() + relayedIn.sum() + relayDuplicates.sum() > 0) {
+            sb.append("  cluster        relayed ").append(relayedOut.sum()).append(" out / ").append(relayedIn.sum())
+                    .append(" in, ").append(relayDuplicates.sum()).append(" duplicates dropped\n");
+        }
+        sb.append("  errors        ");
+        boolean any = false;
+        for (Cause c : Cause.values()) {
+            long n = errors[c.ordinal()].sum();
+            if (n == 0) continue;
+            sb.append(' ').append(c.name().toLowerCase(Locale.ROOT)).append('=').append(n);
+            any = true;
+        }
+        return sb.append(any ? "\n" : " none\n").toString();
+    }
+
+    private static void frames(StringBuilder sb, String label, LongAdder[] frames, LongAdder[] bytes) {
+        sb.append(label);
+        for (int i = 0; i < OPS.length; i++) {
+            long n = frames[i].sum();
+            if (n == 0) continue;
+            sb.append(' ').append(OPS[i]).append(' ').append(n)
+                    .append(" (").append(TransferProgress.formatBytes(bytes[i].sum())).append(')');
+        }
+        sb.append('\n');
+    }
+
+    private static void rates(StringBuilder sb, String label, LatencyHistogram.Snapshot s) {
+        sb.append(String.format(Locale.ROOT, "%sn=%d p50=%.1f MB/s p99=%.1f MB/s%n",
+                label, s.count(), s.percentile(50) / 1024.0, s.percentile(99) / 1024.0));
+    }
+
+    // ---------------------------------------------------------------- JMX
+
+    private static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), new ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            System.out.println("Not registering " + OBJECT_NAME + ": " + e);
+        }
+    }
+
+    /** Read-only attributes built from the counters above, plus a dump() operation. */
+    private static final class MBean implements DynamicMBean {
+        private final Map<String, Supplier<Object>> attributes = new LinkedHashMap<>();
+
+        MBean() {
+            attributes.put("Connections", connections::sum);
+            attributes.put("QueuedFrames", queuedFrames::sum);
+            attributes.put("QueuedBytes", queuedBytes::sum);
+            attributes.put("ParkedBytes", parkedBytes::sum);
+            attributes.put("TransfersOut", transfersOut::sum);
+            attributes.put("TransfersIn", transfersIn::sum);
+            attributes.put("RelayedOut", relayedOut::sum);
+            attributes.put("RelayedIn", relayedIn::sum);
+            attributes.put("RelayDuplicates", relayDuplicates::sum);
+            for (int i = 0; i < OPS.length; i++) {
+                attributes.put("FramesIn_" + OPS[i], framesIn[i]::sum);
+                attributes.put("BytesIn_" + OPS[i], bytesIn[i]::sum);
+                attributes.put("FramesOut_" + OPS[i], framesOut[i]::sum);
+                attributes.put("BytesOut_" + OPS[i], bytesOut[i]::sum);
+            }
+            histogram("SendLatencyMicros", sendLatency);
+            histogram("FileSendKBps", fileSendRate);
+            histogram("FileReceiveKBps", fileReceiveRate);
+            for (Cause c : Cause.values()) attributes.put("Errors_" + c.name(), errors[c.ordinal()]::sum);
+        }
+
+        private void histogram(String name, LatencyHistogram h) {
+            attributes.put(name + "_Count", () -> h.snapshot().count());
+            attributes.put(name + "_P50", () -> h.snapshot().percentile(50));
+            attributes.put(name + "_P99", () -> h.snapshot().percentile(99));
+            attributes.put(name + "_P999", () -> h.snapshot().percentile(99.9));
+            attributes.put(name + "_Max", () -> h.snapshot().max());
+        }
+
+        @Override
+        public Object getAttribute(String name) throws AttributeNotFoundException {
+            Supplier<Object> s = attributes.get(name);
+            if (s == null) throw new AttributeNotFoundException(name);
+            return s.get();
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            AttributeList list = new AttributeList();
+            for (String n : names) {
+                Supplier<Object> s = attributes.get(n);
+                if (s != null) list.add(new Attribute(n, s.get()));
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList list) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+            if ("dump".equals(action)) return dump();
+            throw new ReflectionException(new NoSuchMethodException(action));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> infos = new ArrayList<>();
+            for (String n : attributes.keySet()) {
+                infos.add(new MBeanAttributeInfo(n, "java.lang.Long", n, true, false, false));
+            }
+            MBeanOperationInfo dump = new MBeanOperationInfo("dump", "Plain-text summary",
+                    new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.INFO);
+            return new MBeanInfo(getClass().getName(), "Chat transport metrics",
+                    infos.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[] { dump }, null);
+        }
+    }
+}
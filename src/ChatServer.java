@@ -2,71 +2,142 @@
 import java.awt.Desktop;
 import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.util.Arrays;
 import java.util.Scanner;
 
 public class ChatServer {
     private int port;
+    private int loops;
+    // relay mode: whatever one client sends goes to every other client too
+    private final boolean relay = ChatConfig.getBoolean("chat.relay", true);
+    private NioChatServer server;
+    private MessageJournal journal;
+    private Cluster cluster;
+    private Mailboxes mailboxes;
 
     public ChatServer(int port) {
+        this(port, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public ChatServer(int port, int loops) {
         this.port = port;
+        this.loops = loops;
     }
 
     public void start() throws IOException {
-        System.out.println("Server listening on port " + port);
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            while (true) {
-                System.out.println("Waiting for a client to connect...");
-                Socket client = serverSocket.accept();
-                System.out.println("Client connected: " + client.getRemoteSocketAddress());
-                handleClient(client);
-                // after handleClient returns, server will accept next client
+        server = new NioChatServer(port, loops, null, new NioChatServer.Listener() {
+            public void onConnect(NioChatServer.Session s) {
+                System.out.println("Client connected: " + s + " " + s.getRemoteAddress());
+            }
+            public void onMessage(NioChatServer.Session s, String msg) {
+                System.out.println("[" + s + "] " + msg);
+                try {
+                    if (relay) server.publish(msg, s);
+                    else server.record(msg, s);
+                } catch (IOException ex) {
+                    System.out.println("Relay failed: " + ex.getMessage());
+                }
+            }
+            public void onFile(NioChatServer.Session s, String filename, File saved) {
+                System.out.println("[" + s + " SENT FILE] " + filename + " -> saved as " + saved.getAbsolutePath());
+                if (relay) relayFile(saved, filename, s);
+                // Attempt to open in background
+                ChatExecutors.start("OpenFile-Thread", () -> tryOpenFile(saved));
+            }
+            public void onDisconnect(NioChatServer.Session s) {
+                System.out.println("Client disconnected: " + s);
             }
+            public void onError(NioChatServer.Session s, Exception ex) {
+                System.out.println("Connection error (" + s + "): " + ex.getMessage());
+            }
+        });
+        if (ChatConfig.getBoolean("chat.journal", true)) {
+            journal = new MessageJournal(new File(ChatConfig.get("chat.journalDir", "chat_journal")));
+            server.setJournal(journal);
+        }
+        if (ChatConfig.getBoolean("chat.mailbox", true)) {
+            mailboxes = new Mailboxes(new File(ChatConfig.get("chat.mailboxDir", "chat_mailboxes")));
+            server.setMailboxes(mailboxes);
+        }
+        cluster = Cluster.fromConfig(server);
+        if (cluster != null) server.setCluster(cluster);
+        server.start();
+        System.out.println("Server listening on port " + port + " (" + loops + " event loops"
+                + (relay ? ", relaying between clients)" : ")"));
+        if (cluster != null) {
+            cluster.start();
+            System.out.println("Cluster node " + cluster.nodeId() + " with " + cluster.peerCount() + " peer(s)");
         }
+        handleConsole(server);
     }
 
-    private void handleClient(Socket client) {
-        try {
-            Connection conn = new Connection(client);
-            conn.readLoop(
-                msg -> System.out.println("[CLIENT] " + msg),
-                (filename, saved) -> {
-                    System.out.println("[CLIENT SENT FILE] " + filename + " -> saved as " + saved.getAbsolutePath());
-                    // Attempt to open in background
-                    new Thread(() -> tryOpenFile(saved), "OpenFile-Thread").start();
-                },
-                () -> System.out.println("Client disconnected.")
-            );
-
-            // read from stdin to send messages / files
-            Scanner sc = new Scanner(System.in);
-            while (!client.isClosed()) {
-                System.out.println("Enter (m)essage or (f)ile or (q)uit:");
-                String cmd = sc.nextLine();
-                if (cmd.equalsIgnoreCase("q")) {
-                    conn.close();
-                    break;
-                } else if (cmd.equalsIgnoreCase("m")) {
-                    System.out.print("Message: ");
-                    String text = sc.nextLine();
-                    conn.sendMessage(text);
-                } else if (cmd.equalsIgnoreCase("f")) {
-                    System.out.print("Path to file to send: ");
-                    String path = sc.nextLine();
-                    File f = new File(path);
-                    if (f.exists() && f.isFile()) {
-                        conn.sendFile(f);
-                        System.out.println("File sent.");
-                    } else {
-                        System.out.println("File not found.");
+    // read from stdin to send messages / files to every connected client
+    private void handleConsole(NioChatServer server) {
+        Scanner sc = new Scanner(System.in);
+        while (server.isRunning()) {
+            System.out.println("Enter (m)essage, (d)irect message, (f)ile, (s)tats or (q)uit:");
+            if (!sc.hasNextLine()) break;
+            String cmd = sc.nextLine();
+            if (cmd.equalsIgnoreCase("q")) {
+                if (cluster != null) cluster.stop();
+                server.stop();
+                if (journal != null) {
+                    try { journal.close(); } catch (IOException ex) {
+                        System.out.println("Closing journal failed: " + ex.getMessage());
                     }
+                }
+                if (mailboxes != null) {
+                    try { mailboxes.close(); } catch (IOException ex) {
+                        System.out.println("Closing mailboxes failed: " + ex.getMessage());
+                    }
+                }
+                break;
+            } else if (cmd.equalsIgnoreCase("s")) {
+                System.out.print(ChatMetrics.dump());
+            } else if (cmd.equalsIgnoreCase("m")) {
+                System.out.print("Message: ");
+                String text = sc.nextLine();
+                try {
+                    server.publish(text, null);
+                    System.out.println("Message queued for " + server.clients().size() + " client(s).");
+                } catch (IOException ex) {
+                    System.out.println("Send failed: " + ex.getMessage());
+                }
+            } else if (cmd.equalsIgnoreCase("d")) {
+                System.out.print("To: ");
+                String to = sc.nextLine().trim();
+                System.out.print("Message: ");
+                long seq = server.sendDirect(to, sc.nextLine(), null);
+                if (seq < 0) System.out.println("No user named " + to + ".");
+                else System.out.println(seq > 0 ? "Left in the mailbox of " + to + "." : "Sent to " + to + ".");
+            } else if (cmd.equalsIgnoreCase("f")) {
+                System.out.print("Path to file to send: ");
+                String path = sc.nextLine();
+                File f = new File(path);
+                if (f.exists() && f.isFile()) {
+                    relayFile(f, f.getName(), null);
                 } else {
-                    System.out.println("Unknown command.");
+                    System.out.println("File not found.");
                 }
+            } else {
+                System.out.println("Unknown command.");
             }
+        }
+    }
+
+    private void relayFile(File f, String name, NioChatServer.Session except) {
+        try {
+            server.broadcastFile(f, name, except, new NioChatServer.FileFanout() {
+                public void onProgress(NioChatServer.Session s, long done, long total) {}
+                public void onDone(NioChatServer.Session s) {
+                    System.out.println("File " + f.getName() + " sent to " + s + ".");
+                }
+                public void onFailed(NioChatServer.Session s, IOException ex) {
+                    System.out.println("File send to " + s + " failed: " + ex.getMessage());
+                }
+            });
         } catch (IOException ex) {
-            System.out.println("Connection error: " + ex.getMessage());
+            System.out.println("File send failed: " + ex.getMessage());
         }
     }
 
@@ -91,8 +162,14 @@ public class ChatServer {
     }
 
     public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("--daemon")) {
+            // no console: see ChatDaemon
+            ChatDaemon.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         int port = 5000;
         if (args.length > 0) port = Integer.parseInt(args[0]);
-        new ChatServer(port).start();
+        if (args.length > 1) new ChatServer(port, Integer.parseInt(args[1])).start();
+        else new ChatServer(port).start();
     }
 }
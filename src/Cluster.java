@@ -0,0 +1,431 @@
+// Cluster.java
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Several NioChatServers acting as one chat (see Frames, version 10).
+ *
+ * Membership is static: each node gets its own chat.nodeId and chat.clusterPeers, the
+ * host:port client addresses of the other nodes, and dials every peer as a client
+ * whose HELLO says it is a node. A HELLO naming a node is only believed from the
+ * address of a configured peer; anyone else saying so is served as a plain client.
+ * What a node's clients publish goes out over those
+ * links, and the node at the other end hands it to its own clients as if it had been
+ * published there, without passing it on: the links are a full mesh, one hop reaches
+ * everyone. Lobby messages go to every peer, so every node's journal holds the whole
+ * conversation; room messages only to peers that announced members in that room.
+ *
+ * Each link has one thread that takes whatever has piled up since its last write,
+ * sends it as one RELAY frame (deflated when the peer agreed) and waits for the write
+ * before taking more, so batches grow with the load and cost nothing when it is quiet.
+ * Relayed messages are kept until the peer's RELAY_ACK and sent again after a
+ * reconnect; the receiver drops those it has already delivered by origin incarnation
+ * and sequence number, so a flapping link neither loses nor repeats messages. Files
+ * are not relayed.
+ */
+final class Cluster {
+
+    static final String LOBBY = "";
+
+    private static final int BATCH_MAX = ChatConfig.getInt("chat.clusterBatch", 512);
+    private static final int BATCH_BYTES = ChatConfig.getInt("chat.clusterBatchBytes", 256 * 1024);
+    private static final int QUEUE_MAX = ChatConfig.getInt("chat.clusterQueue", 100_000);
+    private static final int UNACKED_MAX = ChatConfig.getInt("chat.clusterUnacked", 100_000);
+    private static final long HELLO_WAIT_MS = 5000;
+    private static final long RETRY_MAX_MS = 5000;
+
+    /** One relayed message, encoded once and shared by every link. */
+    private static final class Entry {
+        final byte[] wire; // room, sender, text
+
+        Entry(String room, String sender, String text) {
+            byte[] r = room.getBytes(StandardCharsets.UTF_8);
+            byte[] s = sender.getBytes(StandardCharsets.UTF_8);
+            byte[] t = text.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer b = ByteBuffer.allocate(Frames.stringSize(r) + Frames.stringSize(s) + Frames.stringSize(t));
+            Frames.putString(b, r);
+            Frames.putString(b, s);
+            Frames.putString(b, t);
+            wire = b.array();
+        }
+    }
+
+    // rooms a peer has members in, as told by the link it dialed to us
+    private static final class Interest {
+        final Object owner;
+        final Set<String> rooms = ConcurrentHashMap.newKeySet();
+
+        Interest(Object owner) { this.owner = owner; }
+    }
+
+    private final String nodeId;
+    private final long incarnation = System.currentTimeMillis();
+    private final byte[] origin;
+    private final NioChatServer server;
+    private final List<Link> links = new ArrayList<>();
+    private final Map<String, Interest> peerRooms = new ConcurrentHashMap<>();
+    private final ReentrantLock interestLock = new ReentrantLock();
+    private final Set<String> announced = new HashSet<>(); // rooms we told the peers about, guarded by interestLock
+    private final ReentrantLock deliverLock = new ReentrantLock();
+    private final Map<String, long[]> delivered = new ConcurrentHashMap<>(); // origin -> incarnation, last seq
+    private volatile boolean running;
+
+    Cluster(String nodeId, List<String> peers, NioChatServer server) {
+        this.nodeId = nodeId;
+        this.origin = nodeId.getBytes(StandardCharsets.UTF_8);
+        this.server = server;
+        for (String p : peers) {
+            int colon = p.lastIndexOf(':');
+            if (colon <= 0) throw new IllegalArgumentException("Cluster peer is not host:port: " + p);
+            Link l = new Link(p.substring(0, colon), Integer.parseInt(p.substring(colon + 1)));
+            l.resolve();
+            links.add(l);
+        }
+    }
+
+    /** The cluster chat.clusterPeers (comma separated host:port) describes, or null when it is empty. */
+    static Cluster fromConfig(NioChatServer server) {
+        String peers = ChatConfig.get("chat.clusterPeers", "");
+        if (peers.isEmpty()) return null;
+        List<String> list = new ArrayList<>();
+        for (String p : peers.split(",")) {
+            if (!p.trim().isEmpty()) list.add(p.trim());
+        }
+        String id = ChatConfig.get("chat.nodeId", "node-" + UUID.randomUUID().toString().substring(0, 8));
+        return new Cluster(id, list, server);
+    }
+
+    String nodeId() { return nodeId; }
+
+    int peerCount() { return links.size(); }
+
+    /** Whether a connection from this address may link in as a node: only configured peers can. */
+    boolean acceptsLink(InetAddress from) {
+        if (from == null) return false;
+        for (Link l : links) {
+            for (InetAddress a : l.addresses) {
+                if (a.equals(from)) return true;
+            }
+        }
+        return false;
+    }
+
+    void start() {
+        running = true;
+        for (Link l : links) l.thread = ChatExecutors.start("Cluster-Link-" + l.host + ":" + l.port, l);
+    }
+
+    void stop() {
+        running = false;
+        for (Link l : links) {
+            if (l.thread != null) l.thread.interrupt();
+            FramedConnection c = l.conn;
+            if (c != null) c.close();
+        }
+    }
+
+    // ---------------------------------------------------------------- outbound
+
+    /** Sends a message published here on to the peers that need it; room is LOBBY for the lobby. */
+    void forward(String room, String sender, String text) {
+        Entry e = new Entry(room, sender, text);
+        for (Link l : links) {
+            if (room.isEmpty() || l.wants(room)) l.offer(e);
+        }
+    }
+
+    /** A local member joined or left room; tells the peers when the room gains its first or loses its last. */
+    void roomChanged(String room) {
+        interestLock.lock();
+        try {
+            boolean has = server.roomSize(room) > 0;
+            if (has == announced.contains(room)) return;
+            if (has) announced.add(room);
+            else announced.remove(room);
+            byte[] frame = Frames.encodeText(has ? Frames.OP_JOIN : Frames.OP_LEAVE, room);
+            for (Link l : links) {
+                FramedConnection c = l.conn;
+                if (c != null) c.queueFrame(frame);
+            }
+        } finally {
+            interestLock.unlock();
+        }
+    }
+
+    // ---------------------------------------------------------------- inbound, on the server's loop threads
+
+    void peerJoined(String node, Object link, String room) {
+        Interest i = peerRooms.compute(node, (k, old) -> old != null && old.owner == link ? old : new Interest(link));
+        i.rooms.add(room);
+    }
+
+    void peerLeft(String node, Object link, String room) {
+        Interest i = peerRooms.get(node);
+        if (i != null && i.owner == link) i.rooms.remove(room);
+    }
+
+    /** The link from node closed; what it told us goes with it unless a newer link has taken over. */
+    void peerGone(String node, Object link) {
+        peerRooms.computeIfPresent(node, (k, old) -> old.owner == link ? null : old);
+    }
+
+    /**
+     * Delivers a RELAY frame's messages that are new here to the local clients.
+     *
+     * @return the last sequence number in the frame, for RELAY_ACK
+     */
+    long receive(ByteBuffer p) throws IOException {
+        String from = Frames.getString(p);
+        long inc = Frames.getVarint(p);
+        long seq = Frames.getVarint(p);
+        long count = Frames.getVarint(p);
+        deliverLock.lock();
+        try {
+            long[] mark = delivered.computeIfAbsent(from, k -> new long[2]);
+            if (inc > mark[0]) {
+                // the origin restarted and numbers from 1 again
+                mark[0] = inc;
+                mark[1] = 0;
+            }
+            boolean stale = inc < mark[0];
+            for (long i = 0; i < count; i++, seq++) {
+                String room = Frames.getString(p);
+                String sender = Frames.getString(p);
+                String text = Frames.getString(p);
+                if (stale || seq <= mark[1]) {
+                    ChatMetrics.relayDuplicate();
+                    continue;
+                }
+                mark[1] = seq;
+                ChatMetrics.relayedIn();
+                server.deliverRelayed(room, sender, text);
+            }
+            return seq - 1;
+        } finally {
+            deliverLock.unlock();
+        }
+    }
+
+    private byte[] encodeRelay(long firstSeq, List<Entry> entries, int from, int to) {
+        int size = Frames.stringSize(origin) + Frames.varintSize(incarnation) + Frames.varintSize(firstSeq)
+                + Frames.varintSize(to - from);
+        for (int i = from; i < to; i++) size += entries.get(i).wire.length;
+        ByteBuffer p = ByteBuffer.allocate(size);
+        Frames.putString(p, origin);
+        Frames.putVarint(p, incarnation);
+        Frames.putVarint(p, firstSeq);
+        Frames.putVarint(p, to - from);
+        for (int i = from; i < to; i++) p.put(entries.get(i).wire);
+        return Frames.encodeFrame(Frames.OP_RELAY, 0, p.array());
+    }
+
+    // ---------------------------------------------------------------- links
+
+    private static final class LinkConnection extends FramedConnection {
+        LinkConnection(Socket socket, String node) throws IOException {
+            super(socket, null, node);
+        }
+    }
+
+    /** Our side of the link to one peer: dials, batches, retransmits. */
+    private final class Link implements Runnable {
+        final String host;
+        final int port;
+        final LinkedBlockingQueue<Entry> pending = new LinkedBlockingQueue<>(QUEUE_MAX);
+        // sent but not yet acknowledged; the first one has seq unackedFrom, the rest follow on
+        private final ArrayDeque<Entry> unacked = new ArrayDeque<>();
+        private long unackedFrom = 1;
+        private long nextSeq = 1;
+        private final ReentrantLock lock = new ReentrantLock();
+        volatile LinkConnection conn;
+        volatile String peerNode;
+        volatile InetAddress[] addresses = new InetAddress[0]; // where its link to us may come from
+        Thread thread;
+
+        Link(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        void resolve() {
+            try {
+                addresses = InetAddress.getAllByName(host);
+            } catch (IOException e) {
+                System.out.println("Cluster peer " + host + " does not resolve: " + e.getMessage());
+            }
+        }
+
+        boolean wants(String room) {
+            String n = peerNode;
+            Interest i = n == null ? null : peerRooms.get(n);
+            return i != null && i.rooms.contains(room);
+        }
+
+        void offer(Entry e) {
+            if (!pending.offer(e)) ChatMetrics.error(ChatMetrics.Cause.DROPPED);
+        }
+
+        public void run() {
+            long backoff = 250;
+            boolean wasUp = false;
+            while (running) {
+                try {
+                    LinkConnection c = connect();
+                    System.out.println("Cluster link to " + peerNode + " (" + host + ":" + port + ") up");
+                    wasUp = true;
+                    backoff = 250;
+                    resend(c);
+                    pump(c);
+                } catch (IOException e) {
+                    if (wasUp || backoff == 250) {
+                        System.out.println("Cluster link to " + host + ":" + port + " down: " + e.getMessage());
+                    }
+                    wasUp = false;
+                } catch (InterruptedException e) {
+                    break;
+                }
+                LinkConnection c = conn;
+                conn = null;
+                if (c != null) c.close();
+                if (!running) break;
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                backoff = Math.min(backoff * 2, RETRY_MAX_MS);
+            }
+            LinkConnection c = conn;
+            if (c != null) c.close();
+        }
+
+        private LinkConnection connect() throws IOException, InterruptedException {
+            resolve(); // the peer may have moved since the last try
+            Socket s = SocketChannel.open(new InetSocketAddress(host, port)).socket();
+            LinkConnection c = new LinkConnection(s, nodeId);
+            c.startReader(new FramedConnection.Receiver() {
+                public void onMessage(String message) {}
+                public void onFileReceived(String filename, File saved) {}
+                public void onDisconnect() {}
+                public void onError(Exception ex) {}
+                public void onRelayAck(long seq) { acked(seq); }
+            });
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(HELLO_WAIT_MS);
+            while (c.getPeerVersion() == 1 && !c.isClosed() && System.nanoTime() < deadline) Thread.sleep(10);
+            String node = c.getPeerNode();
+            IOException refused = null;
+            if (!Frames.supportsCluster(c.getPeerVersion()) || node == null) refused = new IOException("not a cluster node");
+            else if (node.equals(nodeId)) refused = new IOException("that is this node");
+            else {
+                for (Link other : links) {
+                    if (other != this && node.equals(other.peerNode)) refused = new IOException("already linked to " + node);
+                }
+            }
+            if (refused != null) {
+                c.close();
+                throw refused;
+            }
+            peerNode = node;
+            // interest changes from here on go through conn, so the snapshot and the switch are one step
+            interestLock.lock();
+            try {
+                conn = c;
+                for (String room : announced) c.queueFrame(Frames.encodeText(Frames.OP_JOIN, room));
+            } finally {
+                interestLock.unlock();
+            }
+            return c;
+        }
+
+        // whatever the last connection left unacknowledged goes first
+        private void resend(LinkConnection c) throws IOException, InterruptedException {
+            List<Entry> again;
+            long from;
+            lock.lock();
+            try {
+                again = new ArrayList<>(unacked);
+                from = unackedFrom;
+            } finally {
+                lock.unlock();
+            }
+            if (!again.isEmpty()) send(c, from, again);
+        }
+
+        private void pump(LinkConnection c) throws IOException, InterruptedException {
+            List<Entry> batch = new ArrayList<>();
+            while (running && !c.isClosed()) {
+                Entry first = pending.poll(1, TimeUnit.SECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                pending.drainTo(batch, BATCH_MAX - 1);
+                long from;
+                lock.lock();
+                try {
+                    from = nextSeq;
+                    nextSeq += batch.size();
+                    unacked.addAll(batch);
+                    while (unacked.size() > UNACKED_MAX) {
+                        unacked.poll();
+                        unackedFrom++;
+                        ChatMetrics.error(ChatMetrics.Cause.DROPPED);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                send(c, from, batch);
+                batch.clear();
+            }
+            if (c.isClosed()) throw new IOException("connection closed");
+        }
+
+        // one frame per BATCH_BYTES, each written before the next is built
+        private void send(LinkConnection c, long firstSeq, List<Entry> entries) throws IOException, InterruptedException {
+            int start = 0;
+            while (start < entries.size()) {
+                int end = start;
+                int bytes = 0;
+                while (end < entries.size() && (end == start || bytes + entries.get(end).wire.length <= BATCH_BYTES)) {
+                    bytes += entries.get(end).wire.length;
+                    end++;
+                }
+                try {
+                    c.queueFrame(encodeRelay(firstSeq + start, entries, start, end)).get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+                ChatMetrics.relayedOut(end - start);
+                start = end;
+            }
+        }
+
+        private void acked(long seq) {
+            lock.lock();
+            try {
+                while (!unacked.isEmpty() && unackedFrom <= seq) {
+                    unacked.poll();
+                    unackedFrom++;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
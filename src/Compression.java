@@ -0,0 +1,254 @@
+// Compression.java
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Frame compression, used when both sides announce compress=deflate in their HELLO.
+ *
+ * A frame with FLAG_COMPRESSED carries its payload as raw deflate primed with DICTIONARY,
+ * so even a one-line chat message finds words to refer back to. For FILE_CHUNK only the
+ * chunk data is compressed and each chunk is its own deflate stream: a resume or a
+ * rewind after a bad chunk can start anywhere, and the CRC still covers the original
+ * bytes. A chunk that doesn't shrink goes out as it is.
+ *
+ * It backs off on its own. Files that start with the magic bytes of an already
+ * compressed format (zip, png, jpeg, pdf, ...) are never tried, a transfer whose first
+ * chunks barely shrink goes back to zero-copy for the rest, and each connection keeps
+ * a running ratio for messages, only probing now and then while they don't pay.
+ *
+ * Deflaters and inflaters hold native memory, so a few are pooled rather than one per
+ * thread.
+ */
+final class Compression {
+
+    static final boolean ENABLED = ChatConfig.getBoolean("chat.compress", true);
+    static final String HELLO_KEY = "compress";
+    static final String DEFLATE = "deflate";
+
+    /** Payloads below this go out raw, the frame overhead would eat the gain. */
+    static final int MIN_SIZE = ChatConfig.getInt("chat.compressMin", 48);
+
+    private static final double WORTH_IT = 0.9;   // compressed/raw must be below this
+    private static final int PROBE_EVERY = 32;    // retry rate while it isn't paying off
+    private static final int FILE_PROBE_CHUNKS = 8;
+
+    // later entries are cheaper to refer to, so the most common text goes last
+    private static final byte[] DICTIONARY = (
+            "application/json text/plain Content-Type: Content-Length: User-Agent: Accept: "
+            + "GET POST PUT DELETE HTTP/1.1 200 OK 404 Not Found 500 Internal Server Error "
+            + "java.lang.NullPointerException java.io.IOException java.lang.IllegalStateException "
+            + "Caused by: \tat java.base/ \tat org. \tat com. .java:) ... more "
+            + "TRACE DEBUG INFO WARN WARNING ERROR FATAL [main] Exception: failed timeout "
+            + "connection connected disconnected server client request response started stopped "
+            + "{\"id\":\"type\":\"name\":\"value\":\"time\":\"message\":\"status\":\"error\":null,true,false} "
+            + "2025-01-01T00:00:00.000Z 00:00:00 http://www. https://www. .com/ .org/ .html "
+            + "Thanks! thank you please could would should about there their which when what "
+            + "have this that with from your they will just like know think going really "
+            + "Hello hi hey yes no ok okay lol :) the and for are but not you all can "
+            + "Server: History: System: sent file: ").getBytes(StandardCharsets.UTF_8);
+
+    private static final ConcurrentLinkedQueue<Deflater> messageDeflaters = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<Deflater> chunkDeflaters = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+    private static final int POOL_MAX = 16;
+
+    private Compression() {}
+
+    /** True if a HELLO payload says the peer takes compressed frames and we are allowed to send them. */
+    static boolean negotiated(String helloPayload) {
+        return ENABLED && DEFLATE.equals(Frames.helloValue(helloPayload, HELLO_KEY));
+    }
+
+    /** Running compressed/raw ratio for one stream of messages; decides when to bother. */
+    static final class Stats {
+        private volatile double ratio = 0.5;
+        private final AtomicLong skipped = new AtomicLong();
+        private final AtomicLong rawBytes = new AtomicLong();
+        private final AtomicLong wireBytes = new AtomicLong();
+
+        boolean shouldTry() {
+            return ratio < WORTH_IT || skipped.incrementAndGet() % PROBE_EVERY == 0;
+        }
+
+        void record(int raw, int packed) {
+            // a lost update between racing senders only nudges the average, it needs no lock
+            ratio += 0.1 * ((double) packed / raw - ratio);
+            rawBytes.addAndGet(raw);
+            wireBytes.addAndGet(Math.min(raw, packed));
+        }
+
+        /** Payload bytes before and after, for logs and benchmarks. */
+        long rawBytes() { return rawBytes.get(); }
+        long wireBytes() { return wireBytes.get(); }
+    }
+
+    /**
+     * A copy of a binary frame with its payload deflated, or the frame itself when it is
+     * too small, not worth it, or already compressed.
+     */
+    static byte[] compressFrame(byte[] frame, Stats stats) {
+        if (frame.length == 0 || !Frames.isBinary(frame[0] & 0xFF)) return frame;
+        int flags = frame[1] & 0xFF;
+        if ((flags & Frames.FLAG_COMPRESSED) != 0) return frame;
+        ByteBuffer b = ByteBuffer.wrap(frame);
+        int len = (int) Frames.getVarint(b, 2);
+        int start = 2 + Frames.varintSize(len);
+        if (len < MIN_SIZE || !stats.shouldTry()) return frame;
+        byte[] packed = deflate(frame, start, len, false);
+        stats.record(len, packed == null ? len : packed.length);
+        if (packed == null) return frame;
+        return Frames.encodeFrame(frame[0] & 0xFF, flags | Frames.FLAG_COMPRESSED, packed);
+    }
+
+    /** Deflated copy of len bytes at off, or null if it wouldn't come out below WORTH_IT. */
+    static byte[] deflate(byte[] data, int off, int len, boolean chunk) {
+        ConcurrentLinkedQueue<Deflater> pool = chunk ? chunkDeflaters : messageDeflaters;
+        Deflater d = pool.poll();
+        if (d == null) d = new Deflater(chunk ? Deflater.BEST_SPEED : Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            d.setDictionary(DICTIONARY);
+            d.setInput(data, off, len);
+            d.finish();
+            int limit = (int) (len * WORTH_IT);
+            byte[] out = new byte[limit + 1];
+            int n = 0;
+            while (!d.finished()) {
+                n += d.deflate(out, n, out.length - n);
+                if (n > limit) return null;
+            }
+            byte[] exact = new byte[n];
+            System.arraycopy(out, 0, exact, 0, n);
+            return exact;
+        } finally {
+            d.reset();
+            if (pool.size() < POOL_MAX) pool.add(d);
+            else d.end();
+        }
+    }
+
+    /** Inflates a whole compressed payload, refusing to grow past max bytes. */
+    static byte[] inflate(ByteBuffer src, int max) throws IOException {
+        byte[] out = new byte[Math.min(max, Math.max(256, src.remaining() * 4))];
+        int n = 0;
+        Inflater inf = borrowInflater(src);
+        try {
+            while (!inf.finished()) {
+                if (n == out.length) {
+                    if (out.length >= max) throw compressionError("Compressed frame inflates past " + max + " bytes");
+                    out = java.util.Arrays.copyOf(out, (int) Math.min(max, out.length * 2L));
+                }
+                n += step(inf, out, n);
+            }
+        } finally {
+            returnInflater(inf);
+        }
+        return n == out.length ? out : java.util.Arrays.copyOf(out, n);
+    }
+
+    /** Inflates one chunk into dst; the chunk may not be larger than dst. Returns the length. */
+    static int inflateInto(ByteBuffer src, byte[] dst) throws IOException {
+        int n = 0;
+        Inflater inf = borrowInflater(src);
+        try {
+            while (!inf.finished()) {
+                if (n == dst.length) throw compressionError("Compressed chunk larger than its transfer's chunk size");
+                n += step(inf, dst, n);
+            }
+        } finally {
+            returnInflater(inf);
+        }
+        return n;
+    }
+
+    private static int step(Inflater inf, byte[] out, int at) throws IOException {
+        try {
+            int r = inf.inflate(out, at, out.length - at);
+            if (r == 0 && inf.needsInput()) throw compressionError("Truncated compressed frame");
+            return r;
+        } catch (DataFormatException e) {
+            throw compressionError("Corrupt compressed frame: " + e.getMessage());
+        }
+    }
+
+    private static IOException compressionError(String message) {
+        ChatMetrics.error(ChatMetrics.Cause.COMPRESSION);
+        return new IOException(message);
+    }
+
+    private static Inflater borrowInflater(ByteBuffer src) {
+        Inflater inf = inflaters.poll();
+        if (inf == null) inf = new Inflater(true);
+        inf.setDictionary(DICTIONARY); // raw deflate has no header to ask for it
+        inf.setInput(src.duplicate());
+        return inf;
+    }
+
+    private static void returnInflater(Inflater inf) {
+        inf.reset();
+        if (inflaters.size() < POOL_MAX) inflaters.add(inf);
+        else inf.end();
+    }
+
+    // ---------------------------------------------------------------- files
+
+    /** Per-transfer bookkeeping: gives up on a file whose first chunks barely shrink. */
+    static final class FileStats {
+        private long raw;
+        private long packed;
+        private int chunks;
+        private boolean off;
+
+        boolean active() { return !off; }
+
+        void record(int rawLen, int packedLen) {
+            raw += rawLen;
+            packed += packedLen;
+            if (++chunks == FILE_PROBE_CHUNKS && packed > raw * WORTH_IT) off = true;
+        }
+    }
+
+    /**
+     * Whether a file is worth trying at all, judged by its first bytes: archives, images,
+     * audio/video and PDFs are compressed already.
+     */
+    static boolean worthTrying(FileChannel ch) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(16);
+        while (head.hasRemaining() && ch.read(head, head.position()) > 0) { }
+        return !isCompressedFormat(head.array(), head.position());
+    }
+
+    static boolean isCompressedFormat(byte[] h, int n) {
+        return starts(h, n, 0x50, 0x4B, 0x03, 0x04)               // zip, jar, docx, xlsx, apk
+                || starts(h, n, 0x1F, 0x8B)                       // gzip
+                || starts(h, n, 0x89, 'P', 'N', 'G')              // png
+                || starts(h, n, 0xFF, 0xD8, 0xFF)                 // jpeg
+                || starts(h, n, 'G', 'I', 'F', '8')               // gif
+                || starts(h, n, '%', 'P', 'D', 'F')               // pdf
+                || starts(h, n, 0x37, 0x7A, 0xBC, 0xAF, 0x27, 0x1C) // 7z
+                || starts(h, n, 'R', 'a', 'r', '!')               // rar
+                || starts(h, n, 'B', 'Z', 'h')                    // bzip2
+                || starts(h, n, 0xFD, '7', 'z', 'X', 'Z', 0x00)   // xz
+                || starts(h, n, 0x28, 0xB5, 0x2F, 0xFD)           // zstd
+                || starts(h, n, 0x04, 0x22, 0x4D, 0x18)           // lz4
+                || starts(h, n, 'O', 'g', 'g', 'S')               // ogg
+                || starts(h, n, 'I', 'D', '3')                    // mp3
+                || starts(h, n, 'f', 'L', 'a', 'C')               // flac
+                || (starts(h, n, 'R', 'I', 'F', 'F') && n >= 12 && h[8] == 'W' && h[9] == 'E' && h[10] == 'B' && h[11] == 'P')
+                || (n >= 8 && h[4] == 'f' && h[5] == 't' && h[6] == 'y' && h[7] == 'p'); // mp4, mov, heic
+    }
+
+    private static boolean starts(byte[] h, int n, int... magic) {
+        if (n < magic.length) return false;
+        for (int i = 0; i < magic.length; i++) {
+            if ((h[i] & 0xFF) != magic[i]) return false;
+        }
+        return true;
+    }
+}
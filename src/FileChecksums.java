@@ -0,0 +1,114 @@
+// FileChecksums.java
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Whole-file SHA-256 plus a CRC32C for every chunk, computed in one read pass
+ * before a transfer starts. The chunk CRCs travel in the chunk headers so the
+ * data itself can still go out through transferTo.
+ *
+ * The results for the last few files sent are kept, keyed by file identity (inode
+ * where there is one, so every hard link of a stored blob hits), size and
+ * modification time. Sending the same file again doesn't read it twice before the
+ * receiver gets a chance to say it already has it.
+ */
+final class FileChecksums {
+    final byte[] sha256;
+    final int chunkSize;
+    final int[] chunkCrcs;
+
+    private static final int RECENT_MAX = ChatConfig.getInt("chat.checksumCache", 64);
+    private static final ReentrantLock recentLock = new ReentrantLock();
+    private static final Map<String, FileChecksums> recent = new LinkedHashMap<String, FileChecksums>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FileChecksums> eldest) {
+            return size() > RECENT_MAX;
+        }
+    };
+
+    private FileChecksums(byte[] sha256, int chunkSize, int[] chunkCrcs) {
+        this.sha256 = sha256;
+        this.chunkSize = chunkSize;
+        this.chunkCrcs = chunkCrcs;
+    }
+
+    /** compute(), or the earlier result if this file hasn't changed since. */
+    static FileChecksums forFile(File file, FileChannel fc, long size, int chunkSize) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        Object id = attrs.fileKey() != null ? attrs.fileKey() : file.getAbsolutePath();
+        String key = id + "|" + size + '|' + attrs.lastModifiedTime().toMillis() + '|' + chunkSize;
+        recentLock.lock();
+        try {
+            FileChecksums c = recent.get(key);
+            if (c != null) return c;
+        } finally {
+            recentLock.unlock();
+        }
+        FileChecksums c = compute(fc, size, chunkSize);
+        recentLock.lock();
+        try {
+            recent.put(key, c);
+        } finally {
+            recentLock.unlock();
+        }
+        return c;
+    }
+
+    static FileChecksums compute(FileChannel fc, long size, int chunkSize) throws IOException {
+        long chunks = (size + chunkSize - 1) / chunkSize;
+        if (chunks > Integer.MAX_VALUE) throw new IOException("File too large for chunk size " + chunkSize);
+        int[] crcs = new int[(int) chunks];
+        MessageDigest sha = sha256();
+        CRC32C crc = new CRC32C();
+        ByteBuffer buf = ByteBuffer.allocate(chunkSize);
+        long pos = 0;
+        for (int i = 0; i < crcs.length; i++) {
+            buf.clear();
+            buf.limit((int) Math.min(chunkSize, size - pos));
+            while (buf.hasRemaining()) {
+                if (fc.read(buf, pos + buf.position()) < 0) throw new IOException("File shrank while hashing");
+            }
+            buf.flip();
+            crc.reset();
+            crc.update(buf.array(), 0, buf.limit());
+            crcs[i] = (int) crc.getValue();
+            sha.update(buf.array(), 0, buf.limit());
+            pos += buf.limit();
+        }
+        return new FileChecksums(sha.digest(), chunkSize, crcs);
+    }
+
+    int crcForOffset(long offset) {
+        return chunkCrcs[(int) (offset / chunkSize)];
+    }
+
+    static int crc(ByteBuffer data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data.duplicate());
+        return (int) crc.getValue();
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,573 @@
+// FramedConnection.java
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Blocking socket transport shared by Connection and ChatGUIApp.Connection.
+ * Handles the HELLO handshake and reads/writes both frame formats (see Frames).
+ *
+ * Everything outbound goes through an OutboundScheduler drained by one writer
+ * thread, so chat messages overtake file chunks instead of queueing behind a
+ * whole file. sendMessage only queues; the writer flushes once per batch of
+ * whatever is waiting rather than once per message. Past the queue's high-water
+ * mark -Dchat.slowConsumer (block, drop_oldest, disconnect; default block) decides.
+ * sendFile still blocks until the peer has confirmed the file.
+ *
+ * sendMessageAsync and sendFileAsync are the same engine without any waiting, for
+ * callers like the Swing EDT: they return at once with a future that completes when
+ * the message has been written, or the file confirmed by the peer. Any number can be
+ * in flight; a message that finds the queue full is parked rather than blocking.
+ *
+ * When the socket was opened through a SocketChannel, file bodies go through
+ * FileChannel.transferTo/transferFrom so the kernel moves the bytes (sendfile on
+ * Linux) instead of copying them through Java buffers. Plain sockets, or
+ * -Dchat.zeroCopy=false, use the stream copy loop.
+ *
+ * A Heartbeat pings the peer while the connection is quiet and closes it once a peer
+ * that promised heartbeats has gone silent; the Receiver then gets onError with the
+ * timeout and onDisconnect, as for any other lost connection.
+ *
+ * joinRoom and leaveRoom keep the set of rooms this side is in and tell the server
+ * once its HELLO shows it has rooms; sendToRoom needs such a server and fails otherwise.
+ *
+ * A big file to a server that takes parallel transfers goes over several extra
+ * connections to the same address when the server agrees (see ParallelTransfer);
+ * sendFile and sendFileAsync look the same either way.
+ */
+public abstract class FramedConnection {
+
+    /** Receives inbound events on the reader thread. */
+    public interface Receiver {
+        void onMessage(String message);
+        void onFileReceived(String filename, File saved);
+        void onDisconnect();
+        void onError(Exception ex);
+
+        /** A message the server journaled as seq; replayed ones are history asked for with requestHistory. */
+        default void onJournaled(long seq, long time, String message, boolean replayed) { onMessage(message); }
+
+        /** The server journaled one of our own messages as seq. */
+        default void onJournalAck(long seq) {}
+
+        /** A cluster peer has taken our relayed messages up to seq (see Cluster). */
+        default void onRelayAck(long seq) {}
+
+        /** A file of size bytes starts arriving; return something to follow its progress, or null. */
+        default Progress onFileIncoming(String filename, long size) { return null; }
+
+        /** A message to a room we joined, signed by the server with its sender's name. */
+        default void onRoomMessage(String room, String sender, String message) {
+            onMessage("[" + room + "] " + sender + ": " + message);
+        }
+
+        /** A direct message to us, possibly left in our mailbox while we were away. */
+        default void onDirectMessage(String from, long time, String message) {
+            onMessage(from + " (direct): " + message);
+        }
+
+        /** from left us a file; it follows as an ordinary transfer. */
+        default void onFileOffer(String from, String filename, long size) {}
+    }
+
+    /** Byte counts as a transfer moves; onDone once it has finished or failed. */
+    public interface Progress {
+        void onProgress(long sent, long total);
+        default void onDone(boolean ok) {}
+    }
+
+    private static final long TRANSFER_SLICE = 1024 * 1024;
+    private static volatile boolean zeroCopy = ChatConfig.getBoolean("chat.zeroCopy", true);
+
+    protected final Socket socket;
+    private final SocketChannel channel;
+    private final DrainableInputStream buffered;
+    protected final DataInputStream in;
+    protected final DataOutputStream out;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final OutboundScheduler scheduler = new OutboundScheduler(null,
+            OutboundScheduler.OverflowPolicy.fromConfig(OutboundScheduler.OverflowPolicy.BLOCK),
+            () -> true, e -> close());
+    private final TransferAssembler assembler = new TransferAssembler(this::createReceivedFile);
+    private final Heartbeat heartbeat = new Heartbeat(scheduler, Runnable::run, this::expire);
+    private volatile IOException deadCause;
+    private volatile int peerVersion = 1;
+    private volatile String peerNode;
+    private byte[] chunkBuffer = new byte[0]; // reader thread only
+    private byte[] inflateBuffer = new byte[0]; // reader thread only
+    private volatile boolean peerDeflate;
+    private final Compression.Stats compressStats = new Compression.Stats();
+    private final AtomicReference<byte[]> pendingReplay = new AtomicReference<>();
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+    // mailbox entries taken and confirmed, reader thread only; MAIL_ACK waits until the input runs dry
+    private long mailSeen;
+    private long mailAcked;
+
+    protected FramedConnection(Socket socket) throws IOException {
+        this(socket, null);
+    }
+
+    /** name signs our room messages (see Frames, version 9); may be null. */
+    protected FramedConnection(Socket socket, String name) throws IOException {
+        this(socket, name, null);
+    }
+
+    /** node marks this as a cluster link from that node rather than a client (see Cluster). */
+    protected FramedConnection(Socket socket, String name, String node) throws IOException {
+        this.socket = socket;
+        this.channel = socket.getChannel();
+        this.buffered = new DrainableInputStream(new FilterInputStream(socket.getInputStream()) {
+            // every read from the socket counts as a sign of life
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                heartbeat.read();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                heartbeat.read();
+                return n;
+            }
+        });
+        this.in = new DataInputStream(buffered);
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        scheduler.enqueue(Frames.encodeHello(name, node));
+        ChatMetrics.connectionOpened();
+        ChatExecutors.start("Connection-Writer", this::writeLoop);
+        heartbeat.start();
+    }
+
+    public static void setZeroCopy(boolean enabled) { zeroCopy = enabled; }
+
+    public static boolean isZeroCopy() { return zeroCopy; }
+
+    private boolean useChannel() { return zeroCopy && channel != null && channel.isBlocking(); }
+
+    /** Protocol version the peer announced; 1 until its HELLO arrives (or forever for old peers). */
+    public int getPeerVersion() { return peerVersion; }
+
+    /** Cluster node id the peer announced, null for plain servers (or before its HELLO). */
+    public String getPeerNode() { return peerNode; }
+
+    private boolean binary() { return peerVersion >= 2; }
+
+    /** Queues a message; returns once it is queued, not once it is written. */
+    public void sendMessage(String message) throws IOException {
+        if (closed.get()) throw new IOException("Connection closed");
+        CompletableFuture<Void> f = scheduler.enqueueMessage(encode(message));
+        if (f.isCompletedExceptionally()) await(f); // rejected straight away, report it
+    }
+
+    /** Queues a message without ever blocking; completes once it has been written to the socket. */
+    public CompletableFuture<Void> sendMessageAsync(String message) {
+        if (closed.get()) return CompletableFuture.failedFuture(new IOException("Connection closed"));
+        try {
+            return scheduler.offerMessage(encode(message));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e); // too long for a legacy peer
+        }
+    }
+
+    private byte[] encode(String message) throws IOException {
+        byte[] frame = Frames.encodeMessage(message, binary());
+        return peerDeflate ? Compression.compressFrame(frame, compressStats) : frame;
+    }
+
+    /**
+     * Asks the server for journaled messages from seq {@code from} on (0 = the newest
+     * {@code max}). Goes out once the peer's HELLO shows it keeps a journal; dropped if
+     * it never does.
+     */
+    public void requestHistory(long from, int max) {
+        ByteBuffer p = ByteBuffer.allocate(Frames.varintSize(from) + Frames.varintSize(max));
+        Frames.putVarint(p, from);
+        Frames.putVarint(p, max);
+        pendingReplay.set(Frames.encodeFrame(Frames.OP_REPLAY, 0, p.array()));
+        sendPendingReplay();
+    }
+
+    private void sendPendingReplay() {
+        if (!Frames.supportsJournal(peerVersion)) return;
+        byte[] request = pendingReplay.getAndSet(null);
+        if (request != null) scheduler.enqueue(request);
+    }
+
+    /** Joins a room; sent once the server's HELLO shows it has rooms, never if it doesn't. */
+    public void joinRoom(String room) {
+        if (!RoomIndex.isValidName(room)) throw new IllegalArgumentException("Bad room name: " + room);
+        if (rooms.add(room) && Frames.supportsRooms(peerVersion)) scheduler.enqueue(Frames.encodeText(Frames.OP_JOIN, room));
+    }
+
+    public void leaveRoom(String room) {
+        if (rooms.remove(room) && Frames.supportsRooms(peerVersion)) scheduler.enqueue(Frames.encodeText(Frames.OP_LEAVE, room));
+    }
+
+    /** Rooms joined on this connection. */
+    public Set<String> rooms() { return Collections.unmodifiableSet(rooms); }
+
+    /** Queues a message to a joined room without ever blocking; completes once it has been written. */
+    public CompletableFuture<Void> sendToRoomAsync(String room, String message) {
+        if (closed.get()) return CompletableFuture.failedFuture(new IOException("Connection closed"));
+        if (!Frames.supportsRooms(peerVersion)) return CompletableFuture.failedFuture(new IOException("Server has no rooms"));
+        if (!rooms.contains(room)) return CompletableFuture.failedFuture(new IOException("Not in room " + room));
+        byte[] frame = Frames.encodeRoomMessage(room, "", message);
+        return scheduler.offerMessage(peerDeflate ? Compression.compressFrame(frame, compressStats) : frame);
+    }
+
+    /** Queues a message for user to, kept by the server until they are there to take it. */
+    public CompletableFuture<Void> sendDirectAsync(String to, String message) {
+        if (closed.get()) return CompletableFuture.failedFuture(new IOException("Connection closed"));
+        if (!Frames.supportsMail(peerVersion)) return CompletableFuture.failedFuture(new IOException("Server has no direct messages"));
+        byte[] frame = Frames.encodeDirect(to, message);
+        return scheduler.offerMessage(peerDeflate ? Compression.compressFrame(frame, compressStats) : frame);
+    }
+
+    private void sendJoins() {
+        if (!Frames.supportsRooms(peerVersion)) return;
+        for (String room : rooms) scheduler.enqueue(Frames.encodeText(Frames.OP_JOIN, room));
+    }
+
+    /** Queues an encoded binary frame, for cluster links; completes once it has been written. */
+    CompletableFuture<Void> queueFrame(byte[] frame) {
+        if (closed.get()) return CompletableFuture.failedFuture(new IOException("Connection closed"));
+        return scheduler.enqueue(peerDeflate ? Compression.compressFrame(frame, compressStats) : frame);
+    }
+
+    protected void writeFile(File file, Progress cb) throws IOException {
+        if (closed.get()) throw new IOException("Connection closed");
+        await(scheduler.enqueueFile(file, cb, peerVersion));
+    }
+
+    /**
+     * Checksums and queues a file on its own thread; completes once the peer has
+     * confirmed it (or once it has been written, for peers that don't confirm).
+     * cb may be null.
+     */
+    public CompletableFuture<Void> sendFileAsync(File file, Progress cb) {
+        if (closed.get()) return CompletableFuture.failedFuture(new IOException("Connection closed"));
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        ChatExecutors.start("File-Digest", () -> {
+            try {
+                scheduler.enqueueFile(file, cb, peerVersion).whenComplete((v, ex) -> {
+                    if (ex == null) result.complete(null);
+                    else result.completeExceptionally(ex);
+                });
+            } catch (IOException | RuntimeException e) {
+                if (cb != null) cb.onDone(false);
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    private static void await(CompletableFuture<Void> f) throws IOException {
+        try {
+            f.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while sending");
+        }
+    }
+
+    // single writer: drains the scheduler and only flushes once nothing else is waiting
+    private void writeLoop() {
+        byte[] scratch = new byte[8 * 1024];
+        OutboundScheduler.Unit u = null;
+        try {
+            while ((u = scheduler.take()) != null) {
+                if (u.hasFileRegion() && useChannel()) {
+                    u.writeHead(out);
+                    out.flush();
+                    u.writeTo(channel);
+                } else {
+                    u.writeTo(out, scratch);
+                }
+                u.written();
+                u = null;
+                if (scheduler.isEmpty()) out.flush();
+            }
+        } catch (IOException e) {
+            if (!closed.get()) ChatMetrics.error(ChatMetrics.Cause.CONNECTION_LOST);
+            if (u != null) u.fail(e);
+            scheduler.close(e);
+            close();
+        } catch (InterruptedException e) {
+            close();
+        }
+    }
+
+    /** Read loop: run on a background thread (platform or virtual, see ChatExecutors). */
+    protected void startReader(Receiver receiver) {
+        ChatExecutors.start("Connection-Reader", () -> {
+            try {
+                while (!closed.get()) {
+                    if (mailSeen > mailAcked && buffered.buffered() == 0) {
+                        mailAcked = mailSeen;
+                        scheduler.enqueue(Frames.encodeIdFrame(Frames.OP_MAIL_ACK, mailAcked));
+                    }
+                    int first = in.read();
+                    if (first < 0) break; // remote closed the connection gracefully
+                    if (Frames.isBinary(first)) readFrame(first, receiver);
+                    else readLegacy(first, receiver);
+                }
+            } catch (Exception e) {
+                if (!closed.get()) {
+                    ChatMetrics.error(ChatMetrics.Cause.CONNECTION_LOST);
+                    if (receiver != null) receiver.onError(e);
+                } else if (deadCause != null && receiver != null) {
+                    receiver.onError(deadCause);
+                }
+            } finally {
+                assembler.closeAll();
+                try {
+                    if (receiver != null) receiver.onDisconnect();
+                } catch (Exception ignored) {}
+                close();
+            }
+        });
+    }
+
+    private void readFrame(int op, Receiver receiver) throws IOException {
+        int flags = in.readUnsignedByte();
+        long len = Frames.readVarint(in);
+        Frames.checkLength(len);
+        ChatMetrics.frameIn(op, 2 + Frames.varintSize(len) + len);
+        if (op == Frames.OP_FILE_CHUNK) {
+            // reuse one buffer for chunk data, it has to be checked before it is written
+            long id = Frames.readVarint(in);
+            long offset = Frames.readVarint(in);
+            int crc = in.readInt();
+            int data = (int) (len - Frames.varintSize(id) - Frames.varintSize(offset) - 4);
+            if (data < 0) throw Frames.protocolError("Bad chunk frame");
+            if (chunkBuffer.length < data) chunkBuffer = new byte[data];
+            in.readFully(chunkBuffer, 0, data);
+            ByteBuffer chunk = ByteBuffer.wrap(chunkBuffer, 0, data);
+            if ((flags & Frames.FLAG_COMPRESSED) != 0) {
+                int size = assembler.get(id).chunkSize;
+                if (inflateBuffer.length < size) inflateBuffer = new byte[size];
+                chunk = ByteBuffer.wrap(inflateBuffer, 0, Compression.inflateInto(chunk, inflateBuffer));
+            }
+            long rewind = assembler.chunk(id, offset, crc, chunk);
+            if (rewind >= 0) scheduler.enqueue(Frames.encodeIdValueFrame(Frames.OP_FILE_ACCEPT, id, rewind));
+            return;
+        }
+        byte[] payload = new byte[(int) len];
+        in.readFully(payload);
+        if ((flags & Frames.FLAG_COMPRESSED) != 0) payload = Compression.inflate(ByteBuffer.wrap(payload), Frames.MAX_PAYLOAD);
+        switch (op) {
+            case Frames.OP_MSG:
+                if (receiver != null) receiver.onMessage(new String(payload, StandardCharsets.UTF_8));
+                break;
+            case Frames.OP_MSG_SEQ: {
+                ByteBuffer p = ByteBuffer.wrap(payload);
+                long seq = Frames.getVarint(p);
+                long time = p.getLong();
+                String text = new String(payload, p.position(), p.remaining(), StandardCharsets.UTF_8);
+                if (receiver != null) receiver.onJournaled(seq, time, text, (flags & Frames.FLAG_REPLAYED) != 0);
+                break;
+            }
+            case Frames.OP_MSG_ACK:
+                if (receiver != null) receiver.onJournalAck(Frames.getVarint(ByteBuffer.wrap(payload)));
+                break;
+            case Frames.OP_RELAY_ACK:
+                if (receiver != null) receiver.onRelayAck(Frames.getVarint(ByteBuffer.wrap(payload)));
+                break;
+            case Frames.OP_FILE: {
+                Frames.FileHeader h = Frames.parseFileHeader(ByteBuffer.wrap(payload));
+                receiveFile(h.name, h.size, receiver);
+                break;
+            }
+            case Frames.OP_FILE_BEGIN: {
+                Frames.FileHeader h = Frames.parseFileBegin(ByteBuffer.wrap(payload));
+                TransferAssembler.Incoming have = Frames.supportsDedup(peerVersion)
+                        ? assembler.existing(h.id, h.name, h.size, h.sha256) : null;
+                if (have != null) {
+                    scheduler.enqueue(Frames.encodeIdValueFrame(Frames.OP_FILE_ACK, h.id, Frames.ACK_HAVE));
+                    if (receiver != null) receiver.onFileReceived(have.name, have.file);
+                    break;
+                }
+                long offset = assembler.begin(h.id, h.name, h.size, h.chunkSize, h.sha256);
+                if (receiver != null) assembler.track(h.id, receiver.onFileIncoming(h.name, h.size));
+                scheduler.enqueue(Frames.encodeIdValueFrame(Frames.OP_FILE_ACCEPT, h.id, offset));
+                break;
+            }
+            case Frames.OP_FILE_END: {
+                TransferAssembler.Incoming t = assembler.end(Frames.getVarint(ByteBuffer.wrap(payload)));
+                scheduler.enqueue(Frames.encodeIdValueFrame(Frames.OP_FILE_ACK, t.id,
+                        t.ok ? Frames.ACK_OK : Frames.ACK_CORRUPT));
+                if (!t.ok) {
+                    if (receiver != null) receiver.onError(new IOException("Checksum mismatch on " + t.name + ", discarded"));
+                } else if (receiver != null) {
+                    receiver.onFileReceived(t.name, t.file);
+                }
+                break;
+            }
+            case Frames.OP_FILE_ABORT:
+                assembler.abort(Frames.getVarint(ByteBuffer.wrap(payload)));
+                break;
+            case Frames.OP_PING:
+                break; // arriving was the point
+            case Frames.OP_ROOM_MSG: {
+                Frames.RoomMessage m = Frames.parseRoomMessage(ByteBuffer.wrap(payload));
+                if (receiver != null) receiver.onRoomMessage(m.room, m.sender, m.text);
+                break;
+            }
+            case Frames.OP_MAIL: {
+                Mailboxes.Entry m = Frames.parseMail(ByteBuffer.wrap(payload));
+                if (receiver != null) {
+                    if (m.kind == Mailboxes.FILE) receiver.onFileOffer(m.from, m.text, m.size);
+                    else receiver.onDirectMessage(m.from, m.time, m.text);
+                }
+                mailSeen = Math.max(mailSeen, m.seq);
+                break;
+            }
+            case Frames.OP_FILE_ACCEPT: {
+                ByteBuffer p = ByteBuffer.wrap(payload);
+                long id = Frames.getVarint(p);
+                scheduler.accept(id, Frames.getVarint(p));
+                break;
+            }
+            case Frames.OP_FILE_ACK: {
+                ByteBuffer p = ByteBuffer.wrap(payload);
+                long id = Frames.getVarint(p);
+                scheduler.ack(id, (int) Frames.getVarint(p));
+                break;
+            }
+            case Frames.OP_FILE_STREAMS: {
+                ByteBuffer p = ByteBuffer.wrap(payload);
+                long id = Frames.getVarint(p);
+                long token = Frames.getVarint(p);
+                int streams = (int) Math.min(Frames.getVarint(p), Integer.MAX_VALUE);
+                scheduler.streams(id, token, streams, new InetSocketAddress(socket.getInetAddress(), socket.getPort()));
+                break;
+            }
+            default:
+                // newer opcode we don't know; the length prefix let us skip it
+                break;
+        }
+    }
+
+    private void readLegacy(int first, Receiver receiver) throws IOException {
+        String type = Frames.readLegacyUTF(in, first);
+        ChatMetrics.frameIn(first, 0);
+        if ("MSG".equals(type)) {
+            String msg = in.readUTF();
+            if (receiver != null) receiver.onMessage(msg);
+        } else if ("FILE".equals(type)) {
+            String filename = in.readUTF();
+            long length = in.readLong();
+            receiveFile(filename, length, receiver);
+        } else if (Frames.LEGACY_HELLO.equals(type)) {
+            String hello = in.readUTF();
+            peerVersion = Frames.parseHelloVersion(hello);
+            peerNode = Frames.helloValue(hello, Frames.NODE_KEY);
+            peerDeflate = Compression.negotiated(hello);
+            scheduler.setPeerCompression(peerDeflate);
+            scheduler.setPeerStreams(Frames.supportsStreams(peerVersion) && socket.getInetAddress() != null);
+            heartbeat.peerHello(peerVersion, hello);
+            sendPendingReplay();
+            sendJoins();
+        }
+        // anything else: unknown type, ignore
+    }
+
+    // whole-body transfer from peers that don't chunk
+    private void receiveFile(String filename, long length, Receiver receiver) throws IOException {
+        if (length < 0) throw Frames.protocolError("Negative file size " + length);
+        File outFile = createReceivedFile(new File(filename).getName());
+        Progress progress = receiver == null ? null : receiver.onFileIncoming(filename, length);
+        boolean ok = false;
+        try (FileChannel fc = FileChannel.open(outFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            copyToFile(fc, 0, length, progress);
+            ok = true;
+        } finally {
+            if (progress != null) progress.onDone(ok);
+        }
+        if (receiver != null) receiver.onFileReceived(filename, outFile);
+    }
+
+    /** Moves count bytes from the socket into fc at pos. */
+    private void copyToFile(FileChannel fc, long pos, long count, Progress progress) throws IOException {
+        long end = pos + count;
+        if (progress != null) progress.onProgress(0, count);
+        if (!useChannel()) {
+            byte[] buffer = new byte[(int) Math.min(8 * 1024, Math.max(1, count))];
+            while (pos < end) {
+                int r = in.read(buffer, 0, (int) Math.min(buffer.length, end - pos));
+                if (r == -1) throw new EOFException("Unexpected EOF while reading file");
+                ByteBuffer b = ByteBuffer.wrap(buffer, 0, r);
+                while (b.hasRemaining()) pos += fc.write(b, pos);
+                if (progress != null) progress.onProgress(count - (end - pos), count);
+            }
+            return;
+        }
+        // bytes the BufferedInputStream already pulled off the socket go first, the rest straight from the channel
+        int pending = (int) Math.min(buffered.buffered(), count);
+        if (pending > 0) {
+            byte[] head = new byte[pending];
+            in.readFully(head);
+            ByteBuffer b = ByteBuffer.wrap(head);
+            while (b.hasRemaining()) pos += fc.write(b, pos);
+        }
+        while (pos < end) {
+            long n = fc.transferFrom(channel, pos, Math.min(TRANSFER_SLICE, end - pos));
+            if (n <= 0) {
+                // transferFrom can't report EOF, ask the stream
+                int b = in.read();
+                if (b < 0) throw new EOFException("Unexpected EOF while reading file");
+                fc.write(ByteBuffer.wrap(new byte[] { (byte) b }), pos);
+                n = 1;
+            }
+            pos += n;
+            if (progress != null) progress.onProgress(count - (end - pos), count);
+        }
+    }
+
+    /** Where an incoming file is stored. */
+    protected File createReceivedFile(String filename) {
+        return new File("received_" + System.currentTimeMillis() + "_" + filename);
+    }
+
+    public void close() {
+        if (!closed.getAndSet(true)) {
+            ChatMetrics.connectionClosed();
+            heartbeat.stop();
+            scheduler.close(new IOException("Connection closed"));
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    public boolean isClosed() { return closed.get(); }
+
+    // the peer went silent past its heartbeat promise
+    private void expire(IOException cause) {
+        deadCause = cause;
+        ChatMetrics.error(ChatMetrics.Cause.CONNECTION_LOST);
+        close();
+    }
+
+    // exposes how much is sitting in the buffer so a channel read can't skip over it
+    private static final class DrainableInputStream extends BufferedInputStream {
+        DrainableInputStream(InputStream in) { super(in); }
+        synchronized int buffered() { return count - pos; }
+    }
+}
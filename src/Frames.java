@@ -0,0 +1,498 @@
+// Frames.java
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire format shared by every transport.
+ *
+ * Version 1 (legacy): writeUTF type tag ("MSG" / "FILE") followed by writeUTF payloads.
+ *
+ * Version 2 (binary):  [opcode:1][flags:1][length:varint][payload:length]
+ * Opcodes always have the top bit set while a legacy frame starts with the high byte of
+ * a short string length (always < 0x80), so a reader can tell the two apart from the
+ * first byte and accept both at any time.
+ *
+ * Handshake: each side opens with a legacy HELLO tag plus "version=N". Old peers treat
+ * both strings as unknown types and skip them. A writer switches to binary frames once
+ * it has seen the peer's HELLO with version >= 2.
+ *
+ * Version 3 sends files as FILE_BEGIN / FILE_CHUNK... / FILE_END tagged with a transfer
+ * id, so several files and chat messages can be interleaved on one connection.
+ *
+ * Version 4 makes those transfers resumable. FILE_BEGIN carries the file's SHA-256,
+ * which also keys the receiver's partial file, and the sender waits for FILE_ACCEPT
+ * with the offset to start from. Every chunk carries its offset and CRC32C; a bad
+ * chunk is answered with another FILE_ACCEPT to rewind. FILE_ACK confirms (or
+ * rejects) the whole-file digest at the end.
+ *
+ * Version 5 adds the server's message journal. Journaled messages travel as MSG_SEQ
+ * with their sequence number (flag REPLAYED when they come from history), the author
+ * of a message gets its number back in MSG_ACK, and a client asks to catch up with
+ * REPLAY (from seq, at most n; from 0 means the newest n).
+ *
+ * Version 6 adds compression. A HELLO may carry "compress=deflate" next to the version
+ * ("version=6;compress=deflate"); a side that has seen it may set FLAG_COMPRESSED on its
+ * frames, whose payload (for FILE_CHUNK: only the chunk data) is then raw deflate with
+ * the preset dictionary in Compression. Receivers always accept it.
+ *
+ * Version 7 lets a receiver that already stores a file with FILE_BEGIN's SHA-256 and
+ * size answer FILE_ACK HAVE straight away instead of FILE_ACCEPT; no chunks follow.
+ *
+ * Version 8 adds heartbeats. A HELLO may carry "heartbeat=ms", a promise to send at
+ * least a PING that often; the receiver may close the connection after a few such
+ * intervals of silence (see Heartbeat).
+ *
+ * Version 9 adds rooms. A client JOINs and LEAVEs rooms by name and sends ROOM_MSG
+ * (room, sender, text) to one of them; the server passes it on to that room's members
+ * only, filling in the sender from the "name=..." its HELLO carried. Plain messages are
+ * the lobby, everyone's conversation, as before. Room messages are not journaled.
+ *
+ * Version 10 adds server clustering (see Cluster). A node dials its peers like a client
+ * whose HELLO says "node=<id>", and servers that know a cluster put their own node id
+ * in their HELLO. Over that link a node sends RELAY frames, each a batch of consecutive
+ * messages from one origin (origin, incarnation, first seq, count, then room, sender and
+ * text per message, room empty for the lobby), and JOIN / LEAVE for the rooms it has
+ * members in; the other side answers RELAY_ACK with the highest seq it has taken.
+ *
+ * Version 11 adds store-and-forward (see Mailboxes). A client sends DIRECT (to, text) to
+ * a user by name; the server keeps it in that user's mailbox and hands it out as MAIL
+ * (seq, time, kind, from, text; for a file: its name then size, and the file follows as
+ * an ordinary transfer) whenever the user is connected, at once or on the next
+ * reconnect. The recipient answers MAIL_ACK with the highest seq it has taken, which
+ * lets the server drop the mailbox up to there.
+ *
+ * Version 12 adds parallel transfers (see ParallelTransfer). A sender sets FLAG_STREAMS on
+ * FILE_BEGIN for a file big enough to be worth it; a receiver that agrees answers
+ * FILE_STREAMS (id, token, most streams it takes) instead of FILE_ACCEPT. The sender then
+ * opens up to that many more connections whose HELLO says "stream=<token>" and sends the
+ * file over them in ranges: FILE_CHUNKs of one range in order, with the token for the id,
+ * then FILE_RANGE (token, offset, length) to close it. Each range is checked on its own,
+ * and one that fails is asked for again with FILE_ACCEPT (id, its offset) on the first
+ * connection, where FILE_ACK (or FILE_ABORT) ends the transfer as before.
+ */
+final class Frames {
+    static final int VERSION = 12;
+
+    static final int OP_MSG = 0x81;         // payload: UTF-8 text
+    static final int OP_FILE = 0x82;        // payload: name, size; followed by size raw bytes (v2)
+    static final int OP_FILE_BEGIN = 0x83;  // payload: id, name, size, chunk size, sha256[32]
+    static final int OP_FILE_CHUNK = 0x84;  // payload: id, offset, crc32c[4], data
+    static final int OP_FILE_END = 0x85;    // payload: id
+    static final int OP_FILE_ABORT = 0x86;  // payload: id
+    static final int OP_FILE_ACCEPT = 0x87; // payload: id, offset to (re)start from
+    static final int OP_FILE_ACK = 0x88;    // payload: id, status
+    static final int OP_MSG_SEQ = 0x89;     // payload: seq, time[8], UTF-8 text
+    static final int OP_REPLAY = 0x8A;      // payload: from seq, max count
+    static final int OP_MSG_ACK = 0x8B;     // payload: seq given to the receiver's own message
+    static final int OP_PING = 0x8C;        // no payload; keeps an idle connection provably alive
+    static final int OP_JOIN = 0x8D;        // payload: UTF-8 room name
+    static final int OP_LEAVE = 0x8E;       // payload: UTF-8 room name
+    static final int OP_ROOM_MSG = 0x8F;    // payload: room, sender, UTF-8 text
+    static final int OP_RELAY = 0x90;       // payload: origin, incarnation, first seq, count, (room, sender, text)...
+    static final int OP_RELAY_ACK = 0x91;   // payload: highest seq taken
+    static final int OP_DIRECT = 0x92;      // payload: recipient, UTF-8 text
+    static final int OP_MAIL = 0x93;        // payload: seq, time, kind, from, text (file: name, size)
+    static final int OP_MAIL_ACK = 0x94;    // payload: highest seq taken
+    static final int OP_FILE_STREAMS = 0x95; // payload: id, token, stream count
+    static final int OP_FILE_RANGE = 0x96;  // payload: token, offset, length
+
+    static final int FLAG_REPLAYED = 0x01;
+    static final int FLAG_COMPRESSED = 0x02;
+    static final int FLAG_STREAMS = 0x04;   // FILE_BEGIN: may be sent over stream connections (v12)
+
+    static final int ACK_OK = 0;
+    static final int ACK_CORRUPT = 1;
+    static final int ACK_HAVE = 2;      // the receiver already had it (v7)
+
+    static final String LEGACY_HELLO = "HELLO";
+    static final String NAME_KEY = "name";
+    static final String NODE_KEY = "node";
+    static final String STREAM_KEY = "stream";
+
+    /** Upper bound for a single frame payload, guards against garbage lengths. */
+    static final int MAX_PAYLOAD = ChatConfig.getInt("chat.maxFrame", 16 * 1024 * 1024);
+
+    private Frames() {}
+
+    static boolean isBinary(int firstByte) { return (firstByte & 0x80) != 0; }
+
+    static boolean supportsChunks(int peerVersion) { return peerVersion >= 4; }
+
+    static boolean supportsJournal(int peerVersion) { return peerVersion >= 5; }
+
+    static boolean supportsDedup(int peerVersion) { return peerVersion >= 7; }
+
+    static boolean supportsHeartbeat(int peerVersion) { return peerVersion >= 8; }
+
+    static boolean supportsRooms(int peerVersion) { return peerVersion >= 9; }
+
+    static boolean supportsCluster(int peerVersion) { return peerVersion >= 10; }
+
+    static boolean supportsMail(int peerVersion) { return peerVersion >= 11; }
+
+    static boolean supportsStreams(int peerVersion) { return peerVersion >= 12; }
+
+    // ---------------------------------------------------------------- encoding
+
+    static byte[] encodeMessage(String message, boolean binary) throws IOException {
+        if (!binary) return legacyUTF("MSG", message);
+        return encodeFrame(OP_MSG, 0, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static byte[] encodeSequenced(long seq, long time, String message, boolean replayed) {
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer p = ByteBuffer.allocate(varintSize(seq) + 8 + text.length);
+        putVarint(p, seq);
+        p.putLong(time).put(text);
+        return encodeFrame(OP_MSG_SEQ, replayed ? FLAG_REPLAYED : 0, p.array());
+    }
+
+    /** Header only; the caller streams the size file bytes right after it. */
+    static byte[] encodeFileHeader(String name, long size, boolean binary) throws IOException {
+        if (!binary) {
+            byte[] tag = legacyUTF("FILE", name);
+            return ByteBuffer.allocate(tag.length + 8).put(tag).putLong(size).array();
+        }
+        byte[] n = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer p = ByteBuffer.allocate(varintSize(n.length) + n.length + 8);
+        putVarint(p, n.length);
+        p.put(n).putLong(size);
+        return encodeFrame(OP_FILE, 0, p.array());
+    }
+
+    static byte[] encodeFileBegin(long id, String name, long size, int chunkSize, byte[] sha256) {
+        return encodeFileBegin(id, name, size, chunkSize, sha256, 0);
+    }
+
+    static byte[] encodeFileBegin(long id, String name, long size, int chunkSize, byte[] sha256, int flags) {
+        byte[] n = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer p = ByteBuffer.allocate(varintSize(id) + varintSize(n.length) + n.length + 8
+                + varintSize(chunkSize) + sha256.length);
+        putVarint(p, id);
+        putVarint(p, n.length);
+        p.put(n).putLong(size);
+        putVarint(p, chunkSize);
+        p.put(sha256);
+        return encodeFrame(OP_FILE_BEGIN, flags, p.array());
+    }
+
+    /** Frame header up to the CRC; the caller writes dataLength bytes of chunk data after it. */
+    static byte[] encodeChunkHeader(long id, long offset, int crc, int dataLength) {
+        int prefix = varintSize(id) + varintSize(offset) + 4;
+        int payload = prefix + dataLength;
+        ByteBuffer b = ByteBuffer.allocate(2 + varintSize(payload) + prefix);
+        b.put((byte) OP_FILE_CHUNK).put((byte) 0);
+        putVarint(b, payload);
+        putVarint(b, id);
+        putVarint(b, offset);
+        b.putInt(crc);
+        return b.array();
+    }
+
+    /** A whole chunk frame with its data inline, for chunks read onto the heap (and maybe compressed). */
+    static byte[] encodeChunk(long id, long offset, int crc, int flags, byte[] data, int length) {
+        int payload = varintSize(id) + varintSize(offset) + 4 + length;
+        ByteBuffer b = ByteBuffer.allocate(2 + varintSize(payload) + payload);
+        b.put((byte) OP_FILE_CHUNK).put((byte) flags);
+        putVarint(b, payload);
+        putVarint(b, id);
+        putVarint(b, offset);
+        b.putInt(crc).put(data, 0, length);
+        return b.array();
+    }
+
+    static byte[] encodeIdValueFrame(int op, long id, long value) {
+        ByteBuffer p = ByteBuffer.allocate(varintSize(id) + varintSize(value));
+        putVarint(p, id);
+        putVarint(p, value);
+        return encodeFrame(op, 0, p.array());
+    }
+
+    static byte[] encodeFileStreams(long id, long token, int streams) {
+        ByteBuffer p = ByteBuffer.allocate(varintSize(id) + varintSize(token) + varintSize(streams));
+        putVarint(p, id);
+        putVarint(p, token);
+        putVarint(p, streams);
+        return encodeFrame(OP_FILE_STREAMS, 0, p.array());
+    }
+
+    static byte[] encodeRange(long token, long offset, long length) {
+        ByteBuffer p = ByteBuffer.allocate(varintSize(token) + varintSize(offset) + varintSize(length));
+        putVarint(p, token);
+        putVarint(p, offset);
+        putVarint(p, length);
+        return encodeFrame(OP_FILE_RANGE, 0, p.array());
+    }
+
+    static byte[] encodeIdFrame(int op, long id) {
+        ByteBuffer p = ByteBuffer.allocate(varintSize(id));
+        putVarint(p, id);
+        return encodeFrame(op, 0, p.array());
+    }
+
+    /** Room name or text frame for OP_JOIN / OP_LEAVE. */
+    static byte[] encodeText(int op, String text) {
+        return encodeFrame(op, 0, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Clients send an empty sender, the server puts in the real one. */
+    static byte[] encodeRoomMessage(String room, String sender, String message) {
+        byte[] r = room.getBytes(StandardCharsets.UTF_8);
+        byte[] s = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer p = ByteBuffer.allocate(stringSize(r) + stringSize(s) + text.length);
+        putString(p, r);
+        putString(p, s);
+        p.put(text);
+        return encodeFrame(OP_ROOM_MSG, 0, p.array());
+    }
+
+    static byte[] encodeDirect(String to, String message) {
+        byte[] t = to.getBytes(StandardCharsets.UTF_8);
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer p = ByteBuffer.allocate(stringSize(t) + text.length);
+        putString(p, t);
+        p.put(text);
+        return encodeFrame(OP_DIRECT, 0, p.array());
+    }
+
+    /** A mailbox entry for its recipient; seq 0 means it wasn't stored and needs no MAIL_ACK. */
+    static byte[] encodeMail(long seq, long time, int kind, String from, String text, long size) {
+        byte[] f = from.getBytes(StandardCharsets.UTF_8);
+        byte[] t = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer p = ByteBuffer.allocate(varintSize(seq) + varintSize(time) + 1 + stringSize(f) + stringSize(t)
+                + (kind == Mailboxes.FILE ? varintSize(size) : 0));
+        putVarint(p, seq);
+        putVarint(p, time);
+        p.put((byte) kind);
+        putString(p, f);
+        putString(p, t);
+        if (kind == Mailboxes.FILE) putVarint(p, size);
+        return encodeFrame(OP_MAIL, 0, p.array());
+    }
+
+    static byte[] encodeHello() throws IOException {
+        return encodeHello(null, null);
+    }
+
+    /**
+     * name (may be null) is what room messages from this side are signed with; node (may
+     * be null) is the cluster node id of this side.
+     */
+    static byte[] encodeHello(String name, String node) throws IOException {
+        String hello = "version=" + VERSION;
+        if (Compression.ENABLED) hello += ";" + Compression.HELLO_KEY + "=" + Compression.DEFLATE;
+        if (Heartbeat.INTERVAL_MS > 0) hello += ";" + Heartbeat.HELLO_KEY + "=" + Heartbeat.INTERVAL_MS;
+        if (name != null && !name.trim().isEmpty()) hello += ";" + NAME_KEY + "=" + name.trim().replace(';', ',');
+        if (node != null) hello += ";" + NODE_KEY + "=" + node.replace(';', ',');
+        return legacyUTF(LEGACY_HELLO, hello);
+    }
+
+    /** First thing on a stream connection: joins it to the parallel transfer with this token. */
+    static byte[] encodeStreamHello(long token) throws IOException {
+        return legacyUTF(LEGACY_HELLO, "version=" + VERSION + ";" + STREAM_KEY + "=" + token);
+    }
+
+    static byte[] encodeFrame(int op, int flags, byte[] payload) {
+        ByteBuffer b = ByteBuffer.allocate(2 + varintSize(payload.length) + payload.length);
+        b.put((byte) op).put((byte) flags);
+        putVarint(b, payload.length);
+        b.put(payload);
+        return b.array();
+    }
+
+    // Modified UTF-8 with a 2 byte length prefix, same as DataOutputStream.writeUTF
+    static byte[] legacyUTF(String... parts) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        for (String p : parts) dos.writeUTF(p);
+        dos.flush();
+        return bos.toByteArray();
+    }
+
+    /** Protocol version announced in a HELLO payload, 1 if it can't be parsed. */
+    static int parseHelloVersion(String payload) {
+        String v = helloValue(payload, "version");
+        if (v != null) {
+            try { return Integer.parseInt(v); } catch (NumberFormatException ignored) {}
+        }
+        return 1;
+    }
+
+    /** Value of key in a HELLO payload ("k=v;k=v"), null if it isn't there. */
+    static String helloValue(String payload, String key) {
+        for (String part : payload.split(";")) {
+            String[] kv = part.split("=", 2);
+            if (kv.length == 2 && kv[0].trim().equals(key)) return kv[1].trim();
+        }
+        return null;
+    }
+
+    // ---------------------------------------------------------------- varints (unsigned LEB128)
+
+    static int varintSize(long v) {
+        int n = 1;
+        while ((v & ~0x7FL) != 0) { v >>>= 7; n++; }
+        return n;
+    }
+
+    static void putVarint(ByteBuffer b, long v) {
+        while ((v & ~0x7FL) != 0) {
+            b.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        b.put((byte) v);
+    }
+
+    static long readVarint(DataInput in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /** Index just past the varint starting at {@code at}, or -1 if it isn't complete yet. */
+    static int varintEnd(ByteBuffer b, int at) throws IOException {
+        for (int i = 0; i < 10; i++) {
+            if (at + i >= b.limit()) return -1;
+            if ((b.get(at + i) & 0x80) == 0) return at + i + 1;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /** Decodes a complete varint at {@code at} without moving the position. */
+    static long getVarint(ByteBuffer b, int at) {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            int x = b.get(at++);
+            v |= (long) (x & 0x7F) << shift;
+            if ((x & 0x80) == 0) return v;
+        }
+    }
+
+    static long getVarint(ByteBuffer b) {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            int x = b.get();
+            v |= (long) (x & 0x7F) << shift;
+            if ((x & 0x80) == 0) return v;
+        }
+    }
+
+    // ---------------------------------------------------------------- decoding
+
+    static void checkLength(long len) throws IOException {
+        if (len < 0 || len > MAX_PAYLOAD) throw protocolError("Frame too large: " + len + " bytes");
+    }
+
+    /** Counts a malformed frame and returns the exception to throw for it. */
+    static IOException protocolError(String message) {
+        ChatMetrics.error(ChatMetrics.Cause.PROTOCOL);
+        return new IOException(message);
+    }
+
+    /** Reads the rest of a legacy writeUTF string whose first byte was already consumed. */
+    static String readLegacyUTF(DataInputStream in, int firstByte) throws IOException {
+        int second = in.read();
+        if (second < 0) throw new EOFException();
+        int len = (firstByte << 8) | second;
+        byte[] raw = new byte[2 + len];
+        raw[0] = (byte) firstByte;
+        raw[1] = (byte) second;
+        in.readFully(raw, 2, len);
+        return new DataInputStream(new ByteArrayInputStream(raw)).readUTF();
+    }
+
+    /** Decodes an OP_ROOM_MSG payload. */
+    static RoomMessage parseRoomMessage(ByteBuffer p) throws IOException {
+        String room = getString(p);
+        String sender = getString(p);
+        byte[] text = new byte[p.remaining()];
+        p.get(text);
+        return new RoomMessage(room, sender, new String(text, StandardCharsets.UTF_8));
+    }
+
+    /** Decodes an OP_MAIL payload. */
+    static Mailboxes.Entry parseMail(ByteBuffer p) throws IOException {
+        long seq = getVarint(p);
+        long time = getVarint(p);
+        if (!p.hasRemaining()) throw protocolError("Bad mail frame");
+        int kind = p.get();
+        String from = getString(p);
+        String text = getString(p);
+        long size = kind == Mailboxes.FILE ? getVarint(p) : 0;
+        return new Mailboxes.Entry(seq, time, kind, from, text, size, null);
+    }
+
+    // varint length, then that many bytes of UTF-8
+    static int stringSize(byte[] utf8) { return varintSize(utf8.length) + utf8.length; }
+
+    static void putString(ByteBuffer b, byte[] utf8) {
+        putVarint(b, utf8.length);
+        b.put(utf8);
+    }
+
+    static String getString(ByteBuffer p) throws IOException {
+        long len = getVarint(p);
+        if (len < 0 || len > p.remaining()) throw protocolError("Bad string field");
+        byte[] b = new byte[(int) len];
+        p.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /** Decodes an OP_FILE_BEGIN payload. */
+    static FileHeader parseFileBegin(ByteBuffer p) throws IOException {
+        long id = getVarint(p);
+        FileHeader h = parseFileHeader(p);
+        long chunkSize = getVarint(p);
+        // the receiver sizes its inflate buffer from this, and a chunk has to fit in one frame anyway
+        if (chunkSize <= 0 || chunkSize > MAX_PAYLOAD) throw protocolError("Bad chunk size " + chunkSize);
+        if (p.remaining() < 32) throw new IOException("Bad file header");
+        byte[] sha = new byte[32];
+        p.get(sha);
+        return new FileHeader(id, h.name, h.size, (int) chunkSize, sha);
+    }
+
+    /** Decodes the name and size from an OP_FILE payload. */
+    static FileHeader parseFileHeader(ByteBuffer p) throws IOException {
+        int nameLen = (int) getVarint(p);
+        if (nameLen < 0 || nameLen > p.remaining() - 8) throw new IOException("Bad file header");
+        byte[] n = new byte[nameLen];
+        p.get(n);
+        long size = p.getLong();
+        if (size < 0) throw protocolError("Negative file size " + size);
+        return new FileHeader(0, new String(n, StandardCharsets.UTF_8), size, 0, null);
+    }
+
+    static final class FileHeader {
+        final long id;
+        final String name;
+        final long size;
+        final int chunkSize;   // resumable transfers only
+        final byte[] sha256;   // resumable transfers only
+
+        FileHeader(long id, String name, long size, int chunkSize, byte[] sha256) {
+            this.id = id;
+            this.name = name;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.sha256 = sha256;
+        }
+    }
+
+    static final class RoomMessage {
+        final String room;
+        final String sender;
+        final String text;
+
+        RoomMessage(String room, String sender, String text) {
+            this.room = room;
+            this.sender = sender;
+            this.text = text;
+        }
+    }
+}
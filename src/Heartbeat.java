@@ -0,0 +1,124 @@
+// Heartbeat.java
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Liveness of one connection, checked from the shared TimerWheel.
+ *
+ * Each side announces its interval in HELLO ("heartbeat=15000", version 8) and sends a
+ * PING whenever it has written nothing for that long, so a live peer is never silent
+ * for more than its interval. Once nothing at all has arrived for chat.heartbeatMisses
+ * of the peer's intervals the connection is closed as dead, and the owner hears about
+ * it right away instead of when TCP finally gives up on a half-open socket.
+ *
+ * Peers before version 8 make no such promise and are never timed out. Binary ones
+ * still get PINGs (they skip unknown opcodes), so a vanished one at least turns into a
+ * write error; legacy ones get nothing. chat.heartbeatMs=0 turns all of it off.
+ *
+ * Reads only store a timestamp. There is one timeout per connection, set for whichever
+ * comes first, the next PING or the read deadline, and none at all while there is
+ * neither to look after. The peer's interval is clamped to PEER_MIN_MS..PEER_MAX_MS.
+ */
+final class Heartbeat {
+
+    static final long INTERVAL_MS = ChatConfig.getLong("chat.heartbeatMs", 15_000);
+    static final int MISSES = Math.max(1, ChatConfig.getInt("chat.heartbeatMisses", 3));
+    static final String HELLO_KEY = "heartbeat";
+    static final long PEER_MIN_MS = 100;
+    static final long PEER_MAX_MS = TimeUnit.DAYS.toMillis(1);
+
+    private static final long INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(INTERVAL_MS);
+    private static final byte[] PING = Frames.encodeFrame(Frames.OP_PING, 0, new byte[0]);
+
+    private final OutboundScheduler scheduler;
+    private final Executor context;
+    private final Consumer<IOException> onDead;
+    private volatile long lastRead = System.nanoTime();
+    private volatile long timeoutNanos;   // 0 until the peer promises heartbeats
+    private volatile boolean pings;
+    private volatile boolean stopped;
+    private volatile TimerWheel.Timeout next;
+    private final AtomicBoolean armed = new AtomicBoolean(); // a check is scheduled or running
+
+    /**
+     * @param context where checks run (an event loop's execute, or Runnable::run for the wheel thread)
+     * @param onDead  closes the connection; given the reason
+     */
+    Heartbeat(OutboundScheduler scheduler, Executor context, Consumer<IOException> onDead) {
+        this.scheduler = scheduler;
+        this.context = context;
+        this.onDead = onDead;
+    }
+
+    void start() {
+        arm();
+    }
+
+    /** Something arrived from the peer. */
+    void read() {
+        lastRead = System.nanoTime();
+    }
+
+    /** The peer's HELLO: whether it takes PINGs, and how often it promised to send. */
+    void peerHello(int version, String hello) {
+        pings = version >= 2;
+        long ms = 0;
+        String v = Frames.helloValue(hello, HELLO_KEY);
+        if (v != null && Frames.supportsHeartbeat(version)) {
+            try { ms = Long.parseLong(v); } catch (NumberFormatException ignored) {}
+        }
+        lastRead = System.nanoTime();
+        // a silly promise must not overflow the deadline or have us checking every few ms
+        if (ms > 0) ms = Math.max(PEER_MIN_MS, Math.min(ms, PEER_MAX_MS));
+        timeoutNanos = TimeUnit.MILLISECONDS.toNanos(ms) * MISSES;
+        if (pings || timeoutNanos > 0) arm(); // a check before HELLO may have found nothing to do and stopped
+    }
+
+    void stop() {
+        stopped = true;
+        TimerWheel.Timeout t = next;
+        if (t != null) t.cancel();
+    }
+
+    // starts checking unless it already is
+    private void arm() {
+        if (INTERVAL_NANOS > 0 && armed.compareAndSet(false, true)) {
+            schedule(INTERVAL_NANOS);
+        }
+    }
+
+    private void schedule(long nanos) {
+        if (!stopped) next = TimerWheel.shared().schedule(() -> context.execute(this::check), nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void check() {
+        if (stopped) return;
+        long now = System.nanoTime();
+        long silent = now - lastRead;
+        long limit = timeoutNanos;
+        if (limit > 0 && silent >= limit) {
+            ChatMetrics.error(ChatMetrics.Cause.TIMEOUT);
+            onDead.accept(new SocketTimeoutException("Nothing from peer for " + silent / 1_000_000 + " ms"));
+            return;
+        }
+        if (!pings && limit == 0) {
+            // nothing to send, nothing to enforce; peerHello arms it again
+            armed.set(false);
+            if (pings || timeoutNanos > 0) arm();
+            return;
+        }
+        long wait = INTERVAL_NANOS;
+        if (pings) {
+            long idle = scheduler.idleNanos(now);
+            if (idle < INTERVAL_NANOS) wait = INTERVAL_NANOS - idle;
+            else if (scheduler.isEmpty()) scheduler.enqueue(PING);
+            // else frames are queued but not leaving: a PING wouldn't either, look again in an interval
+        }
+        if (limit > 0) wait = Math.min(wait, limit - silent);
+        schedule(wait);
+    }
+}
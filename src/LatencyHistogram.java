@@ -0,0 +1,95 @@
+// LatencyHistogram.java
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent log-linear histogram for latencies and sizes: any thread may record, and
+ * readers take a Snapshot, which can be subtracted from a later one to get an interval.
+ *
+ * Values below SUB_BUCKETS are counted exactly; above that every power of two is split
+ * into SUB_BUCKETS / 2 equal slots, so a reported percentile is at most 1/64 (about
+ * 1.6%) above the true value. The whole range of long fits in under 4k counters.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int SLOTS = SUB_BUCKETS + (64 - SUB_BITS) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SLOTS);
+
+    void record(long value) {
+        counts.incrementAndGet(index(Math.max(0, value)));
+    }
+
+    Snapshot snapshot() {
+        long[] c = new long[SLOTS];
+        for (int i = 0; i < SLOTS; i++) c[i] = counts.get(i);
+        return new Snapshot(c);
+    }
+
+    static int index(long v) {
+        if (v < SUB_BUCKETS) return (int) v;
+        int shift = 64 - Long.numberOfLeadingZeros(v) - SUB_BITS; // >= 1, keeps the top SUB_BITS bits
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) ((v >>> shift) - HALF);
+    }
+
+    // largest value that lands in slot i
+    static long highest(int i) {
+        if (i < SUB_BUCKETS) return i;
+        int shift = (i - SUB_BUCKETS) / HALF + 1;
+        long top = (i - SUB_BUCKETS) % HALF + HALF;
+        return ((top + 1) << shift) - 1;
+    }
+
+    /** Counts at one moment; immutable. */
+    static final class Snapshot {
+        private final long[] counts;
+        private final long total;
+
+        private Snapshot(long[] counts) {
+            this.counts = counts;
+            long t = 0;
+            for (long c : counts) t += c;
+            this.total = t;
+        }
+
+        /** What was recorded between earlier and this one. */
+        Snapshot minus(Snapshot earlier) {
+            long[] c = new long[SLOTS];
+            for (int i = 0; i < SLOTS; i++) c[i] = counts[i] - earlier.counts[i];
+            return new Snapshot(c);
+        }
+
+        long count() { return total; }
+
+        /** Value at or below which p percent (0..100) of the records fall; 0 when empty. */
+        long percentile(double p) {
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(total * p / 100.0));
+            long seen = 0;
+            for (int i = 0; i < SLOTS; i++) {
+                seen += counts[i];
+                if (seen >= rank) return highest(i);
+            }
+            return highest(SLOTS - 1);
+        }
+
+        long max() {
+            for (int i = SLOTS - 1; i >= 0; i--) {
+                if (counts[i] != 0) return highest(i);
+            }
+            return 0;
+        }
+
+        /** Mean of the slot upper bounds, so slightly high like the percentiles. */
+        double mean() {
+            if (total == 0) return 0;
+            double sum = 0;
+            for (int i = 0; i < SLOTS; i++) {
+                if (counts[i] != 0) sum += (double) counts[i] * highest(i);
+            }
+            return sum / total;
+        }
+    }
+}
@@ -0,0 +1,579 @@
+// Mailboxes.java
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Durable per-user queues for store-and-forward delivery (see Frames, version 11).
+ *
+ * Every user who has connected under a name gets a mailbox: a directory of segment
+ * files named after the first sequence number they hold, plus an "ack" file with the
+ * highest sequence number the user has confirmed. Records are
+ * [length:varint][crc32c:4][seq:varint][time:varint][kind:1][from][text], with files
+ * adding [size:varint][path] (strings are varint length + UTF-8), so a short message
+ * carries about a dozen bytes of overhead. Appends go through the newest segment's
+ * channel and a commit thread forces them to disk every chat.mailboxSyncMs, one fsync
+ * per mailbox per window, like the journal.
+ *
+ * Confirmations truncate from the front by deleting whole segments, and so does the
+ * chat.mailboxMaxBytes bound: a mailbox that outgrows it loses its oldest segment, and
+ * since sequence numbers are contiguous the segment names alone say how many messages
+ * went with it. Nothing is scanned but the newest segment, once, when a mailbox is
+ * loaded (to find its end and cut off a torn record). Reads pick up where the last one
+ * stopped and pull READ_BLOCK bytes per call, so a backlog streams out in large
+ * sequential reads.
+ *
+ * At most chat.mailboxOpen segment channels stay open; the least recently used mailbox
+ * closes its own and reopens it when next written.
+ *
+ * Names are free to pick, so the whole store is bounded too: no more than
+ * chat.mailboxUsers mailboxes are created, and once the segments of all of them add up
+ * to chat.mailboxTotalBytes further appends are refused until deliveries free space.
+ */
+final class Mailboxes implements Closeable {
+
+    static final int TEXT = 0;
+    static final int FILE = 1;
+
+    static final class Entry {
+        final long seq;
+        final long time;
+        final int kind;
+        final String from;
+        final String text;   // the file name for FILE
+        final long size;     // FILE only
+        final String path;   // FILE only: where this server keeps it
+
+        Entry(long seq, long time, int kind, String from, String text, long size, String path) {
+            this.seq = seq;
+            this.time = time;
+            this.kind = kind;
+            this.from = from;
+            this.text = text;
+            this.size = size;
+            this.path = path;
+        }
+    }
+
+    private static final int SEGMENT = ChatConfig.getInt("chat.mailboxSegment", 256 * 1024);
+    private static final long MAX_BYTES = ChatConfig.getLong("chat.mailboxMaxBytes", 8L * 1024 * 1024);
+    private static final int MAX_OPEN = ChatConfig.getInt("chat.mailboxOpen", 1024);
+    private static final int MAX_USERS = ChatConfig.getInt("chat.mailboxUsers", 10_000);
+    private static final long MAX_TOTAL = ChatConfig.getLong("chat.mailboxTotalBytes", 1024L * 1024 * 1024);
+    private static final int READ_BLOCK = 64 * 1024;
+
+    private final File dir;
+    private final long syncMillis;
+    private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final Set<String> users = ConcurrentHashMap.newKeySet();
+    private final AtomicLong stored = new AtomicLong(); // segment bytes of all mailboxes, loaded or not
+    private final ReentrantLock openLock = new ReentrantLock();
+    private final LinkedHashMap<Mailbox, Boolean> withChannel = new LinkedHashMap<>(16, 0.75f, true); // guarded by openLock
+    private volatile boolean closed;
+
+    Mailboxes(File dir) throws IOException {
+        this(dir, ChatConfig.getLong("chat.mailboxSyncMs", 50));
+    }
+
+    Mailboxes(File dir, long syncMillis) throws IOException {
+        this.dir = dir;
+        this.syncMillis = syncMillis;
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        File[] boxes = dir.listFiles(File::isDirectory);
+        if (boxes != null) {
+            for (File b : boxes) {
+                String user = decode(b.getName());
+                if (user == null) continue;
+                users.add(user);
+                File[] segs = b.listFiles((d, name) -> name.endsWith(".q"));
+                if (segs != null) {
+                    for (File f : segs) stored.addAndGet(f.length());
+                }
+            }
+        }
+        ChatExecutors.start("Mailbox-Commit", this::commitLoop);
+    }
+
+    /** True if user has a mailbox, i.e. has connected under that name before. */
+    boolean exists(String user) { return users.contains(user); }
+
+    /** Everyone with a mailbox. */
+    Set<String> users() { return Collections.unmodifiableSet(users); }
+
+    /** Bytes the segments of all mailboxes hold, counted against chat.mailboxTotalBytes. */
+    long storedBytes() { return stored.get(); }
+
+    /**
+     * The user's mailbox, created on first use (at most chat.mailboxUsers of them); loading
+     * it reads only its newest segment.
+     */
+    Mailbox open(String user) throws IOException {
+        if (closed) throw new IOException("Mailboxes closed");
+        Mailbox m = mailboxes.get(user);
+        if (m != null) return m;
+        openLock.lock();
+        try {
+            m = mailboxes.get(user);
+            if (m == null) {
+                if (!users.contains(user) && users.size() >= MAX_USERS) {
+                    throw new IOException("Already " + users.size() + " mailboxes, not creating one for " + user);
+                }
+                m = new Mailbox(user, new File(dir, encode(user)));
+                mailboxes.put(user, m);
+                users.add(user);
+            }
+            return m;
+        } finally {
+            openLock.unlock();
+        }
+    }
+
+    // marks m's channel as just used; returns a mailbox whose channel should be closed, or null
+    private Mailbox touch(Mailbox m) {
+        openLock.lock();
+        try {
+            withChannel.put(m, Boolean.TRUE);
+            if (withChannel.size() <= MAX_OPEN) return null;
+            Iterator<Mailbox> it = withChannel.keySet().iterator();
+            Mailbox eldest = it.next();
+            it.remove();
+            return eldest == m ? null : eldest;
+        } finally {
+            openLock.unlock();
+        }
+    }
+
+    private void commitLoop() {
+        while (!closed) {
+            try {
+                Thread.sleep(syncMillis);
+                sync();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Mailbox commit failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /** Forces every mailbox written since the last sync to disk. */
+    void sync() throws IOException {
+        for (Mailbox m : mailboxes.values()) m.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        sync();
+        closed = true;
+        for (Mailbox m : mailboxes.values()) m.closeChannel();
+    }
+
+    // user names become hex, so any name is a safe and distinct directory name
+    static String encode(String user) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : user.getBytes(StandardCharsets.UTF_8)) sb.append(String.format("%02x", b & 0xFF));
+        return sb.toString();
+    }
+
+    static String decode(String name) {
+        if (name.isEmpty() || name.length() % 2 != 0) return null;
+        byte[] b = new byte[name.length() / 2];
+        try {
+            for (int i = 0; i < b.length; i++) b[i] = (byte) Integer.parseInt(name.substring(2 * i, 2 * i + 2), 16);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    // ---------------------------------------------------------------- one user
+
+    final class Mailbox {
+        final String user;
+        private final File dir;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final TreeMap<Long, Long> segments = new TreeMap<>(); // first seq -> bytes
+        private final CRC32C crc = new CRC32C();
+        private FileChannel active; // newest segment; null until written, or after the LRU closed it
+        private long nextSeq = 1;
+        private long acked;
+        private long bytes;
+        private boolean dirty;
+        // where the last read stopped, so the next one can start there
+        private long hintSeq = -1;
+        private long hintBase;
+        private long hintOffset;
+
+        private Mailbox(String user, File dir) throws IOException {
+            this.user = user;
+            this.dir = dir;
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+            load();
+        }
+
+        /** Highest sequence number the user has confirmed (or that was evicted). */
+        long acked() {
+            lock.lock();
+            try {
+                return acked;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Bytes its segments hold, counted against chat.mailboxMaxBytes. */
+        long bytes() {
+            lock.lock();
+            try {
+                return bytes;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Highest sequence number stored so far, 0 if nothing ever was. */
+        long lastSeq() {
+            lock.lock();
+            try {
+                return nextSeq - 1;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long appendText(String from, String text, long time) throws IOException {
+            return append(TEXT, from, text, 0, null, time);
+        }
+
+        /** An offer of a file this server keeps at path; it is sent along when the entry is delivered. */
+        long appendFile(String from, String name, long size, String path, long time) throws IOException {
+            return append(FILE, from, name, size, path, time);
+        }
+
+        private long append(int kind, String from, String text, long size, String path, long time) throws IOException {
+            Mailbox evicted;
+            long seq;
+            lock.lock();
+            try {
+                if (closed) throw new IOException("Mailboxes closed");
+                seq = nextSeq;
+                byte[] record = encodeRecord(seq, time, kind, from, text, size, path);
+                if (stored.get() + record.length > MAX_TOTAL) {
+                    ChatMetrics.error(ChatMetrics.Cause.DROPPED);
+                    throw new IOException("Mailbox storage is full");
+                }
+                Map.Entry<Long, Long> last = segments.lastEntry();
+                if (last == null || (last.getValue() > 0 && last.getValue() + record.length > SEGMENT)) {
+                    roll();
+                    last = segments.lastEntry();
+                } else if (active == null) {
+                    active = channel(last.getKey());
+                }
+                ByteBuffer b = ByteBuffer.wrap(record);
+                long pos = last.getValue();
+                while (b.hasRemaining()) pos += active.write(b, pos);
+                segments.put(last.getKey(), pos);
+                bytes += record.length;
+                stored.addAndGet(record.length);
+                nextSeq++;
+                dirty = true;
+                evictOverBound();
+                evicted = touch(this);
+            } finally {
+                lock.unlock();
+            }
+            if (evicted != null) evicted.closeChannel();
+            return seq;
+        }
+
+        /** The user confirmed everything up to seq; whole segments that are done are deleted. */
+        void ack(long seq) throws IOException {
+            lock.lock();
+            try {
+                seq = Math.min(seq, nextSeq - 1);
+                if (seq <= acked) return;
+                acked = seq;
+                writeAck();
+                while (segments.size() > 1) {
+                    Map.Entry<Long, Long> first = segments.firstEntry();
+                    if (segments.higherKey(first.getKey()) - 1 > acked) break;
+                    dropSegment(first.getKey());
+                }
+                if (segments.size() == 1 && acked >= nextSeq - 1) dropSegment(segments.firstKey());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Up to max entries (and roughly maxBytes) from fromSeq on, in order. */
+        List<Entry> read(long fromSeq, int max, int maxBytes) throws IOException {
+            List<Entry> out = new ArrayList<>();
+            lock.lock();
+            try {
+                if (segments.isEmpty()) return out;
+                fromSeq = Math.max(fromSeq, segments.firstKey());
+                if (fromSeq >= nextSeq || max <= 0) return out;
+                long base = segments.floorKey(fromSeq);
+                long offset = hintSeq == fromSeq && hintBase == base ? hintOffset : 0;
+                int taken = 0;
+                ByteBuffer block = ByteBuffer.allocate(READ_BLOCK);
+                while (out.size() < max && taken < maxBytes) {
+                    Long end = segments.get(base);
+                    if (end == null) break;
+                    if (offset >= end) {
+                        Long next = segments.higherKey(base);
+                        if (next == null) break;
+                        base = next;
+                        offset = 0;
+                        continue;
+                    }
+                    FileChannel ch = base == segments.lastKey() && active != null ? active : null;
+                    boolean own = ch == null;
+                    if (own) ch = FileChannel.open(segmentFile(base).toPath(), StandardOpenOption.READ);
+                    try {
+                        block.clear();
+                        block.limit((int) Math.min(block.capacity(), end - offset));
+                        while (block.hasRemaining() && ch.read(block, offset + block.position()) > 0) { }
+                        block.flip();
+                    } finally {
+                        if (own) ch.close();
+                    }
+                    int used = 0;
+                    while (out.size() < max && taken < maxBytes) {
+                        int start = block.position();
+                        Entry e = decodeRecord(block);
+                        if (e == null) {
+                            if (start == 0 && block.limit() == block.capacity()) {
+                                block = ByteBuffer.allocate(block.capacity() * 2); // one record bigger than the block
+                            }
+                            break;
+                        }
+                        used = block.position();
+                        taken += used - start;
+                        if (e.seq >= fromSeq) out.add(e);
+                    }
+                    if (used == 0 && block.limit() < block.capacity() && block.limit() == end - offset) {
+                        System.out.println("Mailbox of " + user + ": unreadable record in segment " + base + ", skipping the rest of it");
+                        offset = end;
+                        continue;
+                    }
+                    offset += used;
+                }
+                if (!out.isEmpty()) {
+                    hintSeq = out.get(out.size() - 1).seq + 1;
+                    hintBase = base;
+                    hintOffset = offset;
+                }
+                return out;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // over the bound: drop the oldest segments whole, delivered or not
+        private void evictOverBound() throws IOException {
+            boolean skipped = false;
+            while (bytes > MAX_BYTES && segments.size() > 1) {
+                long base = segments.firstKey();
+                long next = segments.higherKey(base);
+                long lost = next - Math.max(base, acked + 1);
+                if (lost > 0) ChatMetrics.error(ChatMetrics.Cause.DROPPED, lost);
+                dropSegment(base);
+                if (next - 1 > acked) {
+                    acked = next - 1;
+                    skipped = true;
+                }
+            }
+            if (skipped) writeAck();
+        }
+
+        private void dropSegment(long base) throws IOException {
+            Long size = segments.remove(base);
+            if (size != null) {
+                bytes -= size;
+                stored.addAndGet(-size);
+            }
+            if (segments.isEmpty() && active != null) {
+                active.close();
+                active = null;
+            }
+            File f = segmentFile(base);
+            if (f.exists() && !f.delete()) throw new IOException("Cannot delete " + f);
+        }
+
+        private void roll() throws IOException {
+            if (active != null) {
+                if (dirty) active.force(false);
+                active.close();
+            }
+            active = channel(nextSeq);
+            segments.put(nextSeq, 0L);
+        }
+
+        private FileChannel channel(long base) throws IOException {
+            return FileChannel.open(segmentFile(base).toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        private File segmentFile(long base) {
+            return new File(dir, String.format("%020d.q", base));
+        }
+
+        private void writeAck() throws IOException {
+            try (FileChannel ch = FileChannel.open(new File(dir, "ack").toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE)) {
+                ByteBuffer b = ByteBuffer.allocate(8).putLong(0, acked);
+                while (b.hasRemaining()) ch.write(b, b.position());
+            }
+        }
+
+        void force() throws IOException {
+            lock.lock();
+            try {
+                if (!dirty || active == null) return;
+                dirty = false;
+                active.force(false);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void closeChannel() {
+            lock.lock();
+            try {
+                if (active == null) return;
+                if (dirty) active.force(false);
+                dirty = false;
+                active.close();
+                active = null;
+            } catch (IOException e) {
+                System.out.println("Closing mailbox of " + user + " failed: " + e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // ack file, segment names and sizes; only the newest segment is read
+        private void load() throws IOException {
+            File ack = new File(dir, "ack");
+            if (ack.length() == 8) {
+                try (FileChannel ch = FileChannel.open(ack.toPath(), StandardOpenOption.READ)) {
+                    ByteBuffer b = ByteBuffer.allocate(8);
+                    while (b.hasRemaining() && ch.read(b, b.position()) > 0) { }
+                    acked = b.getLong(0);
+                }
+            }
+            File[] files = dir.listFiles((d, name) -> name.endsWith(".q"));
+            if (files != null) {
+                for (File f : files) {
+                    try {
+                        segments.put(Long.parseLong(f.getName().substring(0, f.getName().length() - 2)), f.length());
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+            nextSeq = acked + 1;
+            if (segments.isEmpty()) return;
+            for (long size : segments.values()) bytes += size;
+            long base = segments.lastKey();
+            long end = 0;
+            long seq = base - 1;
+            try (FileChannel ch = FileChannel.open(segmentFile(base).toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                ByteBuffer b = ByteBuffer.allocate((int) Math.max(1, ch.size()));
+                while (b.hasRemaining() && ch.read(b, b.position()) > 0) { }
+                b.flip();
+                Entry e;
+                while ((e = decodeRecord(b)) != null && e.seq == seq + 1) {
+                    seq = e.seq;
+                    end = b.position();
+                }
+                if (end < ch.size()) {
+                    System.out.println("Mailbox of " + user + ": torn record at byte " + end + " of segment " + base + ", truncating");
+                    long cut = ch.size() - end;
+                    ch.truncate(end);
+                    bytes -= cut;
+                    stored.addAndGet(-cut);
+                }
+            }
+            segments.put(base, end);
+            nextSeq = Math.max(nextSeq, seq + 1);
+        }
+
+        private byte[] encodeRecord(long seq, long time, int kind, String from, String text, long size, String path) {
+            byte[] f = from.getBytes(StandardCharsets.UTF_8);
+            byte[] t = text.getBytes(StandardCharsets.UTF_8);
+            byte[] p = path == null ? null : path.getBytes(StandardCharsets.UTF_8);
+            int body = Frames.varintSize(seq) + Frames.varintSize(time) + 1 + Frames.stringSize(f) + Frames.stringSize(t)
+                    + (kind == FILE ? Frames.varintSize(size) + Frames.stringSize(p) : 0);
+            ByteBuffer b = ByteBuffer.allocate(Frames.varintSize(body) + 4 + body);
+            Frames.putVarint(b, body);
+            b.position(b.position() + 4);
+            int start = b.position();
+            Frames.putVarint(b, seq);
+            Frames.putVarint(b, time);
+            b.put((byte) kind);
+            Frames.putString(b, f);
+            Frames.putString(b, t);
+            if (kind == FILE) {
+                Frames.putVarint(b, size);
+                Frames.putString(b, p);
+            }
+            crc.reset();
+            crc.update(b.array(), start, body);
+            b.putInt(start - 4, (int) crc.getValue());
+            return b.array();
+        }
+
+        // null, with the position unchanged, if the rest of b doesn't hold a whole good record
+        private Entry decodeRecord(ByteBuffer b) {
+            int start = b.position();
+            try {
+                int end = Frames.varintEnd(b, start);
+                if (end < 0) return null;
+                long body = Frames.getVarint(b, start);
+                if (body <= 0 || end + 4 + body > b.limit()) return null;
+                int sum = b.getInt(end);
+                crc.reset();
+                ByteBuffer check = b.duplicate();
+                check.position(end + 4).limit(end + 4 + (int) body);
+                crc.update(check);
+                if ((int) crc.getValue() != sum) return null;
+                b.position(end + 4);
+                long seq = Frames.getVarint(b);
+                long time = Frames.getVarint(b);
+                int kind = b.get();
+                String from = Frames.getString(b);
+                String text = Frames.getString(b);
+                long size = 0;
+                String path = null;
+                if (kind == FILE) {
+                    size = Frames.getVarint(b);
+                    path = Frames.getString(b);
+                }
+                b.position(end + 4 + (int) body);
+                return new Entry(seq, time, kind, from, text, size, path);
+            } catch (IOException | RuntimeException e) {
+                b.position(start);
+                return null;
+            }
+        }
+    }
+}
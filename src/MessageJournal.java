@@ -0,0 +1,297 @@
+// MessageJournal.java
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of chat messages, so clients that reconnect can catch up.
+ *
+ * The log is a directory of fixed-size segment files named after the first sequence
+ * number they hold, each memory-mapped while open. Records are
+ * [length:4][seq:8][time:8][crc32c:4][UTF-8 text]; a zero seq marks the end of the
+ * written part. Every INDEX_INTERVAL bytes a (seq, position) pair goes into a sparse
+ * in-memory index, so a replay jumps close to its starting point and scans from there.
+ *
+ * Appends are plain memory writes into the mapping, which already survives a crash of
+ * the process. A commit thread forces dirty segments to disk every chat.journalSyncMs,
+ * so one fsync covers all the messages appended in that window (group commit).
+ *
+ * On open every segment is scanned once to rebuild the index; a torn or corrupt record
+ * ends the log there and is overwritten by the next append.
+ */
+final class MessageJournal implements Closeable {
+
+    static final class Entry {
+        final long seq;
+        final long time;
+        final String text;
+
+        Entry(long seq, long time, String text) {
+            this.seq = seq;
+            this.time = time;
+            this.text = text;
+        }
+    }
+
+    private static final int HEADER = 4 + 8 + 8 + 4;
+    private static final int INDEX_INTERVAL = 4 * 1024;
+
+    private final File dir;
+    private final int segmentSize;
+    private final long syncMillis;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final CRC32C crc = new CRC32C(); // guarded by lock
+    private Segment active;
+    private long nextSeq = 1;
+    private volatile long lastSeq;
+    private volatile long durableSeq;
+    private volatile boolean closed;
+
+    MessageJournal(File dir) throws IOException {
+        this(dir, ChatConfig.getInt("chat.journalSegment", 16 * 1024 * 1024),
+                ChatConfig.getLong("chat.journalSyncMs", 50));
+    }
+
+    MessageJournal(File dir, int segmentSize, long syncMillis) throws IOException {
+        if (segmentSize <= HEADER) throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.syncMillis = syncMillis;
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        recover();
+        durableSeq = lastSeq;
+        ChatExecutors.start("Journal-Commit", this::commitLoop);
+    }
+
+    /** Highest sequence number in the log, 0 if it is empty. */
+    long lastSeq() { return lastSeq; }
+
+    /** Highest sequence number known to be on disk. */
+    long durableSeq() { return durableSeq; }
+
+    /** Appends one message and returns its sequence number; durable after the next commit. */
+    long append(String text) throws IOException {
+        return append(text, System.currentTimeMillis());
+    }
+
+    long append(String text, long time) throws IOException {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        int need = HEADER + payload.length;
+        if (need > segmentSize) throw new IOException("Message of " + payload.length + " bytes does not fit a journal segment");
+        lock.lock();
+        try {
+            if (closed) throw new IOException("Journal closed");
+            if (active == null || active.end + need > active.capacity) roll();
+            Segment s = active;
+            long seq = nextSeq++;
+            int pos = s.end;
+            crc.reset();
+            crc.update(payload, 0, payload.length);
+            MappedByteBuffer m = s.map;
+            // payload and the rest of the header first, seq last: a reader or a crash never sees half a record
+            m.putInt(pos, payload.length);
+            m.putLong(pos + 12, time);
+            m.putInt(pos + 20, (int) crc.getValue());
+            ByteBuffer body = m.duplicate();
+            body.position(pos + HEADER);
+            body.put(payload);
+            if (pos + need + 12 <= s.capacity) m.putLong(pos + need + 4, 0L); // keep the end marker behind us
+            m.putLong(pos + 4, seq);
+            if (pos - s.lastIndexed >= INDEX_INTERVAL || s.index.isEmpty()) {
+                s.index.put(seq, pos);
+                s.lastIndexed = pos;
+            }
+            s.dirty = true;
+            s.end = pos + need;
+            lastSeq = seq;
+            return seq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Up to max entries starting at fromSeq, in order. */
+    List<Entry> read(long fromSeq, int max) {
+        List<Entry> out = new ArrayList<>();
+        if (max <= 0) return out;
+        fromSeq = Math.max(1, fromSeq);
+        Map.Entry<Long, Segment> first = segments.floorEntry(fromSeq);
+        if (first == null) first = segments.firstEntry();
+        if (first == null) return out;
+        for (Segment s : segments.tailMap(first.getKey(), true).values()) {
+            Map.Entry<Long, Integer> hint = s.index.floorEntry(fromSeq);
+            int pos = hint == null ? 0 : hint.getValue();
+            int end = s.end;
+            ByteBuffer b = s.map.duplicate();
+            while (pos + HEADER <= end && out.size() < max) {
+                int len = b.getInt(pos);
+                long seq = b.getLong(pos + 4);
+                if (seq >= fromSeq) {
+                    byte[] text = new byte[len];
+                    b.position(pos + HEADER);
+                    b.get(text);
+                    out.add(new Entry(seq, b.getLong(pos + 12), new String(text, StandardCharsets.UTF_8)));
+                }
+                pos += HEADER + len;
+            }
+            if (out.size() >= max) break;
+        }
+        return out;
+    }
+
+    /** The newest n entries. */
+    List<Entry> tail(int n) {
+        return read(lastSeq - n + 1, n);
+    }
+
+    /** Forces everything appended so far to disk. */
+    void sync() throws IOException {
+        List<Segment> dirty = new ArrayList<>();
+        long upTo;
+        lock.lock();
+        try {
+            upTo = lastSeq;
+            for (Segment s : segments.values()) {
+                if (s.dirty) {
+                    s.dirty = false;
+                    dirty.add(s);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        // force outside the lock so appends keep going while the disk catches up
+        for (Segment s : dirty) s.map.force();
+        if (upTo > durableSeq) durableSeq = upTo;
+    }
+
+    private void commitLoop() {
+        while (!closed) {
+            try {
+                Thread.sleep(syncMillis);
+                sync();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Journal commit failed: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        sync();
+        lock.lock();
+        try {
+            closed = true;
+            for (Segment s : segments.values()) s.channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ---------------------------------------------------------------- segments
+
+    private void roll() throws IOException {
+        if (active != null) active.dirty = true; // the commit thread forces its tail
+        active = open(new File(dir, String.format("%020d.log", nextSeq)), nextSeq);
+        segments.put(active.baseSeq, active);
+    }
+
+    private Segment open(File file, long baseSeq) throws IOException {
+        FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long size = Math.max(ch.size(), segmentSize);
+            return new Segment(baseSeq, ch, ch.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    private void recover() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".log"));
+        if (files == null) return;
+        Arrays.sort(files);
+        for (File f : files) {
+            long base;
+            try {
+                base = Long.parseLong(f.getName().substring(0, f.getName().length() - 4));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            Segment s = open(f, base);
+            scan(s);
+            segments.put(base, s);
+            active = s;
+        }
+        if (active != null) {
+            lastSeq = nextSeq - 1;
+            System.out.println("Journal: " + segments.size() + " segment(s), messages up to #" + lastSeq);
+        }
+    }
+
+    // walks the records of a segment, rebuilding the index and finding where it ends
+    private void scan(Segment s) {
+        ByteBuffer b = s.map.duplicate();
+        int pos = 0;
+        long expect = Math.max(s.baseSeq, nextSeq);
+        CRC32C check = new CRC32C();
+        while (pos + HEADER <= s.capacity) {
+            int len = b.getInt(pos);
+            long seq = b.getLong(pos + 4);
+            if (seq == 0) break;
+            if (len < 0 || pos + HEADER + len > s.capacity || seq != expect) break;
+            check.reset();
+            ByteBuffer text = b.duplicate();
+            text.position(pos + HEADER).limit(pos + HEADER + len);
+            check.update(text);
+            if ((int) check.getValue() != b.getInt(pos + 20)) break;
+            if (pos - s.lastIndexed >= INDEX_INTERVAL || s.index.isEmpty()) {
+                s.index.put(seq, pos);
+                s.lastIndexed = pos;
+            }
+            pos += HEADER + len;
+            expect++;
+        }
+        if (pos + 12 <= s.capacity && b.getLong(pos + 4) != 0) {
+            System.out.println("Journal: " + s.baseSeq + " has a damaged record at byte " + pos + ", truncating there");
+            s.map.putLong(pos + 4, 0L);
+        }
+        s.end = pos;
+        nextSeq = Math.max(nextSeq, expect);
+    }
+
+    private static final class Segment {
+        final long baseSeq;
+        final FileChannel channel;
+        final MappedByteBuffer map;
+        final int capacity;
+        final ConcurrentSkipListMap<Long, Integer> index = new ConcurrentSkipListMap<>();
+        volatile int end;     // readers may look at everything before this
+        int lastIndexed = -INDEX_INTERVAL;
+        boolean dirty;
+
+        Segment(long baseSeq, FileChannel channel, MappedByteBuffer map) {
+            this.baseSeq = baseSeq;
+            this.channel = channel;
+            this.map = map;
+            this.capacity = map.capacity();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+// MessageRenderer.java
+import java.awt.Color;
+import java.awt.Font;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.JTextPane;
+import javax.swing.SwingUtilities;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultStyledDocument;
+import javax.swing.text.Element;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+
+/**
+ * Puts chat lines into a JTextPane without flooding the EDT.
+ *
+ * Any thread may call {@link #append}; lines go into a lock-free queue and only the
+ * first one after a drain posts a task to the EDT. That task takes up to MAX_BATCH
+ * lines, turns them into one list of element specs and inserts them with a single
+ * document write (one lock, one change event, one caret move), then reposts itself if
+ * more are waiting so input and painting still get their turn during a burst.
+ *
+ * The pane keeps at most chat.maxLines lines; the oldest are removed after each batch,
+ * and lines that would be trimmed straight away are dropped before they are rendered.
+ *
+ * Several renderers may share one pane, one per room; each keeps its own document and
+ * show() puts it in the pane.
+ */
+final class MessageRenderer {
+
+    static final int MAX_LINES = Math.max(1, ChatConfig.getInt("chat.maxLines", 5000));
+    private static final int MAX_BATCH = 256;
+
+    // shared by every line, never modified after this
+    private static final AttributeSet OWN_SENDER = style(Color.DARK_GRAY);
+    private static final AttributeSet OTHER_SENDER = style(Color.BLUE.darker());
+    private static final AttributeSet BODY = style(Color.BLACK);
+    private static final AttributeSet PARAGRAPH = paragraph();
+
+    private static final class Line {
+        final String sender;
+        final String text;
+        final boolean own;
+
+        Line(String sender, String text, boolean own) {
+            this.sender = sender;
+            this.text = text;
+            this.own = own;
+        }
+    }
+
+    private final JTextPane pane;
+    private final Document doc = new Document();
+    private final int maxLines;
+    private final ConcurrentLinkedQueue<Line> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Runnable drain = this::drain;
+    private final List<DefaultStyledDocument.ElementSpec> specs = new ArrayList<>(); // EDT only
+    private long trimmed;
+
+    MessageRenderer(JTextPane pane) {
+        this(pane, MAX_LINES);
+    }
+
+    MessageRenderer(JTextPane pane, int maxLines) {
+        this(pane, maxLines, true);
+    }
+
+    /** show = false leaves the pane on whatever document it has until show() is called. */
+    MessageRenderer(JTextPane pane, int maxLines, boolean show) {
+        this.pane = pane;
+        this.maxLines = maxLines;
+        if (show) pane.setStyledDocument(doc);
+    }
+
+    /** Makes this the pane's document, scrolled to the end; EDT only. */
+    void show() {
+        pane.setStyledDocument(doc);
+        pane.setCaretPosition(doc.getLength());
+    }
+
+    /** Queues one line; safe from any thread. */
+    void append(String sender, String text, boolean own) {
+        pending.add(new Line(sender, text, own));
+        // older lines than the cap would be trimmed as soon as they were shown
+        if (pendingCount.incrementAndGet() > maxLines && pending.poll() != null) pendingCount.decrementAndGet();
+        if (scheduled.compareAndSet(false, true)) SwingUtilities.invokeLater(drain);
+    }
+
+    /** Lines currently held by the document. */
+    int lineCount() {
+        return Math.max(0, doc.getDefaultRootElement().getElementCount() - 1);
+    }
+
+    /** True once everything appended so far is in the document. */
+    boolean isIdle() {
+        return !scheduled.get();
+    }
+
+    private void drain() {
+        int taken = 0;
+        Line line;
+        while (taken < MAX_BATCH && (line = pending.poll()) != null) {
+            pendingCount.decrementAndGet();
+            addLine(line);
+            taken++;
+        }
+        if (taken > 0) {
+            try {
+                doc.append(specs);
+                trim();
+            } catch (BadLocationException e) {
+                System.out.println("Chat render failed: " + e.getMessage());
+            }
+            specs.clear();
+            if (pane.getDocument() == doc) pane.setCaretPosition(doc.getLength());
+        }
+        if (!pending.isEmpty()) {
+            SwingUtilities.invokeLater(drain);
+            return;
+        }
+        scheduled.set(false);
+        // an append may have slipped in between the last poll and clearing the flag
+        if (!pending.isEmpty() && scheduled.compareAndSet(false, true)) SwingUtilities.invokeLater(drain);
+    }
+
+    private void addLine(Line line) {
+        String prefix = (line.own ? "You" : line.sender) + ": ";
+        content(line.own ? OWN_SENDER : OTHER_SENDER, prefix);
+        // every newline has to close its paragraph in the spec list, the document won't split them for us
+        int from = 0;
+        int nl;
+        while ((nl = line.text.indexOf('\n', from)) >= 0) {
+            content(BODY, line.text.substring(from, nl + 1));
+            breakParagraph();
+            from = nl + 1;
+        }
+        content(BODY, line.text.substring(from) + "\n");
+        breakParagraph();
+    }
+
+    private void breakParagraph() {
+        specs.add(new DefaultStyledDocument.ElementSpec(null, DefaultStyledDocument.ElementSpec.EndTagType));
+        specs.add(new DefaultStyledDocument.ElementSpec(PARAGRAPH, DefaultStyledDocument.ElementSpec.StartTagType));
+    }
+
+    private void content(AttributeSet attrs, String s) {
+        char[] chars = s.toCharArray();
+        specs.add(new DefaultStyledDocument.ElementSpec(attrs, DefaultStyledDocument.ElementSpec.ContentType,
+                chars, 0, chars.length));
+    }
+
+    // one remove for everything over the cap
+    private void trim() throws BadLocationException {
+        Element root = doc.getDefaultRootElement();
+        int excess = lineCount() - maxLines;
+        if (excess <= 0) return;
+        doc.remove(0, root.getElement(excess - 1).getEndOffset());
+        trimmed += excess;
+    }
+
+    /** Lines dropped from the top so far. */
+    long trimmedLines() {
+        return trimmed;
+    }
+
+    private static AttributeSet style(Color color) {
+        SimpleAttributeSet a = new SimpleAttributeSet();
+        StyleConstants.setFontFamily(a, Font.SANS_SERIF);
+        StyleConstants.setFontSize(a, 14);
+        StyleConstants.setForeground(a, color);
+        return a.copyAttributes();
+    }
+
+    private static AttributeSet paragraph() {
+        SimpleAttributeSet a = new SimpleAttributeSet();
+        StyleConstants.setSpaceAbove(a, 4);
+        StyleConstants.setSpaceBelow(a, 4);
+        return a.copyAttributes();
+    }
+
+    // exposes the batched insert DefaultStyledDocument keeps protected
+    private static final class Document extends DefaultStyledDocument {
+        void append(List<ElementSpec> batch) throws BadLocationException {
+            int offset = getLength();
+            // same shape insertString builds: after the last newline close that paragraph and
+            // open ours, and let the last new paragraph join the trailing empty one
+            if (offset > 0) {
+                batch.add(0, new ElementSpec(PARAGRAPH, ElementSpec.StartTagType));
+                batch.add(0, new ElementSpec(null, ElementSpec.EndTagType));
+            }
+            batch.get(batch.size() - 1).setDirection(offset > 0
+                    ? ElementSpec.JoinNextDirection : ElementSpec.JoinFractureDirection);
+            insert(offset, batch.toArray(new ElementSpec[0]));
+        }
+    }
+}
@@ -0,0 +1,1269 @@
+// NioChatServer.java
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Selector based server engine.
+ *
+ * A small fixed set of event loops each own a Selector and drive many non-blocking
+ * SocketChannels, so one process can serve thousands of peers. The first loop also
+ * accepts new clients and hands them out round-robin. Speaks the same protocol as
+ * FramedConnection, legacy and binary frames alike (see Frames).
+ *
+ * Each session's outbound queue is bounded (see OutboundScheduler). A client that
+ * stops reading is handled by -Dchat.slowConsumer: disconnect (default), drop_oldest,
+ * or block, which only ever blocks threads other than the event loops.
+ *
+ * Clients may also join named rooms (Frames, version 9). The engine routes room
+ * messages itself, to the room's members only, through a RoomIndex; the listener just
+ * hears about them.
+ *
+ * With a Cluster set, what is published here also goes to the other nodes, and what
+ * they relay is delivered here like a local publish. Sessions that are links from other
+ * nodes never receive chat traffic themselves.
+ *
+ * A client may send a big file over several connections at once (Frames, version 12,
+ * up to chat.maxStreams of them). Those stream connections are sessions too, but they
+ * only carry ranges of that file; the transfer itself belongs to the session that began
+ * it, which confirms it once every range is in (see TransferAssembler).
+ */
+public class NioChatServer {
+    private static final int GATHER = 64; // frames per gathering write
+
+    /**
+     * Callbacks are invoked on the event loop thread that owns the session,
+     * so they must not block.
+     */
+    public interface Listener {
+        void onConnect(Session session);
+        void onMessage(Session session, String message);
+        void onFile(Session session, String filename, File saved);
+        void onDisconnect(Session session);
+        void onError(Session session, Exception ex);
+
+        /** A file of size bytes starts arriving; return something to follow its progress, or null. */
+        default FramedConnection.Progress onFileIncoming(Session session, String filename, long size) { return null; }
+
+        /** A member's message to a room; it has already gone out to the other members. */
+        default void onRoomMessage(Session session, String room, String message) {}
+    }
+
+    /** Per-recipient callbacks for broadcastFile; called from I/O threads, must not block. */
+    public interface FileFanout {
+        void onProgress(Session session, long sent, long total);
+        void onFailed(Session session, IOException ex);
+
+        /** The recipient has confirmed the whole file. Exactly one of this and onFailed is called per recipient. */
+        default void onDone(Session session) {}
+    }
+
+    private final int port;
+    private final File receiveDir;
+    private final Listener listener;
+    private final EventLoop[] loops;
+    private final Map<Long, Session> sessions = new ConcurrentHashMap<>();
+    private static final int REPLAY_MAX = ChatConfig.getInt("chat.replayMax", 1000);
+    private static final int MAX_ROOMS = ChatConfig.getInt("chat.maxRoomsPerClient", 100);
+    private static final int MAIL_WINDOW = ChatConfig.getInt("chat.mailWindow", 256);
+    private static final int MAIL_BATCH_BYTES = 256 * 1024;
+    private static final int SOCKET_BUFFER = ChatConfig.getInt("chat.socketBuffer", 0); // SO_SNDBUF / SO_RCVBUF, 0 = OS default
+    private static final int MAX_STREAMS = ChatConfig.getInt("chat.maxStreams", 8); // per parallel transfer, 1 = never
+    private final RoomIndex<Session> rooms = new RoomIndex<>(Session[]::new);
+    private final RoomIndex<Session> online = new RoomIndex<>(Session[]::new); // user name -> that user's sessions
+    // journal append and fan-out happen together so every client sees sequence numbers in order
+    private final ReentrantLock publishLock = new ReentrantLock();
+    private volatile MessageJournal journal;
+    private volatile Cluster cluster;
+    private volatile Mailboxes mailboxes;
+    // user name -> the one session reading and acking that mailbox; names come from HELLO and aren't checked
+    private final Map<String, Session> mailOwners = new ConcurrentHashMap<>();
+    // a stalled client must never hold up a loop, so blocking is only honoured off-loop
+    private final OutboundScheduler.OverflowPolicy overflowPolicy =
+            OutboundScheduler.OverflowPolicy.fromConfig(OutboundScheduler.OverflowPolicy.DISCONNECT);
+    private final AtomicLong nextSessionId = new AtomicLong(1);
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final AtomicInteger digesting = new AtomicInteger(); // files being checksummed before they are queued
+    private final Compression.Stats compressStats = new Compression.Stats();
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+
+    /**
+     * @param port       TCP port to listen on
+     * @param loopCount  number of event loop threads
+     * @param receiveDir where incoming files are stored (null = working directory)
+     * @param listener   receives session events
+     */
+    public NioChatServer(int port, int loopCount, File receiveDir, Listener listener) {
+        this.port = port;
+        this.receiveDir = receiveDir;
+        this.listener = listener;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) return;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        // accepted sockets inherit it, and it has to be there before the handshake to get a large window
+        if (SOCKET_BUFFER > 0) serverChannel.setOption(java.net.StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+        serverChannel.bind(new InetSocketAddress(port));
+        running = true;
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        loops[0].execute(() -> {
+            try {
+                serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+            } catch (ClosedChannelException ignored) {}
+        });
+        for (EventLoop loop : loops) loop.thread.start();
+    }
+
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+        try { serverChannel.close(); } catch (IOException ignored) {}
+        for (EventLoop loop : loops) loop.selector.wakeup();
+    }
+
+    /**
+     * Graceful stop: no new connections, then up to timeoutMillis for every session to
+     * write out what it has queued and for file transfers in either direction to finish,
+     * then stop(). Messages that arrive meanwhile are still relayed.
+     *
+     * @return sessions (and files still being checksummed) that had something in flight when the time ran out
+     */
+    public int shutdown(long timeoutMillis) throws InterruptedException {
+        synchronized (this) {
+            if (!running) return 0;
+            try { serverChannel.close(); } catch (IOException ignored) {}
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        int busy;
+        while ((busy = digesting.get() + busySessions()) > 0 && System.nanoTime() < deadline) Thread.sleep(50);
+        stop();
+        return busy;
+    }
+
+    // asks every session on its own loop thread
+    private int busySessions() throws InterruptedException {
+        List<CompletableFuture<Boolean>> answers = new ArrayList<>();
+        for (Session s : sessions.values()) {
+            CompletableFuture<Boolean> f = new CompletableFuture<>();
+            s.loop.execute(() -> f.complete(s.busy()));
+            answers.add(f);
+        }
+        int n = 0;
+        for (CompletableFuture<Boolean> f : answers) {
+            try {
+                if (f.get(1, TimeUnit.SECONDS)) n++;
+            } catch (ExecutionException | TimeoutException e) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    public boolean isRunning() { return running; }
+
+    public int getPort() {
+        try {
+            return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+        } catch (Exception e) {
+            return port;
+        }
+    }
+
+    /** Snapshot of the currently connected sessions. */
+    public Collection<Session> sessions() {
+        return new ArrayList<>(sessions.values());
+    }
+
+    public int sessionCount() { return sessions.size(); }
+
+    /** Snapshot of the sessions that get chat traffic: not links from other nodes, not stream connections. */
+    public Collection<Session> clients() {
+        List<Session> out = new ArrayList<>();
+        for (Session s : sessions.values()) {
+            if (!s.isClosed() && s.takesTraffic()) out.add(s);
+        }
+        return out;
+    }
+
+    /** Message payload bytes before and after compression, over all sessions. */
+    public Compression.Stats compressionStats() { return compressStats; }
+
+    /**
+     * Keeps every published message in this journal and lets clients replay it (see
+     * Frames, version 5). The caller still owns the journal and closes it.
+     */
+    public void setJournal(MessageJournal journal) { this.journal = journal; }
+
+    /** Joins this server to a cluster (see Cluster); set before start. */
+    void setCluster(Cluster cluster) { this.cluster = cluster; }
+
+    /**
+     * Keeps direct messages and file offers for users until they have taken them (see
+     * Mailboxes, Frames version 11). The caller still owns the mailboxes and closes them.
+     */
+    void setMailboxes(Mailboxes mailboxes) { this.mailboxes = mailboxes; }
+
+    /**
+     * Sends a message to every session except {@code except} (may be null). The frame is
+     * encoded once per wire format and the same read-only bytes are queued everywhere.
+     * Nothing is journaled; see publish.
+     *
+     * @return number of sessions it was queued for
+     */
+    public int broadcast(String message, Session except) throws IOException {
+        return fanOut(message, 0, 0, except);
+    }
+
+    /**
+     * Journals a message, then broadcasts it to everyone but its author {@code from}
+     * (null for the operator), who gets the sequence number back instead.
+     *
+     * @return the sequence number, 0 if there is no journal or the append failed
+     */
+    public long publish(String message, Session from) throws IOException {
+        Cluster c = cluster;
+        if (c != null) c.forward(Cluster.LOBBY, from == null ? "Server" : from.getName(), message);
+        return journalAndSend(message, from, true);
+    }
+
+    /** Journals a message without relaying it to the other clients. */
+    public long record(String message, Session from) throws IOException {
+        return journalAndSend(message, from, false);
+    }
+
+    // a message another cluster node relayed; delivered here only, never passed on
+    void deliverRelayed(String room, String sender, String message) throws IOException {
+        if (room.isEmpty()) journalAndSend(message, null, true);
+        else routeToRoom(room, sender, message, null);
+    }
+
+    private long journalAndSend(String message, Session from, boolean relay) throws IOException {
+        MessageJournal j = journal;
+        if (j == null) {
+            if (relay) broadcast(message, from);
+            return 0;
+        }
+        publishLock.lock();
+        try {
+            long time = System.currentTimeMillis();
+            long seq;
+            try {
+                seq = j.append(message, time);
+            } catch (IOException e) {
+                System.out.println("Journal append failed: " + e.getMessage());
+                if (relay) broadcast(message, from);
+                return 0;
+            }
+            if (from != null && !from.isClosed() && Frames.supportsJournal(from.peerVersion)) {
+                from.scheduler.enqueue(Frames.encodeIdFrame(Frames.OP_MSG_ACK, seq));
+            }
+            if (relay) fanOut(message, seq, time, from);
+            return seq;
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    // seq > 0: journaled, clients that know about the journal get it with its number
+    private int fanOut(String message, long seq, long time, Session except) throws IOException {
+        // each wire format is encoded (and compressed) at most once, on first use
+        byte[] sequenced = null;
+        byte[] binary = null;
+        ByteBuffer[] shared = new ByteBuffer[4]; // sequenced, sequenced deflated, binary, binary deflated
+        ByteBuffer legacy = null;
+        int n = 0;
+        for (Session s : sessions.values()) {
+            if (s == except || s.isClosed() || !s.takesTraffic()) continue;
+            int z = s.peerDeflate ? 1 : 0;
+            if (seq > 0 && Frames.supportsJournal(s.peerVersion)) {
+                if (sequenced == null) sequenced = Frames.encodeSequenced(seq, time, message, false);
+                if (shared[z] == null) shared[z] = share(z == 1 ? Compression.compressFrame(sequenced, compressStats) : sequenced);
+                if (s.liveFrom == 0) s.liveFrom = seq;
+                s.scheduler.enqueueShared(shared[z]);
+            } else if (s.peerVersion >= 2) {
+                if (binary == null) binary = Frames.encodeMessage(message, true);
+                if (shared[2 + z] == null) shared[2 + z] = share(z == 1 ? Compression.compressFrame(binary, compressStats) : binary);
+                s.scheduler.enqueueShared(shared[2 + z]);
+            } else {
+                if (legacy == null) legacy = ByteBuffer.wrap(Frames.encodeMessage(message, false)).asReadOnlyBuffer();
+                s.scheduler.enqueueShared(legacy);
+            }
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Sends a message to the members of a room, except its author {@code from} (null for
+     * the operator, signed "Server"). Encoded once, like broadcast.
+     *
+     * @return number of members it was queued for
+     */
+    public int sendToRoom(String room, String message, Session from) {
+        String sender = from == null ? "Server" : from.getName();
+        Cluster c = cluster;
+        if (c != null) c.forward(room, sender, message);
+        return routeToRoom(room, sender, message, from);
+    }
+
+    private int routeToRoom(String room, String sender, String message, Session from) {
+        Session[] members = rooms.members(room);
+        if (members.length == 0) return 0;
+        byte[] frame = Frames.encodeRoomMessage(room, sender, message);
+        ByteBuffer plain = null;
+        ByteBuffer deflated = null;
+        int n = 0;
+        for (Session s : members) {
+            if (s == from || s.isClosed()) continue;
+            if (s.peerDeflate) {
+                if (deflated == null) deflated = share(Compression.compressFrame(frame, compressStats));
+                s.scheduler.enqueueShared(deflated);
+            } else {
+                if (plain == null) plain = share(frame);
+                s.scheduler.enqueueShared(plain);
+            }
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Leaves a message in the mailbox of user {@code to} and hands it to the session that
+     * holds that mailbox; one who is away gets it on reconnecting. Without mailboxes it
+     * only reaches the sessions open right now.
+     *
+     * @return the mailbox sequence number, 0 if it wasn't stored, -1 if there is no such user
+     */
+    public long sendDirect(String to, String message, Session from) {
+        String sender = from == null ? "Server" : from.getName();
+        Mailboxes m = mailboxes;
+        if (m == null || !m.exists(to)) {
+            int n = 0;
+            for (Session s : online.members(to)) {
+                if (s.isClosed() || !Frames.supportsMail(s.peerVersion)) continue;
+                s.scheduler.enqueue(s.compress(Frames.encodeMail(0, System.currentTimeMillis(), Mailboxes.TEXT, sender, message, 0)));
+                n++;
+            }
+            return n > 0 ? 0 : -1;
+        }
+        long seq;
+        try {
+            seq = m.open(to).appendText(sender, message, System.currentTimeMillis());
+        } catch (IOException e) {
+            System.out.println("Mailbox append for " + to + " failed: " + e.getMessage());
+            return 0;
+        }
+        for (Session s : online.members(to)) s.loop.execute(s::pumpMail);
+        return seq;
+    }
+
+    // users with a mailbox but no open session find the file waiting for them
+    private void leaveFileOffers(File file, String name, Session from) {
+        Mailboxes m = mailboxes;
+        if (m == null) return;
+        String sender = from == null ? "Server" : from.getName();
+        ChatExecutors.start("Mailbox-Offers", () -> {
+            long time = System.currentTimeMillis();
+            for (String user : m.users()) {
+                if (user.equals(sender) || online.members(user).length > 0) continue;
+                try {
+                    m.open(user).appendFile(sender, name, file.length(), file.getAbsolutePath(), time);
+                } catch (IOException e) {
+                    System.out.println("Mailbox append for " + user + " failed: " + e.getMessage());
+                    continue;
+                }
+                // came back in the meantime
+                for (Session s : online.members(user)) s.loop.execute(s::pumpMail);
+            }
+        });
+    }
+
+    /** Rooms that currently have members. */
+    public List<String> rooms() { return rooms.rooms(); }
+
+    public int roomSize(String room) { return rooms.members(room).length; }
+
+    private static ByteBuffer share(byte[] frame) {
+        return ByteBuffer.wrap(frame).asReadOnlyBuffer();
+    }
+
+    /**
+     * Sends a file to every session except {@code except} (may be null). It is opened and
+     * checksummed once; every recipient reads the same channel at its own position.
+     *
+     * @return number of sessions it is going to
+     */
+    public int broadcastFile(File file, Session except, FileFanout callback) throws IOException {
+        return broadcastFile(file, file.getName(), except, callback);
+    }
+
+    /** Same, announcing the file under {@code name} (relays pass on the sender's name, not the stored one). */
+    public int broadcastFile(File file, String name, Session except, FileFanout callback) throws IOException {
+        if (!file.isFile()) throw new FileNotFoundException(file.getPath());
+        List<Session> targets = new ArrayList<>();
+        for (Session s : sessions.values()) {
+            if (s != except && !s.isClosed() && s.takesTraffic()) targets.add(s);
+        }
+        if (!targets.isEmpty()) fanOutFile(file, name, targets, callback);
+        leaveFileOffers(file, name, except);
+        return targets.size();
+    }
+
+    // hashing reads the whole file, so it runs on its own thread and never on an event loop
+    private void fanOutFile(File file, String name, List<Session> targets, FileFanout callback) {
+        digesting.incrementAndGet();
+        ChatExecutors.start("File-Digest", () -> {
+            OutboundScheduler.Source src;
+            try {
+                src = OutboundScheduler.Source.open(file, name);
+            } catch (IOException e) {
+                digesting.decrementAndGet();
+                if (callback != null) for (Session s : targets) callback.onFailed(s, e);
+                return;
+            }
+            try {
+                for (Session s : targets) {
+                    FramedConnection.Progress p = callback == null ? null : (sent, total) -> callback.onProgress(s, sent, total);
+                    CompletableFuture<Void> done;
+                    try {
+                        done = s.scheduler.enqueueFile(src, p, s.peerVersion);
+                    } catch (IOException e) {
+                        done = CompletableFuture.failedFuture(e);
+                    }
+                    done.whenComplete((v, ex) -> {
+                        if (callback == null) return;
+                        if (ex == null) callback.onDone(s);
+                        else callback.onFailed(s, ex instanceof IOException ? (IOException) ex : new IOException(ex));
+                    });
+                }
+            } finally {
+                src.release();
+                digesting.decrementAndGet();
+            }
+        });
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch;
+        while ((ch = serverChannel.accept()) != null) {
+            ch.configureBlocking(false);
+            ch.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+            if (SOCKET_BUFFER > 0) ch.setOption(java.net.StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+            EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+            Session s = new Session(nextSessionId.getAndIncrement(), ch, loop);
+            loop.execute(s::register);
+        }
+    }
+
+    private boolean isLoopThread() {
+        for (EventLoop loop : loops) {
+            if (loop.thread == Thread.currentThread()) return true;
+        }
+        return false;
+    }
+
+    private File createReceivedFile(String filename) {
+        String name = "received_" + System.currentTimeMillis() + "_" + new File(filename).getName();
+        if (receiveDir == null) return new File(name);
+        if (!receiveDir.exists()) receiveDir.mkdirs();
+        return new File(receiveDir, name);
+    }
+
+    // ---------------------------------------------------------------- event loop
+
+    private final class EventLoop implements Runnable {
+        final Selector selector;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final Thread thread;
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "NioChatServer-Loop-" + index);
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) task.run();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) {
+                            try { accept(); } catch (IOException e) {
+                                System.out.println("Accept failed: " + e.getMessage());
+                            }
+                            continue;
+                        }
+                        Session s = (Session) key.attachment();
+                        try {
+                            if (key.isReadable()) s.onReadable();
+                            if (key.isValid() && key.isWritable()) s.flush();
+                        } catch (IOException | RuntimeException e) {
+                            s.fail(e);
+                        } catch (OutOfMemoryError e) {
+                            // one session's allocation mustn't take the loop and its other sessions down
+                            s.fail(new IOException("Out of memory", e));
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Event loop terminated: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Session) ((Session) key.attachment()).closeNow();
+                }
+                try { selector.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------- session
+
+    private enum ReadState { TYPE, MSG, HELLO, FILE_NAME, FILE_LENGTH, FILE_BODY }
+
+    /** One connected client. Send methods are thread-safe and never block an event loop. */
+    public final class Session {
+        private final long id;
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final SocketAddress remote;
+        private SelectionKey key;
+
+        private final OutboundScheduler scheduler;
+        private OutboundScheduler.Unit current;
+        // plain frames waiting to go out in one gathering write; [batchStart, batched) are unfinished
+        private final OutboundScheduler.Unit[] batch = new OutboundScheduler.Unit[GATHER];
+        private final ByteBuffer[] heads = new ByteBuffer[GATHER];
+        private int batchStart;
+        private int batched;
+        private final TransferAssembler assembler = new TransferAssembler(NioChatServer.this::createReceivedFile);
+        private final Heartbeat heartbeat;
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        // inbound decoding state, only touched by the loop thread
+        private ByteBuffer inbound = ByteBuffer.allocate(4 * 1024);
+        private int needed;
+        private ReadState state = ReadState.TYPE;
+        private String fileName;
+        private long fileRemaining;
+        private long filePos;
+        private File fileTarget;
+        private FileChannel fileOut;
+        private FramedConnection.Progress fileProgress;
+        private volatile int peerVersion = 1;
+        private volatile boolean peerDeflate;
+        private byte[] inflateBuffer = new byte[0]; // loop thread only
+        private volatile long liveFrom; // first journaled message this session got live, guarded by publishLock
+        private volatile String name;
+        private volatile String node; // cluster node id when this is a link from another node
+        private final Set<String> joined = new HashSet<>(); // loop thread only
+        // store-and-forward, loop thread only: entries go out up to MAIL_WINDOW ahead of MAIL_ACK
+        private Mailboxes.Mailbox mailbox;
+        private long mailNext;
+        private long mailTaken;
+        private final TreeSet<Long> mailFiles = new TreeSet<>(); // FILE entries whose transfer isn't confirmed yet
+        private volatile TransferAssembler.Stripe stripe; // set when this is a stream connection of a parallel transfer
+
+        private Session(long id, SocketChannel channel, EventLoop loop) throws IOException {
+            this.id = id;
+            this.channel = channel;
+            this.loop = loop;
+            this.remote = channel.getRemoteAddress();
+            this.scheduler = new OutboundScheduler(this::scheduleWrite, overflowPolicy,
+                    () -> !isLoopThread(), e -> loop.execute(() -> fail(e)));
+            this.heartbeat = new Heartbeat(scheduler, loop::execute, this::fail);
+        }
+
+        public long getId() { return id; }
+        public SocketAddress getRemoteAddress() { return remote; }
+        public boolean isClosed() { return closed.get(); }
+        public int getPeerVersion() { return peerVersion; }
+
+        /** The name the client gave in its HELLO, or "Client #id". */
+        public String getName() {
+            String n = name;
+            return n != null ? n : toString();
+        }
+
+        public void sendMessage(String message) throws IOException {
+            if (closed.get()) throw new IOException("Connection closed");
+            scheduler.enqueueMessage(encode(message));
+        }
+
+        /** Never waits, from any thread; completes once the message has been written. */
+        public CompletableFuture<Void> sendMessageAsync(String message) {
+            if (closed.get()) return CompletableFuture.failedFuture(new IOException("Connection closed"));
+            try {
+                return scheduler.offerMessage(encode(message));
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        private byte[] encode(String message) throws IOException {
+            return compress(Frames.encodeMessage(message, peerVersion >= 2));
+        }
+
+        private byte[] compress(byte[] frame) {
+            return peerDeflate ? Compression.compressFrame(frame, compressStats) : frame;
+        }
+
+        /** Messages dropped for this client under the drop_oldest policy. */
+        public long droppedMessages() { return scheduler.droppedCount(); }
+
+        /**
+         * Chunked and interleaved with messages for peers that support it (see OutboundScheduler).
+         * The file is checksummed on its own thread first, so the event loop never reads it whole.
+         */
+        public void sendFile(File file, BiConsumer<Long, Long> onProgress, Consumer<IOException> onFailed) throws IOException {
+            if (closed.get()) throw new IOException("Connection closed");
+            if (!file.isFile()) throw new FileNotFoundException(file.getPath());
+            fanOutFile(file, file.getName(), Collections.singletonList(this), new FileFanout() {
+                public void onProgress(Session s, long sent, long total) {
+                    if (onProgress != null) onProgress.accept(sent, total);
+                }
+                public void onFailed(Session s, IOException ex) {
+                    if (onFailed != null) onFailed.accept(ex);
+                }
+            });
+        }
+
+        public void close() {
+            loop.execute(this::closeNow);
+        }
+
+        // links from other nodes and stream connections don't get chat messages or files
+        private boolean takesTraffic() { return node == null && stripe == null; }
+
+        // loop thread: something still to write, or a file still moving either way
+        private boolean busy() {
+            if (closed.get()) return false;
+            return current != null || batchStart < batched || !scheduler.isDrained()
+                    || assembler.hasActive() || fileOut != null;
+        }
+
+        private void scheduleWrite() {
+            if (writeScheduled.compareAndSet(false, true)) {
+                loop.execute(() -> {
+                    try { flush(); } catch (IOException | RuntimeException e) { fail(e); }
+                });
+            }
+        }
+
+        private void register() {
+            try {
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            sessions.put(id, this);
+            ChatMetrics.connectionOpened();
+            try {
+                Cluster c = cluster;
+                scheduler.enqueue(Frames.encodeHello(null, c == null ? null : c.nodeId()));
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            heartbeat.start();
+            listener.onConnect(this);
+        }
+
+        private void flush() throws IOException {
+            if (closed.get() || key == null) return;
+            while (true) {
+                if (batched == 0 && current == null) fillBatch();
+                if (batched > 0) {
+                    if (!writeBatch()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    continue;
+                }
+                if (current == null) break;
+                if (!current.writeTo(channel)) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                current.written();
+                current = null;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            writeScheduled.set(false);
+            // something may have been queued after the last poll
+            if (!scheduler.isEmpty()) scheduleWrite();
+        }
+
+        // takes frames until a file chunk turns up; that one waits in current until the batch is out
+        private void fillBatch() {
+            OutboundScheduler.Unit u;
+            while (batched < GATHER && (u = scheduler.poll()) != null) {
+                if (u.hasFileRegion()) {
+                    current = u;
+                    return;
+                }
+                batch[batched] = u;
+                heads[batched] = u.head();
+                batched++;
+            }
+        }
+
+        // one write(2) for many small frames; true once the whole batch is out
+        private boolean writeBatch() throws IOException {
+            while (batchStart < batched) {
+                long n = channel.write(heads, batchStart, batched - batchStart);
+                while (batchStart < batched && !heads[batchStart].hasRemaining()) {
+                    batch[batchStart].written();
+                    batch[batchStart] = null;
+                    heads[batchStart] = null;
+                    batchStart++;
+                }
+                if (n == 0 && batchStart < batched) return false;
+            }
+            batchStart = 0;
+            batched = 0;
+            return true;
+        }
+
+        private void onReadable() throws IOException {
+            heartbeat.read();
+            if (state == ReadState.FILE_BODY && inbound.position() == 0 && fileRemaining > 0) {
+                // nothing buffered: let the file pull straight from the socket
+                long t = fileOut.transferFrom(channel, filePos, fileRemaining);
+                if (t > 0) {
+                    filePos += t;
+                    fileRemaining -= t;
+                    if (fileProgress != null) fileProgress.onProgress(filePos, filePos + fileRemaining);
+                    if (fileRemaining == 0) {
+                        finishFile();
+                        decode();
+                    }
+                    return;
+                }
+                // 0 means nothing ready or EOF; the plain read below tells which
+            }
+            int n = channel.read(inbound);
+            if (n < 0) {
+                closeNow();
+                return;
+            }
+            if (n > 0) decode();
+        }
+
+        private void decode() throws IOException {
+            inbound.flip();
+            try {
+                boolean progress = true;
+                while (progress && !closed.get()) {
+                    switch (state) {
+                        case TYPE: {
+                            if (!inbound.hasRemaining()) { progress = false; break; }
+                            if (Frames.isBinary(inbound.get(inbound.position()) & 0xFF)) {
+                                progress = readFrame();
+                                break;
+                            }
+                            String type = readUTF();
+                            if (type == null) { progress = false; break; }
+                            ChatMetrics.frameIn(0, 0);
+                            if ("MSG".equals(type)) state = ReadState.MSG;
+                            else if ("FILE".equals(type)) state = ReadState.FILE_NAME;
+                            else if (Frames.LEGACY_HELLO.equals(type)) state = ReadState.HELLO;
+                            else System.out.println("Unknown data type received: " + type);
+                            break;
+                        }
+                        case HELLO: {
+                            String hello = readUTF();
+                            if (hello == null) { progress = false; break; }
+                            peerVersion = Frames.parseHelloVersion(hello);
+                            peerDeflate = Compression.negotiated(hello);
+                            scheduler.setPeerCompression(peerDeflate);
+                            heartbeat.peerHello(peerVersion, hello);
+                            String n = Frames.helloValue(hello, Frames.NAME_KEY);
+                            if (n != null && !n.isEmpty()) name = n.length() > RoomIndex.MAX_NAME ? n.substring(0, RoomIndex.MAX_NAME) : n;
+                            String nodeId = Frames.helloValue(hello, Frames.NODE_KEY);
+                            Cluster c = cluster;
+                            if (nodeId != null && (c == null || !(remote instanceof InetSocketAddress)
+                                    || !c.acceptsLink(((InetSocketAddress) remote).getAddress()))) {
+                                System.out.println(this + " says it is node " + nodeId + " but is no configured peer, serving it as a client");
+                                nodeId = null;
+                            }
+                            node = nodeId;
+                            String token = Frames.helloValue(hello, Frames.STREAM_KEY);
+                            if (token != null) {
+                                joinStream(token);
+                                state = ReadState.TYPE;
+                                break;
+                            }
+                            if (name != null && node == null) {
+                                online.join(name, this);
+                                if (Frames.supportsMail(peerVersion)) openMailbox();
+                            }
+                            state = ReadState.TYPE;
+                            break;
+                        }
+                        case MSG: {
+                            String msg = readUTF();
+                            if (msg == null) { progress = false; break; }
+                            state = ReadState.TYPE;
+                            listener.onMessage(this, msg);
+                            break;
+                        }
+                        case FILE_NAME: {
+                            fileName = readUTF();
+                            if (fileName == null) { progress = false; break; }
+                            state = ReadState.FILE_LENGTH;
+                            break;
+                        }
+                        case FILE_LENGTH: {
+                            if (inbound.remaining() < 8) { progress = false; break; }
+                            beginFile(fileName, inbound.getLong());
+                            break;
+                        }
+                        case FILE_BODY: {
+                            if (fileRemaining > 0) {
+                                if (!inbound.hasRemaining()) { progress = false; break; }
+                                int limit = inbound.limit();
+                                int take = (int) Math.min(inbound.remaining(), fileRemaining);
+                                inbound.limit(inbound.position() + take);
+                                while (inbound.hasRemaining()) filePos += fileOut.write(inbound, filePos);
+                                inbound.limit(limit);
+                                fileRemaining -= take;
+                                if (fileProgress != null) fileProgress.onProgress(filePos, filePos + fileRemaining);
+                            }
+                            if (fileRemaining <= 0) finishFile();
+                            break;
+                        }
+                    }
+                }
+            } finally {
+                inbound.compact();
+                if (needed > inbound.capacity()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(needed);
+                    inbound.flip();
+                    bigger.put(inbound);
+                    inbound = bigger;
+                }
+                needed = 0;
+            }
+        }
+
+        // one binary frame at the current position; false until all of it has arrived
+        private boolean readFrame() throws IOException {
+            int start = inbound.position();
+            int op = inbound.get(start) & 0xFF;
+            int end = Frames.varintEnd(inbound, start + 2);
+            if (end < 0) return false;
+            long len = Frames.getVarint(inbound, start + 2);
+            Frames.checkLength(len);
+            int frameEnd = end + (int) len;
+            if (frameEnd > inbound.limit()) {
+                needed = frameEnd - start;
+                return false;
+            }
+            ByteBuffer payload = inbound.duplicate();
+            payload.position(end).limit(frameEnd);
+            inbound.position(frameEnd);
+            ChatMetrics.frameIn(op, frameEnd - start);
+            int flags = inbound.get(start + 1) & 0xFF;
+            boolean compressed = (flags & Frames.FLAG_COMPRESSED) != 0;
+            if (compressed && op != Frames.OP_FILE_CHUNK) {
+                payload = ByteBuffer.wrap(Compression.inflate(payload, Frames.MAX_PAYLOAD));
+            }
+            switch (op) {
+                case Frames.OP_MSG:
+                    listener.onMessage(this, StandardCharsets.UTF_8.decode(payload).toString());
+                    break;
+                case Frames.OP_FILE: {
+                    Frames.FileHeader h = Frames.parseFileHeader(payload);
+                    fileName = h.name;
+                    beginFile(h.name, h.size);
+                    break;
+                }
+                case Frames.OP_FILE_BEGIN: {
+                    Frames.FileHeader h = Frames.parseFileBegin(payload);
+                    TransferAssembler.Incoming have = Frames.supportsDedup(peerVersion)
+                            ? assembler.existing(h.id, h.name, h.size, h.sha256) : null;
+                    if (have != null) {
+                        scheduler.enqueue(Frames.encodeIdValueFrame(Frames.OP_FILE_ACK, h.id, Frames.ACK_HAVE));
+                        listener.onFile(this, have.name, have.file);
+                        break;
+                    }
+                    if ((flags & Frames.FLAG_STREAMS) != 0 && MAX_STREAMS > 1 && takesTraffic()) {
+                        beginStreams(h);
+                        break;
+                    }
+                    long offset = assembler.begin(h.id, h.name, h.size, h.chunkSize, h.sha256);
+                    assembler.track(h.id, listener.onFileIncoming(this, h.name, h.size));
+                    scheduler.enqueue(Frames.encodeIdValueFrame(Frames.OP_FILE_ACCEPT, h.id, offset));
+                    break;
+                }
+                case Frames.OP_FILE_CHUNK: {
+                    long tid = Frames.getVarint(payload);
+                    long offset = Frames.getVarint(payload);
+                    int crc = payload.getInt();
+                    TransferAssembler.Stripe st = stripe;
+                    if (compressed) {
+                        int size = st != null ? st.chunkSize() : assembler.get(tid).chunkSize;
+                        if (inflateBuffer.length < size) inflateBuffer = new byte[size];
+                        payload = ByteBuffer.wrap(inflateBuffer, 0, Compression.inflateInto(payload, inflateBuffer));
+                    }
+                    if (st != null) {
+                        if (!st.chunk(offset, crc, payload)) closeNow(); // its transfer is over
+                        break;
+                    }
+                    long rewind = assembler.chunk(tid, offset, crc, payload);
+                    if (rewind >= 0) scheduler.enqueue(Frames.encodeIdValueFrame(Frames.OP_FILE_ACCEPT, tid, rewind));
+                    break;
+                }
+                case Frames.OP_FILE_RANGE: {
+                    TransferAssembler.Stripe st = stripe;
+                    if (st == null) throw Frames.protocolError("Range on a connection that isn't a stream");
+                    Frames.getVarint(payload); // token, known from the HELLO
+                    long offset = Frames.getVarint(payload);
+                    if (!st.end(offset, Frames.getVarint(payload))) closeNow();
+                    break;
+                }
+                case Frames.OP_FILE_END: {
+                    long tid = Frames.getVarint(payload);
+                    // a streamed transfer ends when its ranges are verified, not on the sender's word
+                    if (assembler.get(tid).ranges != null) throw Frames.protocolError("FILE_END for streamed transfer " + tid);
+                    fileEnded(assembler.end(tid));
+                    break;
+                }
+                case Frames.OP_FILE_ABORT:
+                    assembler.abort(Frames.getVarint(payload));
+                    break;
+                case Frames.OP_PING:
+                    break; // onReadable already noted it
+                case Frames.OP_JOIN: {
+                    String room = StandardCharsets.UTF_8.decode(payload).toString();
+                    if (node != null) {
+                        // a peer node telling us where it has members
+                        if (cluster != null) cluster.peerJoined(node, this, room);
+                    } else if (!RoomIndex.isValidName(room)) {
+                        System.out.println(this + " asked to join a bad room name");
+                    } else if (joined.size() >= MAX_ROOMS && !joined.contains(room)) {
+                        System.out.println(this + " is already in " + MAX_ROOMS + " rooms, not joining " + room);
+                    } else if (joined.add(room)) {
+                        rooms.join(room, this);
+                        if (cluster != null) cluster.roomChanged(room);
+                    }
+                    break;
+                }
+                case Frames.OP_LEAVE: {
+                    String room = StandardCharsets.UTF_8.decode(payload).toString();
+                    if (node != null) {
+                        if (cluster != null) cluster.peerLeft(node, this, room);
+                    } else if (joined.remove(room)) {
+                        rooms.leave(room, this);
+                        if (cluster != null) cluster.roomChanged(room);
+                    }
+                    break;
+                }
+                case Frames.OP_RELAY: {
+                    if (node == null || cluster == null) break;
+                    scheduler.enqueue(Frames.encodeIdFrame(Frames.OP_RELAY_ACK, cluster.receive(payload)));
+                    break;
+                }
+                case Frames.OP_ROOM_MSG: {
+                    Frames.RoomMessage m = Frames.parseRoomMessage(payload);
+                    // only members talk in a room
+                    if (!joined.contains(m.room)) break;
+                    sendToRoom(m.room, m.text, this);
+                    listener.onRoomMessage(this, m.room, m.text);
+                    break;
+                }
+                case Frames.OP_DIRECT: {
+                    String to = Frames.getString(payload);
+                    String text = StandardCharsets.UTF_8.decode(payload).toString();
+                    if (sendDirect(to, text, this) < 0) scheduler.enqueue(encode("No user named " + to));
+                    break;
+                }
+                case Frames.OP_MAIL_ACK: {
+                    long seq = Frames.getVarint(payload);
+                    if (mailbox != null && seq > mailTaken) {
+                        mailTaken = Math.min(seq, mailNext - 1);
+                        confirmMail();
+                    }
+                    break;
+                }
+                case Frames.OP_FILE_ACCEPT: {
+                    long tid = Frames.getVarint(payload);
+                    scheduler.accept(tid, Frames.getVarint(payload));
+                    break;
+                }
+                case Frames.OP_FILE_ACK: {
+                    long tid = Frames.getVarint(payload);
+                    scheduler.ack(tid, (int) Frames.getVarint(payload));
+                    break;
+                }
+                case Frames.OP_REPLAY: {
+                    long from = Frames.getVarint(payload);
+                    replay(from, (int) Math.min(Frames.getVarint(payload), REPLAY_MAX));
+                    break;
+                }
+                default:
+                    // newer opcode we don't know; the length prefix let us skip it
+                    break;
+            }
+            return true;
+        }
+
+        // answers FILE_STREAMS instead of FILE_ACCEPT; the ranges come in on other sessions
+        private void beginStreams(Frames.FileHeader h) throws IOException {
+            long tid = h.id;
+            long token = assembler.beginStreams(tid, h.name, h.size, h.chunkSize, h.sha256, new TransferAssembler.RangeListener() {
+                public void onResend(long offset) {
+                    scheduler.enqueue(Frames.encodeIdValueFrame(Frames.OP_FILE_ACCEPT, tid, offset));
+                }
+                public void onRangesDone() {
+                    loop.execute(() -> {
+                        if (closed.get()) return;
+                        try {
+                            fileEnded(assembler.end(tid));
+                        } catch (IOException | RuntimeException e) {
+                            fail(e);
+                        }
+                    });
+                }
+            });
+            assembler.track(tid, listener.onFileIncoming(this, h.name, h.size));
+            scheduler.enqueue(Frames.encodeFileStreams(tid, token, MAX_STREAMS));
+        }
+
+        // a stream connection's HELLO: from now on it only carries ranges
+        private void joinStream(String token) throws IOException {
+            TransferAssembler.Stripe st;
+            try {
+                st = TransferAssembler.stripe(Long.parseLong(token));
+            } catch (NumberFormatException e) {
+                throw Frames.protocolError("Bad stream token");
+            }
+            if (st == null) throw new IOException("No transfer waiting for stream " + token);
+            stripe = st;
+        }
+
+        private void fileEnded(TransferAssembler.Incoming t) {
+            scheduler.enqueue(Frames.encodeIdValueFrame(Frames.OP_FILE_ACK, t.id,
+                    t.ok ? Frames.ACK_OK : Frames.ACK_CORRUPT));
+            if (t.ok) listener.onFile(this, t.name, t.file);
+            else listener.onError(this, new IOException("Checksum mismatch on " + t.name + ", discarded"));
+        }
+
+        // only one session at a time reads a mailbox and acks it; another one under the same
+        // name goes without until the holder leaves (see handOffMailbox)
+        private void openMailbox() {
+            Mailboxes m = mailboxes;
+            if (m == null || closed.get() || mailbox != null) return;
+            if (mailOwners.putIfAbsent(name, this) != null) {
+                System.out.println("Mailbox of " + name + " is already open on another connection, not for " + this);
+                try {
+                    scheduler.enqueue(encode("Your mailbox is open on another connection; direct messages go there."));
+                } catch (IOException ignored) {}
+                return;
+            }
+            try {
+                mailbox = m.open(name);
+            } catch (IOException e) {
+                mailOwners.remove(name, this);
+                System.out.println("Mailbox of " + name + " unavailable: " + e.getMessage());
+                return;
+            }
+            mailTaken = mailbox.acked();
+            mailNext = mailTaken + 1;
+            pumpMail();
+        }
+
+        // the next stretch of the mailbox, read in one go and queued as MAIL frames
+        private void pumpMail() {
+            if (mailbox == null || closed.get()) return;
+            long room = MAIL_WINDOW - (mailNext - 1 - mailTaken);
+            if (room <= 0) return;
+            List<Mailboxes.Entry> batch;
+            try {
+                batch = mailbox.read(mailNext, (int) room, MAIL_BATCH_BYTES);
+            } catch (IOException e) {
+                System.out.println("Reading the mailbox of " + name + " failed: " + e.getMessage());
+                return;
+            }
+            for (Mailboxes.Entry e : batch) {
+                scheduler.enqueue(compress(Frames.encodeMail(e.seq, e.time, e.kind, e.from, e.text, e.size)));
+                if (e.kind == Mailboxes.FILE) sendMailFile(e);
+                mailNext = e.seq + 1;
+            }
+        }
+
+        // a FILE entry only counts as delivered once the client has confirmed the file itself
+        private void sendMailFile(Mailboxes.Entry e) {
+            File file = new File(e.path);
+            if (!file.isFile()) return; // gone from this server, the offer is all there is
+            long seq = e.seq;
+            mailFiles.add(seq);
+            digesting.incrementAndGet();
+            ChatExecutors.start("File-Digest", () -> {
+                CompletableFuture<Void> done;
+                try {
+                    OutboundScheduler.Source src = OutboundScheduler.Source.open(file, e.text);
+                    try {
+                        done = scheduler.enqueueFile(src, null, peerVersion);
+                    } finally {
+                        src.release();
+                    }
+                } catch (IOException ex) {
+                    done = CompletableFuture.failedFuture(ex);
+                } finally {
+                    digesting.decrementAndGet();
+                }
+                done.whenComplete((v, ex) -> loop.execute(() -> {
+                    // a failed one stays in the mailbox for the next connection
+                    if (ex == null && mailFiles.remove(seq)) confirmMail();
+                }));
+            });
+        }
+
+        // what this session took but didn't ack goes out again to whichever of the user's other sessions gets it next
+        private void handOffMailbox(String n) {
+            mailbox = null;
+            mailOwners.remove(n, this);
+            for (Session s : online.members(n)) {
+                if (Frames.supportsMail(s.peerVersion)) s.loop.execute(s::openMailbox);
+            }
+        }
+
+        // truncates the mailbox up to what the client took, short of any file still on its way
+        private void confirmMail() {
+            if (mailbox == null) return; // handed off meanwhile
+            long upTo = mailFiles.isEmpty() ? mailTaken : Math.min(mailTaken, mailFiles.first() - 1);
+            try {
+                mailbox.ack(upTo);
+            } catch (IOException e) {
+                System.out.println("Mailbox ack for " + name + " failed: " + e.getMessage());
+            }
+            pumpMail();
+        }
+
+        // history up to (not including) the first message this session already got live
+        private void replay(long from, int max) {
+            MessageJournal j = journal;
+            if (j == null || max <= 0) return;
+            publishLock.lock();
+            try {
+                long upTo = liveFrom > 0 ? liveFrom - 1 : j.lastSeq();
+                if (from == 0) from = upTo - max + 1;
+                for (MessageJournal.Entry e : j.read(from, max)) {
+                    if (e.seq > upTo) break;
+                    scheduler.enqueue(Frames.encodeSequenced(e.seq, e.time, e.text, true));
+                }
+            } finally {
+                publishLock.unlock();
+            }
+        }
+
+        private void beginFile(String name, long size) throws IOException {
+            if (size < 0) throw Frames.protocolError("Negative file size " + size);
+            fileRemaining = size;
+            filePos = 0;
+            fileTarget = createReceivedFile(name);
+            fileOut = FileChannel.open(fileTarget.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            fileProgress = listener.onFileIncoming(this, name, size);
+            if (fileProgress != null) fileProgress.onProgress(0, size);
+            state = ReadState.FILE_BODY;
+        }
+
+        private void finishFile() throws IOException {
+            fileOut.close();
+            fileOut = null;
+            if (fileProgress != null) fileProgress.onDone(true);
+            fileProgress = null;
+            state = ReadState.TYPE;
+            listener.onFile(this, fileName, fileTarget);
+        }
+
+        // returns null until the whole string has arrived
+        private String readUTF() throws IOException {
+            if (inbound.remaining() < 2) return null;
+            int len = inbound.getShort(inbound.position()) & 0xFFFF;
+            if (inbound.remaining() < 2 + len) {
+                needed = 2 + len;
+                return null;
+            }
+            byte[] raw = new byte[2 + len];
+            inbound.get(raw);
+            return new DataInputStream(new ByteArrayInputStream(raw)).readUTF();
+        }
+
+        private void fail(Exception e) {
+            if (closed.get()) return;
+            ChatMetrics.error(ChatMetrics.Cause.CONNECTION_LOST);
+            try { listener.onError(this, e); } catch (RuntimeException ignored) {}
+            closeNow();
+        }
+
+        private void closeNow() {
+            if (!closed.compareAndSet(false, true)) return;
+            heartbeat.stop();
+            Cluster c = cluster;
+            for (String room : joined) {
+                rooms.leave(room, this);
+                if (c != null) c.roomChanged(room);
+            }
+            joined.clear();
+            if (node != null && c != null) c.peerGone(node, this);
+            String n = name;
+            if (n != null && node == null) online.leave(n, this);
+            if (mailbox != null) handOffMailbox(n);
+            if (key != null) key.cancel();
+            try { channel.close(); } catch (IOException ignored) {}
+            if (fileOut != null) try { fileOut.close(); } catch (IOException ignored) {}
+            if (fileProgress != null) fileProgress.onDone(false);
+            assembler.closeAll();
+            if (stripe != null) stripe.lost();
+            IOException cause = new IOException("Connection closed");
+            if (current != null) current.fail(cause);
+            for (int i = batchStart; i < batched; i++) batch[i].fail(cause);
+            scheduler.close(cause);
+            if (sessions.remove(id) != null) {
+                ChatMetrics.connectionClosed();
+                try { listener.onDisconnect(this); } catch (RuntimeException ignored) {}
+            }
+        }
+
+        @Override
+        public String toString() { return "Client #" + id; }
+    }
+}
@@ -0,0 +1,774 @@
+// OutboundScheduler.java
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Per-connection outbound queue, shared by FramedConnection and NioChatServer.
+ *
+ * Chat and control frames always go first. File transfers are cut into chunks and
+ * served round-robin, one chunk per turn, so a message waits behind at most one chunk
+ * no matter how many large files are in flight.
+ *
+ * Resumable transfers (see Frames, version 4) sit out of the rotation until the peer's
+ * FILE_ACCEPT says where to start, and again after FILE_END until its FILE_ACK.
+ *
+ * Chat messages are bounded: once more than chat.outboundLimit bytes of them are
+ * waiting, the OverflowPolicy decides between blocking the sender, dropping the oldest
+ * queued messages, or giving up on the peer. Control frames are tiny and always queued,
+ * and files are only read a chunk at a time, so neither needs a bound. Senders that must
+ * not wait (offerMessage, shared fan-out) are parked in order instead of blocking and
+ * move up as the writer makes room; past another HIGH_WATER of parked bytes they are
+ * refused.
+ *
+ * Once the peer has agreed to compression, chunks of files that are worth it are read
+ * onto the heap and deflated here (see Compression) instead of going out zero-copy.
+ *
+ * A big file to a peer that takes parallel transfers (Frames, version 12) is offered with
+ * FLAG_STREAMS. If the peer answers FILE_STREAMS its bytes go out through a
+ * ParallelTransfer on connections of their own, and the transfer only stays here to
+ * be confirmed; if it answers FILE_ACCEPT it is sent here in chunks like any other.
+ *
+ * A blocking writer thread calls take(); the NIO event loop calls poll() after being
+ * told through onReady that something was queued.
+ */
+final class OutboundScheduler {
+    static final int CHUNK_SIZE = ChatConfig.getInt("chat.chunkSize", 64 * 1024);
+    static final long HIGH_WATER = ChatConfig.getLong("chat.outboundLimit", 4L * 1024 * 1024);
+
+    /** What happens to a message that would take the queue past its high-water mark. */
+    enum OverflowPolicy {
+        BLOCK,        // sender waits until the writer has made room
+        DROP_OLDEST,  // oldest queued messages are discarded
+        DISCONNECT;   // the connection is closed
+
+        /** Parses -Dchat.slowConsumer, falling back to def. */
+        static OverflowPolicy fromConfig(OverflowPolicy def) {
+            String s = ChatConfig.get("chat.slowConsumer", def.name());
+            try {
+                return valueOf(s.toUpperCase(java.util.Locale.ROOT).replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Unknown chat.slowConsumer policy '" + s + "', using " + def.name().toLowerCase() + ".");
+                return def;
+            }
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = lock.newCondition();
+    private final Condition space = lock.newCondition();
+    private final ArrayDeque<Unit> frames = new ArrayDeque<>();
+    private final ArrayDeque<Unit> parked = new ArrayDeque<>(); // BLOCK policy, waiting for room without a thread
+    private final ArrayDeque<Transfer> transfers = new ArrayDeque<>();
+    private final Map<Long, Transfer> byId = new HashMap<>();
+    private final Runnable onReady;
+    private final OverflowPolicy policy;
+    private final BooleanSupplier mayBlock;
+    private final Consumer<IOException> onOverflow;
+    private long queuedBytes;
+    private long parkedBytes;
+    private long dropped;
+    private IOException closedCause;
+    private long nextTransferId = 1;
+    private volatile boolean peerCompression;
+    private volatile boolean peerStreams;
+    private volatile long lastTaken = System.nanoTime();
+
+    OutboundScheduler(Runnable onReady) {
+        this(onReady, OverflowPolicy.BLOCK, () -> true, null);
+    }
+
+    /**
+     * @param policy     what to do past HIGH_WATER
+     * @param mayBlock   false on threads that must never wait (event loops); BLOCK then disconnects instead
+     * @param onOverflow told when the policy gave up on the peer, so the owner can close the socket
+     */
+    OutboundScheduler(Runnable onReady, OverflowPolicy policy, BooleanSupplier mayBlock, Consumer<IOException> onOverflow) {
+        this.onReady = onReady;
+        this.policy = policy;
+        this.mayBlock = mayBlock;
+        this.onOverflow = onOverflow;
+    }
+
+    /** Set once the peer's HELLO offered compression; applies to files queued from then on. */
+    void setPeerCompression(boolean on) {
+        peerCompression = on;
+    }
+
+    /** Set once the peer's HELLO shows it takes parallel transfers; applies to files queued from then on. */
+    void setPeerStreams(boolean on) {
+        peerStreams = on;
+    }
+
+    /** Queues an encoded control frame; completes once it has been handed to the socket. */
+    CompletableFuture<Void> enqueue(byte[] frame) {
+        Unit u = new Unit(ByteBuffer.wrap(frame), null, 0, 0, null);
+        u.done = new CompletableFuture<>();
+        add(u, null);
+        return u.done;
+    }
+
+    /** Queues a chat message, subject to the high-water mark; completes once written (or dropped). */
+    CompletableFuture<Void> enqueueMessage(byte[] frame) {
+        Unit u = new Unit(ByteBuffer.wrap(frame), null, 0, 0, null);
+        u.done = new CompletableFuture<>();
+        u.droppable = true;
+        add(u, null);
+        return u.done;
+    }
+
+    /**
+     * Like enqueueMessage, but never waits: under BLOCK a message that doesn't fit is
+     * parked and the future completes once it has been written after all.
+     */
+    CompletableFuture<Void> offerMessage(byte[] frame) {
+        Unit u = new Unit(ByteBuffer.wrap(frame), null, 0, 0, null);
+        u.done = new CompletableFuture<>();
+        u.droppable = true;
+        u.parks = true;
+        add(u, null);
+        return u.done;
+    }
+
+    /**
+     * Queues a message that was encoded once for many connections. Each queue gets its
+     * own view of the buffer, the bytes are never copied; nobody waits on the result,
+     * and one slow peer doesn't hold up the others (it is parked, not waited for).
+     */
+    void enqueueShared(ByteBuffer frame) {
+        Unit u = new Unit(frame.duplicate(), null, 0, 0, null);
+        u.droppable = true;
+        u.parks = true;
+        add(u, null);
+    }
+
+    /**
+     * Queues a file. Peers that understand chunks get it interleaved with everything
+     * else; older peers get one contiguous header + body, as before.
+     *
+     * For chunked transfers this reads the whole file once to checksum it, so call it
+     * from a thread that may block on disk.
+     * The future completes once the peer has confirmed the file (or, for old peers,
+     * once it has been written).
+     */
+    CompletableFuture<Void> enqueueFile(File file, FramedConnection.Progress progress, int peerVersion) throws IOException {
+        Source src = Source.open(file);
+        try {
+            return enqueueFile(src, progress, peerVersion);
+        } finally {
+            src.release();
+        }
+    }
+
+    /** Same, for a file that is going out to several connections at once. */
+    CompletableFuture<Void> enqueueFile(Source src, FramedConnection.Progress progress, int peerVersion) throws IOException {
+        if (Frames.supportsChunks(peerVersion)) {
+            FileChecksums checks = src.checksums();
+            long id;
+            lock.lock();
+            try { id = nextTransferId++; } finally { lock.unlock(); }
+            Transfer t = new Transfer(id, src.retain(), progress, checks);
+            if (peerCompression && src.worthCompressing()) t.zip = new Compression.FileStats();
+            t.offersStreams = peerStreams && ParallelTransfer.wanted(src.size);
+            add(null, t);
+            return t.done;
+        }
+        Transfer t = new Transfer(0, src.retain(), progress, null);
+        byte[] header = Frames.encodeFileHeader(src.name, src.size, peerVersion >= 2);
+        Unit blob = new Unit(ByteBuffer.wrap(header), src.channel, 0, src.size, t);
+        blob.last = true;
+        add(blob, null);
+        return t.done;
+    }
+
+    private void add(Unit u, Transfer t) {
+        if (u != null) u.queuedAt = System.nanoTime();
+        List<Unit> evicted = null;
+        IOException overflow = null;
+        IOException rejected = null;
+        lock.lock();
+        try {
+            if (u != null && u.droppable && (!parked.isEmpty() || !fits(u))) {
+                OverflowPolicy p = policy == OverflowPolicy.BLOCK && !u.parks && !mayBlock.getAsBoolean()
+                        ? OverflowPolicy.DISCONNECT : policy;
+                if (p == OverflowPolicy.BLOCK && u.parks) {
+                    if (closedCause == null && parkedBytes + u.size <= HIGH_WATER) {
+                        parked.add(u);
+                        parkedBytes += u.size;
+                        ChatMetrics.parked(u.size);
+                        return;
+                    }
+                    if (u.done != null && closedCause != null) {
+                        rejected = closedCause;
+                    } else if (u.done != null) {
+                        rejected = new IOException("Send queue full: more than " + 2 * HIGH_WATER + " bytes waiting");
+                        ChatMetrics.error(ChatMetrics.Cause.OVERFLOW);
+                    } else {
+                        // a fan-out nobody is waiting on: treat the peer as a slow consumer
+                        overflow = new IOException("Slow consumer: more than " + 2 * HIGH_WATER + " bytes queued");
+                    }
+                } else if (p == OverflowPolicy.BLOCK) {
+                    try {
+                        while (closedCause == null && (!parked.isEmpty() || !fits(u))) space.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        rejected = new InterruptedIOException("Interrupted while waiting for queue space");
+                    }
+                } else if (p == OverflowPolicy.DROP_OLDEST) {
+                    evicted = dropOldest(u.size);
+                } else {
+                    overflow = new IOException("Slow consumer: more than " + HIGH_WATER + " bytes queued");
+                }
+            }
+            if (rejected == null && (overflow != null || closedCause != null)) {
+                // closed before or while we were waiting
+                rejected = overflow != null ? overflow : closedCause;
+            } else if (rejected == null) {
+                if (u != null) {
+                    frames.add(u);
+                    queuedBytes += u.size;
+                    ChatMetrics.queued(1, u.size);
+                }
+                if (t != null) {
+                    byId.put(t.id, t);
+                    t.inRotation = true;
+                    transfers.add(t);
+                }
+                ready.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (evicted != null) {
+            ChatMetrics.error(ChatMetrics.Cause.DROPPED, evicted.size());
+            IOException cause = new IOException("Dropped: peer is reading too slowly");
+            for (Unit old : evicted) old.fail(cause);
+        }
+        if (overflow != null) {
+            ChatMetrics.error(ChatMetrics.Cause.OVERFLOW);
+            close(overflow);
+            if (onOverflow != null) onOverflow.accept(overflow);
+        }
+        if (rejected != null) {
+            if (u != null) u.fail(rejected);
+            if (t != null) t.fail(rejected);
+            return;
+        }
+        if (onReady != null) onReady.run();
+    }
+
+    private boolean fits(Unit u) {
+        return queuedBytes == 0 || queuedBytes + u.size <= HIGH_WATER;
+    }
+
+    // moves parked messages into the queue, in order, as far as there is room; under lock
+    private void admitParked() {
+        Unit u;
+        while ((u = parked.peek()) != null && fits(u)) {
+            parked.poll();
+            parkedBytes -= u.size;
+            frames.add(u);
+            queuedBytes += u.size;
+            ChatMetrics.parked(-u.size);
+            ChatMetrics.queued(1, u.size);
+        }
+    }
+
+    // removes queued messages, oldest first, until size more bytes fit; control frames stay
+    private List<Unit> dropOldest(long size) {
+        List<Unit> evicted = new ArrayList<>();
+        Iterator<Unit> it = frames.iterator();
+        while (queuedBytes + size > HIGH_WATER && it.hasNext()) {
+            Unit old = it.next();
+            if (!old.droppable) continue;
+            it.remove();
+            queuedBytes -= old.size;
+            ChatMetrics.queued(-1, -old.size);
+            evicted.add(old);
+        }
+        dropped += evicted.size();
+        return evicted;
+    }
+
+    /** Messages thrown away by DROP_OLDEST so far. */
+    long droppedCount() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Next unit to write, or null if there is nothing to do. */
+    Unit poll() {
+        lock.lock();
+        try {
+            if (closedCause != null) return null;
+            Unit u = frames.poll();
+            if (u != null) {
+                lastTaken = System.nanoTime();
+                queuedBytes -= u.size;
+                ChatMetrics.queued(-1, -u.size);
+                if (!parked.isEmpty()) admitParked();
+                space.signalAll();
+                return u;
+            }
+            for (int n = transfers.size(); n > 0; n--) {
+                Transfer t = transfers.poll();
+                u = t.next();
+                if (t.wantsTurn()) transfers.add(t);
+                else t.inRotation = false;
+                if (u != null) {
+                    lastTaken = System.nanoTime();
+                    return u;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Peer's FILE_ACCEPT: start (or restart, after a bad chunk) transfer id at offset. For
+     * a transfer going over streams: send the range at offset again.
+     */
+    void accept(long id, long offset) {
+        lock.lock();
+        try {
+            Transfer t = byId.get(id);
+            if (t == null || t.checks == null) return;
+            if (t.parallel != null) {
+                t.parallel.resend(offset);
+                return;
+            }
+            t.restartAt(offset);
+            if (!t.inRotation) {
+                t.inRotation = true;
+                transfers.add(t);
+            }
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (onReady != null) onReady.run();
+    }
+
+    /**
+     * Peer's FILE_STREAMS: it takes transfer id over up to streams connections to peer,
+     * presenting token. The transfer stays here for its FILE_ACK.
+     */
+    void streams(long id, long token, int streams, InetSocketAddress peer) {
+        Transfer t;
+        lock.lock();
+        try {
+            t = byId.get(id);
+            if (t == null || !t.offersStreams || t.accepted || t.parallel != null) return;
+            t.parallel = new ParallelTransfer(t.source, t.checks, token, Math.min(streams, ParallelTransfer.STREAMS),
+                    peer, t.progress, e -> abort(id, e));
+        } finally {
+            lock.unlock();
+        }
+        t.parallel.start();
+    }
+
+    /** Gives up on transfer id from this side; the peer is told to drop what it has. */
+    void abort(long id, IOException cause) {
+        Transfer t;
+        lock.lock();
+        try {
+            t = byId.remove(id);
+        } finally {
+            lock.unlock();
+        }
+        if (t == null) return;
+        enqueue(Frames.encodeIdFrame(Frames.OP_FILE_ABORT, id));
+        t.fail(cause);
+    }
+
+    /** Peer's FILE_ACK: the transfer is finished one way or the other. */
+    void ack(long id, int status) {
+        Transfer t;
+        lock.lock();
+        try {
+            t = byId.remove(id);
+        } finally {
+            lock.unlock();
+        }
+        if (t == null) return;
+        if (status == Frames.ACK_OK || status == Frames.ACK_HAVE) t.complete();
+        else t.fail(new IOException("Peer rejected " + t.name + ": checksum mismatch"));
+    }
+
+    /** Blocks until there is a unit to write; null once the scheduler is closed. */
+    Unit take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                if (closedCause != null) return null;
+                Unit u = poll();
+                if (u != null) return u;
+                ready.await(1, TimeUnit.SECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** How long the writer has gone without taking anything, for heartbeats. */
+    long idleNanos(long now) {
+        return now - lastTaken;
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return frames.isEmpty() && transfers.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Nothing queued or parked, and no transfer still waiting for the peer's FILE_ACCEPT or FILE_ACK. */
+    boolean isDrained() {
+        lock.lock();
+        try {
+            return frames.isEmpty() && parked.isEmpty() && transfers.isEmpty() && byId.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Fails everything still queued; later enqueues fail straight away. */
+    void close(IOException cause) {
+        List<Unit> units;
+        List<Transfer> open;
+        lock.lock();
+        try {
+            if (closedCause != null) return;
+            closedCause = cause;
+            ChatMetrics.queued(-frames.size(), -queuedBytes);
+            ChatMetrics.parked(-parkedBytes);
+            units = new ArrayList<>(frames);
+            units.addAll(parked);
+            open = new ArrayList<>(byId.values());
+            frames.clear();
+            parked.clear();
+            parkedBytes = 0;
+            transfers.clear();
+            byId.clear();
+            queuedBytes = 0;
+            ready.signalAll();
+            space.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        // outside the lock: these complete futures and run callbacks, and a parallel transfer closes its sockets
+        for (Unit u : units) u.fail(cause);
+        for (Transfer t : open) t.fail(cause);
+    }
+
+    // ---------------------------------------------------------------- units
+
+    /** One write: a header and optionally a region of a file that follows it on the wire. */
+    static final class Unit {
+        private final ByteBuffer head;
+        private final FileChannel file;
+        private long filePos;
+        private long fileLeft;
+        private final Transfer owner;
+        private CompletableFuture<Void> done;
+        private boolean last;
+        private boolean droppable;
+        private boolean parks;  // waits in the parked queue rather than blocking its sender
+        private int rawCount;   // file bytes carried inline (a chunk read onto the heap)
+        private final int size;
+        private final int slot;   // ChatMetrics counter for its opcode
+        private final long wire;  // bytes it puts on the wire
+        private long queuedAt;
+
+        Unit(ByteBuffer head, FileChannel file, long filePos, long length, Transfer owner) {
+            this.head = head;
+            this.size = head.remaining();
+            this.slot = size == 0 ? 0 : ChatMetrics.slot(head.get(head.position()) & 0xFF);
+            this.wire = size + length;
+            this.file = file;
+            this.filePos = filePos;
+            this.fileLeft = length;
+            this.owner = owner;
+        }
+
+        boolean hasFileRegion() { return fileLeft > 0; }
+
+        /** The bytes to write when there is no file region; lets the NIO writer gather several units. */
+        ByteBuffer head() { return head; }
+
+        /** Writes as much as the channel takes; true once everything is out. */
+        boolean writeTo(WritableByteChannel ch) throws IOException {
+            while (head.hasRemaining()) {
+                if (ch.write(head) == 0) return false;
+            }
+            while (fileLeft > 0) {
+                long n = file.transferTo(filePos, fileLeft, ch);
+                if (n == 0) {
+                    if (file.size() <= filePos) throw new EOFException("File shrank while sending");
+                    return false;
+                }
+                advance(n);
+            }
+            return true;
+        }
+
+        /** Just the header, for writers that push it through a buffered stream first. */
+        void writeHead(OutputStream out) throws IOException {
+            if (head.hasArray()) {
+                out.write(head.array(), head.arrayOffset() + head.position(), head.remaining());
+                head.position(head.limit());
+            } else {
+                // shared frames are read-only views
+                byte[] copy = new byte[head.remaining()];
+                head.get(copy);
+                out.write(copy);
+            }
+        }
+
+        /** Stream path: header, then the file region copied through scratch. */
+        void writeTo(OutputStream out, byte[] scratch) throws IOException {
+            writeHead(out);
+            ByteBuffer buf = ByteBuffer.wrap(scratch);
+            while (fileLeft > 0) {
+                buf.clear();
+                buf.limit((int) Math.min(scratch.length, fileLeft));
+                int r = file.read(buf, filePos);
+                if (r < 0) throw new EOFException("File shrank while sending");
+                out.write(scratch, 0, r);
+                advance(r);
+            }
+        }
+
+        private void advance(long n) {
+            filePos += n;
+            fileLeft -= n;
+            if (owner != null) owner.sent(n);
+        }
+
+        /** Called by the writer after the unit went out completely. */
+        void written() {
+            ChatMetrics.frameOut(slot, wire);
+            if (droppable) ChatMetrics.sendLatency(System.nanoTime() - queuedAt);
+            if (rawCount > 0 && owner != null) owner.sent(rawCount);
+            if (done != null) done.complete(null);
+            if (last && owner != null) owner.complete();
+        }
+
+        void fail(IOException cause) {
+            if (done != null) done.completeExceptionally(cause);
+            if (owner != null) owner.fail(cause);
+        }
+    }
+
+    /**
+     * An open file plus its checksums, shared by every transfer that sends it. Reads are
+     * positional so the transfers don't disturb each other; the channel is closed when
+     * the last one lets go.
+     */
+    static final class Source {
+        final File file;
+        final String name;
+        final FileChannel channel;
+        final long size;
+        private final AtomicInteger refs = new AtomicInteger(1);
+        private FileChecksums checks;
+        private Boolean compressible;
+
+        private Source(File file, String name, FileChannel channel, long size) {
+            this.file = file;
+            this.name = name;
+            this.channel = channel;
+            this.size = size;
+        }
+
+        static Source open(File file) throws IOException {
+            return open(file, file.getName());
+        }
+
+        /** name is what the peer is told, e.g. the original name of a file being relayed. */
+        static Source open(File file, String name) throws IOException {
+            FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            return new Source(file, name, fc, fc.size());
+        }
+
+        /** Computed on first use only, however many peers the file goes to (or how often). */
+        synchronized FileChecksums checksums() throws IOException {
+            if (checks == null) checks = FileChecksums.forFile(file, channel, size, CHUNK_SIZE);
+            return checks;
+        }
+
+        /** False for formats that are compressed already; looked at once. */
+        synchronized boolean worthCompressing() throws IOException {
+            if (compressible == null) compressible = Compression.worthTrying(channel);
+            return compressible;
+        }
+
+        Source retain() {
+            refs.incrementAndGet();
+            return this;
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                try { channel.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    private static final class Transfer {
+        final long id;
+        final String name;
+        final Source source;
+        final FileChannel file;
+        final long size;
+        final FramedConnection.Progress progress;
+        final FileChecksums checks;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        Compression.FileStats zip;   // null unless chunks may be compressed
+        boolean offersStreams;       // FILE_BEGIN carries FLAG_STREAMS
+        volatile ParallelTransfer parallel; // once the peer took it over streams
+        long queued;     // bytes already cut into chunks
+        volatile long sent;       // bytes actually written
+        boolean begun;
+        boolean accepted;
+        boolean endQueued;
+        boolean inRotation;
+        private boolean released;
+        private boolean settled;
+        private final long started = System.nanoTime();
+
+        Transfer(long id, Source source, FramedConnection.Progress progress, FileChecksums checks) {
+            this.id = id;
+            this.name = source.name;
+            this.source = source;
+            this.file = source.channel;
+            this.size = source.size;
+            this.progress = progress;
+            this.checks = checks;
+            ChatMetrics.transferOut(1);
+        }
+
+        boolean wantsTurn() {
+            return !begun || (accepted && !endQueued);
+        }
+
+        void restartAt(long offset) {
+            // only whole chunks can be resumed, anything past the last boundary is sent again
+            long aligned = Math.min(offset, size) / checks.chunkSize * checks.chunkSize;
+            queued = aligned;
+            sent = aligned;
+            accepted = true;
+            endQueued = false;
+        }
+
+        Unit next() {
+            if (!begun) {
+                begun = true;
+                return new Unit(ByteBuffer.wrap(Frames.encodeFileBegin(id, name, size, checks.chunkSize, checks.sha256,
+                        offersStreams ? Frames.FLAG_STREAMS : 0)), null, 0, 0, this);
+            }
+            if (!accepted) return null;
+            if (queued < size) {
+                int len = (int) Math.min(checks.chunkSize, size - queued);
+                if (zip != null && zip.active()) {
+                    Unit u = compressedChunk(len);
+                    if (u != null) {
+                        queued += len;
+                        return u;
+                    }
+                }
+                byte[] head = Frames.encodeChunkHeader(id, queued, checks.crcForOffset(queued), len);
+                Unit u = new Unit(ByteBuffer.wrap(head), file, queued, len, this);
+                queued += len;
+                return u;
+            }
+            endQueued = true;
+            return new Unit(ByteBuffer.wrap(Frames.encodeIdFrame(Frames.OP_FILE_END, id)), null, 0, 0, this);
+        }
+
+        // the chunk read onto the heap and deflated; sent as read if it doesn't shrink
+        // enough, null if it can't be read (the zero-copy path will report the error)
+        private Unit compressedChunk(int len) {
+            byte[] raw = new byte[len];
+            ByteBuffer b = ByteBuffer.wrap(raw);
+            try {
+                while (b.hasRemaining()) {
+                    if (file.read(b, queued + b.position()) < 0) return null;
+                }
+            } catch (IOException e) {
+                return null;
+            }
+            int crc = checks.crcForOffset(queued);
+            byte[] packed = Compression.deflate(raw, 0, len, true);
+            zip.record(len, packed == null ? len : packed.length);
+            byte[] frame = packed != null
+                    ? Frames.encodeChunk(id, queued, crc, Frames.FLAG_COMPRESSED, packed, packed.length)
+                    : Frames.encodeChunk(id, queued, crc, 0, raw, len);
+            Unit u = new Unit(ByteBuffer.wrap(frame), null, 0, 0, this);
+            u.rawCount = len;
+            return u;
+        }
+
+        void sent(long n) {
+            sent += n;
+            if (progress != null) progress.onProgress(Math.min(sent, size), size);
+        }
+
+        void complete() {
+            if (!settle()) return;
+            if (parallel != null) parallel.finish();
+            closeFile();
+            ChatMetrics.fileSent(size, System.nanoTime() - started);
+            if (progress != null && (size == 0 || sent < size)) progress.onProgress(size, size); // HAVE skips it all
+            if (progress != null) progress.onDone(true);
+            done.complete(null);
+        }
+
+        void fail(IOException cause) {
+            if (!settle()) return;
+            if (parallel != null) parallel.abort();
+            closeFile();
+            if (progress != null) progress.onDone(false);
+            done.completeExceptionally(cause);
+        }
+
+        // true only for the first of complete and fail: a failed write and close() may both report one transfer
+        private synchronized boolean settle() {
+            if (settled) return false;
+            settled = true;
+            return true;
+        }
+
+        private synchronized void closeFile() {
+            if (!released) {
+                released = true;
+                source.release();
+                ChatMetrics.transferOut(-1);
+            }
+        }
+    }
+}
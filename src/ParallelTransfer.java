@@ -0,0 +1,234 @@
+// ParallelTransfer.java
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Sending side of a parallel transfer (see Frames, version 12).
+ *
+ * One TCP connection moves at most a congestion window per round trip, pushed by one
+ * writer thread; on a long, fast link that leaves most of the bandwidth unused. So a big
+ * file is cut into ranges of chat.rangeSize (whole chunks) and sent over up to
+ * chat.streams extra connections at once, each with its own thread taking the next
+ * range from a shared queue, so a slow connection simply ends up with fewer of them.
+ * Chunks go out zero-copy with the CRCs from the checksum pass, as on the main
+ * connection.
+ *
+ * The receiver checks every range on its own and asks again for one that failed, which
+ * puts it at the front of the queue. The whole file is confirmed on the main connection
+ * as usual, and the streams stay open until then. A stream that breaks gives up the
+ * whole transfer (onFailed); unlike a chunked one it can't be resumed.
+ */
+final class ParallelTransfer {
+    static final int STREAMS = ChatConfig.getInt("chat.streams", 4);
+    static final long MIN_SIZE = ChatConfig.getLong("chat.parallelMin", 32L * 1024 * 1024);
+    private static final long RANGE_SIZE = ChatConfig.getLong("chat.rangeSize", 8L * 1024 * 1024);
+    private static final int SOCKET_BUFFER = ChatConfig.getInt("chat.socketBuffer", 0);
+    private static final int CHUNK_SLOT = ChatMetrics.slot(Frames.OP_FILE_CHUNK);
+    private static final int RANGE_SLOT = ChatMetrics.slot(Frames.OP_FILE_RANGE);
+
+    private final OutboundScheduler.Source source;
+    private final FileChecksums checks;
+    private final long token;
+    private final int streams;
+    private final long rangeSize;
+    private final InetSocketAddress peer;
+    private final FramedConnection.Progress progress;
+    private final Consumer<IOException> onFailed;
+    private final AtomicLong sent = new AtomicLong(); // bytes of ranges not sent back for a resend
+    private long reported;                            // highest sent passed to progress
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition more = lock.newCondition();
+    private final ArrayDeque<Long> ranges = new ArrayDeque<>(); // offsets still to send
+    private final List<SocketChannel> channels = new ArrayList<>();
+    private int running;
+    private boolean stopped;
+
+    /** Worth splitting over streams at all: more than one is configured and the file is big enough. */
+    static boolean wanted(long size) {
+        return STREAMS > 1 && size >= MIN_SIZE;
+    }
+
+    /**
+     * @param token    what the receiver's FILE_STREAMS said the streams are to present
+     * @param streams  how many connections to open
+     * @param peer     where the main connection goes
+     * @param onFailed told once if a stream breaks; the transfer is over then
+     */
+    ParallelTransfer(OutboundScheduler.Source source, FileChecksums checks, long token, int streams,
+                     InetSocketAddress peer, FramedConnection.Progress progress, Consumer<IOException> onFailed) {
+        this.source = source.retain();
+        this.checks = checks;
+        this.token = token;
+        this.peer = peer;
+        this.progress = progress;
+        this.onFailed = onFailed;
+        // whole chunks, so every range starts on a chunk boundary and its CRCs line up
+        this.rangeSize = Math.max(1, RANGE_SIZE / checks.chunkSize) * checks.chunkSize;
+        for (long offset = 0; offset < source.size; offset += rangeSize) ranges.add(offset);
+        this.streams = Math.max(1, Math.min(streams, ranges.size()));
+    }
+
+    void start() {
+        lock.lock();
+        try {
+            running = streams;
+        } finally {
+            lock.unlock();
+        }
+        System.out.println("Sending " + source.name + " over " + streams + " streams");
+        for (int i = 0; i < streams; i++) ChatExecutors.start("File-Stream-" + i, this::stream);
+    }
+
+    /** The receiver wants the range starting at offset again. */
+    void resend(long offset) {
+        lock.lock();
+        try {
+            if (stopped || offset % rangeSize != 0 || offset >= source.size || ranges.contains(offset)) return;
+            ranges.addFirst(offset);
+            // its bytes count again when they go out again
+            sent.addAndGet(-(Math.min(source.size, offset + rangeSize) - offset));
+            more.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The receiver has confirmed the file: the streams close once they are idle. */
+    void finish() {
+        lock.lock();
+        try {
+            stopped = true;
+            more.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The transfer failed: the streams close now, mid-range or not. */
+    void abort() {
+        halt();
+    }
+
+    // true for the one call that actually stopped it
+    private boolean halt() {
+        List<SocketChannel> open;
+        lock.lock();
+        try {
+            if (stopped) return false;
+            stopped = true;
+            more.signalAll();
+            open = new ArrayList<>(channels);
+        } finally {
+            lock.unlock();
+        }
+        // wakes streams blocked in a write
+        for (SocketChannel ch : open) {
+            try { ch.close(); } catch (IOException ignored) {}
+        }
+        return true;
+    }
+
+    private void stream() {
+        SocketChannel ch = null;
+        try {
+            ch = SocketChannel.open();
+            if (!register(ch)) return;
+            if (SOCKET_BUFFER > 0) ch.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+            ch.connect(peer);
+            write(ch, ByteBuffer.wrap(Frames.encodeStreamHello(token)));
+            Long offset;
+            while ((offset = next()) != null) sendRange(ch, offset);
+            // read what the receiver sent (its HELLO, pings) before closing, or the close is a reset
+            ch.shutdownOutput();
+            ch.socket().setSoTimeout(5000);
+            InputStream in = ch.socket().getInputStream();
+            byte[] skip = new byte[1024];
+            while (in.read(skip) >= 0) {}
+        } catch (IOException e) {
+            if (halt()) onFailed.accept(new IOException("Stream to " + peer + " failed: " + e.getMessage(), e));
+        } catch (InterruptedException e) {
+            if (halt()) onFailed.accept(new InterruptedIOException("Interrupted while sending"));
+        } finally {
+            if (ch != null) {
+                try { ch.close(); } catch (IOException ignored) {}
+            }
+            boolean last;
+            lock.lock();
+            try {
+                last = --running == 0;
+            } finally {
+                lock.unlock();
+            }
+            if (last) source.release();
+        }
+    }
+
+    private boolean register(SocketChannel ch) {
+        lock.lock();
+        try {
+            if (stopped) return false;
+            channels.add(ch);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the next range to send; waits for resends until the transfer is over, then null
+    private Long next() throws InterruptedException {
+        lock.lock();
+        try {
+            while (ranges.isEmpty() && !stopped) more.await();
+            return stopped ? null : ranges.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // its chunks in order, then FILE_RANGE to close it
+    private void sendRange(SocketChannel ch, long offset) throws IOException {
+        long end = Math.min(source.size, offset + rangeSize);
+        for (long pos = offset; pos < end; ) {
+            int len = (int) Math.min(checks.chunkSize, end - pos);
+            byte[] head = Frames.encodeChunkHeader(token, pos, checks.crcForOffset(pos), len);
+            write(ch, ByteBuffer.wrap(head));
+            for (long at = pos, left = len; left > 0; ) {
+                long n = source.channel.transferTo(at, left, ch);
+                if (n == 0 && source.channel.size() <= at) throw new EOFException("File shrank while sending");
+                at += n;
+                left -= n;
+            }
+            ChatMetrics.frameOut(CHUNK_SLOT, head.length + len);
+            pos += len;
+            progressed(len);
+        }
+        byte[] close = Frames.encodeRange(token, offset, end - offset);
+        write(ch, ByteBuffer.wrap(close));
+        ChatMetrics.frameOut(RANGE_SLOT, close.length);
+    }
+
+    // never backwards, so a resent range doesn't count twice or make the bar jump back
+    private synchronized void progressed(long len) {
+        long done = Math.min(sent.addAndGet(len), source.size);
+        if (progress == null || done <= reported) return;
+        reported = done;
+        progress.onProgress(done, source.size);
+    }
+
+    private static void write(SocketChannel ch, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) ch.write(b);
+    }
+}
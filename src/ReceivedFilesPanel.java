@@ -0,0 +1,306 @@
+// ReceivedFilesPanel.java
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.Desktop;
+import java.awt.Dimension;
+import java.awt.FlowLayout;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
+import javax.swing.RowFilter;
+import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.DefaultTableCellRenderer;
+import javax.swing.table.TableRowSorter;
+
+/**
+ * Received files as a sortable, filterable table.
+ *
+ * Rows live in a plain list behind an AbstractTableModel, so JTable only lays out and
+ * paints the rows in view. Arrivals from network threads are queued and added on the
+ * EDT in one fireTableRowsInserted per batch; the row sorter slots them into the
+ * current order without a full re-sort.
+ *
+ * The filter field takes name words plus optional size and age terms, all of which
+ * must match: "report pdf size>1MB age<2h".
+ */
+final class ReceivedFilesPanel extends JPanel {
+
+    static final class Entry {
+        final File file;
+        final String name;
+        final long size;
+        final long time;
+
+        Entry(File file, long time) {
+            this.file = file;
+            this.name = file.getName();
+            this.size = file.length();
+            this.time = time;
+        }
+    }
+
+    private static final int NAME = 0, SIZE = 1, TIME = 2;
+
+    static final class Model extends AbstractTableModel {
+        private final List<Entry> rows = new ArrayList<>();                           // EDT only
+        private final ConcurrentLinkedQueue<Entry> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private Runnable onAdded;
+
+        /** Queues a file from any thread; rows appear on the EDT in batches. */
+        void add(File file) {
+            pending.add(new Entry(file, System.currentTimeMillis()));
+            if (scheduled.compareAndSet(false, true)) SwingUtilities.invokeLater(this::drain);
+        }
+
+        private void drain() {
+            scheduled.set(false);
+            int first = rows.size();
+            Entry e;
+            while ((e = pending.poll()) != null) rows.add(e);
+            if (rows.size() == first) return;
+            fireTableRowsInserted(first, rows.size() - 1);
+            if (onAdded != null) onAdded.run();
+        }
+
+        Entry get(int row) { return rows.get(row); }
+
+        @Override public int getRowCount() { return rows.size(); }
+        @Override public int getColumnCount() { return 3; }
+
+        @Override
+        public String getColumnName(int column) {
+            return column == NAME ? "Name" : column == SIZE ? "Size" : "Received";
+        }
+
+        @Override
+        public Class<?> getColumnClass(int column) {
+            return column == NAME ? String.class : Long.class;
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            Entry e = rows.get(row);
+            return column == NAME ? e.name : column == SIZE ? (Object) e.size : (Object) e.time;
+        }
+    }
+
+    private final Model model = new Model();
+    private final JTable table = new JTable(model);
+    private final TableRowSorter<Model> sorter = new TableRowSorter<>(model);
+    private final JTextField filterField = new JTextField();
+    private final JLabel countLabel = new JLabel("0 files");
+
+    ReceivedFilesPanel() {
+        super(new BorderLayout(4, 4));
+        setBorder(BorderFactory.createTitledBorder("Received Files"));
+
+        table.setRowSorter(sorter);
+        table.setFillsViewportHeight(true);
+        table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        table.setAutoCreateColumnsFromModel(false);
+        table.getColumnModel().getColumn(SIZE).setCellRenderer(new Formatted(SIZE));
+        table.getColumnModel().getColumn(TIME).setCellRenderer(new Formatted(TIME));
+        table.getColumnModel().getColumn(NAME).setPreferredWidth(140);
+        table.getColumnModel().getColumn(SIZE).setPreferredWidth(60);
+        table.getColumnModel().getColumn(TIME).setPreferredWidth(60);
+        table.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) openSelected();
+            }
+        });
+        JScrollPane scroll = new JScrollPane(table);
+        scroll.setPreferredSize(new Dimension(280, 300));
+
+        // re-filter once typing pauses, not on every key
+        Timer refilter = new Timer(150, e -> applyFilter());
+        refilter.setRepeats(false);
+        filterField.setToolTipText("Name words, size>1MB, size<500KB, age<2h, age>1d");
+        filterField.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) { refilter.restart(); }
+            public void removeUpdate(DocumentEvent e) { refilter.restart(); }
+            public void changedUpdate(DocumentEvent e) { refilter.restart(); }
+        });
+
+        JButton openBtn = new JButton("Open");
+        openBtn.setFocusable(false);
+        openBtn.addActionListener(e -> openSelected());
+        JPanel south = new JPanel(new FlowLayout(FlowLayout.RIGHT, 6, 0));
+        south.add(countLabel);
+        south.add(openBtn);
+
+        add(filterField, BorderLayout.NORTH);
+        add(scroll, BorderLayout.CENTER);
+        add(south, BorderLayout.SOUTH);
+
+        model.onAdded = this::afterAdd;
+    }
+
+    void addFile(File savedFile) {
+        model.add(savedFile);
+    }
+
+    Model model() { return model; }
+
+    private void afterAdd() {
+        updateCount();
+        // follow new arrivals while the list is in arrival order
+        if (sorter.getSortKeys().isEmpty() && sorter.getViewRowCount() > 0) {
+            int last = sorter.getViewRowCount() - 1;
+            table.scrollRectToVisible(table.getCellRect(last, 0, true));
+        }
+    }
+
+    private void updateCount() {
+        int shown = sorter.getViewRowCount();
+        int total = model.getRowCount();
+        countLabel.setText(shown == total ? total + " files" : shown + " of " + total + " files");
+    }
+
+    private void applyFilter() {
+        try {
+            sorter.setRowFilter(parseFilter(filterField.getText()));
+            filterField.setForeground(table.getForeground());
+        } catch (IllegalArgumentException e) {
+            filterField.setForeground(java.awt.Color.RED);
+        }
+        updateCount();
+    }
+
+    /** Builds a row filter from the filter text; null when it is empty. */
+    static RowFilter<Model, Integer> parseFilter(String text) {
+        List<String> words = new ArrayList<>();
+        long minSize = -1, maxSize = Long.MAX_VALUE, minAge = -1, maxAge = Long.MAX_VALUE;
+        for (String term : text.trim().toLowerCase(Locale.ROOT).split("\\s+")) {
+            if (term.isEmpty()) continue;
+            if (term.startsWith("size>")) minSize = parseSize(term.substring(5));
+            else if (term.startsWith("size<")) maxSize = parseSize(term.substring(5));
+            else if (term.startsWith("age>")) minAge = parseAge(term.substring(4));
+            else if (term.startsWith("age<")) maxAge = parseAge(term.substring(4));
+            else words.add(term);
+        }
+        if (words.isEmpty() && minSize < 0 && maxSize == Long.MAX_VALUE && minAge < 0 && maxAge == Long.MAX_VALUE) {
+            return null;
+        }
+        final long lo = minSize, hi = maxSize, young = minAge, old = maxAge;
+        final long now = System.currentTimeMillis();
+        return new RowFilter<Model, Integer>() {
+            @Override
+            public boolean include(Entry<? extends Model, ? extends Integer> row) {
+                ReceivedFilesPanel.Entry e = row.getModel().get(row.getIdentifier());
+                if (e.size <= lo || e.size >= hi) return false;
+                long age = now - e.time;
+                if (age <= young || age >= old) return false;
+                String name = e.name.toLowerCase(Locale.ROOT);
+                for (String w : words) {
+                    if (!name.contains(w)) return false;
+                }
+                return true;
+            }
+        };
+    }
+
+    // 10, 10k, 10kb, 1.5mb, 2g
+    static long parseSize(String s) {
+        String n = s.endsWith("b") ? s.substring(0, s.length() - 1) : s;
+        long unit = 1;
+        if (n.endsWith("k")) unit = 1024;
+        else if (n.endsWith("m")) unit = 1024 * 1024;
+        else if (n.endsWith("g")) unit = 1024L * 1024 * 1024;
+        if (unit > 1) n = n.substring(0, n.length() - 1);
+        try {
+            return (long) (Double.parseDouble(n) * unit);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad size: " + s);
+        }
+    }
+
+    // 30s, 10m, 2h, 1d
+    static long parseAge(String s) {
+        if (s.isEmpty()) throw new IllegalArgumentException("Bad age");
+        long unit;
+        switch (s.charAt(s.length() - 1)) {
+            case 's': unit = 1000; break;
+            case 'm': unit = 60 * 1000; break;
+            case 'h': unit = 60 * 60 * 1000; break;
+            case 'd': unit = 24 * 60 * 60 * 1000; break;
+            default: throw new IllegalArgumentException("Bad age: " + s);
+        }
+        try {
+            return (long) (Double.parseDouble(s.substring(0, s.length() - 1)) * unit);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad age: " + s);
+        }
+    }
+
+    private void openSelected() {
+        int view = table.getSelectedRow();
+        if (view < 0) return;
+        File savedFile = model.get(table.convertRowIndexToModel(view)).file;
+        try {
+            if (!savedFile.exists()) {
+                JOptionPane.showMessageDialog(this, "File not found: " + savedFile.getAbsolutePath(),
+                        "Open error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            if (!Desktop.isDesktopSupported()) {
+                JOptionPane.showMessageDialog(this, "Open not supported on this platform",
+                        "Open error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            Desktop.getDesktop().open(savedFile);
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(this, "Unable to open file: " + ex.getMessage(),
+                    "Open error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    // formats only the cells being painted; the model keeps raw longs for sorting
+    private static final class Formatted extends DefaultTableCellRenderer {
+        private final int column;
+        private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss");
+        private final Date date = new Date();
+
+        Formatted(int column) {
+            this.column = column;
+            setHorizontalAlignment(SwingConstants.RIGHT);
+        }
+
+        @Override
+        public Component getTableCellRendererComponent(JTable table, Object value, boolean selected,
+                                                       boolean focused, int row, int col) {
+            super.getTableCellRendererComponent(table, value, selected, focused, row, col);
+            long v = (Long) value;
+            if (column == SIZE) {
+                setText(TransferProgress.formatBytes(v));
+            } else {
+                date.setTime(v);
+                setText(timeFormat.format(date));
+            }
+            return this;
+        }
+    }
+}
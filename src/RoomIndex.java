@@ -0,0 +1,81 @@
+// RoomIndex.java
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+
+/**
+ * Room name to members, for routing room messages (see Frames, version 9).
+ *
+ * Every room's members are an immutable array that join and leave replace whole, so
+ * routing a message is one map lookup and a loop over a plain array: no lock, no
+ * copy, no iterator, however many rooms there are and however fast members churn.
+ * Joins and leaves pay for the copy instead; ConcurrentHashMap.compute makes each one
+ * atomic for its room without holding up the others, and a room goes away with its
+ * last member so abandoned names don't pile up.
+ */
+final class RoomIndex<T> {
+
+    static final int MAX_NAME = 64;
+
+    private final ConcurrentHashMap<String, T[]> rooms = new ConcurrentHashMap<>();
+    private final IntFunction<T[]> newArray;
+    private final T[] empty;
+
+    RoomIndex(IntFunction<T[]> newArray) {
+        this.newArray = newArray;
+        this.empty = newArray.apply(0);
+    }
+
+    /** 1 to MAX_NAME characters, no control characters. */
+    static boolean isValidName(String room) {
+        if (room == null || room.isEmpty() || room.length() > MAX_NAME) return false;
+        for (int i = 0; i < room.length(); i++) {
+            if (Character.isISOControl(room.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    void join(String room, T member) {
+        rooms.compute(room, (k, old) -> {
+            if (old == null) {
+                T[] one = newArray.apply(1);
+                one[0] = member;
+                return one;
+            }
+            for (T m : old) {
+                if (m == member) return old;
+            }
+            T[] more = Arrays.copyOf(old, old.length + 1);
+            more[old.length] = member;
+            return more;
+        });
+    }
+
+    void leave(String room, T member) {
+        rooms.computeIfPresent(room, (k, old) -> {
+            int i = 0;
+            while (i < old.length && old[i] != member) i++;
+            if (i == old.length) return old;
+            if (old.length == 1) return null;
+            T[] fewer = newArray.apply(old.length - 1);
+            System.arraycopy(old, 0, fewer, 0, i);
+            System.arraycopy(old, i + 1, fewer, i, old.length - i - 1);
+            return fewer;
+        });
+    }
+
+    /** Current members; the array is shared and must not be modified. */
+    T[] members(String room) {
+        T[] m = rooms.get(room);
+        return m == null ? empty : m;
+    }
+
+    int roomCount() { return rooms.size(); }
+
+    /** Snapshot of the room names that have members. */
+    List<String> rooms() {
+        return new ArrayList<>(rooms.keySet());
+    }
+}
@@ -0,0 +1,249 @@
+// SearchIndex.java
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index over chat lines, behind the search box in ChatPanel.
+ *
+ * Every line gets the next document number, and every term in it (sender and text,
+ * split on anything that isn't a letter or digit, lower-cased) has a postings list of
+ * document numbers in a plain int array. Numbers only grow, so indexing a line is an
+ * append per term and the lists stay sorted without ever being sorted. Terms sit in a
+ * TreeMap, so "term*" is one subMap range; a query is the intersection of its terms,
+ * walked newest first from the shortest list and stopped at the limit.
+ *
+ * add() never blocks: lines queue up for the indexing thread, which takes the write
+ * lock once per batch. search() holds the read lock and may wait for a batch, so it
+ * belongs off the EDT.
+ *
+ * At chat.searchMaxLines lines the older half goes: the indexing thread builds an
+ * index of the newer half on the side (it is the only writer, so it can read the
+ * current one unlocked) and swaps it in, and searches wait only for the swap.
+ */
+final class SearchIndex {
+
+    private static final int MAX_LINES = Math.max(2, ChatConfig.getInt("chat.searchMaxLines", 500_000));
+    private static final int MAX_TERM = 32;
+    private static final int MAX_BATCH = 1024;
+
+    /** One matching line. */
+    static final class Hit {
+        final String room;
+        final String who;
+        final String text;
+        final long time;
+
+        Hit(String room, String who, String text, long time) {
+            this.room = room;
+            this.who = who;
+            this.text = text;
+            this.time = time;
+        }
+    }
+
+    private static final class Line {
+        final String room;
+        final String who;
+        final String text;
+        final long time;
+
+        Line(String room, String who, String text, long time) {
+            this.room = room;
+            this.who = who;
+            this.text = text;
+            this.time = time;
+        }
+    }
+
+    // document numbers of one term, ascending
+    private static final class Postings {
+        int[] docs = new int[2];
+        int size;
+
+        void add(int doc) {
+            if (size > 0 && docs[size - 1] == doc) return; // term twice in one line
+            if (size == docs.length) docs = Arrays.copyOf(docs, size + (size >> 1) + 1);
+            docs[size++] = doc;
+        }
+
+        boolean contains(int doc) {
+            return Arrays.binarySearch(docs, 0, size, doc) >= 0;
+        }
+    }
+
+    // one generation: the terms and the lines they point into
+    private static final class Index {
+        final TreeMap<String, Postings> terms = new TreeMap<>();
+        String[] rooms = new String[1024];
+        String[] who = new String[1024];
+        String[] text = new String[1024];
+        long[] time = new long[1024];
+        int count;
+
+        void add(Line l, List<String> scratch) {
+            if (count == text.length) {
+                int n = count + (count >> 1);
+                rooms = Arrays.copyOf(rooms, n);
+                who = Arrays.copyOf(who, n);
+                text = Arrays.copyOf(text, n);
+                time = Arrays.copyOf(time, n);
+            }
+            int doc = count;
+            rooms[doc] = l.room;
+            who[doc] = l.who;
+            text[doc] = l.text;
+            time[doc] = l.time;
+            scratch.clear();
+            tokenize(l.who, scratch);
+            tokenize(l.text, scratch);
+            for (String t : scratch) terms.computeIfAbsent(t, k -> new Postings()).add(doc);
+            count++;
+        }
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final LinkedBlockingQueue<Line> pending = new LinkedBlockingQueue<>();
+    private volatile Index index = new Index(); // replaced under the write lock
+
+    SearchIndex() {
+        // a daemon, like the timer wheel: it must not keep the application alive
+        Thread t = new Thread(this::indexLoop, "Search-Index");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Queues a line for indexing; any thread, never waits. */
+    void add(String room, String who, String text) {
+        pending.add(new Line(room, who, text, System.currentTimeMillis()));
+    }
+
+    /** Lines indexed so far (those still queued not included). */
+    int size() { return index.count; }
+
+    private void indexLoop() {
+        List<Line> batch = new ArrayList<>(MAX_BATCH);
+        List<String> scratch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(pending.take());
+                pending.drainTo(batch, MAX_BATCH - 1);
+                if (index.count + batch.size() > MAX_LINES) compact(scratch);
+                lock.writeLock().lock();
+                try {
+                    Index ix = index;
+                    for (Line l : batch) ix.add(l, scratch);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    // indexing thread only: keeps the newer half
+    private void compact(List<String> scratch) {
+        Index old = index;
+        Index fresh = new Index();
+        for (int i = old.count / 2; i < old.count; i++) {
+            fresh.add(new Line(old.rooms[i], old.who[i], old.text[i], old.time[i]), scratch);
+        }
+        lock.writeLock().lock();
+        try {
+            index = fresh;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Lines containing every term of the query, newest first, at most limit of them.
+     * A term ending in '*' matches every term it is a prefix of. May wait for the
+     * indexing thread, so never call it on the EDT.
+     */
+    List<Hit> search(String query, int limit) {
+        List<String> words = new ArrayList<>();
+        List<Boolean> prefix = new ArrayList<>();
+        for (String part : query.trim().split("\\s+")) {
+            boolean star = part.endsWith("*");
+            int before = words.size();
+            tokenize(part, words);
+            for (int i = before; i < words.size(); i++) prefix.add(star && i == words.size() - 1);
+        }
+        if (words.isEmpty() || limit <= 0) return Collections.emptyList();
+        lock.readLock().lock();
+        try {
+            Index ix = index;
+            Object[] sets = new Object[words.size()]; // Postings or BitSet
+            int driver = -1;
+            int smallest = Integer.MAX_VALUE;
+            for (int i = 0; i < sets.length; i++) {
+                Object set = prefix.get(i) ? prefixSet(ix, words.get(i)) : ix.terms.get(words.get(i));
+                if (set == null) return Collections.emptyList();
+                sets[i] = set;
+                int size = set instanceof Postings ? ((Postings) set).size : ((BitSet) set).cardinality();
+                if (size < smallest) {
+                    smallest = size;
+                    driver = i;
+                }
+            }
+            List<Hit> hits = new ArrayList<>(Math.min(limit, smallest));
+            Object d = sets[driver];
+            if (d instanceof Postings) {
+                Postings p = (Postings) d;
+                for (int k = p.size - 1; k >= 0 && hits.size() < limit; k--) collect(ix, sets, driver, p.docs[k], hits);
+            } else {
+                BitSet b = (BitSet) d;
+                for (int doc = b.length() - 1; doc >= 0 && hits.size() < limit; doc = b.previousSetBit(doc - 1)) {
+                    collect(ix, sets, driver, doc, hits);
+                }
+            }
+            return hits;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static void collect(Index ix, Object[] sets, int driver, int doc, List<Hit> hits) {
+        for (int i = 0; i < sets.length; i++) {
+            if (i == driver) continue;
+            Object s = sets[i];
+            if (s instanceof Postings ? !((Postings) s).contains(doc) : !((BitSet) s).get(doc)) return;
+        }
+        hits.add(new Hit(ix.rooms[doc], ix.who[doc], ix.text[doc], ix.time[doc]));
+    }
+
+    // the one list if only one term has the prefix, their union otherwise; null if none has
+    private static Object prefixSet(Index ix, String prefix) {
+        SortedMap<String, Postings> range = ix.terms.subMap(prefix, prefix + Character.MAX_VALUE);
+        if (range.isEmpty()) return null;
+        Collection<Postings> lists = range.values();
+        if (lists.size() == 1) return lists.iterator().next();
+        BitSet union = new BitSet(ix.count);
+        for (Postings p : lists) {
+            for (int k = 0; k < p.size; k++) union.set(p.docs[k]);
+        }
+        return union;
+    }
+
+    // runs of letters and digits, lower-cased, cut to MAX_TERM
+    static void tokenize(String s, List<String> out) {
+        int n = s.length();
+        int i = 0;
+        while (i < n) {
+            while (i < n && !Character.isLetterOrDigit(s.charAt(i))) i++;
+            int start = i;
+            while (i < n && Character.isLetterOrDigit(s.charAt(i))) i++;
+            if (i > start) out.add(s.substring(start, Math.min(i, start + MAX_TERM)).toLowerCase(Locale.ROOT));
+        }
+    }
+}
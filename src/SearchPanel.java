@@ -0,0 +1,122 @@
+// SearchPanel.java
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.swing.BorderFactory;
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.DefaultListModel;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+
+/**
+ * Search box over the chat history in a SearchIndex.
+ *
+ * Typing restarts a short timer; when it fires the query runs on its own thread and
+ * the hits come back to the EDT, where only the answer to the latest query is shown.
+ * The last word is matched as a prefix while it is being typed ("rel" finds
+ * "release"); a trailing space makes it a whole word. Double-click a hit to go to its
+ * room.
+ */
+final class SearchPanel extends JPanel {
+
+    private static final int MAX_HITS = 200;
+
+    private final SearchIndex index;
+    private final JTextField queryField = new JTextField();
+    private final DefaultListModel<SearchIndex.Hit> hits = new DefaultListModel<>();
+    private final JList<SearchIndex.Hit> list = new JList<>(hits);
+    private final JScrollPane scroll = new JScrollPane(list);
+    private final JLabel countLabel = new JLabel(" ");
+    private long generation; // EDT only: the query whose answer may be shown
+
+    /** onPick gets the room of a double-clicked hit (ChatPanel.LOBBY for the lobby). */
+    SearchPanel(SearchIndex index, Consumer<String> onPick) {
+        super(new BorderLayout(4, 4));
+        this.index = index;
+        setBorder(BorderFactory.createTitledBorder("Search"));
+
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.setCellRenderer(new DefaultListCellRenderer() {
+            private final SimpleDateFormat format = new SimpleDateFormat("HH:mm");
+
+            @Override
+            public Component getListCellRendererComponent(JList<?> l, Object value, int i, boolean selected, boolean focus) {
+                SearchIndex.Hit h = (SearchIndex.Hit) value;
+                String where = ChatGUIApp.ChatPanel.LOBBY.equals(h.room) ? "" : "#" + h.room + " ";
+                super.getListCellRendererComponent(l, format.format(new Date(h.time)) + " " + where + h.who + ": " + h.text,
+                        i, selected, focus);
+                setToolTipText(h.text);
+                return this;
+            }
+        });
+        list.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                SearchIndex.Hit h = list.getSelectedValue();
+                if (e.getClickCount() == 2 && h != null) onPick.accept(h.room);
+            }
+        });
+        scroll.setPreferredSize(new Dimension(280, 140));
+        scroll.setVisible(false);
+
+        // run the query once typing pauses, not on every key
+        Timer requery = new Timer(120, e -> runQuery());
+        requery.setRepeats(false);
+        queryField.setToolTipText("Words in a message or its sender's name; word* for a prefix");
+        queryField.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) { requery.restart(); }
+            public void removeUpdate(DocumentEvent e) { requery.restart(); }
+            public void changedUpdate(DocumentEvent e) { requery.restart(); }
+        });
+
+        add(queryField, BorderLayout.NORTH);
+        add(scroll, BorderLayout.CENTER);
+        add(countLabel, BorderLayout.SOUTH);
+    }
+
+    private void runQuery() {
+        long gen = ++generation;
+        String text = queryField.getText();
+        if (text.trim().isEmpty()) {
+            show(gen, null, 0);
+            return;
+        }
+        // the word still being typed is a prefix
+        String query = text.endsWith(" ") || text.endsWith("*") ? text : text + "*";
+        ChatExecutors.start("Chat-Search", () -> {
+            long start = System.nanoTime();
+            List<SearchIndex.Hit> found = index.search(query, MAX_HITS);
+            long micros = (System.nanoTime() - start) / 1000;
+            SwingUtilities.invokeLater(() -> show(gen, found, micros));
+        });
+    }
+
+    private void show(long gen, List<SearchIndex.Hit> found, long micros) {
+        if (gen != generation) return; // a newer query is on its way
+        hits.clear();
+        if (found == null) {
+            scroll.setVisible(false);
+            countLabel.setText(" ");
+        } else {
+            for (SearchIndex.Hit h : found) hits.addElement(h);
+            scroll.setVisible(true);
+            countLabel.setText((found.size() >= MAX_HITS ? "newest " + MAX_HITS : found.size() + " found")
+                    + " in " + index.size() + " messages (" + micros + " µs)");
+        }
+        revalidate();
+    }
+}
@@ -0,0 +1,168 @@
+// TimerWheel.java
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timer wheel (Varghese and Lauck): timeouts hang in one of WHEEL_SIZE buckets
+ * by deadline, and one thread visits one bucket per tick. Scheduling and cancelling
+ * are O(1) whatever the number of timeouts, so a timeout per connection stays cheap at
+ * 100k connections; the price is that a timeout fires up to one tick late.
+ *
+ * New and cancelled timeouts go through lock-free queues and only the wheel thread
+ * touches the buckets. A timeout further out than one turn of the wheel carries the
+ * number of turns it still has to wait.
+ *
+ * Tasks run on the wheel thread and must be quick: enqueue a frame, hand off to an
+ * event loop, close a socket.
+ */
+final class TimerWheel {
+
+    private static final int WHEEL_SIZE = 512;
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(ChatConfig.getLong("chat.timerTickMs", 100));
+
+    private static final class Holder {
+        static final TimerWheel SHARED = new TimerWheel("Chat-Timer");
+    }
+
+    /** The process-wide wheel, started on first use. */
+    static TimerWheel shared() { return Holder.SHARED; }
+
+    /** A scheduled task; cancel() is safe from any thread, before or after it fired. */
+    static final class Timeout {
+        private static final int PENDING = 0, CANCELLED = 1, EXPIRED = 2;
+
+        private final TimerWheel wheel;
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        // wheel thread only
+        private long rounds;
+        private Timeout prev, next;
+        private Bucket bucket;
+
+        private Timeout(TimerWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /** False if it had already fired (or been cancelled). */
+        boolean cancel() {
+            if (!state.compareAndSet(PENDING, CANCELLED)) return false;
+            wheel.cancelled.add(this);
+            return true;
+        }
+
+        boolean isCancelled() { return state.get() == CANCELLED; }
+    }
+
+    // doubly linked so a cancelled timeout unlinks without a search
+    private static final class Bucket {
+        Timeout head, tail;
+
+        void add(Timeout t) {
+            t.bucket = this;
+            if (head == null) {
+                head = tail = t;
+            } else {
+                tail.next = t;
+                t.prev = tail;
+                tail = t;
+            }
+        }
+
+        void remove(Timeout t) {
+            if (t.prev != null) t.prev.next = t.next;
+            else head = t.next;
+            if (t.next != null) t.next.prev = t.prev;
+            else tail = t.prev;
+            t.prev = t.next = null;
+            t.bucket = null;
+        }
+
+        void expire() {
+            Timeout t = head;
+            while (t != null) {
+                Timeout next = t.next;
+                if (t.rounds <= 0) {
+                    remove(t);
+                    if (t.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) run(t);
+                } else {
+                    t.rounds--;
+                }
+                t = next;
+            }
+        }
+    }
+
+    private final Bucket[] wheel = new Bucket[WHEEL_SIZE];
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final long start = System.nanoTime();
+    private final Thread thread;
+    private long tick; // wheel thread only
+
+    TimerWheel(String name) {
+        for (int i = 0; i < WHEEL_SIZE; i++) wheel[i] = new Bucket();
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Runs task once, delay from now (rounded up to the next tick). */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout t = new Timeout(this, task, System.nanoTime() + unit.toNanos(Math.max(0, delay)));
+        added.add(t);
+        return t;
+    }
+
+    void stop() {
+        thread.interrupt();
+    }
+
+    private void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                waitForTick();
+                addNew();
+                removeCancelled();
+                wheel[(int) (tick & (WHEEL_SIZE - 1))].expire();
+                tick++;
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    // sleeps until the end of the current tick
+    private void waitForTick() throws InterruptedException {
+        long deadline = start + (tick + 1) * TICK_NANOS;
+        long sleep;
+        while ((sleep = deadline - System.nanoTime()) > 0) TimeUnit.NANOSECONDS.sleep(sleep);
+    }
+
+    private void addNew() {
+        Timeout t;
+        while ((t = added.poll()) != null) {
+            if (t.state.get() != Timeout.PENDING) continue;
+            long due = Math.max(tick, (t.deadline - start + TICK_NANOS - 1) / TICK_NANOS - 1); // tick whose end passes the deadline
+            t.rounds = (due - tick) / WHEEL_SIZE;
+            wheel[(int) (due & (WHEEL_SIZE - 1))].add(t);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout t;
+        while ((t = cancelled.poll()) != null) {
+            if (t.bucket != null) t.bucket.remove(t);
+        }
+    }
+
+    private static void run(Timeout t) {
+        try {
+            t.task.run();
+        } catch (RuntimeException e) {
+            System.out.println("Timer task failed: " + e);
+        }
+    }
+}
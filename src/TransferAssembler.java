@@ -0,0 +1,491 @@
+// TransferAssembler.java
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Receiving side of chunked transfers. Each transfer writes into a partial file named
+ * after the sender's SHA-256 under .partial/ next to the received files, so when the
+ * same file is offered again after a dropped connection the receiver answers with the
+ * offset it already has instead of 0.
+ *
+ * Completed files are kept once per content under .blobs/ (SHA-256 and size), made
+ * read-only, and every received copy is a hard link to its blob. A peer offering
+ * content that is already there is told so (see existing) and sends nothing, so
+ * repeats neither cross the wire again nor take more disk.
+ *
+ * A parallel transfer (Frames, version 12) writes into a private partial of the full
+ * size instead, which the stream connections fill range by range at their own offsets
+ * through a Stripe each. A range counts once all its chunks have passed their CRCs;
+ * one that doesn't is asked for again, and one that fails MAX_RANGE_TRIES times sinks
+ * the transfer. A File-Verify thread feeds the SHA-256 with the file as far as it has
+ * been verified without gaps, so the whole-file check is done soon after the last range.
+ * Such a transfer can't be resumed.
+ *
+ * Only ever touched by a connection's reader (or event loop) thread, so it needs no
+ * locking apart from the set of partials currently being written and the ranges of
+ * parallel transfers.
+ */
+final class TransferAssembler {
+
+    static final class Incoming {
+        final long id;
+        final String name;
+        final long size;
+        final int chunkSize;
+        final byte[] sha256;
+        final File partial;
+        final FileChannel channel;
+        final MessageDigest digest;
+        long received;
+        long resumedAt;   // what was there from an earlier try, for the throughput
+        final long started = System.nanoTime();
+        boolean resumable;
+        volatile FramedConnection.Progress progress; // parallel: reported from the stream connections
+        Ranges ranges; // parallel transfers only
+        File file;     // set once the transfer is complete
+        boolean ok;
+
+        Incoming(long id, String name, long size, int chunkSize, byte[] sha256, File partial,
+                 FileChannel channel, MessageDigest digest) {
+            this.id = id;
+            this.name = name;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.sha256 = sha256;
+            this.partial = partial;
+            this.channel = channel;
+            this.digest = digest;
+        }
+    }
+
+    /** How a parallel transfer is going; called on the threads of its stream connections. */
+    interface RangeListener {
+        /** The range at offset failed its checks; the sender should send it again. */
+        void onResend(long offset);
+
+        /** Every range is in and the whole file checked, or the transfer failed; end() it now. */
+        void onRangesDone();
+    }
+
+    // what the stream connections of one parallel transfer share
+    static final class Ranges {
+        final long token;
+        final RangeListener listener;
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition advanced = lock.newCondition();
+        final TreeMap<Long, Long> verified = new TreeMap<>(); // start -> end of ranges past the gapless prefix
+        final Map<Long, Integer> tries = new HashMap<>();
+        long prefix;      // everything below has been verified
+        long verifiedBytes;
+        boolean failed;
+        volatile boolean closed;
+        volatile boolean ok;  // set by the verify thread
+
+        Ranges(long token, RangeListener listener) {
+            this.token = token;
+            this.listener = listener;
+        }
+    }
+
+    /** The receiving end of one stream connection; that connection's thread only. */
+    static final class Stripe {
+        private final Incoming in;
+        private long start = -1; // of the range coming in, -1 between ranges
+        private long next;
+        private boolean bad;
+
+        private Stripe(Incoming in) {
+            this.in = in;
+        }
+
+        int chunkSize() { return in.chunkSize; }
+
+        /**
+         * Writes one chunk of the range coming in at its place in the file, unless the
+         * range has gone bad. False once the transfer is over, and the connection with it.
+         */
+        boolean chunk(long offset, int crc, ByteBuffer data) throws IOException {
+            if (in.ranges.closed) return false;
+            if (start < 0) {
+                if (offset % in.chunkSize != 0) throw Frames.protocolError("Range at " + offset + " is off the chunk grid");
+                start = offset;
+                next = offset;
+            }
+            if (offset != next || offset + data.remaining() > in.size) {
+                throw Frames.protocolError("Stray chunk at " + offset + " of " + in.name);
+            }
+            next += data.remaining();
+            if (bad) return true;
+            if (FileChecksums.crc(data) != crc) {
+                ChatMetrics.error(ChatMetrics.Cause.BAD_CHUNK);
+                bad = true;
+                return true;
+            }
+            try {
+                while (data.hasRemaining()) offset += in.channel.write(data, offset);
+            } catch (ClosedChannelException e) {
+                return false; // ended on the main connection meanwhile
+            }
+            return true;
+        }
+
+        /** FILE_RANGE: the range is complete; counts it or asks for it again. False once the transfer is over. */
+        boolean end(long offset, long length) throws IOException {
+            if (in.ranges.closed) return false;
+            if (offset != start || next - start != length) throw Frames.protocolError("Range at " + offset + " doesn't match its chunks");
+            boolean good = !bad;
+            start = -1;
+            bad = false;
+            rangeDone(in, offset, length, good);
+            return true;
+        }
+
+        /** The connection is gone; a range it was in the middle of sinks the transfer. */
+        void lost() {
+            if (start >= 0) fail(in.ranges);
+        }
+    }
+
+    private static final int MAX_RANGE_TRIES = 3;
+    private static final SecureRandom tokens = new SecureRandom();
+    // parallel transfers by the token their stream connections present
+    private static final Map<Long, Incoming> streamed = new ConcurrentHashMap<>();
+    // partials that some connection is writing right now, so two transfers of the same file don't share one
+    private static final Set<String> busy = ConcurrentHashMap.newKeySet();
+
+    private final Function<String, File> fileFactory;
+    private final Map<Long, Incoming> active = new HashMap<>();
+
+    TransferAssembler(Function<String, File> fileFactory) {
+        this.fileFactory = fileFactory;
+    }
+
+    /** Opens (or reopens) the partial for a transfer; returns the offset the sender should start at. */
+    long begin(long id, String name, long size, int chunkSize, byte[] sha256) throws IOException {
+        if (active.containsKey(id)) throw Frames.protocolError("Duplicate transfer id " + id);
+        name = new File(name).getName();
+        File dir = sideDir(name, ".partial");
+        String key = key(sha256, size);
+        File partial = new File(dir, key + ".part");
+        boolean resume = busy.add(partial.getPath());
+        if (!resume) {
+            // someone else is filling that partial, start a private one from scratch
+            partial = File.createTempFile(key + "_", ".part", dir);
+        }
+        FileChannel fc = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MessageDigest digest = FileChecksums.sha256();
+        long offset;
+        try {
+            offset = Math.min(fc.size(), size) / chunkSize * chunkSize;
+            fc.truncate(offset);
+            rehash(fc, offset, digest);
+        } catch (IOException e) {
+            fc.close();
+            release(partial);
+            throw e;
+        }
+        Incoming in = new Incoming(id, name, size, chunkSize, sha256, partial, fc, digest);
+        in.received = offset;
+        in.resumedAt = offset;
+        in.resumable = resume;
+        active.put(id, in);
+        ChatMetrics.transferIn(1);
+        if (offset > 0) System.out.println("Resuming " + name + " at " + offset + " of " + size + " bytes");
+        return offset;
+    }
+
+    /**
+     * Opens a parallel transfer: a private partial, sized to the whole file up front so a
+     * write at any offset lands inside it, and a token for the stream connections.
+     *
+     * @return the token, for FILE_STREAMS
+     */
+    long beginStreams(long id, String name, long size, int chunkSize, byte[] sha256, RangeListener listener) throws IOException {
+        if (active.containsKey(id)) throw Frames.protocolError("Duplicate transfer id " + id);
+        if (size <= 0) throw Frames.protocolError("Nothing to stream in transfer " + id);
+        name = new File(name).getName();
+        File partial = File.createTempFile(key(sha256, size) + "_", ".part", sideDir(name, ".partial"));
+        FileChannel fc = FileChannel.open(partial.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            fc.write(ByteBuffer.wrap(new byte[1]), size - 1);
+        } catch (IOException e) {
+            fc.close();
+            partial.delete();
+            throw e;
+        }
+        Incoming in = new Incoming(id, name, size, chunkSize, sha256, partial, fc, FileChecksums.sha256());
+        long token;
+        do {
+            token = tokens.nextLong() >>> 1;
+            in.ranges = new Ranges(token, listener);
+        } while (token == 0 || streamed.putIfAbsent(token, in) != null);
+        active.put(id, in);
+        ChatMetrics.transferIn(1);
+        ChatExecutors.start("File-Verify", () -> verify(in));
+        return token;
+    }
+
+    /** The receiving end for a stream connection that presented token; null if no transfer has it. */
+    static Stripe stripe(long token) {
+        Incoming in = streamed.get(token);
+        return in == null ? null : new Stripe(in);
+    }
+
+    private static void rangeDone(Incoming in, long offset, long length, boolean good) {
+        Ranges r = in.ranges;
+        boolean resend = false;
+        long verified;
+        r.lock.lock();
+        try {
+            if (r.closed || r.failed) return;
+            if (!good) {
+                if (r.tries.merge(offset, 1, Integer::sum) >= MAX_RANGE_TRIES) {
+                    r.failed = true;
+                    r.advanced.signal();
+                } else {
+                    resend = true;
+                }
+            } else if (offset >= r.prefix && r.verified.putIfAbsent(offset, offset + length) == null) {
+                r.verifiedBytes += length;
+                Long end;
+                while ((end = r.verified.remove(r.prefix)) != null) r.prefix = end;
+                r.advanced.signal();
+            }
+            verified = r.verifiedBytes;
+        } finally {
+            r.lock.unlock();
+        }
+        if (!good) System.out.println("Bad range at " + offset + " of " + in.name + (resend ? ", asking for it again" : ", giving up"));
+        if (resend) r.listener.onResend(offset);
+        FramedConnection.Progress p = in.progress;
+        if (good && p != null) p.onProgress(verified, in.size);
+    }
+
+    private static void fail(Ranges r) {
+        r.lock.lock();
+        try {
+            r.failed = true;
+            r.advanced.signal();
+        } finally {
+            r.lock.unlock();
+        }
+    }
+
+    // File-Verify: hashes the verified prefix as it grows, then tells the listener
+    private static void verify(Incoming in) {
+        Ranges r = in.ranges;
+        long hashed = 0;
+        try {
+            while (hashed < in.size) {
+                long upTo;
+                r.lock.lock();
+                try {
+                    while (r.prefix == hashed && !r.failed && !r.closed) r.advanced.await();
+                    if (r.failed || r.closed) break;
+                    upTo = r.prefix;
+                } finally {
+                    r.lock.unlock();
+                }
+                hash(in.channel, hashed, upTo, in.digest);
+                hashed = upTo;
+            }
+            r.ok = hashed == in.size && MessageDigest.isEqual(in.digest.digest(), in.sha256);
+        } catch (IOException | InterruptedException e) {
+            r.ok = false;
+        }
+        in.received = hashed;
+        r.lock.lock();
+        try {
+            if (r.closed) return;
+        } finally {
+            r.lock.unlock();
+        }
+        r.listener.onRangesDone();
+    }
+
+    // parallel transfers: the stream connections can't reach it any more and the verify thread stops
+    private static void closeRanges(Incoming in) {
+        Ranges r = in.ranges;
+        streamed.remove(r.token);
+        r.lock.lock();
+        try {
+            r.closed = true;
+            r.advanced.signal();
+        } finally {
+            r.lock.unlock();
+        }
+    }
+
+    /**
+     * If this content is stored already, links it under a new received name and returns
+     * the transfer as complete (the sender is then told to skip it); null otherwise.
+     */
+    Incoming existing(long id, String name, long size, byte[] sha256) throws IOException {
+        name = new File(name).getName();
+        File blob = new File(sideDir(name, ".blobs"), key(sha256, size));
+        if (!blob.isFile() || blob.length() != size) return null;
+        Incoming in = new Incoming(id, name, size, 0, sha256, null, null, null);
+        in.received = size;
+        in.file = fileFactory.apply(name);
+        link(blob, in.file);
+        in.ok = true;
+        System.out.println("Already have " + name + " (" + size + " bytes), linked instead of sent");
+        return in;
+    }
+
+    // .partial/ and .blobs/ live next to wherever received files go
+    private File sideDir(String name, String sub) throws IOException {
+        File dir = new File(fileFactory.apply(name).getAbsoluteFile().getParentFile(), sub);
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        return dir;
+    }
+
+    private static String key(byte[] sha256, long size) {
+        return FileChecksums.hex(sha256) + "_" + size;
+    }
+
+    // a hard link costs no space; where the file system can't, fall back to a copy
+    private static void link(File blob, File target) throws IOException {
+        try {
+            Files.createLink(target.toPath(), blob.toPath());
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(blob.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // the digest has to cover the bytes kept from last time
+    private static void rehash(FileChannel fc, long length, MessageDigest digest) throws IOException {
+        hash(fc, 0, length, digest);
+    }
+
+    private static void hash(FileChannel fc, long pos, long length, MessageDigest digest) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        while (pos < length) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), length - pos));
+            int r = fc.read(buf, pos);
+            if (r < 0) throw new IOException("Partial file shrank");
+            digest.update(buf.array(), 0, r);
+            pos += r;
+        }
+    }
+
+    /** Follows the transfer's progress from here on, starting at what it already has. */
+    void track(long id, FramedConnection.Progress progress) throws IOException {
+        Incoming in = get(id);
+        in.progress = progress;
+        if (progress != null) progress.onProgress(in.received, in.size);
+    }
+
+    Incoming get(long id) throws IOException {
+        Incoming in = active.get(id);
+        if (in == null) throw Frames.protocolError("Unknown transfer id " + id);
+        return in;
+    }
+
+    /**
+     * Writes one chunk. Returns -1 if it was taken (or was a stale duplicate after a
+     * rewind and ignored), otherwise the offset the sender has to restart from.
+     */
+    long chunk(long id, long offset, int crc, ByteBuffer data) throws IOException {
+        Incoming in = get(id);
+        if (offset != in.received) return -1; // in flight before our last rewind
+        if (in.received + data.remaining() > in.size) throw Frames.protocolError("Transfer " + id + " overran its size");
+        if (FileChecksums.crc(data) != crc) {
+            ChatMetrics.error(ChatMetrics.Cause.BAD_CHUNK);
+            System.out.println("Bad chunk at " + offset + " of " + in.name + ", asking for it again");
+            return in.received;
+        }
+        in.digest.update(data.duplicate());
+        while (data.hasRemaining()) in.received += in.channel.write(data, in.received);
+        if (in.progress != null) in.progress.onProgress(in.received, in.size);
+        return -1;
+    }
+
+    /**
+     * Closes the transfer. If size and digest match, the partial becomes the blob for
+     * its content, the file is linked under its final name and {@code ok} is set;
+     * otherwise it is deleted so the next try starts clean.
+     */
+    Incoming end(long id) throws IOException {
+        Incoming in = get(id);
+        active.remove(id);
+        ChatMetrics.transferIn(-1);
+        try {
+            if (in.ranges != null) {
+                // streamed: called once the verify thread is done (FILE_END is refused), so ok is its verdict
+                closeRanges(in);
+                in.ok = in.ranges.ok;
+            }
+            in.channel.close();
+            if (in.ranges == null) in.ok = in.received == in.size && MessageDigest.isEqual(in.digest.digest(), in.sha256);
+            if (!in.ok) {
+                ChatMetrics.error(ChatMetrics.Cause.BAD_FILE);
+                in.partial.delete();
+                return in;
+            }
+            ChatMetrics.fileReceived(in.size - in.resumedAt, System.nanoTime() - in.started);
+            in.file = fileFactory.apply(in.name);
+            File blob = new File(sideDir(in.name, ".blobs"), key(in.sha256, in.size));
+            if (blob.isFile()) {
+                in.partial.delete(); // same content came in twice at once, or from a peer that can't ask
+            } else {
+                Files.move(in.partial.toPath(), blob.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                blob.setReadOnly();  // the blob is its hash; editing a received copy would break that
+            }
+            link(blob, in.file);
+            return in;
+        } finally {
+            release(in.partial);
+            if (in.progress != null) in.progress.onDone(in.ok);
+        }
+    }
+
+    void abort(long id) {
+        Incoming in = active.remove(id);
+        if (in == null) return;
+        ChatMetrics.transferIn(-1);
+        if (in.ranges != null) closeRanges(in);
+        try { in.channel.close(); } catch (IOException ignored) {}
+        in.partial.delete();
+        release(in.partial);
+        if (in.progress != null) in.progress.onDone(false);
+    }
+
+    /** True while a transfer has begun and not yet ended or been aborted. */
+    boolean hasActive() { return !active.isEmpty(); }
+
+    /** Connection is gone: close whatever is still open but keep the partials for a resume. */
+    void closeAll() {
+        ChatMetrics.transferIn(-active.size());
+        for (Incoming in : active.values()) {
+            if (in.ranges != null) closeRanges(in);
+            try { in.channel.close(); } catch (IOException ignored) {}
+            if (!in.resumable) in.partial.delete();
+            release(in.partial);
+            if (in.progress != null) in.progress.onDone(false);
+        }
+        active.clear();
+    }
+
+    private static void release(File partial) {
+        busy.remove(partial.getPath());
+    }
+}
@@ -0,0 +1,161 @@
+// TransferProgress.java
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Progress of one file transfer, in either direction, with throughput and ETA.
+ *
+ * Transports report every chunk they move; this keeps the latest byte count and only
+ * passes an update on to its listener when at least chat.progressMs have gone by and
+ * the transfer has moved another chat.progressStep percent (or a few intervals have
+ * passed, so the rate and ETA still refresh on a slow link). Start and finish always
+ * get through. A 4 GB transfer therefore costs the UI tens of updates, not 500k.
+ *
+ * Throughput is an exponentially weighted moving average over roughly RATE_WINDOW:
+ * bytes and elapsed time both decay at the same rate, so samples count by the time
+ * they cover and a fresh transfer isn't dragged down by an initial zero.
+ *
+ * Several threads may report into one instance (a broadcast summing its recipients);
+ * the byte count is always taken, and whichever thread gets the lock does the rest.
+ */
+final class TransferProgress implements FramedConnection.Progress {
+
+    enum State { RUNNING, DONE, FAILED }
+
+    interface Listener { void onUpdate(TransferProgress p); }
+
+    static final long INTERVAL_NANOS = ChatConfig.getLong("chat.progressMs", 200) * 1_000_000L;
+    static final int STEP_PERCENT = ChatConfig.getInt("chat.progressStep", 1);
+    private static final double RATE_WINDOW = 3.0; // seconds
+
+    final String name;
+    final boolean outgoing;
+    private final Listener listener;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final long started = System.nanoTime();
+    private volatile long done;
+    private volatile long total;
+    private volatile double rate;       // bytes per second
+    private volatile State state = State.RUNNING;
+    // guarded by lock
+    private long lastNanos = started;
+    private long lastDone = -1;
+    private long sampleNanos = started;
+    private long sampleDone;
+    private int lastPercent = -1;
+    private double windowBytes;
+    private double windowSecs;
+
+    TransferProgress(String name, long total, boolean outgoing, Listener listener) {
+        this.name = name;
+        this.total = total;
+        this.outgoing = outgoing;
+        this.listener = listener;
+    }
+
+    long done() { return done; }
+    long total() { return total; }
+    State state() { return state; }
+
+    /** Moving average in bytes per second, 0 until there is a sample. */
+    double bytesPerSecond() { return rate; }
+
+    /** Estimated milliseconds left, -1 when unknown. */
+    long etaMillis() {
+        double r = rate;
+        if (state != State.RUNNING) return 0;
+        if (r <= 0) return -1;
+        return (long) ((total - done) / r * 1000);
+    }
+
+    int percent() {
+        long t = total;
+        return t <= 0 ? (state == State.DONE ? 100 : 0) : (int) (done * 100 / t);
+    }
+
+    @Override
+    public void onProgress(long done, long total) {
+        this.done = done;
+        this.total = total;
+        if (!lock.tryLock()) return; // another reporter is on it and will see this count
+        boolean report;
+        try {
+            long now = System.nanoTime();
+            if (lastDone < 0) {
+                // first report, also where a resumed transfer starts: don't count it as throughput
+                sampleNanos = now;
+                sampleDone = done;
+            } else {
+                sample(now, done);
+            }
+            int percent = percent();
+            long since = now - lastNanos;
+            report = lastDone < 0 || done >= total
+                    || (since >= INTERVAL_NANOS && (percent >= lastPercent + STEP_PERCENT || since >= 5 * INTERVAL_NANOS));
+            if (report) {
+                lastNanos = now;
+                lastDone = done;
+                lastPercent = percent;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (report && listener != null) listener.onUpdate(this);
+    }
+
+    // folds the bytes since the last sample into the average once a little time has passed
+    private void sample(long now, long done) {
+        long dt = now - sampleNanos;
+        if (dt < INTERVAL_NANOS / 4 || done < sampleDone) {
+            if (done < sampleDone) sampleDone = done; // rewound after a bad chunk
+            return;
+        }
+        double secs = dt / 1e9;
+        double decay = Math.exp(-secs / RATE_WINDOW);
+        // decayed bytes over decayed time: no warm-up bias, and close to the plain average early on
+        windowBytes = windowBytes * decay + (done - sampleDone);
+        windowSecs = windowSecs * decay + secs;
+        rate = windowBytes / windowSecs;
+        sampleNanos = now;
+        sampleDone = done;
+    }
+
+    @Override
+    public void onDone(boolean ok) {
+        if (state != State.RUNNING) return;
+        if (ok) done = total;
+        state = ok ? State.DONE : State.FAILED;
+        if (listener != null) listener.onUpdate(this);
+    }
+
+    /** Average over the whole transfer, for the final line. */
+    double overallBytesPerSecond() {
+        double secs = (System.nanoTime() - started) / 1e9;
+        return secs <= 0 ? 0 : done / secs;
+    }
+
+    /** One line for a status label or the console, e.g. "45% of 1.2 GB, 38.0 MB/s, 0:17 left". */
+    String describe() {
+        switch (state) {
+            case DONE: return "done, " + formatBytes(total) + " at " + formatBytes((long) overallBytesPerSecond()) + "/s";
+            case FAILED: return "failed at " + formatBytes(done) + " of " + formatBytes(total);
+            default:
+                long eta = etaMillis();
+                if (eta < 0) return percent() + "% of " + formatBytes(total);
+                return percent() + "% of " + formatBytes(total) + ", " + formatBytes((long) rate) + "/s, "
+                        + formatDuration(eta) + " left";
+        }
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return String.format("%.1f KB", bytes / 1024.0);
+        if (bytes < 1024L * 1024 * 1024) return String.format("%.1f MB", bytes / (1024.0 * 1024));
+        return String.format("%.1f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+
+    static String formatDuration(long millis) {
+        long s = (millis + 999) / 1000;
+        if (s >= 3600) return String.format("%d:%02d:%02d", s / 3600, s / 60 % 60, s % 60);
+        return String.format("%d:%02d", s / 60, s % 60);
+    }
+}
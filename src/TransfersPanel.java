@@ -0,0 +1,131 @@
+// TransfersPanel.java
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.BoxLayout;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.border.EmptyBorder;
+
+/**
+ * One progress row per running transfer, sends and receives alike.
+ *
+ * Transfers report through TransferProgress, which already throttles; each update
+ * only marks the transfer as changed, and a single EDT task repaints every changed
+ * row at once. Finished rows stay a few seconds with their final line, then go.
+ * Past MAX_ROWS the rest are summed up in one line.
+ */
+final class TransfersPanel extends JPanel {
+
+    private static final int MAX_ROWS = 6;
+    private static final int LINGER_MS = 4000;
+
+    private final Set<TransferProgress> changed = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Map<TransferProgress, Row> rows = new LinkedHashMap<>(); // EDT only
+    private final JLabel more = new JLabel();
+
+    TransfersPanel() {
+        setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
+        setVisible(false);
+    }
+
+    /** Starts a row for a transfer; hand the result to the transport as its progress callback. */
+    TransferProgress track(String name, long total, boolean outgoing) {
+        TransferProgress p = new TransferProgress(name, total, outgoing, this::changed);
+        changed(p);
+        return p;
+    }
+
+    private void changed(TransferProgress p) {
+        changed.add(p);
+        if (scheduled.compareAndSet(false, true)) SwingUtilities.invokeLater(this::refresh);
+    }
+
+    private void refresh() {
+        scheduled.set(false);
+        boolean added = false;
+        for (Iterator<TransferProgress> it = changed.iterator(); it.hasNext(); ) {
+            TransferProgress p = it.next();
+            it.remove();
+            Row r = rows.get(p);
+            if (r == null) {
+                if (p.state() != TransferProgress.State.RUNNING) continue; // over before we ever showed it
+                r = new Row(p);
+                rows.put(p, r);
+                added = true;
+            }
+            r.update();
+            if (p.state() != TransferProgress.State.RUNNING && !r.leaving) {
+                r.leaving = true;
+                Timer t = new Timer(LINGER_MS, e -> {
+                    rows.remove(p);
+                    relayout();
+                });
+                t.setRepeats(false);
+                t.start();
+            }
+        }
+        if (added) relayout();
+        else updateMore();
+    }
+
+    private void relayout() {
+        removeAll();
+        int shown = 0;
+        for (Row r : rows.values()) {
+            if (shown++ == MAX_ROWS) break;
+            add(r);
+        }
+        updateMore();
+        if (rows.size() > MAX_ROWS) add(more);
+        setVisible(!rows.isEmpty());
+        revalidate();
+        repaint();
+    }
+
+    private void updateMore() {
+        if (rows.size() <= MAX_ROWS) return;
+        List<Row> hidden = new ArrayList<>(rows.values()).subList(MAX_ROWS, rows.size());
+        long done = 0, total = 0;
+        for (Row r : hidden) {
+            done += r.progress.done();
+            total += r.progress.total();
+        }
+        more.setText("+" + hidden.size() + " more: " + TransferProgress.formatBytes(done)
+                + " of " + TransferProgress.formatBytes(total));
+    }
+
+    private static final class Row extends JPanel {
+        final TransferProgress progress;
+        final JProgressBar bar = new JProgressBar(0, 100);
+        boolean leaving;
+
+        Row(TransferProgress progress) {
+            super(new BorderLayout(6, 0));
+            this.progress = progress;
+            setBorder(new EmptyBorder(2, 0, 2, 0));
+            JLabel name = new JLabel((progress.outgoing ? "Sending " : "Receiving ") + progress.name);
+            name.setPreferredSize(new Dimension(200, name.getPreferredSize().height));
+            bar.setStringPainted(true);
+            add(name, BorderLayout.WEST);
+            add(bar, BorderLayout.CENTER);
+            setMaximumSize(new Dimension(Integer.MAX_VALUE, getPreferredSize().height));
+        }
+
+        void update() {
+            bar.setValue(progress.percent());
+            bar.setString(progress.describe());
+        }
+    }
+}
@@ -0,0 +1,23 @@
+// AllTests.java
+
+/**
+ * Runs every test under test/. No framework, just a JDK:
+ *
+ * javac -encoding UTF-8 -d out src/*.java test/*.java
+ * java -cp out AllTests
+ *
+ * Each case prints ok or FAIL; the exit status is 1 if any failed.
+ */
+public class AllTests {
+    public static void main(String[] args) {
+        Check check = new Check();
+        FramesTest.run(check);
+        TransferAssemblerTest.run(check);
+        MessageJournalTest.run(check);
+        ClusterTest.run(check);
+        MailboxesTest.run(check);
+        OutboundSchedulerTest.run(check);
+        System.out.println(check.passed() + " passed, " + check.failed() + " failed");
+        System.exit(check.failed() == 0 ? 0 : 1);
+    }
+}
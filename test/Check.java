@@ -0,0 +1,69 @@
+// Check.java
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * The little a test here needs: named cases that keep going after a failure, a few
+ * assertions, and scratch directories. Plain Java, so the tests build and run with
+ * nothing but a JDK (see AllTests).
+ */
+final class Check {
+
+    interface Body { void run() throws Exception; }
+
+    private int passed;
+    private int failed;
+
+    /** Runs one case; a failure is printed and counted, the next case runs anyway. */
+    void test(String name, Body body) {
+        try {
+            body.run();
+            passed++;
+            System.out.println("ok   " + name);
+        } catch (Throwable e) {
+            failed++;
+            System.out.println("FAIL " + name + ": " + e);
+            e.printStackTrace(System.out);
+        }
+    }
+
+    int passed() { return passed; }
+    int failed() { return failed; }
+
+    static void that(boolean condition, String what) {
+        if (!condition) throw new AssertionError(what);
+    }
+
+    static void equal(Object expected, Object actual, String what) {
+        if (!Objects.equals(expected, actual)) throw new AssertionError(what + ": expected " + expected + ", got " + actual);
+    }
+
+    static void equal(byte[] expected, byte[] actual, String what) {
+        if (!Arrays.equals(expected, actual)) throw new AssertionError(what + ": bytes differ");
+    }
+
+    /** Runs body and returns what it threw; fails if it threw nothing or something else. */
+    static <T extends Throwable> T fails(Class<T> type, Body body, String what) {
+        try {
+            body.run();
+        } catch (Throwable e) {
+            if (type.isInstance(e)) return type.cast(e);
+            throw new AssertionError(what + ": expected " + type.getSimpleName() + ", got " + e, e);
+        }
+        throw new AssertionError(what + ": expected " + type.getSimpleName() + ", nothing thrown");
+    }
+
+    static File tempDir(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) for (File c : children) delete(c);
+        f.setWritable(true);
+        f.delete();
+    }
+}
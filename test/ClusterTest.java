@@ -0,0 +1,151 @@
+// ClusterTest.java
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Taking RELAY frames: duplicates after a reconnect are dropped, a restarted origin starts over. */
+final class ClusterTest {
+
+    static void run(Check t) {
+        t.test("a resent batch only delivers what is new", () -> withCluster((cluster, journal) -> {
+            Check.equal(3L, cluster.receive(relay("a", 100, 1, "m1", "m2", "m3")), "acked up to");
+            Check.equal(3L, journal.lastSeq(), "all three delivered");
+            // the link dropped before our RELAY_ACK got there: 2 and 3 come again with 4
+            Check.equal(4L, cluster.receive(relay("a", 100, 2, "m2", "m3", "m4")), "acked up to");
+            Check.equal(List.of("m1", "m2", "m3", "m4"), texts(journal), "no repeats");
+            Check.equal(4L, cluster.receive(relay("a", 100, 1, "m1", "m2", "m3", "m4")), "acked up to");
+            Check.equal(4L, journal.lastSeq(), "a full duplicate delivers nothing");
+        }));
+
+        t.test("a new incarnation numbers from 1 again, an old one is stale", () -> withCluster((cluster, journal) -> {
+            cluster.receive(relay("a", 100, 1, "m1", "m2", "m3"));
+            Check.equal(1L, cluster.receive(relay("a", 200, 1, "restarted")), "acked up to");
+            Check.equal(4L, journal.lastSeq(), "taken although seq 1 was seen before the restart");
+            // late frames from before the restart
+            Check.equal(5L, cluster.receive(relay("a", 100, 4, "m4", "m5")), "still acked");
+            Check.equal(4L, journal.lastSeq(), "stale incarnation dropped");
+            Check.equal(2L, cluster.receive(relay("a", 200, 2, "after")), "acked up to");
+            Check.equal(List.of("m1", "m2", "m3", "restarted", "after"), texts(journal), "delivered");
+        }));
+
+        t.test("origins are tracked apart", () -> withCluster((cluster, journal) -> {
+            cluster.receive(relay("a", 100, 1, "a1", "a2"));
+            cluster.receive(relay("b", 100, 1, "b1"));
+            cluster.receive(relay("b", 100, 1, "b1", "b2"));
+            Check.equal(List.of("a1", "a2", "b1", "b2"), texts(journal), "delivered");
+        }));
+
+        t.test("only a configured peer's address can link in as a node", () -> {
+            Check.that(linkRelays("127.0.0.1:9"), "a peer on this host relays");
+            Check.that(!linkRelays("192.0.2.1:9"), "anyone else is a client, its RELAY ignored");
+            NioChatServer unstarted = new NioChatServer(0, 1, new File("."), null);
+            Cluster cluster = new Cluster("here", List.of("192.0.2.1:9"), unstarted);
+            Check.that(cluster.acceptsLink(InetAddress.getByName("192.0.2.1")), "configured address");
+            Check.that(!cluster.acceptsLink(InetAddress.getByName("192.0.2.2")), "its neighbour");
+            Check.that(!new Cluster("here", Collections.emptyList(), unstarted).acceptsLink(
+                    InetAddress.getLoopbackAddress()), "no peers, no links");
+        });
+    }
+
+    private interface Body { void run(Cluster cluster, MessageJournal journal) throws Exception; }
+
+    // a node with no peers and no clients, whose journal shows what it delivered
+    private static void withCluster(Body body) throws Exception {
+        File dir = Check.tempDir("cluster-test");
+        try (MessageJournal journal = new MessageJournal(new File(dir, "journal"), 64 * 1024, 10)) {
+            NioChatServer server = new NioChatServer(0, 1, dir, new NioChatServer.Listener() {
+                public void onConnect(NioChatServer.Session s) {}
+                public void onMessage(NioChatServer.Session s, String m) {}
+                public void onFile(NioChatServer.Session s, String name, File f) {}
+                public void onDisconnect(NioChatServer.Session s) {}
+                public void onError(NioChatServer.Session s, Exception ex) {}
+            });
+            server.setJournal(journal);
+            body.run(new Cluster("here", Collections.emptyList(), server), journal);
+        } finally {
+            Check.delete(dir);
+        }
+    }
+
+    // connects from loopback saying node=other, sends a RELAY then a plain message; did the RELAY get delivered?
+    private static boolean linkRelays(String peers) throws Exception {
+        File dir = Check.tempDir("cluster-test");
+        NioChatServer[] server = new NioChatServer[1];
+        try (MessageJournal journal = new MessageJournal(new File(dir, "journal"), 64 * 1024, 10)) {
+            server[0] = new NioChatServer(0, 1, dir, new NioChatServer.Listener() {
+                public void onConnect(NioChatServer.Session s) {}
+                public void onMessage(NioChatServer.Session s, String m) {
+                    try { server[0].publish(m, s); } catch (IOException e) { throw new UncheckedIOException(e); }
+                }
+                public void onFile(NioChatServer.Session s, String name, File f) {}
+                public void onDisconnect(NioChatServer.Session s) {}
+                public void onError(NioChatServer.Session s, Exception ex) {}
+            });
+            server[0].setJournal(journal);
+            server[0].setCluster(new Cluster("here", List.of(peers), server[0]));
+            server[0].start();
+            try (Socket s = new Socket("127.0.0.1", server[0].getPort())) {
+                OutputStream out = s.getOutputStream();
+                out.write(Frames.encodeHello("mallory", "other"));
+                ByteBuffer relay = relay("other", 100, 1, "relayed");
+                byte[] p = new byte[relay.remaining()];
+                relay.get(p);
+                out.write(Frames.encodeFrame(Frames.OP_RELAY, 0, p));
+                out.write(Frames.encodeMessage("direct", true));
+                out.flush();
+                long deadline = System.currentTimeMillis() + 5000;
+                while (!texts(journal).contains("direct") && !texts(journal).contains("relayed")
+                        && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                Thread.sleep(100); // whichever came first, give the other one its chance
+                return texts(journal).contains("relayed");
+            } finally {
+                server[0].stop();
+            }
+        } finally {
+            Check.delete(dir);
+        }
+    }
+
+    // a RELAY payload as Cluster.encodeRelay builds it, lobby messages from "bob"
+    private static ByteBuffer relay(String origin, long incarnation, long firstSeq, String... texts) {
+        byte[] from = origin.getBytes(StandardCharsets.UTF_8);
+        byte[] lobby = new byte[0];
+        byte[] sender = "bob".getBytes(StandardCharsets.UTF_8);
+        List<byte[]> bodies = new ArrayList<>();
+        int size = Frames.stringSize(from) + Frames.varintSize(incarnation) + Frames.varintSize(firstSeq)
+                + Frames.varintSize(texts.length);
+        for (String text : texts) {
+            byte[] b = text.getBytes(StandardCharsets.UTF_8);
+            bodies.add(b);
+            size += Frames.stringSize(lobby) + Frames.stringSize(sender) + Frames.stringSize(b);
+        }
+        ByteBuffer p = ByteBuffer.allocate(size);
+        Frames.putString(p, from);
+        Frames.putVarint(p, incarnation);
+        Frames.putVarint(p, firstSeq);
+        Frames.putVarint(p, texts.length);
+        for (byte[] b : bodies) {
+            Frames.putString(p, lobby);
+            Frames.putString(p, sender);
+            Frames.putString(p, b);
+        }
+        p.flip();
+        return p;
+    }
+
+    private static List<String> texts(MessageJournal journal) {
+        List<String> out = new ArrayList<>();
+        for (MessageJournal.Entry e : journal.read(1, 100)) out.add(e.text);
+        return out;
+    }
+}
@@ -0,0 +1,224 @@
+// FramesTest.java
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/** Wire format: varints, telling legacy from binary frames, the payload limit and HELLO. */
+final class FramesTest {
+
+    private static final long[] VARINTS = { 0, 1, 0x7F, 0x80, 0x3FFF, 0x4000, 0x1FFFFF, 0x200000,
+            Integer.MAX_VALUE, 1L << 35, Long.MAX_VALUE, -1 };
+
+    static void run(Check t) {
+        t.test("varint round trips at the byte boundaries", () -> {
+            for (long v : VARINTS) {
+                ByteBuffer b = ByteBuffer.allocate(Frames.varintSize(v));
+                Frames.putVarint(b, v);
+                Check.equal(0, b.remaining(), "varintSize(" + v + ") is what putVarint writes");
+                Check.equal(v, Frames.getVarint(ByteBuffer.wrap(b.array())), "getVarint(" + v + ")");
+                Check.equal(v, Frames.getVarint(ByteBuffer.wrap(b.array()), 0), "getVarint at 0 (" + v + ")");
+                Check.equal(v, Frames.readVarint(new DataInputStream(new ByteArrayInputStream(b.array()))), "readVarint(" + v + ")");
+                Check.equal(b.array().length, Frames.varintEnd(ByteBuffer.wrap(b.array()), 0), "varintEnd(" + v + ")");
+            }
+            Check.equal(1, Frames.varintSize(0x7F), "7 bits fit one byte");
+            Check.equal(2, Frames.varintSize(0x80), "8 bits take two");
+            Check.equal(10, Frames.varintSize(-1), "64 bits take ten");
+        });
+
+        t.test("varintEnd waits for a varint cut short and rejects one that never ends", () -> {
+            ByteBuffer b = ByteBuffer.allocate(10);
+            Frames.putVarint(b, 1L << 35);
+            b.flip();
+            b.limit(b.limit() - 1);
+            Check.equal(-1, Frames.varintEnd(b, 0), "incomplete");
+            byte[] endless = new byte[11];
+            Arrays.fill(endless, (byte) 0xFF);
+            Check.fails(IOException.class, () -> Frames.varintEnd(ByteBuffer.wrap(endless), 0), "varintEnd");
+            Check.fails(IOException.class,
+                    () -> Frames.readVarint(new DataInputStream(new ByteArrayInputStream(endless))), "readVarint");
+        });
+
+        t.test("the first byte tells a legacy frame from a binary one", () -> {
+            for (int op = 0x80; op <= 0xFF; op++) {
+                Check.that(Frames.isBinary(op), "opcode " + Integer.toHexString(op) + " reads as binary");
+            }
+            Check.that(!Frames.isBinary(Frames.legacyUTF("MSG")[0] & 0xFF), "short legacy string");
+            Check.that(!Frames.isBinary(Frames.legacyUTF(repeat('x', 0x7FFF))[0] & 0xFF), "longest legacy string");
+            Check.that(!Frames.isBinary(Frames.encodeHello()[0] & 0xFF), "HELLO is always legacy");
+        });
+
+        t.test("legacy and binary frames mixed on one stream", () -> {
+            ByteArrayOutputStream wire = new ByteArrayOutputStream();
+            wire.write(Frames.encodeHello());
+            wire.write(Frames.legacyUTF("MSG", "old style"));
+            wire.write(Frames.encodeMessage("new style", true));
+            wire.write(Frames.encodeFileHeader("a.bin", 1L << 40, true));
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(wire.toByteArray()));
+
+            Check.equal(Frames.LEGACY_HELLO, Frames.readLegacyUTF(in, in.readUnsignedByte()), "HELLO tag");
+            in.readUTF();
+            Check.equal("MSG", Frames.readLegacyUTF(in, in.readUnsignedByte()), "legacy tag");
+            Check.equal("old style", in.readUTF(), "legacy payload");
+
+            Check.equal(Frames.OP_MSG, in.readUnsignedByte(), "binary message");
+            in.readUnsignedByte();
+            byte[] text = new byte[(int) Frames.readVarint(in)];
+            in.readFully(text);
+            Check.equal("new style", new String(text, StandardCharsets.UTF_8), "binary payload");
+
+            Check.equal(Frames.OP_FILE, in.readUnsignedByte(), "second binary frame");
+            in.readUnsignedByte();
+            byte[] p = new byte[(int) Frames.readVarint(in)];
+            in.readFully(p);
+            Frames.FileHeader h = Frames.parseFileHeader(ByteBuffer.wrap(p));
+            Check.equal("a.bin", h.name, "file name");
+            Check.equal(1L << 40, h.size, "file size");
+            Check.equal(-1, in.read(), "nothing left");
+        });
+
+        t.test("payload lengths past MAX_PAYLOAD are refused", () -> {
+            Frames.checkLength(0);
+            Frames.checkLength(Frames.MAX_PAYLOAD);
+            Check.fails(IOException.class, () -> Frames.checkLength(Frames.MAX_PAYLOAD + 1L), "one past the limit");
+            Check.fails(IOException.class, () -> Frames.checkLength(-1), "negative");
+        });
+
+        t.test("the server drops a connection announcing an oversized frame", () -> {
+            BlockingQueue<Exception> errors = new LinkedBlockingQueue<>();
+            File dir = Check.tempDir("frames-test");
+            NioChatServer server = startServer(dir, errors);
+            try (Socket s = new Socket("127.0.0.1", server.getPort())) {
+                s.setSoTimeout(5000);
+                OutputStream out = s.getOutputStream();
+                out.write(Frames.encodeHello());
+                ByteBuffer head = ByteBuffer.allocate(12);
+                head.put((byte) Frames.OP_MSG).put((byte) 0);
+                Frames.putVarint(head, Frames.MAX_PAYLOAD + 1L);
+                out.write(head.array(), 0, head.position());
+                out.flush();
+                Exception e = errors.poll(5, TimeUnit.SECONDS);
+                Check.that(e != null && e.getMessage().startsWith("Frame too large"), "server error: " + e);
+                drain(s);
+            } finally {
+                server.stop();
+                Check.delete(dir);
+            }
+        });
+
+        t.test("the server drops a legacy FILE with a negative size", () -> {
+            BlockingQueue<Exception> errors = new LinkedBlockingQueue<>();
+            File dir = Check.tempDir("frames-test");
+            NioChatServer server = startServer(dir, errors);
+            try (Socket s = new Socket("127.0.0.1", server.getPort())) {
+                s.setSoTimeout(5000);
+                DataOutputStream out = new DataOutputStream(s.getOutputStream());
+                out.writeUTF("FILE");
+                out.writeUTF("a.bin");
+                out.writeLong(-5);
+                out.writeUTF("MSG");
+                out.writeUTF("after");
+                out.flush();
+                Exception e = errors.poll(5, TimeUnit.SECONDS);
+                Check.that(e != null && e.getMessage().startsWith("Negative file size"), "server error: " + e);
+                drain(s);
+            } finally {
+                server.stop();
+                Check.delete(dir);
+            }
+            ByteBuffer p = ByteBuffer.allocate(16);
+            Frames.putVarint(p, 1);
+            p.put((byte) 'a').putLong(-1).flip();
+            Check.fails(IOException.class, () -> Frames.parseFileHeader(p), "binary header");
+        });
+
+        t.test("a FILE_BEGIN chunk size past MAX_PAYLOAD is refused", () -> {
+            byte[] sha = new byte[32];
+            Check.equal(Frames.MAX_PAYLOAD,
+                    Frames.parseFileBegin(payload(Frames.encodeFileBegin(1, "a.bin", 10, Frames.MAX_PAYLOAD, sha))).chunkSize,
+                    "the largest chunk that fits a frame");
+            Check.fails(IOException.class,
+                    () -> Frames.parseFileBegin(payload(Frames.encodeFileBegin(1, "a.bin", 10, 0x7FFFFFF0, sha))), "huge");
+            Check.fails(IOException.class,
+                    () -> Frames.parseFileBegin(payload(Frames.encodeFileBegin(1, "a.bin", 10, 0, sha))), "zero");
+
+            BlockingQueue<Exception> errors = new LinkedBlockingQueue<>();
+            File dir = Check.tempDir("frames-test");
+            NioChatServer server = startServer(dir, errors);
+            try (Socket s = new Socket("127.0.0.1", server.getPort())) {
+                s.setSoTimeout(5000);
+                OutputStream out = s.getOutputStream();
+                out.write(Frames.encodeHello());
+                out.write(Frames.encodeFileBegin(1, "a.bin", 10, 0x7FFFFFF0, sha));
+                out.flush();
+                Exception e = errors.poll(5, TimeUnit.SECONDS);
+                Check.that(e != null && e.getMessage().startsWith("Bad chunk size"), "server error: " + e);
+                drain(s);
+            } finally {
+                server.stop();
+                Check.delete(dir);
+            }
+        });
+
+        t.test("HELLO carries the version, options and a name", () -> {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(Frames.encodeHello("a;b", "node-1")));
+            Check.equal(Frames.LEGACY_HELLO, in.readUTF(), "tag");
+            String hello = in.readUTF();
+            Check.equal(Frames.VERSION, Frames.parseHelloVersion(hello), "version");
+            Check.equal("a,b", Frames.helloValue(hello, Frames.NAME_KEY), "';' can't get into a value");
+            Check.equal("node-1", Frames.helloValue(hello, Frames.NODE_KEY), "node");
+            Check.equal(Compression.ENABLED, Compression.negotiated(hello), "compression offered when enabled");
+            Check.equal(null, Frames.helloValue(hello, Frames.STREAM_KEY), "no stream token");
+        });
+
+        t.test("HELLO parsing copes with old and odd peers", () -> {
+            Check.equal(1, Frames.parseHelloVersion(""), "nothing");
+            Check.equal(1, Frames.parseHelloVersion("version=x"), "not a number");
+            Check.equal(3, Frames.parseHelloVersion("version=3"), "plain version");
+            Check.equal(6, Frames.parseHelloVersion(" version = 6 ; compress = deflate "), "spaces");
+            Check.equal("a=b", Frames.helloValue("version=9;name=a=b", Frames.NAME_KEY), "'=' in a value");
+            Check.that(!Compression.negotiated("version=6;compress=zstd"), "unknown codec");
+            Check.that(!Compression.negotiated("version=5"), "no compress key");
+        });
+    }
+
+    static NioChatServer startServer(File dir, BlockingQueue<Exception> errors) throws IOException {
+        NioChatServer server = new NioChatServer(0, 1, dir, new NioChatServer.Listener() {
+            public void onConnect(NioChatServer.Session s) {}
+            public void onMessage(NioChatServer.Session s, String m) {}
+            public void onFile(NioChatServer.Session s, String name, File f) {}
+            public void onDisconnect(NioChatServer.Session s) {}
+            public void onError(NioChatServer.Session s, Exception ex) { errors.add(ex); }
+        });
+        server.start();
+        return server;
+    }
+
+    // strips the op, flags and length off an encoded binary frame
+    static ByteBuffer payload(byte[] frame) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(frame);
+        b.position(2);
+        Frames.getVarint(b);
+        return b.slice();
+    }
+
+    // reads until the server has closed the connection
+    static void drain(Socket s) {
+        try {
+            InputStream in = s.getInputStream();
+            while (in.read() >= 0) {}
+        } catch (IOException reset) {
+            // closed either way
+        }
+    }
+
+    private static String repeat(char c, int n) {
+        StringBuilder sb = new StringBuilder(n);
+        for (int i = 0; i < n; i++) sb.append(c);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,51 @@
+// MailboxesTest.java
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Reloading a mailbox whose newest segment ends in a torn record. */
+final class MailboxesTest {
+
+    static void run(Check t) {
+        t.test("a torn tail is cut off on load and no longer counted", () -> {
+            File dir = Check.tempDir("mailboxes-test");
+            try {
+                Mailboxes first = new Mailboxes(dir, 10);
+                Mailboxes.Mailbox box = first.open("bob");
+                box.appendText("alice", "one", 1);
+                box.appendText("alice", "two", 2);
+                box.appendText("alice", "three", 3);
+                long whole = box.bytes();
+                first.close();
+
+                File segment = segments(new File(dir, Mailboxes.encode("bob")))[0];
+                Check.equal(whole, segment.length(), "one segment holds it all");
+                try (FileOutputStream out = new FileOutputStream(segment, true)) {
+                    out.write(new byte[] { 40, 1, 2, 3, 4, 5, 6 }); // a record that claims 40 bytes and has 6
+                }
+
+                Mailboxes second = new Mailboxes(dir, 10);
+                try {
+                    box = second.open("bob");
+                    Check.equal(3L, box.lastSeq(), "the whole records survive");
+                    Check.equal(whole, segment.length(), "the tail is gone from disk");
+                    Check.equal(whole, box.bytes(), "and from the mailbox size");
+                    Check.equal(whole, second.storedBytes(), "and from the store total");
+                    Check.equal(4L, box.appendText("alice", "four", 4), "appends carry on after the cut");
+                    List<String> texts = new ArrayList<>();
+                    for (Mailboxes.Entry e : box.read(1, 10, 1 << 20)) texts.add(e.text);
+                    Check.equal(List.of("one", "two", "three", "four"), texts, "read back");
+                } finally {
+                    second.close();
+                }
+            } finally {
+                Check.delete(dir);
+            }
+        });
+    }
+
+    private static File[] segments(File box) {
+        return box.listFiles((d, name) -> name.endsWith(".q"));
+    }
+}
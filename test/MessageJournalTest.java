@@ -0,0 +1,104 @@
+// MessageJournalTest.java
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/** Reopening the journal: a torn or corrupt last record ends the log and is written over. */
+final class MessageJournalTest {
+
+    private static final int HEADER = 4 + 8 + 8 + 4; // length, seq, time, crc32c
+    private static final int SEGMENT = 64 * 1024;
+
+    static void run(Check t) {
+        t.test("a record with a bad checksum ends the log on reopen", () -> {
+            File dir = Check.tempDir("journal-test");
+            try {
+                try (MessageJournal j = new MessageJournal(dir, SEGMENT, 10)) {
+                    j.append("one", 1);
+                    j.append("two", 2);
+                    j.append("three", 3);
+                }
+                // flip a byte of the third record's text
+                corrupt(segment(dir), recordStart("one", "two") + HEADER + 1);
+                try (MessageJournal j = new MessageJournal(dir, SEGMENT, 10)) {
+                    Check.equal(2L, j.lastSeq(), "last good record");
+                    Check.equal(2, j.read(1, 10).size(), "readable");
+                    Check.equal(3L, j.append("three again", 4), "the damaged seq is given out again");
+                }
+                try (MessageJournal j = new MessageJournal(dir, SEGMENT, 10)) {
+                    List<MessageJournal.Entry> all = j.read(1, 10);
+                    Check.equal(3, all.size(), "after the overwrite");
+                    Check.equal("three again", all.get(2).text, "the new record replaced the torn one");
+                    Check.equal(4L, all.get(2).time, "its time");
+                }
+            } finally {
+                Check.delete(dir);
+            }
+        });
+
+        t.test("a torn header past the end of the segment ends the log", () -> {
+            File dir = Check.tempDir("journal-test");
+            try {
+                try (MessageJournal j = new MessageJournal(dir, SEGMENT, 10)) {
+                    j.append("one", 1);
+                    j.append("two", 2);
+                }
+                // the second record claims more text than the segment holds
+                try (RandomAccessFile raf = new RandomAccessFile(segment(dir), "rw")) {
+                    raf.seek(recordStart("one"));
+                    raf.writeInt(SEGMENT);
+                }
+                try (MessageJournal j = new MessageJournal(dir, SEGMENT, 10)) {
+                    Check.equal(1L, j.lastSeq(), "only the first record survives");
+                    Check.equal(2L, j.append("two again", 3), "next seq");
+                    Check.equal("two again", j.read(2, 1).get(0).text, "readable straight away");
+                }
+            } finally {
+                Check.delete(dir);
+            }
+        });
+
+        t.test("a clean log reopens whole, across segments", () -> {
+            File dir = Check.tempDir("journal-test");
+            try {
+                int n = 500;
+                try (MessageJournal j = new MessageJournal(dir, 4096, 10)) {
+                    for (int i = 1; i <= n; i++) j.append("message " + i, i);
+                }
+                Check.that(dir.list().length > 1, "several segments");
+                try (MessageJournal j = new MessageJournal(dir, 4096, 10)) {
+                    Check.equal((long) n, j.lastSeq(), "everything back");
+                    List<MessageJournal.Entry> tail = j.read(n - 2, 10);
+                    Check.equal(3, tail.size(), "read to the end");
+                    Check.equal("message " + n, tail.get(2).text, "last text");
+                    Check.equal((long) n + 1, j.append("more", 0), "numbering goes on");
+                }
+            } finally {
+                Check.delete(dir);
+            }
+        });
+    }
+
+    private static File segment(File dir) {
+        File[] logs = dir.listFiles((d, name) -> name.endsWith(".log"));
+        Check.equal(1, logs.length, "one segment");
+        return logs[0];
+    }
+
+    // byte offset just past the given records, which start at the beginning of the segment
+    private static int recordStart(String... before) {
+        int pos = 0;
+        for (String s : before) pos += HEADER + s.getBytes(StandardCharsets.UTF_8).length;
+        return pos;
+    }
+
+    private static void corrupt(File f, long at) throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.seek(at);
+            int b = raf.read();
+            raf.seek(at);
+            raf.write(b ^ 0xFF);
+        }
+    }
+}
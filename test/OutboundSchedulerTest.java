@@ -0,0 +1,200 @@
+// OutboundSchedulerTest.java
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** The outbound queue against a consumer that has stopped reading, one case per overflow policy. */
+final class OutboundSchedulerTest {
+
+    // four of these fill the queue to its high-water mark
+    private static final int QUARTER = (int) (OutboundScheduler.HIGH_WATER / 4);
+
+    static void run(Check t) {
+        t.test("BLOCK holds the sender until the writer makes room", () -> {
+            OutboundScheduler s = new OutboundScheduler(null, OutboundScheduler.OverflowPolicy.BLOCK, () -> true, null);
+            for (int i = 1; i <= 4; i++) s.enqueueMessage(frame(i, QUARTER));
+            Thread sender = new Thread(() -> s.enqueueMessage(frame(5, QUARTER)));
+            sender.start();
+            sender.join(200);
+            Check.that(sender.isAlive(), "the fifth waits while the queue is full");
+            Check.equal(1, tag(s.poll()), "first out");
+            sender.join(5000);
+            Check.that(!sender.isAlive(), "one taken, the fifth goes in");
+            Check.equal(List.of(2, 3, 4, 5), drain(s), "nothing lost, nothing reordered");
+        });
+
+        t.test("BLOCK on a thread that must not wait disconnects instead", () -> {
+            AtomicReference<IOException> overflow = new AtomicReference<>();
+            OutboundScheduler s = new OutboundScheduler(null, OutboundScheduler.OverflowPolicy.BLOCK, () -> false, overflow::set);
+            for (int i = 1; i <= 4; i++) s.enqueueMessage(frame(i, QUARTER));
+            CompletableFuture<Void> fifth = s.enqueueMessage(frame(5, QUARTER));
+            Check.that(overflow.get() != null, "the owner was told");
+            Check.that(fifth.isCompletedExceptionally(), "the fifth failed");
+        });
+
+        t.test("DROP_OLDEST evicts queued messages but never control frames", () -> {
+            OutboundScheduler s = new OutboundScheduler(null, OutboundScheduler.OverflowPolicy.DROP_OLDEST, () -> true, null);
+            CompletableFuture<Void> control = s.enqueue(frame(9, 16));
+            CompletableFuture<Void> oldest = s.enqueueMessage(frame(1, QUARTER));
+            for (int i = 2; i <= 4; i++) s.enqueueMessage(frame(i, QUARTER));
+            Check.that(oldest.isCompletedExceptionally(), "the oldest message was dropped");
+            Check.that(!control.isDone(), "the control frame is still queued");
+            Check.equal(1L, s.droppedCount(), "counted");
+            Check.equal(List.of(9, 2, 3, 4), drain(s), "what is left, in order");
+        });
+
+        t.test("DISCONNECT gives up on the peer and fails what was queued", () -> {
+            AtomicReference<IOException> overflow = new AtomicReference<>();
+            OutboundScheduler s = new OutboundScheduler(null, OutboundScheduler.OverflowPolicy.DISCONNECT, () -> true, overflow::set);
+            CompletableFuture<Void> first = s.enqueueMessage(frame(1, QUARTER));
+            for (int i = 2; i <= 4; i++) s.enqueueMessage(frame(i, QUARTER));
+            Check.that(overflow.get() == null, "up to the mark is fine");
+            CompletableFuture<Void> fifth = s.enqueueMessage(frame(5, QUARTER));
+            Check.that(overflow.get() != null, "the owner was told");
+            Check.that(fifth.isCompletedExceptionally() && first.isCompletedExceptionally(), "everything failed");
+            Check.that(s.poll() == null, "nothing left to write");
+            Check.that(s.enqueue(frame(9, 16)).isCompletedExceptionally(), "later frames fail straight away");
+        });
+
+        t.test("parked messages go out in order as room is made, past another mark they are refused", () -> {
+            OutboundScheduler s = new OutboundScheduler(null, OutboundScheduler.OverflowPolicy.BLOCK, () -> false, null);
+            List<CompletableFuture<Void>> sent = new ArrayList<>();
+            for (int i = 1; i <= 8; i++) sent.add(s.offerMessage(frame(i, QUARTER)));
+            Check.that(!sent.get(4).isDone(), "the fifth is parked, its sender did not wait");
+            CompletableFuture<Void> ninth = s.offerMessage(frame(9, QUARTER));
+            Check.that(ninth.isCompletedExceptionally(), "parking is bounded too");
+            List<Integer> order = new ArrayList<>();
+            OutboundScheduler.Unit u;
+            while ((u = s.poll()) != null) {
+                order.add(tag(u));
+                u.written();
+            }
+            Check.equal(List.of(1, 2, 3, 4, 5, 6, 7, 8), order, "written in the order offered");
+            for (CompletableFuture<Void> f : sent) Check.that(f.isDone() && !f.isCompletedExceptionally(), "each completed");
+        });
+
+        t.test("a transfer reports its outcome once", () -> {
+            File file = File.createTempFile("scheduler-test", ".bin");
+            try {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(3 * 1024);
+                }
+                AtomicInteger done = new AtomicInteger();
+                AtomicReference<Boolean> outcome = new AtomicReference<>();
+                FramedConnection.Progress progress = new FramedConnection.Progress() {
+                    public void onProgress(long sent, long total) {}
+                    public void onDone(boolean ok) {
+                        done.incrementAndGet();
+                        outcome.set(ok);
+                    }
+                };
+                // a write of its FILE_BEGIN fails, then the connection closes
+                OutboundScheduler s = new OutboundScheduler(null);
+                CompletableFuture<Void> f = s.enqueueFile(file, progress, Frames.VERSION);
+                IOException gone = new IOException("Connection reset");
+                s.poll().fail(gone);
+                s.close(gone);
+                Check.equal(1, done.get(), "one onDone after a failed write and close");
+                Check.that(f.isCompletedExceptionally(), "failed");
+
+                // confirmed by the peer, then a late failure
+                done.set(0);
+                s = new OutboundScheduler(null);
+                s.enqueueFile(file, progress, Frames.VERSION);
+                OutboundScheduler.Unit begin = s.poll();
+                s.ack(1, Frames.ACK_OK);
+                begin.fail(gone);
+                Check.equal(1, done.get(), "one onDone after an ack and a failed write");
+                Check.equal(Boolean.TRUE, outcome.get(), "still a success");
+            } finally {
+                file.delete();
+            }
+        });
+
+        t.test("a reader that stalls gets every message in order once it reads again", () -> {
+            int count = 2000;
+            CountDownLatch connected = new CountDownLatch(1);
+            File dir = Check.tempDir("scheduler-test");
+            NioChatServer server = new NioChatServer(0, 1, dir, new NioChatServer.Listener() {
+                public void onConnect(NioChatServer.Session s) { connected.countDown(); }
+                public void onMessage(NioChatServer.Session s, String m) {}
+                public void onFile(NioChatServer.Session s, String name, File f) {}
+                public void onDisconnect(NioChatServer.Session s) {}
+                public void onError(NioChatServer.Session s, Exception ex) {}
+            });
+            server.start();
+            try (Socket s = new Socket()) {
+                s.setReceiveBufferSize(4096); // fills after a few frames, so the server's writes go partial
+                s.connect(new InetSocketAddress("127.0.0.1", server.getPort()));
+                s.setSoTimeout(10_000);
+                DataOutputStream out = new DataOutputStream(s.getOutputStream());
+                out.writeUTF(Frames.LEGACY_HELLO);
+                out.writeUTF("version=" + Frames.VERSION);
+                out.flush();
+                Check.that(connected.await(5, TimeUnit.SECONDS), "connected");
+                String pad = new String(new char[500]).replace('\0', 'x');
+                for (int i = 0; i < count; i++) server.broadcast(i + pad, null);
+
+                DataInputStream in = new DataInputStream(s.getInputStream());
+                for (int i = 0; i < count; i++) {
+                    String m = readMessage(in);
+                    Check.equal(i + pad, m, "message " + i);
+                }
+            } finally {
+                server.stop();
+                Check.delete(dir);
+            }
+        });
+    }
+
+    // the next chat message, skipping HELLO, PINGs and whatever else the server sends
+    private static String readMessage(DataInputStream in) throws IOException {
+        while (true) {
+            int first = in.readUnsignedByte();
+            if (Frames.isBinary(first)) {
+                in.readUnsignedByte();
+                byte[] p = new byte[(int) Frames.readVarint(in)];
+                in.readFully(p);
+                if (first == Frames.OP_MSG) return new String(p, StandardCharsets.UTF_8);
+            } else {
+                String tag = Frames.readLegacyUTF(in, first);
+                String body = in.readUTF();
+                if ("MSG".equals(tag)) return body;
+            }
+        }
+    }
+
+    // a message frame of size bytes whose second byte tells it apart
+    private static byte[] frame(int tag, int size) {
+        byte[] f = new byte[size];
+        f[0] = (byte) Frames.OP_MSG;
+        f[1] = (byte) tag;
+        return f;
+    }
+
+    private static int tag(OutboundScheduler.Unit u) {
+        return u.head().get(u.head().position() + 1);
+    }
+
+    private static List<Integer> drain(OutboundScheduler s) {
+        List<Integer> tags = new ArrayList<>();
+        OutboundScheduler.Unit u;
+        while ((u = s.poll()) != null) {
+            tags.add(tag(u));
+            u.written();
+        }
+        return tags;
+    }
+}
@@ -0,0 +1,117 @@
+// TransferAssemblerTest.java
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+
+/** Receiving chunked transfers: resuming from a kept partial and rewinding after a bad chunk. */
+final class TransferAssemblerTest {
+
+    private static final int CHUNK = 1024;
+
+    static void run(Check t) {
+        t.test("a dropped transfer resumes at the last whole chunk", () -> {
+            File dir = Check.tempDir("assembler-test");
+            try {
+                byte[] data = data(3 * CHUNK + 100, 1);
+                byte[] sha = FileChecksums.sha256().digest(data);
+                TransferAssembler first = new TransferAssembler(name -> new File(dir, name));
+                Check.equal(0L, first.begin(1, "a.bin", data.length, CHUNK, sha), "fresh start");
+                Check.equal(-1L, chunk(first, 1, data, 0, CHUNK), "first chunk");
+                Check.equal(-1L, chunk(first, 1, data, CHUNK, CHUNK), "second chunk");
+                first.closeAll(); // connection gone, the partial stays
+
+                TransferAssembler second = new TransferAssembler(name -> new File(dir, name));
+                Check.equal((long) 2 * CHUNK, second.begin(5, "a.bin", data.length, CHUNK, sha), "resume offset");
+                Check.equal(-1L, chunk(second, 5, data, 2 * CHUNK, CHUNK), "third chunk");
+                Check.equal(-1L, chunk(second, 5, data, 3 * CHUNK, 100), "short last chunk");
+                TransferAssembler.Incoming in = second.end(5);
+                Check.that(in.ok, "digest over the kept and the new bytes matches");
+                Check.equal(data, Files.readAllBytes(in.file.toPath()), "content");
+            } finally {
+                Check.delete(dir);
+            }
+        });
+
+        t.test("a partial ending mid-chunk is cut back to the chunk boundary", () -> {
+            File dir = Check.tempDir("assembler-test");
+            try {
+                byte[] data = data(4 * CHUNK, 2);
+                byte[] sha = FileChecksums.sha256().digest(data);
+                TransferAssembler first = new TransferAssembler(name -> new File(dir, name));
+                first.begin(1, "b.bin", data.length, CHUNK, sha);
+                chunk(first, 1, data, 0, CHUNK);
+                chunk(first, 1, data, CHUNK, CHUNK);
+                File partial = first.get(1).partial;
+                first.closeAll();
+                try (RandomAccessFile raf = new RandomAccessFile(partial, "rw")) {
+                    raf.seek(2 * CHUNK);
+                    raf.write(data, 2 * CHUNK, 300); // half a chunk written before the drop
+                }
+
+                TransferAssembler second = new TransferAssembler(name -> new File(dir, name));
+                Check.equal((long) 2 * CHUNK, second.begin(2, "b.bin", data.length, CHUNK, sha), "aligned down");
+                Check.equal((long) 2 * CHUNK, partial.length(), "the torn tail is gone");
+                chunk(second, 2, data, 2 * CHUNK, CHUNK);
+                chunk(second, 2, data, 3 * CHUNK, CHUNK);
+                Check.that(second.end(2).ok, "complete");
+            } finally {
+                Check.delete(dir);
+            }
+        });
+
+        t.test("a bad chunk rewinds the sender, chunks in flight behind it are dropped", () -> {
+            File dir = Check.tempDir("assembler-test");
+            try {
+                byte[] data = data(4 * CHUNK, 3);
+                byte[] sha = FileChecksums.sha256().digest(data);
+                TransferAssembler a = new TransferAssembler(name -> new File(dir, name));
+                a.begin(1, "c.bin", data.length, CHUNK, sha);
+                chunk(a, 1, data, 0, CHUNK);
+                ByteBuffer bad = ByteBuffer.wrap(data, CHUNK, CHUNK).slice();
+                int wrongCrc = FileChecksums.crc(bad.duplicate()) ^ 1;
+                Check.equal((long) CHUNK, a.chunk(1, CHUNK, wrongCrc, bad), "restart where the bad chunk was");
+                Check.equal(-1L, chunk(a, 1, data, 2 * CHUNK, CHUNK), "one sent before the rewind is ignored");
+                Check.equal((long) CHUNK, a.get(1).received, "nothing past the bad chunk was kept");
+
+                chunk(a, 1, data, CHUNK, CHUNK);
+                chunk(a, 1, data, 2 * CHUNK, CHUNK);
+                chunk(a, 1, data, 3 * CHUNK, CHUNK);
+                TransferAssembler.Incoming in = a.end(1);
+                Check.that(in.ok, "complete after the rewind");
+                Check.equal(data, Files.readAllBytes(in.file.toPath()), "content");
+            } finally {
+                Check.delete(dir);
+            }
+        });
+
+        t.test("a digest mismatch discards the partial", () -> {
+            File dir = Check.tempDir("assembler-test");
+            try {
+                byte[] data = data(2 * CHUNK, 4);
+                byte[] sha = FileChecksums.sha256().digest(data(2 * CHUNK, 5));
+                TransferAssembler a = new TransferAssembler(name -> new File(dir, name));
+                a.begin(1, "d.bin", data.length, CHUNK, sha);
+                File partial = a.get(1).partial;
+                chunk(a, 1, data, 0, CHUNK);
+                chunk(a, 1, data, CHUNK, CHUNK);
+                Check.that(!a.end(1).ok, "rejected");
+                Check.that(!partial.exists(), "the next try starts clean");
+            } finally {
+                Check.delete(dir);
+            }
+        });
+    }
+
+    private static long chunk(TransferAssembler a, long id, byte[] data, int offset, int length) throws Exception {
+        ByteBuffer b = ByteBuffer.wrap(data, offset, length).slice();
+        return a.chunk(id, offset, FileChecksums.crc(b.duplicate()), b);
+    }
+
+    private static byte[] data(int size, long seed) {
+        byte[] b = new byte[size];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+}